@@ -1,2 +1,30 @@
 @echo off
-%~dp0jvm\bin\java -cp %~dp0lib\${project.artifactId}-${project.version}.jar;%~dp0user-jars\* edu.uky.kcr.nax.NaxCommandLineApp %*
+setlocal
+set NAX_JAR=%~dp0lib\${project.artifactId}-${project.version}.jar
+set NAX_CLASSLIST=%~dp0jvm\lib\nax.classlist
+rem The install directory is usually not writable, so the AppCDS archive is kept per user
+set NAX_CACHE=%LOCALAPPDATA%\nax\${project.version}
+set NAX_ARCHIVE=%NAX_CACHE%\nax.jsa
+set NAX_ARCHIVE_FAILED=%NAX_CACHE%\nax.jsa.failed
+
+rem Create the AppCDS archive on the first run, it only works with the jar path it was created with (see install/CreatingJVM.txt)
+if not exist "%NAX_ARCHIVE%" if not exist "%NAX_ARCHIVE_FAILED%" if exist "%NAX_CLASSLIST%" call :dumpArchive
+
+"%~dp0jvm\bin\java" -Xshare:auto -XX:SharedArchiveFile="%NAX_ARCHIVE%" -cp "%NAX_JAR%;%~dp0user-jars\*" edu.uky.kcr.nax.NaxCommandLineApp %*
+exit /b %errorlevel%
+
+rem Dump to a temp file and move it into place, so runs started at the same time never use a half written archive.
+rem A failed dump leaves a marker file, so it isn't tried again on every run.
+:dumpArchive
+if not exist "%NAX_CACHE%" mkdir "%NAX_CACHE%" > nul 2>&1
+set NAX_ARCHIVE_TEMP=%NAX_CACHE%\nax-%RANDOM%%RANDOM%.jsa.tmp
+"%~dp0jvm\bin\java" -Xshare:dump -XX:SharedClassListFile="%NAX_CLASSLIST%" -XX:SharedArchiveFile="%NAX_ARCHIVE_TEMP%" -cp "%NAX_JAR%" > nul 2>&1
+if errorlevel 1 goto dumpFailed
+if not exist "%NAX_ARCHIVE_TEMP%" goto dumpFailed
+move /y "%NAX_ARCHIVE_TEMP%" "%NAX_ARCHIVE%" > nul 2>&1
+exit /b 0
+
+:dumpFailed
+del "%NAX_ARCHIVE_TEMP%" > nul 2>&1
+type nul > "%NAX_ARCHIVE_FAILED%" 2> nul
+exit /b 0
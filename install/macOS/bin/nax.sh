@@ -1,2 +1,27 @@
 #!/bin/sh
-$(dirname $0)/jvm/bin/java -cp $(dirname $0)/lib/${project.artifactId}-${project.version}.jar:$(dirname $0)/user-jars/* edu.uky.kcr.nax.NaxCommandLineApp "$@"
+NAX_BIN=$(cd $(dirname $0) && pwd -P)
+NAX_JAR=$NAX_BIN/lib/${project.artifactId}-${project.version}.jar
+NAX_CLASSLIST=$NAX_BIN/jvm/lib/nax.classlist
+# The install directory may not be writable, so the AppCDS archive is kept per user
+NAX_CACHE=$HOME/Library/Caches/nax/${project.version}
+NAX_ARCHIVE=$NAX_CACHE/nax.jsa
+NAX_ARCHIVE_FAILED=$NAX_CACHE/nax.jsa.failed
+
+# Create the AppCDS archive on the first run, it only works with the jar path it was created with (see install/CreatingJVM.txt)
+# Dump to a temp file and move it into place, so runs started at the same time never use a half written archive.
+# A failed dump leaves a marker file, so it isn't tried again on every run.
+if [ ! -f "$NAX_ARCHIVE" ] && [ ! -f "$NAX_ARCHIVE_FAILED" ] && [ -f "$NAX_CLASSLIST" ]
+then
+  mkdir -p "$NAX_CACHE" 2> /dev/null
+  NAX_ARCHIVE_TEMP=$NAX_CACHE/nax-$$.jsa.tmp
+
+  if "$NAX_BIN/jvm/bin/java" -Xshare:dump -XX:SharedClassListFile="$NAX_CLASSLIST" -XX:SharedArchiveFile="$NAX_ARCHIVE_TEMP" -cp "$NAX_JAR" > /dev/null 2>&1 && [ -f "$NAX_ARCHIVE_TEMP" ]
+  then
+    mv -f "$NAX_ARCHIVE_TEMP" "$NAX_ARCHIVE"
+  else
+    rm -f "$NAX_ARCHIVE_TEMP"
+    touch "$NAX_ARCHIVE_FAILED" 2> /dev/null
+  fi
+fi
+
+"$NAX_BIN/jvm/bin/java" -Xshare:auto -XX:SharedArchiveFile="$NAX_ARCHIVE" -cp "$NAX_JAR:$NAX_BIN/user-jars/*" edu.uky.kcr.nax.NaxCommandLineApp "$@"
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+import edu.uky.kcr.nax.model.Item;
+import edu.uky.kcr.nax.model.NaaccrData;
+import edu.uky.kcr.nax.model.NaaccrDictionary;
+import edu.uky.kcr.nax.model.Patient;
+import edu.uky.kcr.nax.model.Tumor;
+import org.codehaus.staxmate.dom.DOMConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The work Nax does for every Patient and every Item, run against the first Patient of the 1000 record sample file
+ * with a config that uses excluded Items, a constant value, replacement values, value counts, and a script.
+ * Each Item benchmark goes through all of the Patient's and Tumors' Items once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatientBenchmark
+{
+	private static final Logger naxLogger = Logger.getLogger(Nax.class.getPackage().getName());
+
+	private static final String INPUT_FILENAME = "naaccr-xml-sample-v180-abstract-1000.xml.gz";
+	private static final String FILTER_EXPRESSION = "primarySite.startsWith('C50') and dateOfDiagnosis >= '2005' and sex in ['1', '2']";
+	private static final String FILTER_SCRIPT = "tumor.getItemValue('primarySite').startsWith('C50') && tumor.getItemValue('dateOfDiagnosis') >= '2005' && patient.getItemValue('sex') in ['1', '2']";
+
+	private File replacementMapFile = null;
+	private NaxConfig naxConfig = null;
+	private Nax nax = null;
+	private NaaccrData naaccrData = null;
+	private Element patientElement = null;
+	private Patient patient = null;
+	private List<Item> items = null;
+	private Map<String, Map<String, Integer>> valueCounts = null;
+	private NaxConfig filterScriptConfig = null;
+	private FilterExpression filterExpression = null;
+
+	@Setup
+	public void setup()
+			throws Exception
+	{
+		naxLogger.setLevel(Level.WARNING);
+
+		replacementMapFile = File.createTempFile("nax-benchmark", ".csv");
+		Files.write(replacementMapFile.toPath(), Arrays.asList("naaccrId,itemValue,newItemValue", "sex,1,M", "sex,2,F"),
+					StandardCharsets.US_ASCII);
+
+		naxConfig = new NaxConfig()
+				.withExcludedItems(Arrays.asList("recordType", "20", "491"))
+				.withConstantValue("nameLast", "BENCHMARK")
+				.withReplacementMapFile(replacementMapFile)
+				.withValueCounts("primarySite")
+				.withValueCountsScriptString("dateOfDiagnosis", "yearOfDiagnosis", "left(dateOfDiagnosis, 4)")
+				.withScriptString("naaccrId.startsWith('dateOf') == false || itemValue.length() == 8");
+
+		nax = Nax.newInstance(naxConfig);
+
+		naaccrData = new NaaccrData();
+		naaccrData.getAttributes().put(NaxConstants.BASE_DICTIONARY_URI, "http://naaccr.org/naaccrxml/naaccr-dictionary-180.xml");
+		naaccrData.setNaaccrDictionary(NaaccrDictionary.createBaseDictionary(naaccrData.getNaaccrVersion()));
+		naaccrData.setDefaultUserDictionary(NaaccrDictionary.createDefaultUserDictionary(naaccrData.getNaaccrVersion()));
+		naaccrData.setItemActionTable(ItemActionTable.compile(naxConfig, naaccrData.getNaaccrDictionary(), naxConfig
+				.getUserDictionaries(), naaccrData.getDefaultUserDictionary()));
+
+		try (InputStream inputStream = new GZIPInputStream(getClass().getResourceAsStream("/" + INPUT_FILENAME)))
+		{
+			XMLStreamReader xmlStreamReader = XMLInputFactory.newInstance().createXMLStreamReader(inputStream);
+
+			while (xmlStreamReader.next() != XMLStreamConstants.START_ELEMENT || xmlStreamReader.getLocalName()
+					.equals(NaxConstants.PATIENT_ELEMENT) == false)
+			{
+				//Skip to the first Patient
+			}
+
+			patientElement = new DOMConverter()
+					.buildDocument(xmlStreamReader, DocumentBuilderFactory.newInstance().newDocumentBuilder())
+					.getDocumentElement();
+		}
+
+		patient = new Patient();
+		patient.initialize(patientElement);
+
+		items = new ArrayList<>(patient.getItems().values());
+
+		for (Tumor tumor : patient.getTumors())
+		{
+			items.addAll(tumor.getItems().values());
+		}
+
+		valueCounts = new TreeMap<>();
+
+		filterScriptConfig = new NaxConfig().withTumorScriptString(FILTER_SCRIPT);
+		filterExpression = FilterExpression.compile(FILTER_EXPRESSION);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		replacementMapFile.delete();
+	}
+
+	@Benchmark
+	public void lookupItemActions(Blackhole blackhole)
+	{
+		for (Item item : items)
+		{
+			blackhole.consume(naaccrData.getItemActionTable().get(item.getNaaccrId()).isIncluded());
+		}
+	}
+
+	@Benchmark
+	public void replaceItemValue()
+	{
+		for (Item item : items)
+		{
+			nax.replaceItemValue(naaccrData.getItemActionTable().get(item.getNaaccrId()), item);
+		}
+	}
+
+	@Benchmark
+	public void handleNaaccrIdValueCounts()
+	{
+		for (Item item : items)
+		{
+			nax.handleNaaccrIdValueCounts(
+					INPUT_FILENAME,
+					naaccrData,
+					patient,
+					null,
+					item.getItemElement(),
+					item.getNaaccrId(),
+					item.getItemValue(),
+					naaccrData.getItemActionTable().get(item.getNaaccrId()),
+					(name, value) -> nax.incrementCountOrOther(name, value, valueCounts));
+		}
+	}
+
+	@Benchmark
+	public void runScripts(Blackhole blackhole)
+	{
+		for (Item item : items)
+		{
+			blackhole.consume(nax.includeElementAfterRunningCompiledScripts(
+					NaxConstants.ITEM_ELEMENT,
+					naaccrData,
+					patient,
+					null,
+					item,
+					item.getItemElement(),
+					naxConfig.getCompiledScripts(),
+					INPUT_FILENAME));
+		}
+	}
+
+	@Benchmark
+	public void runFilterScript(Blackhole blackhole)
+	{
+		for (Tumor tumor : patient.getTumors())
+		{
+			blackhole.consume(nax.includeElementAfterRunningCompiledScripts(
+					NaxConstants.TUMOR_ELEMENT,
+					naaccrData,
+					patient,
+					tumor,
+					null,
+					tumor.getElement(),
+					filterScriptConfig.getCompiledTumorScripts(),
+					INPUT_FILENAME));
+		}
+	}
+
+	@Benchmark
+	public void runFilterExpression(Blackhole blackhole)
+	{
+		for (Tumor tumor : patient.getTumors())
+		{
+			blackhole.consume(filterExpression.matches(patient, tumor, null));
+		}
+	}
+
+	@Benchmark
+	public Patient initializePatient()
+	{
+		Patient initializedPatient = new Patient();
+		initializedPatient.initialize(patientElement);
+
+		return initializedPatient;
+	}
+}
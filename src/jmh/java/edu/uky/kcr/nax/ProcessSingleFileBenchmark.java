@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes a whole sample file, from reading the input bytes through writing output, with each Patient engine.
+ * The file is read into memory first and output is thrown away, so disk speed doesn't show up in the results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessSingleFileBenchmark
+{
+	//Keep a reference, otherwise the logger and its level can be garbage collected
+	private static final Logger naxLogger = Logger.getLogger(Nax.class.getPackage().getName());
+
+	@Param({"naaccr-xml-sample-v180-abstract-1000.xml.gz", "naaccr-xml-sample-v180-abstract-10-extra-ns.xml"})
+	public String filename;
+
+	@Param({"dom", "streamingRecords", "passThroughPatients"})
+	public String engine;
+
+	private byte[] fileBytes = null;
+	private Nax nax = null;
+
+	@Setup
+	public void setup()
+			throws IOException
+	{
+		naxLogger.setLevel(Level.WARNING);
+
+		try (InputStream inputStream = getClass().getResourceAsStream("/" + filename))
+		{
+			fileBytes = IOUtils.toByteArray(inputStream);
+		}
+
+		NaxConfig naxConfig = new NaxConfig()
+				.withStreamingRecords(engine.equals("streamingRecords"))
+				.withPassThroughPatients(engine.equals("passThroughPatients"));
+
+		nax = Nax.newInstance(naxConfig);
+	}
+
+	@Benchmark
+	public NaxResult processSingleFile()
+	{
+		return nax.processSingleFile(new ByteArrayInputStream(fileBytes), filename, fileBytes.length, null);
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a sample file through {@link ProgressTrackingDigestInputStream}, which every input goes through to track progress
+ * and compute its MD5.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProgressTrackingDigestInputStreamBenchmark
+{
+	@Param({"8192", "65536"})
+	public int bufferSize;
+
+	private byte[] fileBytes = null;
+
+	@Setup
+	public void setup()
+			throws IOException
+	{
+		try (InputStream inputStream = getClass().getResourceAsStream("/naaccr-xml-sample-v180-abstract-1000.xml.gz"))
+		{
+			fileBytes = IOUtils.toByteArray(inputStream);
+		}
+	}
+
+	@Benchmark
+	public String readBuffer()
+			throws IOException, NoSuchAlgorithmException
+	{
+		byte[] buffer = new byte[bufferSize];
+
+		try (ProgressTrackingDigestInputStream inputStream = new ProgressTrackingDigestInputStream(
+				new ByteArrayInputStream(fileBytes), "benchmark", fileBytes.length))
+		{
+			while (inputStream.read(buffer, 0, buffer.length) > -1)
+			{
+				//Read everything
+			}
+
+			return inputStream.getMd5();
+		}
+	}
+
+	@Benchmark
+	public String readSingleBytes()
+			throws IOException, NoSuchAlgorithmException
+	{
+		try (ProgressTrackingDigestInputStream inputStream = new ProgressTrackingDigestInputStream(
+				new ByteArrayInputStream(fileBytes, 0, Math.min(bufferSize, fileBytes.length)), "benchmark", fileBytes.length))
+		{
+			while (inputStream.read() > -1)
+			{
+				//Read everything
+			}
+
+			return inputStream.getMd5();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package edu.uky.kcr.nax;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import groovy.lang.Script;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * The order to run a list of filter scripts in, adapted to how long each script takes and how often it filters out an
+ * element.
+ * <br/>
+ * Scripts stop at the first one that returns false, so a cheap script that filters out most elements should run before
+ * an expensive one that rarely does. Every {@link #REORDER_INTERVAL} elements, each run of {@link
+ * ScriptDependencies#isReadOnly() read-only} scripts is sorted by average time divided by the fraction of elements
+ * filtered out. Scripts that can change anything stay where they were configured, and nothing is moved past them.
+ * Scripts that haven't run yet sort first, so they get measured too.
+ */
+public class AdaptiveScriptOrder
+{
+	static final int REORDER_INTERVAL = 256;
+
+	private static class ScriptStats
+	{
+		private final LongAdder runs = new LongAdder();
+		private final LongAdder filteredOut = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+
+		/**
+		 * @return expected nanoseconds spent on an element for every element filtered out, lowest should run first
+		 */
+		private double getRank()
+		{
+			long runCount = runs.sum();
+
+			//Smoothed so a script that hasn't filtered anything out yet still ranks behind one that has
+			return (runCount == 0) ? 0d : ((double) nanos.sum() / runCount) / ((filteredOut.sum() + 1d) / (runCount + 2d));
+		}
+	}
+
+	private final String elementName;
+	private final List<Script> configuredScripts;
+	private final boolean[] readOnly;
+	private final Map<Script, ScriptStats> scriptStats = new IdentityHashMap<>();
+	private final AtomicLong elementCount = new AtomicLong();
+	private volatile List<Script> scripts;
+
+	/**
+	 * @param elementName the element the scripts run against, the same scripts can filter elements of different names
+	 *                    at very different rates
+	 */
+	public AdaptiveScriptOrder(String elementName,
+							   List<Script> configuredScripts,
+							   NaxConfig naxConfig)
+	{
+		this.elementName = elementName;
+		this.configuredScripts = Collections.unmodifiableList(new ArrayList<>(configuredScripts));
+		this.readOnly = new boolean[configuredScripts.size()];
+		this.scripts = this.configuredScripts;
+
+		for (int i = 0; i < configuredScripts.size(); i++)
+		{
+			ScriptDependencies scriptDependencies = naxConfig.getScriptDependencies(configuredScripts.get(i));
+
+			this.readOnly[i] = (scriptDependencies != null) && scriptDependencies.isReadOnly();
+			this.scriptStats.put(configuredScripts.get(i), new ScriptStats());
+		}
+	}
+
+	/**
+	 * @return the scripts in the order they should run now
+	 */
+	@JsonIgnore
+	public List<Script> getScripts()
+	{
+		return scripts;
+	}
+
+	/**
+	 * @param filteredOut true if the script excluded the element it ran against
+	 */
+	public void record(Script compiledScript,
+					   long nanos,
+					   boolean filteredOut)
+	{
+		ScriptStats stats = this.scriptStats.get(compiledScript);
+
+		stats.runs.increment();
+		stats.nanos.add(nanos);
+
+		if (filteredOut)
+		{
+			stats.filteredOut.increment();
+		}
+	}
+
+	/**
+	 * Called once all of the scripts for an element have run
+	 */
+	public void finishElement()
+	{
+		if (this.elementCount.incrementAndGet() % REORDER_INTERVAL == 0)
+		{
+			reorder();
+		}
+	}
+
+	private synchronized void reorder()
+	{
+		//Other threads keep recording while this sorts, so rank a snapshot to keep the comparison consistent
+		double[] ranks = new double[this.configuredScripts.size()];
+		List<Integer> order = new ArrayList<>(ranks.length);
+
+		for (int i = 0; i < ranks.length; i++)
+		{
+			ranks[i] = this.scriptStats.get(this.configuredScripts.get(i)).getRank();
+			order.add(i);
+		}
+
+		int start = 0;
+
+		while (start < order.size())
+		{
+			int end = start;
+
+			while ((end < order.size()) && this.readOnly[end])
+			{
+				end++;
+			}
+
+			//List.sort is stable, so scripts that rank the same keep their configured order
+			order.subList(start, end).sort(Comparator.comparingDouble(index -> ranks[index]));
+
+			start = end + 1;
+		}
+
+		this.scripts = Collections.unmodifiableList(order.stream().map(this.configuredScripts::get).collect(Collectors.toList()));
+	}
+
+	public String getElementName()
+	{
+		return elementName;
+	}
+
+	public List<String> getConfiguredScriptNames()
+	{
+		return getScriptNames(this.configuredScripts);
+	}
+
+	public List<String> getAdaptedScriptNames()
+	{
+		return getScriptNames(this.scripts);
+	}
+
+	private static List<String> getScriptNames(List<Script> scripts)
+	{
+		return scripts.stream().map(script -> (String) script.getProperty("name")).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package edu.uky.kcr.nax;
+
+import com.fasterxml.aalto.AsyncByteArrayFeeder;
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+import org.codehaus.stax2.util.StreamReader2Delegate;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Presents a non-blocking Aalto {@link AsyncXMLStreamReader} as an ordinary blocking reader, feeding it from
+ * {@link ReadAheadBuffers} whenever it runs out of input. The input is read, and inflated, on the read-ahead thread
+ * while this thread parses, and the parser itself never waits on a stream.
+ * <br/>
+ * The async parser ends a text event wherever a fed buffer or an entity ends, so consecutive text events are merged
+ * here, the same way the blocking parser reports them. CDATA sections aren't merged, the async parser always reports a
+ * whole section as one event, and two sections next to each other are two events from the blocking parser too. Aalto's async parser doesn't keep track of byte offsets across
+ * fed buffers, so the offsets from {@link #getLocationInfo()} can't be used to copy elements from input.
+ */
+public class AsyncFeedStreamReader
+		extends StreamReader2Delegate
+{
+	private final AsyncXMLStreamReader<AsyncByteArrayFeeder> asyncXMLStreamReader;
+	private final ReadAheadBuffers readAheadBuffers;
+	private ReadAheadBuffers.Buffer fedBuffer = null;
+
+	//While merged text is the current event, the async parser has already moved on to the event after it
+	private String mergedText = null;
+	private char[] mergedTextCharacters = null;
+	private int nextEventType = -1;
+
+	public AsyncFeedStreamReader(AsyncXMLStreamReader<AsyncByteArrayFeeder> asyncXMLStreamReader,
+								 ReadAheadBuffers readAheadBuffers)
+			throws XMLStreamException
+	{
+		super(asyncXMLStreamReader);
+
+		this.asyncXMLStreamReader = asyncXMLStreamReader;
+		this.readAheadBuffers = readAheadBuffers;
+
+		//A blocking reader has already read the XML declaration when it's created
+		if (asyncXMLStreamReader.getEventType() == AsyncXMLStreamReader.EVENT_INCOMPLETE)
+		{
+			nextFed();
+		}
+	}
+
+	@Override
+	public int next()
+			throws XMLStreamException
+	{
+		int xmlEventType = -1;
+
+		if (this.mergedText != null)
+		{
+			xmlEventType = this.nextEventType;
+
+			this.mergedText = null;
+			this.mergedTextCharacters = null;
+			this.nextEventType = -1;
+		}
+		else
+		{
+			xmlEventType = nextFed();
+
+			if (xmlEventType == XMLStreamConstants.CHARACTERS)
+			{
+				String text = super.getText();
+				StringBuilder textBuilder = null;
+				int nextEventType = nextFed();
+
+				while (nextEventType == XMLStreamConstants.CHARACTERS)
+				{
+					if (textBuilder == null)
+					{
+						textBuilder = new StringBuilder(text);
+					}
+
+					textBuilder.append(super.getTextCharacters(), super.getTextStart(), super.getTextLength());
+
+					nextEventType = nextFed();
+				}
+
+				this.mergedText = (textBuilder == null) ? text : textBuilder.toString();
+				this.nextEventType = nextEventType;
+			}
+		}
+
+		return xmlEventType;
+	}
+
+	/**
+	 * Move the async parser to its next event, feeding it until it has a whole one.
+	 */
+	private int nextFed()
+			throws XMLStreamException
+	{
+		int xmlEventType = super.next();
+
+		while (xmlEventType == AsyncXMLStreamReader.EVENT_INCOMPLETE)
+		{
+			feed();
+
+			xmlEventType = super.next();
+		}
+
+		return xmlEventType;
+	}
+
+	@Override
+	public int getEventType()
+	{
+		return (this.mergedText != null) ? XMLStreamConstants.CHARACTERS : super.getEventType();
+	}
+
+	@Override
+	public boolean hasNext()
+			throws XMLStreamException
+	{
+		return (this.mergedText != null) || super.hasNext();
+	}
+
+	@Override
+	public String getText()
+	{
+		return (this.mergedText != null) ? this.mergedText : super.getText();
+	}
+
+	@Override
+	public int getText(Writer writer,
+					   boolean preserveContents)
+			throws IOException, XMLStreamException
+	{
+		int length = -1;
+
+		if (this.mergedText != null)
+		{
+			writer.write(this.mergedText);
+			length = this.mergedText.length();
+		}
+		else
+		{
+			length = super.getText(writer, preserveContents);
+		}
+
+		return length;
+	}
+
+	@Override
+	public char[] getTextCharacters()
+	{
+		char[] textCharacters = null;
+
+		if (this.mergedText != null)
+		{
+			if (this.mergedTextCharacters == null)
+			{
+				this.mergedTextCharacters = this.mergedText.toCharArray();
+			}
+
+			textCharacters = this.mergedTextCharacters;
+		}
+		else
+		{
+			textCharacters = super.getTextCharacters();
+		}
+
+		return textCharacters;
+	}
+
+	@Override
+	public int getTextCharacters(int sourceStart,
+								 char[] target,
+								 int targetStart,
+								 int length)
+			throws XMLStreamException
+	{
+		int copiedLength = -1;
+
+		if (this.mergedText != null)
+		{
+			copiedLength = Math.max(Math.min(length, this.mergedText.length() - sourceStart), 0);
+			this.mergedText.getChars(sourceStart, sourceStart + copiedLength, target, targetStart);
+		}
+		else
+		{
+			copiedLength = super.getTextCharacters(sourceStart, target, targetStart, length);
+		}
+
+		return copiedLength;
+	}
+
+	@Override
+	public int getTextStart()
+	{
+		return (this.mergedText != null) ? 0 : super.getTextStart();
+	}
+
+	@Override
+	public int getTextLength()
+	{
+		return (this.mergedText != null) ? this.mergedText.length() : super.getTextLength();
+	}
+
+	@Override
+	public boolean hasText()
+	{
+		return (this.mergedText != null) || super.hasText();
+	}
+
+	@Override
+	public boolean isCharacters()
+	{
+		return (this.mergedText != null) || super.isCharacters();
+	}
+
+	@Override
+	public boolean isWhiteSpace()
+	{
+		return (this.mergedText != null) ? isXmlWhiteSpace(this.mergedText) : super.isWhiteSpace();
+	}
+
+	/**
+	 * XML white space is only space, tab, carriage return, and line feed, other Unicode spaces are text.
+	 */
+	private static boolean isXmlWhiteSpace(String text)
+	{
+		boolean whiteSpace = true;
+
+		for (int i = 0; (i < text.length()) && whiteSpace; i++)
+		{
+			char character = text.charAt(i);
+
+			whiteSpace = (character == ' ') || (character == '\t') || (character == '\r') || (character == '\n');
+		}
+
+		return whiteSpace;
+	}
+
+	@Override
+	public boolean isStartElement()
+	{
+		return (this.mergedText == null) && super.isStartElement();
+	}
+
+	@Override
+	public boolean isEndElement()
+	{
+		return (this.mergedText == null) && super.isEndElement();
+	}
+
+	@Override
+	public boolean hasName()
+	{
+		return (this.mergedText == null) && super.hasName();
+	}
+
+	@Override
+	public int nextTag()
+			throws XMLStreamException
+	{
+		int xmlEventType = next();
+
+		while ((xmlEventType == XMLStreamConstants.CHARACTERS && isWhiteSpace()) || (xmlEventType == XMLStreamConstants.CDATA && isWhiteSpace()) || xmlEventType == XMLStreamConstants.SPACE || xmlEventType == XMLStreamConstants.PROCESSING_INSTRUCTION || xmlEventType == XMLStreamConstants.COMMENT)
+		{
+			xmlEventType = next();
+		}
+
+		if (xmlEventType != XMLStreamConstants.START_ELEMENT && xmlEventType != XMLStreamConstants.END_ELEMENT)
+		{
+			throw new XMLStreamException("Expected a start or end tag", getLocation());
+		}
+
+		return xmlEventType;
+	}
+
+	@Override
+	public String getElementText()
+			throws XMLStreamException
+	{
+		if (getEventType() != XMLStreamConstants.START_ELEMENT)
+		{
+			throw new XMLStreamException("Current event is not a start tag", getLocation());
+		}
+
+		StringBuilder textBuilder = new StringBuilder();
+		int xmlEventType = next();
+
+		while (xmlEventType != XMLStreamConstants.END_ELEMENT)
+		{
+			if (xmlEventType == XMLStreamConstants.CHARACTERS || xmlEventType == XMLStreamConstants.CDATA || xmlEventType == XMLStreamConstants.SPACE || xmlEventType == XMLStreamConstants.ENTITY_REFERENCE)
+			{
+				textBuilder.append(getText());
+			}
+			else if (xmlEventType != XMLStreamConstants.PROCESSING_INSTRUCTION && xmlEventType != XMLStreamConstants.COMMENT)
+			{
+				throw new XMLStreamException("Element text can only contain text", getLocation());
+			}
+
+			xmlEventType = next();
+		}
+
+		return textBuilder.toString();
+	}
+
+	@Override
+	public void skipElement()
+			throws XMLStreamException
+	{
+		if (getEventType() != XMLStreamConstants.START_ELEMENT)
+		{
+			throw new XMLStreamException("Current event is not a start tag", getLocation());
+		}
+
+		int depth = 1;
+
+		while (depth > 0)
+		{
+			int xmlEventType = next();
+
+			if (xmlEventType == XMLStreamConstants.START_ELEMENT)
+			{
+				depth++;
+			}
+			else if (xmlEventType == XMLStreamConstants.END_ELEMENT)
+			{
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Give the parser the next buffer of input. The parser only asks for more once it has used all of the last buffer,
+	 * so that buffer can go back to be filled again.
+	 */
+	private void feed()
+			throws XMLStreamException
+	{
+		if (this.fedBuffer != null)
+		{
+			this.readAheadBuffers.release(this.fedBuffer);
+			this.fedBuffer = null;
+		}
+
+		try
+		{
+			this.fedBuffer = this.readAheadBuffers.take();
+		}
+		catch (IOException exception)
+		{
+			throw new XMLStreamException(exception);
+		}
+
+		if (this.fedBuffer == null)
+		{
+			this.asyncXMLStreamReader.getInputFeeder().endOfInput();
+		}
+		else
+		{
+			this.asyncXMLStreamReader.getInputFeeder().feedInput(this.fedBuffer.getBytes(), 0, this.fedBuffer.getLength());
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package edu.uky.kcr.nax;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Computes another {@link ContentDigest} on its own thread, so hashing a large input runs at the same time as parsing it.
+ * <br/>
+ * Bytes are copied into a ring of pooled buffers that the digest thread hashes in order, so the reading thread only
+ * waits when every buffer is still waiting to be hashed. {@link #finish()} waits for the digest thread to finish.
+ */
+public class BackgroundDigest
+		extends ContentDigest
+{
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+	public static final int DEFAULT_BUFFER_COUNT = 8;
+
+	private static class Chunk
+	{
+		private final byte[] bytes;
+		private int length = 0;
+
+		private Chunk(byte[] bytes)
+		{
+			this.bytes = bytes;
+		}
+	}
+
+	private static final Chunk END_OF_INPUT = new Chunk(new byte[0]);
+
+	private final ContentDigest contentDigest;
+	private final BlockingQueue<Chunk> freeChunks;
+	private final BlockingQueue<Chunk> filledChunks;
+	private final Thread digestThread;
+	private Chunk currentChunk = null;
+
+	public BackgroundDigest(ContentDigest contentDigest)
+	{
+		this(contentDigest, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+	}
+
+	public BackgroundDigest(ContentDigest contentDigest,
+							int bufferSize,
+							int bufferCount)
+	{
+		super(contentDigest.getAlgorithm());
+
+		this.contentDigest = contentDigest;
+		this.freeChunks = new ArrayBlockingQueue<>(bufferCount);
+		this.filledChunks = new ArrayBlockingQueue<>(bufferCount + 1);
+
+		for (int i = 0; i < bufferCount; i++)
+		{
+			this.freeChunks.add(new Chunk(new byte[bufferSize]));
+		}
+
+		this.digestThread = PatientPipeline.createThreadFactory("nax-digest").newThread(this::runDigest);
+		this.digestThread.start();
+	}
+
+	@Override
+	public void update(byte[] bytes,
+					   int offset,
+					   int length)
+			throws IOException
+	{
+		try
+		{
+			while (length > 0)
+			{
+				if (this.currentChunk == null)
+				{
+					this.currentChunk = this.freeChunks.take();
+				}
+
+				int copyLength = Math.min(length, this.currentChunk.bytes.length - this.currentChunk.length);
+
+				System.arraycopy(bytes, offset, this.currentChunk.bytes, this.currentChunk.length, copyLength);
+				this.currentChunk.length += copyLength;
+				offset += copyLength;
+				length -= copyLength;
+
+				if (this.currentChunk.length == this.currentChunk.bytes.length)
+				{
+					this.filledChunks.put(this.currentChunk);
+					this.currentChunk = null;
+				}
+			}
+		}
+		catch (InterruptedException interruptedException)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to hash input");
+		}
+	}
+
+	@Override
+	protected String computeValue()
+	{
+		//Every chunk fits in the filled queue along with the end marker, so these never wait
+		if (this.currentChunk != null)
+		{
+			this.filledChunks.add(this.currentChunk);
+			this.currentChunk = null;
+		}
+
+		this.filledChunks.add(END_OF_INPUT);
+
+		boolean interrupted = false;
+
+		while (this.digestThread.isAlive())
+		{
+			try
+			{
+				this.digestThread.join();
+			}
+			catch (InterruptedException interruptedException)
+			{
+				interrupted = true;
+			}
+		}
+
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		return this.contentDigest.getValue();
+	}
+
+	private void runDigest()
+	{
+		try
+		{
+			Chunk chunk = this.filledChunks.take();
+
+			while (chunk != END_OF_INPUT)
+			{
+				this.contentDigest.update(chunk.bytes, 0, chunk.length);
+
+				chunk.length = 0;
+				this.freeChunks.put(chunk);
+
+				chunk = this.filledChunks.take();
+			}
+		}
+		catch (InterruptedException | IOException exception)
+		{
+			//The hash is left incomplete, only interrupting this thread or a failing wrapped digest can end up here
+		}
+	}
+}
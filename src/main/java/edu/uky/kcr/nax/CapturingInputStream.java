@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package edu.uky.kcr.nax;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A {@link FilterInputStream} that keeps a copy of every byte read since the last call to {@link #discardBefore(long)},
+ * addressed by its offset from the start of the stream.
+ * <br/>
+ * XML parsers read ahead in large blocks, so this lets the original bytes of an element be copied to output once the
+ * parser reports where the element started and ended, without reading the input twice.
+ */
+public class CapturingInputStream
+		extends FilterInputStream
+{
+	private static final int INITIAL_CAPACITY = 256 * 1024;
+
+	private byte[] buffer = new byte[INITIAL_CAPACITY];
+	private int bufferLength = 0;
+
+	//Stream offset of the first byte in the buffer
+	private long bufferOffset = 0;
+	//Bytes before this stream offset are no longer needed and can be dropped from the buffer
+	private long discardOffset = 0;
+
+	public CapturingInputStream(InputStream inputStream)
+	{
+		super(inputStream);
+	}
+
+	@Override
+	public int read()
+			throws IOException
+	{
+		int nextRead = super.read();
+
+		if (nextRead > -1)
+		{
+			ensureCapacity(1);
+			this.buffer[this.bufferLength++] = (byte) nextRead;
+		}
+
+		return nextRead;
+	}
+
+	@Override
+	public int read(byte[] bytes,
+					int offset,
+					int length)
+			throws IOException
+	{
+		int readLength = super.read(bytes, offset, length);
+
+		if (readLength > 0)
+		{
+			ensureCapacity(readLength);
+			System.arraycopy(bytes, offset, this.buffer, this.bufferLength, readLength);
+			this.bufferLength += readLength;
+		}
+
+		return readLength;
+	}
+
+	@Override
+	public long skip(long length)
+			throws IOException
+	{
+		//Skipped bytes must still be captured to keep offsets in sync
+		return Math.max(read(new byte[(int) Math.min(length, INITIAL_CAPACITY)]), 0);
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	/**
+	 * Allow all captured bytes before the given stream offset to be dropped.
+	 */
+	public void discardBefore(long streamOffset)
+	{
+		this.discardOffset = Math.max(this.discardOffset, streamOffset);
+	}
+
+	public boolean isCaptured(long startOffset,
+							  long endOffset)
+	{
+		return startOffset >= this.bufferOffset && startOffset >= this.discardOffset && startOffset <= endOffset && endOffset <= this.bufferOffset + this.bufferLength;
+	}
+
+	/**
+	 * Copy the captured bytes between the start (inclusive) and end (exclusive) stream offsets.
+	 *
+	 * @return the bytes, or null if they are no longer (or not yet) captured
+	 */
+	public byte[] copyOfRange(long startOffset,
+							  long endOffset)
+	{
+		byte[] bytes = null;
+
+		if (isCaptured(startOffset, endOffset))
+		{
+			int bufferStart = (int) (startOffset - this.bufferOffset);
+
+			bytes = Arrays.copyOfRange(this.buffer, bufferStart, bufferStart + (int) (endOffset - startOffset));
+		}
+
+		return bytes;
+	}
+
+	private void ensureCapacity(int length)
+	{
+		if (this.bufferLength + length > this.buffer.length)
+		{
+			int discardLength = (int) Math.min(Math.max(this.discardOffset - this.bufferOffset, 0), this.bufferLength);
+
+			if (discardLength > 0)
+			{
+				System.arraycopy(this.buffer, discardLength, this.buffer, 0, this.bufferLength - discardLength);
+				this.bufferLength -= discardLength;
+				this.bufferOffset += discardLength;
+			}
+
+			if (this.bufferLength + length > this.buffer.length)
+			{
+				this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.bufferLength + length));
+			}
+		}
+	}
+}
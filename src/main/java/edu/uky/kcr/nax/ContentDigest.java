@@ -0,0 +1,172 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package edu.uky.kcr.nax;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * A hash of the bytes of a file, using any {@link MessageDigest} algorithm, {@link #CRC32C}, or {@link #NONE} to skip
+ * hashing. The value is the hash as a hex string, or null for {@link #NONE}.
+ */
+public abstract class ContentDigest
+{
+	public static final String MD5 = "MD5";
+	public static final String SHA_256 = "SHA-256";
+	public static final String CRC32C = "CRC32C";
+	public static final String NONE = "none";
+
+	private final String algorithm;
+	private String value = null;
+
+	protected ContentDigest(String algorithm)
+	{
+		this.algorithm = algorithm;
+	}
+
+	/**
+	 * @param algorithm {@link #NONE}, {@link #CRC32C}, or the name of a {@link MessageDigest} algorithm such as {@link #MD5}
+	 *                  or {@link #SHA_256}
+	 */
+	public static ContentDigest newInstance(String algorithm)
+			throws NoSuchAlgorithmException
+	{
+		ContentDigest contentDigest = null;
+
+		if (NONE.equalsIgnoreCase(algorithm))
+		{
+			contentDigest = new ContentDigest(NONE)
+			{
+				@Override
+				public void update(byte[] bytes,
+								   int offset,
+								   int length)
+				{
+
+				}
+
+				@Override
+				protected String computeValue()
+				{
+					return null;
+				}
+			};
+		}
+		else if (CRC32C.equalsIgnoreCase(algorithm))
+		{
+			CRC32C crc32c = new CRC32C();
+
+			contentDigest = new ContentDigest(CRC32C)
+			{
+				@Override
+				public void update(byte[] bytes,
+								   int offset,
+								   int length)
+				{
+					crc32c.update(bytes, offset, length);
+				}
+
+				@Override
+				protected String computeValue()
+				{
+					return String.format("%08x", crc32c.getValue());
+				}
+			};
+		}
+		else
+		{
+			MessageDigest messageDigest = MessageDigest.getInstance(algorithm);
+
+			contentDigest = new ContentDigest(messageDigest.getAlgorithm())
+			{
+				@Override
+				public void update(byte[] bytes,
+								   int offset,
+								   int length)
+				{
+					messageDigest.update(bytes, offset, length);
+				}
+
+				@Override
+				protected String computeValue()
+				{
+					return Hex.encodeHexString(messageDigest.digest());
+				}
+			};
+		}
+
+		return contentDigest;
+	}
+
+	public String getAlgorithm()
+	{
+		return algorithm;
+	}
+
+	public boolean isNone()
+	{
+		return NONE.equals(getAlgorithm());
+	}
+
+	public abstract void update(byte[] bytes,
+								int offset,
+								int length)
+			throws IOException;
+
+	protected abstract String computeValue();
+
+	/**
+	 * Finish the hash of every byte given to {@link #update(byte[], int, int)} so far, waiting for it if it's computed on
+	 * another thread. No more bytes should be given after this.
+	 */
+	public void finish()
+	{
+		if ((this.value == null) && (isNone() == false))
+		{
+			this.value = computeValue();
+		}
+	}
+
+	/**
+	 * The hash of every byte given to {@link #update(byte[], int, int)} so far, see {@link #finish()}.
+	 */
+	public String getValue()
+	{
+		finish();
+
+		return this.value;
+	}
+}
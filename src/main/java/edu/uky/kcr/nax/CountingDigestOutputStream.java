@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link FilterOutputStream} that hashes every byte written with a {@link ContentDigest} and counts them, so the
+ * size and hash of an output file are known as soon as it's written, without reading it back.
+ * <br/>
+ * Closing this stream also finishes the hash, so a {@link BackgroundDigest} thread always ends with the stream.
+ */
+public class CountingDigestOutputStream
+		extends FilterOutputStream
+{
+	private final ContentDigest contentDigest;
+	private final byte[] singleByte = new byte[1];
+	private long byteCount = 0;
+
+	public CountingDigestOutputStream(OutputStream outputStream,
+									  ContentDigest contentDigest)
+	{
+		super(outputStream);
+
+		this.contentDigest = contentDigest;
+	}
+
+	public long getByteCount()
+	{
+		return byteCount;
+	}
+
+	public String getDigestAlgorithm()
+	{
+		return this.contentDigest.getAlgorithm();
+	}
+
+	/**
+	 * The hash of every byte written, no more bytes should be written after this.
+	 */
+	public String getDigest()
+	{
+		return this.contentDigest.getValue();
+	}
+
+	@Override
+	public void write(int b)
+			throws IOException
+	{
+		this.singleByte[0] = (byte) b;
+
+		write(this.singleByte, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] bytes,
+					  int offset,
+					  int length)
+			throws IOException
+	{
+		this.out.write(bytes, offset, length);
+
+		this.contentDigest.update(bytes, offset, length);
+		this.byteCount += length;
+	}
+
+	@Override
+	public void close()
+			throws IOException
+	{
+		try
+		{
+			super.close();
+		}
+		finally
+		{
+			this.contentDigest.finish();
+		}
+	}
+}
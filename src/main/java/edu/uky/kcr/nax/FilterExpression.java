@@ -0,0 +1,484 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+import edu.uky.kcr.nax.model.ElementItemContainer;
+import edu.uky.kcr.nax.model.Item;
+import edu.uky.kcr.nax.model.Patient;
+import edu.uky.kcr.nax.model.Tumor;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A filter written in a small expression language that is compiled straight into Java, for the simple comparisons that
+ * most filters are, without running a Groovy script for every element. For example:
+ * <pre>
+ *     dateOfDiagnosis &gt;= '2015' and primarySite.startsWith('C50')
+ *     sex in ['1', '2'] or not (vitalStatus == '1')
+ *     dateOfDiagnosis between '20150101' and '20191231'
+ * </pre>
+ * Names are naaccrIds, and evaluate to the value of that Item on the element being filtered: an Item's own value, then
+ * the value from its Tumor, then from its Patient, or an empty String when none of them have the Item. The names
+ * itemValue and naaccrId are the value and naaccrId of the Item being filtered.
+ * <br/>
+ * Values are always compared as Strings, with ==, !=, &lt;, &lt;=, &gt;, &gt;=, in [...], .startsWith(...), and
+ * between ... and ..., where the between bounds are inclusive. Comparisons are combined with and/&amp;&amp;, or/||,
+ * not/!, and parentheses.
+ * <br/>
+ * {@link #compile(String)} throws an IllegalArgumentException for anything else, so the filter can be run as a Groovy
+ * script instead.
+ */
+public class FilterExpression
+{
+	/**
+	 * A compiled part of an expression, that is safe to evaluate from several threads at once
+	 */
+	private interface Condition
+	{
+		boolean test(Patient patient,
+					 Tumor tumor,
+					 Item item);
+	}
+
+	private interface Value
+	{
+		String get(Patient patient,
+				   Tumor tumor,
+				   Item item);
+	}
+
+	private static final String QUOTE_CHARACTERS = "'\"";
+	private static final String OPERATOR_CHARACTERS = "=!<>&|";
+	//Longest first, so an operator is never split, and operators written next to each other, like &&!, are still separate
+	private static final List<String> OPERATORS = Arrays.asList("==", "!=", "<=", ">=", "&&", "||", "<", ">", "!");
+	private static final String PUNCTUATION_CHARACTERS = "()[],.";
+
+	private final String expressionString;
+	private final Condition rootCondition;
+
+	private List<String> tokens = null;
+	private int position = 0;
+
+	private FilterExpression(String expressionString)
+	{
+		this.expressionString = expressionString;
+		this.tokens = tokenize(expressionString);
+		this.rootCondition = parseOr();
+
+		if (this.position < this.tokens.size())
+		{
+			throw unexpectedToken();
+		}
+
+		this.tokens = null;
+	}
+
+	/**
+	 * @throws IllegalArgumentException when the expression can't be written in this expression language
+	 */
+	public static FilterExpression compile(String expressionString)
+	{
+		return new FilterExpression(expressionString);
+	}
+
+	/**
+	 * @return true to keep the element. Pass null for a Tumor or Item when the element isn't one or isn't inside one.
+	 */
+	public boolean matches(Patient patient,
+						   Tumor tumor,
+						   Item item)
+	{
+		return rootCondition.test(patient, tumor, item);
+	}
+
+	public String getExpressionString()
+	{
+		return expressionString;
+	}
+
+	@Override
+	public String toString()
+	{
+		return expressionString;
+	}
+
+	private Condition parseOr()
+	{
+		Condition condition = parseAnd();
+
+		while (nextTokenIs("or") || nextTokenIs("||"))
+		{
+			this.position++;
+
+			Condition left = condition;
+			Condition right = parseAnd();
+
+			condition = (patient, tumor, item) -> left.test(patient, tumor, item) || right.test(patient, tumor, item);
+		}
+
+		return condition;
+	}
+
+	private Condition parseAnd()
+	{
+		Condition condition = parseNot();
+
+		while (nextTokenIs("and") || nextTokenIs("&&"))
+		{
+			this.position++;
+
+			Condition left = condition;
+			Condition right = parseNot();
+
+			condition = (patient, tumor, item) -> left.test(patient, tumor, item) && right.test(patient, tumor, item);
+		}
+
+		return condition;
+	}
+
+	private Condition parseNot()
+	{
+		Condition condition = null;
+
+		if (nextTokenIs("not") || nextTokenIs("!"))
+		{
+			this.position++;
+
+			Condition negated = parseNot();
+
+			condition = (patient, tumor, item) -> negated.test(patient, tumor, item) == false;
+		}
+		else if (nextTokenIs("("))
+		{
+			this.position++;
+
+			condition = parseOr();
+
+			expectToken(")");
+		}
+		else
+		{
+			condition = parseComparison();
+		}
+
+		return condition;
+	}
+
+	private Condition parseComparison()
+	{
+		Value value = parseValue();
+		Condition condition = null;
+		String operator = nextToken();
+
+		switch (operator)
+		{
+			case "==":
+			{
+				String literal = parseLiteral();
+				condition = (patient, tumor, item) -> value.get(patient, tumor, item).equals(literal);
+				break;
+			}
+			case "!=":
+			{
+				String literal = parseLiteral();
+				condition = (patient, tumor, item) -> value.get(patient, tumor, item).equals(literal) == false;
+				break;
+			}
+			case "<":
+			{
+				String literal = parseLiteral();
+				condition = (patient, tumor, item) -> value.get(patient, tumor, item).compareTo(literal) < 0;
+				break;
+			}
+			case "<=":
+			{
+				String literal = parseLiteral();
+				condition = (patient, tumor, item) -> value.get(patient, tumor, item).compareTo(literal) <= 0;
+				break;
+			}
+			case ">":
+			{
+				String literal = parseLiteral();
+				condition = (patient, tumor, item) -> value.get(patient, tumor, item).compareTo(literal) > 0;
+				break;
+			}
+			case ">=":
+			{
+				String literal = parseLiteral();
+				condition = (patient, tumor, item) -> value.get(patient, tumor, item).compareTo(literal) >= 0;
+				break;
+			}
+			case "in":
+			{
+				Set<String> literals = parseLiteralList();
+				condition = (patient, tumor, item) -> literals.contains(value.get(patient, tumor, item));
+				break;
+			}
+			case "between":
+			{
+				String lowest = parseLiteral();
+				expectToken("and");
+				String highest = parseLiteral();
+				condition = (patient, tumor, item) -> {
+					String itemValue = value.get(patient, tumor, item);
+					return itemValue.compareTo(lowest) >= 0 && itemValue.compareTo(highest) <= 0;
+				};
+				break;
+			}
+			case ".":
+			{
+				expectToken("startsWith");
+				expectToken("(");
+				String prefix = parseLiteral();
+				expectToken(")");
+				condition = (patient, tumor, item) -> value.get(patient, tumor, item).startsWith(prefix);
+				break;
+			}
+			default:
+			{
+				this.position--;
+				throw unexpectedToken();
+			}
+		}
+
+		return condition;
+	}
+
+	private Value parseValue()
+	{
+		String name = nextToken();
+		Value value = null;
+
+		if (isName(name) == false)
+		{
+			this.position--;
+			throw unexpectedToken();
+		}
+
+		switch (name)
+		{
+			case NaxConstants.ITEM_VALUE:
+			{
+				value = (patient, tumor, item) -> (item == null) ? StringUtils.EMPTY : StringUtils
+						.defaultString(item.getItemValue());
+				break;
+			}
+			case NaxConstants.NAACCR_ID:
+			{
+				value = (patient, tumor, item) -> (item == null) ? StringUtils.EMPTY : StringUtils
+						.defaultString(item.getNaaccrId());
+				break;
+			}
+			default:
+			{
+				value = (patient, tumor, item) -> {
+					String itemValue = null;
+
+					if ((item != null) && name.equals(item.getNaaccrId()))
+					{
+						itemValue = item.getItemValue();
+					}
+					else
+					{
+						itemValue = findItemValue(tumor, name);
+
+						if (itemValue == null)
+						{
+							itemValue = findItemValue(patient, name);
+						}
+					}
+
+					return StringUtils.defaultString(itemValue);
+				};
+				break;
+			}
+		}
+
+		return value;
+	}
+
+	private static String findItemValue(ElementItemContainer elementItemContainer,
+										String naaccrId)
+	{
+		String itemValue = null;
+
+		if (elementItemContainer != null)
+		{
+			Item item = elementItemContainer.getItems().get(naaccrId);
+
+			if (item != null)
+			{
+				itemValue = item.getItemValue();
+			}
+		}
+
+		return itemValue;
+	}
+
+	private Set<String> parseLiteralList()
+	{
+		Set<String> literals = new HashSet<>();
+
+		expectToken("[");
+
+		literals.add(parseLiteral());
+
+		while (nextTokenIs(","))
+		{
+			this.position++;
+			literals.add(parseLiteral());
+		}
+
+		expectToken("]");
+
+		return literals;
+	}
+
+	private String parseLiteral()
+	{
+		String token = nextToken();
+
+		if ((token.length() < 2) || (QUOTE_CHARACTERS.indexOf(token.charAt(0)) < 0))
+		{
+			this.position--;
+			throw unexpectedToken();
+		}
+
+		return token.substring(1, token.length() - 1);
+	}
+
+	private boolean nextTokenIs(String token)
+	{
+		return (this.position < this.tokens.size()) && this.tokens.get(this.position).equals(token);
+	}
+
+	private String nextToken()
+	{
+		if (this.position >= this.tokens.size())
+		{
+			throw new IllegalArgumentException(String.format("Unexpected end of filter expression: %s", this.expressionString));
+		}
+
+		return this.tokens.get(this.position++);
+	}
+
+	private void expectToken(String token)
+	{
+		if (token.equals(nextToken()) == false)
+		{
+			this.position--;
+			throw unexpectedToken();
+		}
+	}
+
+	private IllegalArgumentException unexpectedToken()
+	{
+		return new IllegalArgumentException(String.format("Unexpected [%s] in filter expression: %s",
+														  this.tokens.get(this.position), this.expressionString));
+	}
+
+	private static boolean isName(String token)
+	{
+		return Character.isJavaIdentifierStart(token.charAt(0)) && Arrays.asList("and", "or", "not", "in", "between")
+				.contains(token) == false;
+	}
+
+	/**
+	 * Split an expression into names, quoted literals (keeping their quotes), operators, and punctuation
+	 */
+	private static List<String> tokenize(String expressionString)
+	{
+		List<String> tokens = new ArrayList<>();
+		int index = 0;
+
+		while (index < expressionString.length())
+		{
+			char character = expressionString.charAt(index);
+			int end = index + 1;
+
+			if (Character.isJavaIdentifierStart(character))
+			{
+				while ((end < expressionString.length()) && Character.isJavaIdentifierPart(expressionString.charAt(end)))
+				{
+					end++;
+				}
+			}
+			else if (QUOTE_CHARACTERS.indexOf(character) >= 0)
+			{
+				end = expressionString.indexOf(character, end) + 1;
+
+				if (end == 0)
+				{
+					throw new IllegalArgumentException(String.format("Unclosed quote in filter expression: %s", expressionString));
+				}
+			}
+			else if (OPERATOR_CHARACTERS.indexOf(character) >= 0)
+			{
+				String operator = null;
+
+				for (int i = 0; (i < OPERATORS.size()) && (operator == null); i++)
+				{
+					if (expressionString.startsWith(OPERATORS.get(i), index))
+					{
+						operator = OPERATORS.get(i);
+					}
+				}
+
+				if (operator == null)
+				{
+					throw new IllegalArgumentException(String.format("Unexpected [%s] in filter expression: %s", character, expressionString));
+				}
+
+				end = index + operator.length();
+			}
+			else if ((PUNCTUATION_CHARACTERS.indexOf(character) < 0) && (Character.isWhitespace(character) == false))
+			{
+				throw new IllegalArgumentException(String.format("Unexpected [%s] in filter expression: %s", character, expressionString));
+			}
+
+			if (Character.isWhitespace(character) == false)
+			{
+				tokens.add(expressionString.substring(index, end));
+			}
+
+			index = end;
+		}
+
+		return tokens;
+	}
+}
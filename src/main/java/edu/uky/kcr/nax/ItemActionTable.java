@@ -0,0 +1,353 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+import edu.uky.kcr.nax.model.NaaccrDictionary;
+import groovy.lang.Script;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Everything Nax does to an Item, compiled once per input file into a table keyed by naaccrId.
+ * <br/>
+ * Deciding what to do with an Item means finding its naaccrNum across the base and user dictionaries, checking both of
+ * its IDs against the included and excluded Items, and looking up its replacement values, constant value, filter
+ * expressions, and scripts. None of that depends on the Item's value, so it is worked out once for each naaccrId after
+ * the NaaccrData element tells us which dictionaries to use, and every Item after that costs a single lookup.
+ * <br/>
+ * The table is filled for every naaccrId in the dictionaries up front. Any other naaccrId is added the first time it is
+ * seen, which is safe to do from several worker threads at once.
+ */
+public class ItemActionTable
+{
+	private static final Logger logger = Logger.getLogger(ItemActionTable.class.getName());
+
+	/**
+	 * The compiled rules for a single naaccrId.
+	 */
+	public static class ItemAction
+	{
+		private final String naaccrId;
+		private final Integer naaccrNum;
+		private final boolean included;
+		private final List<Script> itemScripts;
+		private final List<Script> scripts;
+		private final List<FilterExpression> itemFilterExpressions;
+		private final Map<String, String> replacementValues;
+		private final String constantValue;
+		private final boolean simpleValueCount;
+		private final Map<String, Script> valueCountsScripts;
+
+		private ItemAction(String naaccrId,
+						   Integer naaccrNum,
+						   NaxConfig naxConfig)
+		{
+			this.naaccrId = naaccrId;
+			this.naaccrNum = naaccrNum;
+			this.included = includeItem(naxConfig.getIncludedItems(), naxConfig.getExcludedItems(), naaccrId, naaccrNum);
+			this.itemScripts = naxConfig.getCompiledItemScripts().get(naaccrId);
+			this.itemFilterExpressions = naxConfig.getItemFilterExpressions().get(naaccrId);
+			this.scripts = scriptsRunOnItem(naxConfig, naaccrId);
+			this.replacementValues = naxConfig.getReplacementMap().get(naaccrId);
+			this.constantValue = naxConfig.getConstantValueMap().get(naaccrId);
+			this.simpleValueCount = naxConfig.getValueCountsSimple().contains(naaccrId);
+			this.valueCountsScripts = naxConfig.getValueCountsScripts().get(naaccrId);
+		}
+
+		/**
+		 * Scripts that only act on Items with other naaccrIds, or only on other elements, are left out
+		 */
+		private static List<Script> scriptsRunOnItem(NaxConfig naxConfig,
+													 String naaccrId)
+		{
+			List<Script> scripts = new ArrayList<>();
+
+			for (Script compiledScript : naxConfig.getCompiledScripts())
+			{
+				ScriptDependencies scriptDependencies = naxConfig.getScriptDependencies(compiledScript);
+
+				if ((scriptDependencies == null) || scriptDependencies.isRunOnItem(naaccrId))
+				{
+					scripts.add(compiledScript);
+				}
+			}
+
+			return scripts;
+		}
+
+		private static boolean includeItem(
+				List<String> includedItems,
+				List<String> excludedItems,
+				String naaccrId,
+				Integer naaccrNum)
+		{
+			boolean includeItem = true;
+
+			if ((includedItems != null) && includedItems.size() > 0)
+			{
+				includeItem = (includedItems.contains(naaccrId) || ((naaccrNum != null) && includedItems.contains(naaccrNum
+																														  .toString())));
+			}
+			else if ((excludedItems != null) && (excludedItems.size() > 0))
+			{
+				includeItem = (excludedItems.contains(naaccrId) == false && ((naaccrNum != null) && excludedItems
+						.contains(naaccrNum.toString()) == false));
+			}
+
+			return includeItem;
+		}
+
+		public String getNaaccrId()
+		{
+			return naaccrId;
+		}
+
+		/**
+		 * @return naaccrNum from the first dictionary that has this naaccrId, or null if none of them do
+		 */
+		public Integer getNaaccrNum()
+		{
+			return naaccrNum;
+		}
+
+		/**
+		 * @return true if the included and excluded Items keep this Item, before running any scripts
+		 */
+		public boolean isIncluded()
+		{
+			return included;
+		}
+
+		/**
+		 * @return scripts that only run against Items with this naaccrId, or null if there are none
+		 */
+		public List<Script> getItemScripts()
+		{
+			return itemScripts;
+		}
+
+		/**
+		 * @return scripts that run against every element and can act on Items with this naaccrId
+		 */
+		public List<Script> getScripts()
+		{
+			return scripts;
+		}
+
+		/**
+		 * @return filter expressions that only run against Items with this naaccrId, or null if there are none
+		 */
+		public List<FilterExpression> getItemFilterExpressions()
+		{
+			return itemFilterExpressions;
+		}
+
+		/**
+		 * @return the value to write in place of the given value, or null to keep it
+		 */
+		public String getReplacementValue(String itemValue)
+		{
+			String newValue = null;
+
+			if (replacementValues != null)
+			{
+				newValue = replacementValues.get(itemValue);
+			}
+
+			if (newValue == null)
+			{
+				newValue = constantValue;
+			}
+
+			return newValue;
+		}
+
+		public boolean isSimpleValueCount()
+		{
+			return simpleValueCount;
+		}
+
+		/**
+		 * @return value count scripts keyed by value count name, or null if there are none
+		 */
+		public Map<String, Script> getValueCountsScripts()
+		{
+			return valueCountsScripts;
+		}
+	}
+
+	private final NaxConfig naxConfig;
+	private final NaaccrDictionary baseDictionary;
+	private final List<NaaccrDictionary> userDictionaries;
+	private final NaaccrDictionary defaultUserDictionary;
+	private final Map<String, ItemAction> itemActions = new ConcurrentHashMap<>();
+	private final Map<Script, ScriptResultCache> scriptResultCaches = new IdentityHashMap<>();
+
+	private ItemActionTable(NaxConfig naxConfig,
+							NaaccrDictionary baseDictionary,
+							List<NaaccrDictionary> userDictionaries,
+							NaaccrDictionary defaultUserDictionary)
+	{
+		this.naxConfig = naxConfig;
+		this.baseDictionary = baseDictionary;
+		this.userDictionaries = userDictionaries;
+		this.defaultUserDictionary = defaultUserDictionary;
+	}
+
+	/**
+	 * Compile the rules in a NaxConfig for every naaccrId in the dictionaries of an input file.
+	 */
+	public static ItemActionTable compile(NaxConfig naxConfig,
+										  NaaccrDictionary baseDictionary,
+										  List<NaaccrDictionary> userDictionaries,
+										  NaaccrDictionary defaultUserDictionary)
+	{
+		ItemActionTable itemActionTable = new ItemActionTable(naxConfig, baseDictionary, userDictionaries, defaultUserDictionary);
+
+		naxConfig.initializeForWorkerThreads();
+
+		if (naxConfig.getPureScriptCacheSize() > 0)
+		{
+			for (Map.Entry<String, Map<String, Script>> entry : naxConfig.getValueCountsScripts().entrySet())
+			{
+				itemActionTable.addScriptResultCaches(entry.getKey(), entry.getValue().values());
+			}
+
+			for (Map.Entry<String, List<Script>> entry : naxConfig.getCompiledItemScripts().entrySet())
+			{
+				itemActionTable.addScriptResultCaches(entry.getKey(), entry.getValue());
+			}
+		}
+
+		itemActionTable.addItemActions(baseDictionary);
+
+		if ((userDictionaries == null) || userDictionaries.size() == 0)
+		{
+			itemActionTable.addItemActions(defaultUserDictionary);
+		}
+		else
+		{
+			for (NaaccrDictionary userDictionary : userDictionaries)
+			{
+				itemActionTable.addItemActions(userDictionary);
+			}
+		}
+
+		return itemActionTable;
+	}
+
+	private void addScriptResultCaches(String naaccrId,
+									   Collection<Script> compiledScripts)
+	{
+		for (Script compiledScript : compiledScripts)
+		{
+			String scriptName = (String) compiledScript.getProperty("name");
+
+			if (ScriptResultCache.isPure(naxConfig.getScriptDependencies(compiledScript), naaccrId))
+			{
+				scriptResultCaches.put(compiledScript, new ScriptResultCache(scriptName, naxConfig.getPureScriptCacheSize()));
+			}
+			else
+			{
+				logger.fine(String.format("Not caching results of %s, it reads more than the value of %s", scriptName, naaccrId));
+			}
+		}
+	}
+
+	private void addItemActions(NaaccrDictionary naaccrDictionary)
+	{
+		for (String naaccrId : naaccrDictionary.getNaaccrNumMap().keySet())
+		{
+			itemActions.computeIfAbsent(naaccrId, this::createItemAction);
+		}
+	}
+
+	private ItemAction createItemAction(String naaccrId)
+	{
+		Integer naaccrNum = NaaccrDictionary
+				.lookupNaaccrNum(naaccrId, baseDictionary, userDictionaries, defaultUserDictionary);
+
+		if (naaccrNum == null)
+		{
+			logger.warning(String.format("Could not find naaccrNum for %s, User Dictionary may be missing", naaccrId));
+		}
+
+		return new ItemAction(naaccrId, naaccrNum, naxConfig);
+	}
+
+	/**
+	 * @return the compiled rules for a naaccrId, never null
+	 */
+	public ItemAction get(String naaccrId)
+	{
+		ItemAction itemAction = itemActions.get(naaccrId);
+
+		if (itemAction == null)
+		{
+			itemAction = itemActions.computeIfAbsent(naaccrId, this::createItemAction);
+		}
+
+		return itemAction;
+	}
+
+	/**
+	 * @return the cached results of a value count or Item script, or null if its results aren't cached
+	 */
+	public ScriptResultCache getScriptResultCache(Script compiledScript)
+	{
+		return scriptResultCaches.get(compiledScript);
+	}
+
+	/**
+	 * @return every script result cache by script name, or null if no script results are cached
+	 */
+	public List<ScriptResultCache> getScriptResultCaches()
+	{
+		List<ScriptResultCache> caches = null;
+
+		if (scriptResultCaches.isEmpty() == false)
+		{
+			caches = new ArrayList<>(scriptResultCaches.values());
+			caches.sort(Comparator.comparing(ScriptResultCache::getScriptName));
+		}
+
+		return caches;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+import groovy.lang.Script;
+
+/**
+ * Base class of every script compiled by a {@link NaxConfig}, giving scripts the lookup methods of the config's own
+ * {@link LookupTables}.
+ */
+public abstract class LookupScript
+		extends Script
+{
+	private LookupTables lookupTables = null;
+
+	void setLookupTables(LookupTables lookupTables)
+	{
+		this.lookupTables = lookupTables;
+	}
+
+	/**
+	 * @return the value in the second column of a lookup table for this key, or null if the table has no row for it
+	 */
+	public String lookup(String tableName,
+						 String key)
+	{
+		return this.lookupTables.lookup(tableName, key);
+	}
+
+	/**
+	 * @return the value in a column of a lookup table for this key, or null if the table has no row for it
+	 */
+	public String lookup(String tableName,
+						 String key,
+						 String columnName)
+	{
+		return this.lookupTables.lookup(tableName, key, columnName);
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package edu.uky.kcr.nax;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only table loaded from a CSV file with a header row, looking up the other columns of a row by the value in its
+ * first column.
+ * <br/>
+ * Keys are kept in row order and found through an open addressing table of row numbers, and repeated values in the
+ * other columns share a single String, so a crosswalk with millions of rows takes little more memory than its Strings.
+ * Nothing changes after the table is loaded, so any number of threads can look up values at once. When a key appears
+ * more than once, the last row wins.
+ */
+public class LookupTable
+{
+	private final String name;
+	private final NaxFileInfo fileInfo;
+	private final List<String> columnNames;
+	private final Map<String, Integer> columnIndexes = new HashMap<>();
+	private final String[] keys;
+	private final String[][] columns;
+	//Row number + 1 of the key hashed to each slot, or 0 for an empty slot
+	private final int[] slots;
+
+	private LookupTable(String name,
+						NaxFileInfo fileInfo,
+						List<String> columnNames,
+						List<String> keys,
+						List<List<String>> columns)
+	{
+		this.name = name;
+		this.fileInfo = fileInfo;
+		this.columnNames = Collections.unmodifiableList(new ArrayList<>(columnNames));
+		this.keys = keys.toArray(new String[0]);
+		this.columns = new String[columns.size()][];
+		this.slots = new int[Integer.highestOneBit(Math.max(this.keys.length, 1) * 2) * 2];
+
+		for (int i = 1; i < columnNames.size(); i++)
+		{
+			this.columnIndexes.put(columnNames.get(i), i - 1);
+			this.columns[i - 1] = columns.get(i - 1).toArray(new String[0]);
+		}
+
+		for (int row = 0; row < this.keys.length; row++)
+		{
+			this.slots[findSlot(this.keys[row])] = row + 1;
+		}
+	}
+
+	/**
+	 * A table with another name that shares this table's rows, for a file registered under more than one name
+	 */
+	private LookupTable(String name,
+						LookupTable lookupTable)
+	{
+		this.name = name;
+		this.fileInfo = lookupTable.fileInfo;
+		this.columnNames = lookupTable.columnNames;
+		this.columnIndexes.putAll(lookupTable.columnIndexes);
+		this.keys = lookupTable.keys;
+		this.columns = lookupTable.columns;
+		this.slots = lookupTable.slots;
+	}
+
+	/**
+	 * Load a CSV file with a header row, where the first column is the key
+	 */
+	public static LookupTable load(String name,
+								   File csvFile)
+			throws IOException, NoSuchAlgorithmException
+	{
+		ProgressTrackingDigestInputStream inputStream = ProgressTrackingDigestInputStream.newInstance(csvFile);
+		List<String> keys = new ArrayList<>();
+		List<List<String>> columns = new ArrayList<>();
+		Map<String, String> sharedValues = new HashMap<>();
+		List<String> columnNames = null;
+
+		try (Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
+			 CSVParser csvParser = CSVFormat.EXCEL.withFirstRecordAsHeader().parse(reader))
+		{
+			columnNames = csvParser.getHeaderNames();
+
+			if (columnNames.size() < 2)
+			{
+				throw new IOException(String.format("Lookup table %s needs a key column and at least one value column: %s", name, csvFile
+						.getAbsolutePath()));
+			}
+
+			for (int i = 1; i < columnNames.size(); i++)
+			{
+				columns.add(new ArrayList<>());
+			}
+
+			for (CSVRecord record : csvParser)
+			{
+				keys.add(record.get(0));
+
+				for (int i = 1; i < columnNames.size(); i++)
+				{
+					String value = (i < record.size()) ? record.get(i) : null;
+
+					columns.get(i - 1).add((value == null) ? null : sharedValues.computeIfAbsent(value, sharedValue -> sharedValue));
+				}
+			}
+		}
+
+		return new LookupTable(name, inputStream, columnNames, keys, columns);
+	}
+
+	private int findSlot(String key)
+	{
+		int mask = this.slots.length - 1;
+		int hash = key.hashCode();
+		int slot = (hash ^ (hash >>> 16)) & mask;
+
+		while ((this.slots[slot] != 0) && (this.keys[this.slots[slot] - 1].equals(key) == false))
+		{
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	/**
+	 * @return the value in the second column of the row for this key, or null if there is no row for it
+	 */
+	public String get(String key)
+	{
+		return get(key, 0);
+	}
+
+	/**
+	 * @return the value in a column of the row for this key, or null if there is no row for it
+	 */
+	public String get(String key,
+					  String columnName)
+	{
+		Integer columnIndex = this.columnIndexes.get(columnName);
+
+		if (columnIndex == null)
+		{
+			throw new IllegalArgumentException(String.format("Lookup table %s has no column %s", this.name, columnName));
+		}
+
+		return get(key, columnIndex);
+	}
+
+	private String get(String key,
+					   int columnIndex)
+	{
+		String value = null;
+
+		if (key != null)
+		{
+			int row = this.slots[findSlot(key)] - 1;
+
+			if (row >= 0)
+			{
+				value = this.columns[columnIndex][row];
+			}
+		}
+
+		return value;
+	}
+
+	/**
+	 * @return this table, or a copy sharing its rows if the name is different
+	 */
+	LookupTable withName(String name)
+	{
+		return this.name.equals(name) ? this : new LookupTable(name, this);
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public NaxFileInfo getFileInfo()
+	{
+		return fileInfo;
+	}
+
+	public List<String> getColumnNames()
+	{
+		return columnNames;
+	}
+
+	public int getSize()
+	{
+		return keys.length;
+	}
+}
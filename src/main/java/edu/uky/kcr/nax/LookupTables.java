@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package edu.uky.kcr.nax;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The {@link LookupTable}s of a single {@link NaxConfig}, by name. Every script compiled by the config extends
+ * {@link LookupScript}, so a script can use:
+ * <pre>
+ *     lookup('countyFips', addrAtDxCounty)
+ *     lookup('facilities', reportingFacility, 'facilityName')
+ * </pre>
+ * Names only mean something to the config that registered them, so registering a name again replaces its table. Loaded
+ * tables are also kept by the path, size, and modification time of their CSV file, so configs that register the same
+ * file share one copy, and a file that changed is loaded again. That cache doesn't keep a table alive once no config
+ * uses it.
+ */
+public class LookupTables
+{
+	private static final Logger logger = Logger.getLogger(LookupTables.class.getName());
+
+	private static final Map<String, WeakReference<LookupTable>> loadedTables = new HashMap<>();
+
+	private volatile Map<String, LookupTable> lookupTables = Collections.emptyMap();
+
+	/**
+	 * Load a CSV file as a lookup table, or get the table already loaded from the same version of the file
+	 */
+	public static LookupTable load(String name,
+								   File csvFile)
+			throws IOException, NoSuchAlgorithmException
+	{
+		String version = String.format("%s:%d:%d", csvFile.getCanonicalPath(), csvFile.length(), csvFile.lastModified());
+		LookupTable lookupTable = null;
+
+		synchronized (loadedTables)
+		{
+			loadedTables.values().removeIf(loadedTable -> loadedTable.get() == null);
+
+			WeakReference<LookupTable> loadedTable = loadedTables.get(version);
+
+			lookupTable = (loadedTable == null) ? null : loadedTable.get();
+
+			if (lookupTable == null)
+			{
+				logger.info(String.format("Loading lookup table %s from %s...", name, csvFile.getAbsolutePath()));
+
+				lookupTable = LookupTable.load(name, csvFile);
+				loadedTables.put(version, new WeakReference<>(lookupTable));
+
+				logger.info(String.format("Loaded %d rows into lookup table %s.", lookupTable.getSize(), name));
+			}
+		}
+
+		return lookupTable.withName(name);
+	}
+
+	/**
+	 * Add a table under its name, replacing any table that already has it. Tables are only added while a config is
+	 * being set up, and scripts on other threads always see either the old map or the new one.
+	 */
+	public synchronized void put(LookupTable lookupTable)
+	{
+		Map<String, LookupTable> newLookupTables = new LinkedHashMap<>(this.lookupTables);
+
+		newLookupTables.remove(lookupTable.getName());
+		newLookupTables.put(lookupTable.getName(), lookupTable);
+
+		this.lookupTables = newLookupTables;
+	}
+
+	/**
+	 * @return every table, in the order they were added
+	 */
+	public List<LookupTable> getLookupTables()
+	{
+		return new ArrayList<>(this.lookupTables.values());
+	}
+
+	/**
+	 * @return the lookup table with this name, never null
+	 */
+	public LookupTable get(String name)
+	{
+		LookupTable lookupTable = this.lookupTables.get(name);
+
+		if (lookupTable == null)
+		{
+			throw new IllegalArgumentException(String.format("No lookup table named %s has been registered", name));
+		}
+
+		return lookupTable;
+	}
+
+	/**
+	 * @return the value in the second column of a lookup table for this key, or null if the table has no row for it
+	 */
+	public String lookup(String tableName,
+						 String key)
+	{
+		return get(tableName).get(key);
+	}
+
+	/**
+	 * @return the value in a column of a lookup table for this key, or null if the table has no row for it
+	 */
+	public String lookup(String tableName,
+						 String key,
+						 String columnName)
+	{
+		return get(tableName).get(key, columnName);
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package edu.uky.kcr.nax;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reads a local file through windows of a memory mapped {@link FileChannel}, so the parser copies bytes straight out of
+ * the page cache instead of going through a {@link java.io.FileInputStream}, a {@link ProgressTrackingDigestInputStream},
+ * and a {@link java.io.BufferedInputStream}. The {@link ContentDigest} is updated from the same bytes the parser reads,
+ * and progress is the position in the file.
+ * <p>
+ * Java has no supported way to unmap a {@link MappedByteBuffer}, so a window stays mapped until it is garbage collected,
+ * even after {@link #close()}. Closing drops every reference to the current window so it can be collected, but until
+ * then the mapping still counts against the address space, and on Windows the file can not be deleted or replaced.
+ */
+public class MappedFileInputStream
+		extends InputStream
+		implements NaxFileInfo
+{
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	@JsonIgnore
+	private final FileChannel fileChannel;
+	@JsonIgnore
+	private final ContentDigest contentDigest;
+	@JsonIgnore
+	private final int windowSize;
+	@JsonIgnore
+	private MappedByteBuffer window = null;
+	@JsonIgnore
+	private long windowPosition = 0;
+	@JsonIgnore
+	private final byte[] singleByte = new byte[1];
+
+	private final String name;
+	private final long totalLength;
+
+	public MappedFileInputStream(File file)
+			throws IOException, NoSuchAlgorithmException
+	{
+		this(file, ContentDigest.newInstance(ContentDigest.MD5));
+	}
+
+	public MappedFileInputStream(File file,
+								 ContentDigest contentDigest)
+			throws IOException
+	{
+		this(file, contentDigest, DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedFileInputStream(File file,
+								 ContentDigest contentDigest,
+								 int windowSize)
+			throws IOException
+	{
+		this.contentDigest = contentDigest;
+		this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.name = file.getName();
+		this.totalLength = this.fileChannel.size();
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Map the next window of the file once the current one has been read.
+	 *
+	 * @return false at the end of the file
+	 */
+	private boolean nextWindow()
+			throws IOException
+	{
+		if ((this.window != null) && this.window.hasRemaining())
+		{
+			return true;
+		}
+
+		long nextWindowPosition = (this.window == null) ? this.windowPosition : this.windowPosition + this.window.capacity();
+		long remaining = getTotalLength() - nextWindowPosition;
+
+		if (remaining <= 0)
+		{
+			return false;
+		}
+
+		this.windowPosition = nextWindowPosition;
+		this.window = this.fileChannel.map(FileChannel.MapMode.READ_ONLY, this.windowPosition, Math.min(remaining, this.windowSize));
+
+		return true;
+	}
+
+	@Override
+	public int read()
+			throws IOException
+	{
+		if (nextWindow() == false)
+		{
+			return -1;
+		}
+
+		this.singleByte[0] = this.window.get();
+		this.contentDigest.update(this.singleByte, 0, 1);
+
+		return this.singleByte[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] bytes,
+					int off,
+					int len)
+			throws IOException
+	{
+		if (len == 0)
+		{
+			return 0;
+		}
+
+		if (nextWindow() == false)
+		{
+			return -1;
+		}
+
+		int nextRead = Math.min(len, this.window.remaining());
+
+		this.window.get(bytes, off, nextRead);
+		this.contentDigest.update(bytes, off, nextRead);
+
+		return nextRead;
+	}
+
+	@Override
+	public long skip(long n)
+			throws IOException
+	{
+		byte[] skipped = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+		long totalSkipped = 0;
+
+		//Skipped bytes still go into the file hash
+		while (totalSkipped < n)
+		{
+			int nextRead = read(skipped, 0, (int) Math.min(skipped.length, n - totalSkipped));
+
+			if (nextRead < 0)
+			{
+				break;
+			}
+
+			totalSkipped += nextRead;
+		}
+
+		return totalSkipped;
+	}
+
+	@Override
+	public int available()
+	{
+		return (int) Math.min(getTotalLength() - getTotalRead(), Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void close()
+			throws IOException
+	{
+		//Keep the position for getTotalRead(), but let the mapped window be collected
+		this.windowPosition = getTotalRead();
+		this.window = null;
+
+		this.fileChannel.close();
+	}
+
+	@JsonIgnore
+	public ContentDigest getContentDigest()
+	{
+		return this.contentDigest;
+	}
+
+	@Override
+	public String getDigestAlgorithm()
+	{
+		return this.contentDigest.getAlgorithm();
+	}
+
+	@Override
+	public String getDigest()
+	{
+		return this.contentDigest.getValue();
+	}
+
+	@Override
+	public String getMd5()
+	{
+		return ContentDigest.MD5.equalsIgnoreCase(getDigestAlgorithm()) ? getDigest() : null;
+	}
+
+	@Override
+	public String getName()
+	{
+		return this.name;
+	}
+
+	@Override
+	public long getTotalLength()
+	{
+		return this.totalLength;
+	}
+
+	@Override
+	@JsonIgnore
+	public long getTotalRead()
+	{
+		return this.windowPosition + ((this.window == null) ? 0 : this.window.position());
+	}
+}
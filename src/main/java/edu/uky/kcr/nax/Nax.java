@@ -31,18 +31,26 @@
 
 package edu.uky.kcr.nax;
 
+import com.fasterxml.aalto.stax.InputFactoryImpl;
 import edu.uky.kcr.nax.model.Item;
 import edu.uky.kcr.nax.model.NaaccrData;
 import edu.uky.kcr.nax.model.NaaccrDictionary;
 import edu.uky.kcr.nax.model.Patient;
+import edu.uky.kcr.nax.model.PatientRecord;
 import edu.uky.kcr.nax.model.Tumor;
 import groovy.lang.Script;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.io.output.ProxyOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.codehaus.stax2.XMLInputFactory2;
+import org.codehaus.stax2.XMLStreamReader2;
+import org.codehaus.stax2.XMLStreamWriter2;
 import org.codehaus.staxmate.dom.DOMConverter;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -68,16 +76,29 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -94,6 +115,8 @@ public class Nax
 	public static final int GZIP_BUFFER = 64 * 1024;
 	private static final int OUTPUT_BUFFER = 1024 * 1024 * 16;
 	private static final int INPUT_BUFFER = 64 * 1024;
+	//Several entries can be waiting at once, so larger outputs go to temp files next to the output zip file
+	private static final int ZIP_ENTRY_MEMORY_THRESHOLD = 1024 * 1024;
 	private static final int PEEK_BUFFER = 8192;
 
 	private Nax()
@@ -127,14 +150,37 @@ public class Nax
 	public List<NaxResult> process(
 			File inputFile,
 			File outputFile)
+	{
+		return process(inputFile, outputFile, true);
+	}
+
+	/**
+	 * @param parallelZipEntries false when this file is already being processed alongside other files, so a zip file's
+	 *                           entries aren't processed on yet another pool of threads
+	 */
+	private List<NaxResult> process(
+			File inputFile,
+			File outputFile,
+			boolean parallelZipEntries)
 	{
 		List<NaxResult> naxResultList = new ArrayList<>();
 
-		try (FileInputStream fileInputStream = new FileInputStream(inputFile))
+		try
 		{
-			naxResultList.addAll(process(fileInputStream, inputFile.getName(), inputFile.length(), outputFile));
+			if (parallelZipEntries && naxConfig.getFileThreads() > 1 && inputFile.getName().endsWith(".zip"))
+			{
+				naxResultList.addAll(processZipFile(inputFile, outputFile));
+			}
+			else
+			{
+				try (InputStream fileInputStream = (naxConfig.isMappedInput() && inputFile.getName()
+						.endsWith(".zip") == false) ? new MappedFileInputStream(inputFile, createInputDigest()) : new FileInputStream(inputFile))
+				{
+					naxResultList.addAll(process(fileInputStream, inputFile.getName(), inputFile.length(), outputFile));
+				}
+			}
 		}
-		catch (IOException exception)
+		catch (IOException | NoSuchAlgorithmException exception)
 		{
 			NaxResult naxResult = new NaxResult();
 			naxResult.setParsingSuccess(false);
@@ -146,6 +192,79 @@ public class Nax
 		return naxResultList;
 	}
 
+	/**
+	 * Process several input files, running up to {@link NaxConfig#getFileThreads()} of them at the same time. The largest
+	 * files are started first, so a big file doesn't end up running alone after all of the small ones are done.
+	 *
+	 * @param outputFiles the output file for the input file at the same index, or null to process without output
+	 * @return the results for every input file, in the same order as the input files
+	 */
+	public List<NaxResult> process(
+			List<File> inputFiles,
+			List<File> outputFiles)
+	{
+		List<NaxResult> naxResultList = new ArrayList<>();
+		int fileThreads = Math.min(naxConfig.getFileThreads(), inputFiles.size());
+
+		if (fileThreads <= 1)
+		{
+			for (int i = 0; i < inputFiles.size(); i++)
+			{
+				naxResultList.addAll(process(inputFiles.get(i), outputFiles == null ? null : outputFiles.get(i)));
+			}
+		}
+		else
+		{
+			naxConfig.initializeForWorkerThreads();
+
+			logger.info(String.format("Processing %d files with %d threads...", inputFiles.size(), fileThreads));
+
+			ExecutorService executorService = Executors.newFixedThreadPool(fileThreads);
+
+			try
+			{
+				List<Future<List<NaxResult>>> futures = new ArrayList<>(Collections.nCopies(inputFiles.size(), null));
+				List<Integer> largestFirst = new ArrayList<>();
+
+				for (int i = 0; i < inputFiles.size(); i++)
+				{
+					largestFirst.add(i);
+				}
+
+				largestFirst.sort(Comparator.comparingLong((Integer index) -> inputFiles.get(index).length()).reversed());
+
+				for (int index : largestFirst)
+				{
+					File outputFile = outputFiles == null ? null : outputFiles.get(index);
+
+					futures.set(index, executorService.submit(() -> process(inputFiles.get(index), outputFile, false)));
+				}
+
+				for (Future<List<NaxResult>> future : futures)
+				{
+					try
+					{
+						naxResultList.addAll(future.get());
+					}
+					catch (InterruptedException | ExecutionException exception)
+					{
+						NaxResult naxResult = new NaxResult();
+						naxResult.setParsingSuccess(false);
+						naxResult.setParsingErrorMessage(exception.getMessage());
+						naxResult.setParsingErrorMessageDetails(ExceptionUtils.getStackTrace(exception));
+						naxResultList.add(naxResult);
+					}
+				}
+			}
+			finally
+			{
+				executorService.shutdownNow();
+			}
+		}
+
+		return naxResultList;
+	}
+
 	public List<NaxResult> process(
 			InputStream inputStream,
 			String name,
@@ -167,10 +286,12 @@ public class Nax
 			if (name.endsWith(".zip"))
 			{
 				ZipOutputStream zipOutputStream = null;
+				CountingDigestOutputStream zipDigestStream = null;
 
 				if (outputFile != null)
 				{
-					zipOutputStream = new ZipOutputStream(new FileOutputStream(outputFile));
+					zipDigestStream = new CountingDigestOutputStream(new FileOutputStream(outputFile), createOutputDigest());
+					zipOutputStream = new ZipOutputStream(new BufferedOutputStream(zipDigestStream, GZIP_BUFFER));
 				}
 
 				try (ZipInputStream zipInputStream = new ZipInputStream(inputStream))
@@ -184,39 +305,55 @@ public class Nax
 						//Check file extension of zipentry, skip over zips in zips
 						if (zipEntryName.endsWith(".zip") == false)
 						{
-							//Write to temp file, delete if necessary, add to zip file if good
-							File tempFile = File.createTempFile("nax-", ".xml");
-							NaxResult naxResult = processSingleFile(zipInputStream, String.format("%s/%s", name, zipEntryName), zipEntry.getSize(), tempFile);
+							String entryInputName = String.format("%s/%s", name, zipEntryName);
+							NaxResult naxResult = null;
 
-							if (outputFile != null)
+							if (outputFile == null)
 							{
-								if (naxResult.isOutputFileDeleted() == false)
-								{
-									zipOutputStream.putNextEntry(new ZipEntry(zipEntryName));
+								naxResult = processSingleFile(zipInputStream, entryInputName, zipEntry.getSize(), null, null);
+							}
+							else if (getNaxConfig().getDeleteOutputFiles() == 0)
+							{
+								//Output is never deleted, so write straight into the zip entry
+								logger.info(String.format("Writing nax output file %s to Zip File: %s", zipEntryName, outputFile
+										.getName()));
 
-									try (FileInputStream tempFileInputStream = new FileInputStream(tempFile))
-									{
-										logger.info(String.format("Writing nax output file %s to Zip File: %s", zipEntryName, outputFile
-												.getName()));
-										IOUtils.copy(tempFileInputStream, zipOutputStream);
-									}
+								ZipEntry outputZipEntry = new ZipEntry(zipEntryName);
+
+								zipOutputStream.putNextEntry(outputZipEntry);
+								naxResult = processSingleFile(zipInputStream, entryInputName, zipEntry.getSize(), null, zipOutputStream);
+								zipOutputStream.closeEntry();
+
+								recordZipEntryOutput(naxResult, outputZipEntry);
 
-									naxResult.setOutputFilename(String.format("%s/%s", outputFile.getName(), zipEntryName));
-									naxResult.setOutputFile(null);
+								naxResult.setOutputFilename(String.format("%s/%s", outputFile.getName(), zipEntryName));
+							}
+							else
+							{
+								DeferredFileOutputStream entryOutputStream = createZipEntryOutputStream(outputFile);
+
+								try
+								{
+									naxResult = processSingleFile(zipInputStream, entryInputName, zipEntry
+											.getSize(), null, entryOutputStream);
+									writeZipEntryOutput(naxResult, entryOutputStream, zipEntryName, zipOutputStream, outputFile);
 								}
-								else
+								finally
 								{
-									naxResult.setOutputFilename(outputFile.getName());
-									naxResult.setOutputFile(null);
+									discardZipEntryOutput(entryOutputStream);
 								}
 							}
 
 							naxResultList.add(naxResult);
-							FileUtils.forceDelete(tempFile);
 						}
 
 						zipEntry = zipInputStream.getNextEntry();
 					}
+
+					if (zipOutputStream != null)
+					{
+						finishOutputZipFile(zipOutputStream, zipDigestStream, outputFile, naxResultList);
+					}
 				}
 				finally
 				{
@@ -243,10 +380,235 @@ public class Nax
 		return naxResultList;
 	}
 
+	/**
+	 * Process the entries of a zip file on disk at the same time, up to {@link NaxConfig#getFileThreads()} of them, reading
+	 * each one with random access. Each entry's output is held in memory (or a temp file once it gets too big) until all
+	 * of the entries before it have been added to the output zip file, so entries keep their original order.
+	 *
+	 * @return a result for each entry, in the same order as the entries in the zip file
+	 */
+	private List<NaxResult> processZipFile(
+			File inputFile,
+			File outputFile)
+			throws IOException, NoSuchAlgorithmException
+	{
+		List<NaxResult> naxResultList = new ArrayList<>();
+		int fileThreads = naxConfig.getFileThreads();
+
+		naxConfig.initializeForWorkerThreads();
+
+		ExecutorService executorService = Executors.newFixedThreadPool(fileThreads, PatientPipeline.createThreadFactory("nax-zip-entry"));
+		Deque<Future<NaxResult>> pendingResults = new ArrayDeque<>();
+		Deque<DeferredFileOutputStream> pendingOutputStreams = new ArrayDeque<>();
+		Deque<String> pendingEntryNames = new ArrayDeque<>();
+
+		try (ZipFile zipFile = new ZipFile(inputFile);
+			 CountingDigestOutputStream zipDigestStream = outputFile == null ? null : new CountingDigestOutputStream(new FileOutputStream(outputFile), createOutputDigest());
+			 ZipOutputStream zipOutputStream = zipDigestStream == null ? null : new ZipOutputStream(new BufferedOutputStream(zipDigestStream, GZIP_BUFFER)))
+		{
+			List<? extends ZipEntry> zipEntries = Collections.list(zipFile.entries());
+
+			logger.info(String.format("Processing %d zip entries of %s with %d threads...", zipEntries
+					.size(), inputFile.getName(), fileThreads));
+
+			for (int i = 0; i <= zipEntries.size(); i++)
+			{
+				//Only keep a few finished entries waiting on the ones before them
+				while (pendingResults.isEmpty() == false && (pendingResults.size() >= fileThreads * 2 || i == zipEntries
+						.size()))
+				{
+					NaxResult naxResult = null;
+					Future<NaxResult> pendingResult = pendingResults.removeFirst();
+					DeferredFileOutputStream entryOutputStream = pendingOutputStreams.removeFirst();
+					String zipEntryName = pendingEntryNames.removeFirst();
+
+					try
+					{
+						naxResult = pendingResult.get();
+
+						if (zipOutputStream != null)
+						{
+							writeZipEntryOutput(naxResult, entryOutputStream, zipEntryName, zipOutputStream, outputFile);
+						}
+					}
+					catch (InterruptedException | ExecutionException exception)
+					{
+						naxResult = new NaxResult();
+						naxResult.setParsingSuccess(false);
+						naxResult.setParsingErrorMessage(exception.getMessage());
+						naxResult.setParsingErrorMessageDetails(ExceptionUtils.getStackTrace(exception));
+					}
+					finally
+					{
+						discardZipEntryOutput(entryOutputStream);
+					}
+
+					naxResultList.add(naxResult);
+				}
+
+				if (i < zipEntries.size())
+				{
+					ZipEntry zipEntry = zipEntries.get(i);
+					String zipEntryName = zipEntry.getName();
+
+					//Check file extension of zipentry, skip over zips in zips
+					if (zipEntryName.endsWith(".zip") == false)
+					{
+						String entryInputName = String.format("%s/%s", inputFile.getName(), zipEntryName);
+						DeferredFileOutputStream entryOutputStream = outputFile == null ? null : createZipEntryOutputStream(outputFile);
+
+						pendingResults.addLast(executorService.submit(() -> {
+							try (InputStream entryInputStream = zipFile.getInputStream(zipEntry))
+							{
+								return processSingleFile(entryInputStream, entryInputName, zipEntry
+										.getSize(), null, entryOutputStream);
+							}
+						}));
+						pendingOutputStreams.addLast(entryOutputStream);
+						pendingEntryNames.addLast(zipEntryName);
+					}
+				}
+			}
+
+			if (zipOutputStream != null)
+			{
+				finishOutputZipFile(zipOutputStream, zipDigestStream, outputFile, naxResultList);
+			}
+		}
+		finally
+		{
+			executorService.shutdownNow();
+
+			//Workers may still be writing their entry's output, it can only be deleted once they're done
+			awaitTermination(executorService);
+
+			for (DeferredFileOutputStream entryOutputStream : pendingOutputStreams)
+			{
+				discardZipEntryOutput(entryOutputStream);
+			}
+		}
+
+		return naxResultList;
+	}
+
+	private static DeferredFileOutputStream createZipEntryOutputStream(File outputFile)
+	{
+		return new DeferredFileOutputStream(ZIP_ENTRY_MEMORY_THRESHOLD, "nax-", ".xml", outputFile.getAbsoluteFile()
+				.getParentFile());
+	}
+
+	/**
+	 * Wait for tasks that were already running when the executor was shut down, they ignore interrupts.
+	 */
+	private static void awaitTermination(ExecutorService executorService)
+	{
+		try
+		{
+			while (executorService.awaitTermination(1, TimeUnit.MINUTES) == false)
+			{
+				logger.info("Waiting for zip entries that are still being processed...");
+			}
+		}
+		catch (InterruptedException interruptedException)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Add the output of a processed zip entry to the output zip file, unless the output was deleted.
+	 */
+	private static void writeZipEntryOutput(
+			NaxResult naxResult,
+			DeferredFileOutputStream entryOutputStream,
+			String zipEntryName,
+			ZipOutputStream zipOutputStream,
+			File outputFile)
+			throws IOException
+	{
+		entryOutputStream.close();
+
+		if (naxResult.isOutputFileDeleted() == false)
+		{
+			logger.info(String.format("Writing nax output file %s to Zip File: %s", zipEntryName, outputFile
+					.getName()));
+
+			ZipEntry outputZipEntry = new ZipEntry(zipEntryName);
+
+			zipOutputStream.putNextEntry(outputZipEntry);
+			entryOutputStream.writeTo(zipOutputStream);
+			zipOutputStream.closeEntry();
+
+			recordZipEntryOutput(naxResult, outputZipEntry);
+
+			naxResult.setOutputFilename(String.format("%s/%s", outputFile.getName(), zipEntryName));
+		}
+		else
+		{
+			naxResult.setOutputFilename(outputFile.getName());
+		}
+	}
+
+	/**
+	 * Name an entry's output size and hash after the entry, with the compressed size the zip file stores it in.
+	 */
+	private static void recordZipEntryOutput(
+			NaxResult naxResult,
+			ZipEntry outputZipEntry)
+	{
+		if (naxResult.getOutputFileInfo() != null)
+		{
+			naxResult.getOutputFileInfo().setName(outputZipEntry.getName());
+			naxResult.getOutputFileInfo().setSize(outputZipEntry.getCompressedSize());
+		}
+	}
+
+	/**
+	 * Write the end of the output zip file, then record its size and hash on the result of every entry in it.
+	 */
+	private static void finishOutputZipFile(
+			ZipOutputStream zipOutputStream,
+			CountingDigestOutputStream zipDigestStream,
+			File outputFile,
+			List<NaxResult> naxResultList)
+			throws IOException
+	{
+		zipOutputStream.finish();
+		zipOutputStream.flush();
+
+		NaxOutputFileInfo outputZipFileInfo = new NaxOutputFileInfo(outputFile.getName(), zipDigestStream);
+
+		for (NaxResult naxResult : naxResultList)
+		{
+			naxResult.setOutputZipFileInfo(outputZipFileInfo);
+		}
+	}
+
+	private static void discardZipEntryOutput(DeferredFileOutputStream entryOutputStream)
+	{
+		if (entryOutputStream != null)
+		{
+			IOUtils.closeQuietly(entryOutputStream);
+			FileUtils.deleteQuietly(entryOutputStream.getFile());
+		}
+	}
+
+	NaxResult processSingleFile(InputStream inputStream,
+								String name,
+								long size,
+								File outputFile)
+	{
+		return processSingleFile(inputStream, name, size, outputFile, null);
+	}
+
+	/**
+	 * @param entryOutputStream when not null, output is written here instead of the output file, and the stream is left open
+	 */
 	private NaxResult processSingleFile(InputStream inputStream,
 										String name,
 										long size,
-										File outputFile)
+										File outputFile,
+										OutputStream entryOutputStream)
 	{
 		NaxResult naxResult = new NaxResult();
 
@@ -255,37 +617,106 @@ public class Nax
 
 		InputStream xmlInputStream = null;
 		OutputStream outputStream = null;
+		ParallelGzipOutputStream gzipOutputStream = null;
+		//Counts and hashes the bytes as they're stored, and uncompressedCountingStream counts them before gzip
+		CountingDigestOutputStream outputDigestStream = null;
+		CountingOutputStream uncompressedCountingStream = null;
+		PatientPipeline patientPipeline = null;
+		ReadAheadBuffers readAheadBuffers = null;
+		ContentDigest inputDigest = null;
 
 		try
 		{
-			ProgressTrackingDigestInputStream progressTrackingDigestInputStream = new ProgressTrackingDigestInputStream(inputStream, name, size);
+			NaxFileInfo inputFileInfo = null;
 
-			if (name.endsWith(".gz"))
+			if (inputStream instanceof MappedFileInputStream)
 			{
-				xmlInputStream = new BufferedInputStream(new GZIPInputStream(progressTrackingDigestInputStream, GZIP_BUFFER), INPUT_BUFFER);
+				//Already hashed and tracked, and reads are copies out of the mapped file so they don't need buffering
+				inputFileInfo = (MappedFileInputStream) inputStream;
+				inputDigest = ((MappedFileInputStream) inputStream).getContentDigest();
+				xmlInputStream = inputStream;
 			}
 			else
 			{
-				xmlInputStream = new BufferedInputStream(progressTrackingDigestInputStream, INPUT_BUFFER);
+				inputDigest = createInputDigest();
+				ProgressTrackingDigestInputStream progressTrackingDigestInputStream = new ProgressTrackingDigestInputStream(inputStream, name, size, inputDigest);
+
+				inputFileInfo = progressTrackingDigestInputStream;
+				xmlInputStream = progressTrackingDigestInputStream;
 			}
 
-			naxResult.setInputFileInfo(progressTrackingDigestInputStream);
+			if (name.endsWith(".gz"))
+			{
+				xmlInputStream = new BufferedInputStream(new GZIPInputStream(xmlInputStream, GZIP_BUFFER), INPUT_BUFFER);
+			}
+			else if (inputFileInfo instanceof ProgressTrackingDigestInputStream)
+			{
+				xmlInputStream = new BufferedInputStream(xmlInputStream, INPUT_BUFFER);
+			}
+
+			//Async parsing reads on its own thread already, and uncompressed mapped input is already in memory
+			if (naxConfig.isReadAhead() && naxConfig.isAsyncParsing() == false && xmlInputStream != inputStream)
+			{
+				logger.info("Reading and decompressing input on its own thread...");
+
+				readAheadBuffers = new ReadAheadBuffers(xmlInputStream);
+				xmlInputStream = new ReadAheadInputStream(readAheadBuffers);
+			}
+
+			naxResult.setInputFileInfo(inputFileInfo);
+
+			boolean passThroughPatients = naxConfig.isPassThroughPatients() && naxConfig.isDomRequired() == false;
+			CapturingInputStream capturingInputStream = null;
 
-			if (naxResult.getOutputFile() != null)
+			if (passThroughPatients && naxConfig.isAsyncParsing())
+			{
+				logger.info("Async parsing doesn't report where elements start and end in input, unchanged Patient elements will be written normally...");
+				passThroughPatients = false;
+			}
+
+			if (passThroughPatients)
+			{
+				capturingInputStream = new CapturingInputStream(xmlInputStream);
+				xmlInputStream = capturingInputStream;
+			}
+
+			if (entryOutputStream != null)
+			{
+				outputDigestStream = new CountingDigestOutputStream(new CloseShieldOutputStream(entryOutputStream), createOutputDigest());
+				outputStream = new BufferedOutputStream(outputDigestStream, GZIP_BUFFER);
+			}
+			else if (naxResult.getOutputFile() != null)
 			{
 				if (naxResult.getOutputFile().getName().endsWith(".gz"))
 				{
 					logger.info(String.format("Output will be compressed to: %s...", naxResult
 							.getOutputFilename()));
-					outputStream = new BufferedOutputStream(new GZIPOutputStream(
-							new FileOutputStream(naxResult.getOutputFile()), GZIP_BUFFER), OUTPUT_BUFFER);
+
+					outputDigestStream = new CountingDigestOutputStream(
+							new FileOutputStream(naxResult.getOutputFile()), createOutputDigest());
+
+					if (naxConfig.getGzipThreads() > 1)
+					{
+						gzipOutputStream = new ParallelGzipOutputStream(new BufferedOutputStream(
+								outputDigestStream, OUTPUT_BUFFER), naxConfig
+								.getGzipThreads(), naxConfig.getGzipBlockSize(), naxConfig.getGzipLevel());
+						uncompressedCountingStream = new CountingOutputStream(gzipOutputStream);
+					}
+					else
+					{
+						uncompressedCountingStream = new CountingOutputStream(createGZIPOutputStream(
+								outputDigestStream, naxConfig.getGzipLevel()));
+					}
+
+					outputStream = new BufferedOutputStream(uncompressedCountingStream, OUTPUT_BUFFER);
 				}
 				else
 				{
 					logger.info(String.format("Output will be uncompressed to: %s...", naxResult
 							.getOutputFilename()));
-					outputStream = new BufferedOutputStream(
-							new FileOutputStream(naxResult.getOutputFile()), OUTPUT_BUFFER);
+					outputDigestStream = new CountingDigestOutputStream(
+							new FileOutputStream(naxResult.getOutputFile()), createOutputDigest());
+					outputStream = new BufferedOutputStream(outputDigestStream, OUTPUT_BUFFER);
 				}
 
 			}
@@ -294,20 +725,106 @@ public class Nax
 				outputStream = new NullOutputStream();
 			}
 
+			OutputStream rawOutputStream = outputStream;
+
 			XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
-			XMLStreamWriter xmlWriter = xmlOutputFactory.createXMLStreamWriter(outputStream);
+			//Unchanged Patients are copied underneath the writer, so it must not flush all the way to disk every time
+			XMLStreamWriter xmlWriter = xmlOutputFactory
+					.createXMLStreamWriter(passThroughPatients ? createFlushShieldOutputStream(rawOutputStream) : rawOutputStream);
 
-			XMLInputFactory xmlInputFactory = XMLInputFactory2.newInstance();
-			XMLStreamReader xmlStreamReader = xmlInputFactory.createXMLStreamReader(xmlInputStream);
+			XMLStreamReader xmlStreamReader = null;
+
+			if (naxConfig.isAsyncParsing())
+			{
+				logger.info("Reading input on its own thread for async parsing...");
+
+				readAheadBuffers = new ReadAheadBuffers(xmlInputStream);
+				xmlStreamReader = new AsyncFeedStreamReader(new InputFactoryImpl().createAsyncForByteArray(), readAheadBuffers);
+			}
+			else
+			{
+				XMLInputFactory xmlInputFactory = XMLInputFactory2.newInstance();
+				xmlStreamReader = xmlInputFactory.createXMLStreamReader(xmlInputStream);
+			}
+
+			if (passThroughPatients)
+			{
+				if (xmlStreamReader instanceof XMLStreamReader2 && xmlWriter instanceof XMLStreamWriter2 && StandardCharsets.UTF_8
+						.name().equalsIgnoreCase(xmlStreamReader.getEncoding()))
+				{
+					logger.info("Unchanged Patient elements will be copied straight from input...");
+					naxResult.getNaxMetrics().setPassThroughPatientCount(0);
+				}
+				else
+				{
+					logger.info(String.format("Input encoding is %s, unchanged Patient elements can only be copied from UTF-8 input...", xmlStreamReader
+							.getEncoding()));
+					passThroughPatients = false;
+				}
+			}
 
 			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 			DocumentBuilder documentBuilder = factory.newDocumentBuilder();
 
 			DOMConverter domConverter = new DOMConverter();
 
+			boolean streamingRecords = (naxConfig.isStreamingRecords() || naxConfig.isPassThroughPatients()) && naxConfig
+					.isDomRequired() == false;
+
+			if (streamingRecords)
+			{
+				logger.info("Using streaming records for Patient elements...");
+				naxResult.getNaxMetrics().setStreamingRecordPatientCount(0);
+			}
+			else if (naxConfig.isStreamingRecords() || naxConfig.isPassThroughPatients())
+			{
+				logger.info("A script references DOM elements, using DOM for Patient elements...");
+			}
+
 			int lastPercent = 0;
 			NaaccrData naaccrData = new NaaccrData();
 			boolean foundNaaccrDataElement = false;
+			String inputFilename = naxResult.getInputFileInfo().getName();
+			BiConsumer<String, String> valueCounter = (key, value) -> incrementCountOrOther(key, value, naxResult
+					.getNaxMetrics().getValueCounts());
+
+			if (naxConfig.getThreads() > 1)
+			{
+				DOMConverter writerDomConverter = new DOMConverter();
+
+				naxConfig.initializeForWorkerThreads();
+				naxResult.getNaxMetrics().setPatientThreads(naxConfig.getThreads());
+
+				patientPipeline = new PatientPipeline(
+						naxConfig.getThreads(),
+						(patient, naxMetrics, workerValueCounter) -> handlePatient(patient, naaccrData, inputFilename, naxMetrics,
+																				   workerValueCounter),
+						new PatientPipeline.PatientWriter()
+						{
+							@Override
+							public void countValue(String name,
+												   String value)
+							{
+								valueCounter.accept(name, value);
+							}
+
+							@Override
+							public void writePatient(Patient patient,
+													 byte[] originalBytes)
+									throws Exception
+							{
+								Nax.this.writePatient(patient, originalBytes, xmlWriter, writerDomConverter, rawOutputStream, naxResult
+										.getNaxMetrics());
+							}
+
+							@Override
+							public void writeText(String text)
+									throws Exception
+							{
+								xmlWriter.writeCharacters(text);
+							}
+						});
+			}
 
 			xmlWriter.writeStartDocument(xmlStreamReader.getCharacterEncodingScheme(), xmlStreamReader
 					.getVersion());
@@ -323,6 +840,11 @@ public class Nax
 				{
 					case XMLStreamConstants.END_ELEMENT:
 					{
+						if (patientPipeline != null)
+						{
+							patientPipeline.drain();
+						}
+
 						xmlWriter.writeEndElement();
 
 						break;
@@ -330,7 +852,14 @@ public class Nax
 
 					case XMLStreamConstants.CHARACTERS:
 					{
-						xmlWriter.writeCharacters(xmlStreamReader.getText());
+						if (patientPipeline != null)
+						{
+							patientPipeline.submitText(xmlStreamReader.getText());
+						}
+						else
+						{
+							xmlWriter.writeCharacters(xmlStreamReader.getText());
+						}
 
 						break;
 					}
@@ -340,6 +869,20 @@ public class Nax
 						QName qName = xmlStreamReader.getName();
 						String elementName = qName.getLocalPart();
 
+						long startOffset = -1;
+
+						if (passThroughPatients)
+						{
+							startOffset = ((XMLStreamReader2) xmlStreamReader).getLocationInfo().getStartingByteOffset();
+							capturingInputStream.discardBefore(startOffset);
+						}
+
+						//Everything but Patients is written by this thread, so wait for queued Patients to be written first
+						if (patientPipeline != null && elementName.equals(NaxConstants.PATIENT_ELEMENT) == false)
+						{
+							patientPipeline.drain();
+						}
+
 						switch (elementName)
 						{
 							case NaxConstants.NAACCR_DATA_ELEMENT:
@@ -357,7 +900,7 @@ public class Nax
 								Element itemElement = domConverter.buildDocument(xmlStreamReader, documentBuilder)
 										.getDocumentElement();
 
-								if (handleStartItemElementChildOfNaaccrData(itemElement, naaccrData, naxResult))
+								if (handleStartItemElementChildOfNaaccrData(itemElement, naaccrData, naxResult, valueCounter))
 								{
 									domConverter.writeFragment(itemElement, xmlWriter);
 								}
@@ -367,325 +910,539 @@ public class Nax
 
 							case NaxConstants.PATIENT_ELEMENT:
 							{
-								Element patientElement = domConverter
-										.buildDocument(xmlStreamReader, documentBuilder)
-										.getDocumentElement();
-
 								Patient patient = new Patient();
-								patient.initialize(patientElement);
 
-								if (includeElementAfterRunningScripts(elementName, naaccrData, patient, null, null, patient
-										.getElement(), naxConfig, naxResult.getInputFileInfo().getName()))
+								if (streamingRecords)
+								{
+									patient.initialize(PatientRecord.read(xmlStreamReader, domConverter, documentBuilder));
+									naxResult.getNaxMetrics().setStreamingRecordPatientCount(naxResult.getNaxMetrics()
+											.getStreamingRecordPatientCount() + 1);
+								}
+								else
 								{
-									Item[] patientItems = patient.getItems().values().toArray(new Item[]{});
+									patient.initialize(domConverter.buildDocument(xmlStreamReader, documentBuilder)
+															   .getDocumentElement());
+								}
 
-									Map<String, Integer> elementCounts = new HashMap<>();
-									Map<String, Integer> excludedElementCounts = new HashMap<>();
-									Map<String, Integer> naaccrIdCounts = new HashMap<>();
-									Map<String, Integer> excludedNaaccrIdCounts = new HashMap<>();
+								long endOffset = -1;
 
-									for (int i = 0; i < patientItems.length; i++)
-									{
-										Item patientItem = patientItems[i];
-
-										if (includeItem(
-												naxConfig.getIncludedItems(),
-												naxConfig.getExcludedItems(),
-												patientItem.getNaaccrId(),
-												naaccrData.getNaaccrDictionary(),
-												naxConfig.getUserDictionaries(),
-												naaccrData.getDefaultUserDictionary()) &&
-												includeElementAfterRunningScripts(
-														NaxConstants.ITEM_ELEMENT,
-														naaccrData,
-														patient,
-														null,
-														patientItem,
-														patientItem.getItemElement(),
-														naxConfig,
-														naxResult.getInputFileInfo().getName()))
-										{
-											//Keep Item
-											incrementCount(NaxConstants.ITEM_ELEMENT, elementCounts);
-											incrementCount(patientItem.getNaaccrId(), naaccrIdCounts);
-											replaceItemValue(naxConfig
-																	 .getReplacementMap(), naxConfig
-																	 .getConstantValueMap(), patientItem);
-
-											handleNaaccrIdValueCounts(
-													naxResult.getInputFileInfo().getName(),
-													naaccrData,
-													patient,
-													null,
-													patientItem.getItemElement(),
-													patientItem.getNaaccrId(),
-													patientItem.getItemValue(),
-													naxResult.getNaxConfig(),
-													naxResult.getNaxMetrics().getValueCounts());
-										}
-										else
-										{
-											incrementCount(NaxConstants.ITEM_ELEMENT, excludedElementCounts);
-											incrementCount(patientItem.getNaaccrId(), excludedNaaccrIdCounts);
-
-											Node trailingWhitespaceNode = patientItem.getItemElement()
-													.getNextSibling();
-
-											if (trailingWhitespaceNode.getNodeType() == Node.TEXT_NODE)
-											{
-												trailingWhitespaceNode.setTextContent("");
-											}
-
-											patientItem.getItemElement().getParentNode().removeChild(patientItem
-																											 .getItemElement());
-										}
-									}
+								if (passThroughPatients)
+								{
+									endOffset = ((XMLStreamReader2) xmlStreamReader).getLocationInfo().getEndingByteOffset();
+								}
 
-									Element[] extraElements = patient.getExtraElements().toArray(new Element[]{});
+								if (patientPipeline != null)
+								{
+									//Captured bytes are discarded as soon as the next Patient is read, so workers need their own copy
+									patientPipeline.submitPatient(patient, passThroughPatients ? copyOriginalBytes(
+											capturingInputStream, startOffset, endOffset) : null);
+								}
+								else if (handlePatient(patient, naaccrData, inputFilename, naxResult.getNaxMetrics(), valueCounter))
+								{
+									byte[] originalBytes = null;
 
-									for (int i = 0; i < extraElements.length; i++)
+									if (passThroughPatients && patient.getPatientRecord().isModified() == false)
 									{
-										Element extraElement = extraElements[i];
-
-										includeOtherNamespaceElement(extraElement, naaccrData, naxResult);
+										originalBytes = copyOriginalBytes(capturingInputStream, startOffset, endOffset);
 									}
 
-									Tumor[] tumors = patient.getTumors().toArray(new Tumor[]{});
+									writePatient(patient, originalBytes, xmlWriter, domConverter, rawOutputStream, naxResult
+											.getNaxMetrics());
+								}
 
-									for (int i = 0; i < tumors.length; i++)
-									{
-										Tumor tumor = tumors[i];
-
-										if (includeElementAfterRunningScripts(NaxConstants.TUMOR_ELEMENT, naaccrData, patient, tumor, null, tumor
-												.getElement(), naxConfig, naxResult.getInputFileInfo().getName()))
-										{
-											incrementCount(NaxConstants.TUMOR_ELEMENT, elementCounts);
-
-											//Keep Tumor
-											Item[] tumorItems = tumor.getItems().values().toArray(new Item[]{});
-
-											for (int j = 0; j < tumorItems.length; j++)
-											{
-												Item tumorItem = tumorItems[j];
-
-												if (includeItem(naxConfig
-																		.getIncludedItems(), naxResult
-																		.getNaxConfig()
-																		.getExcludedItems(), tumorItem
-																		.getNaaccrId(), naaccrData
-																		.getNaaccrDictionary(),
-																naxConfig.getUserDictionaries(),
-																naaccrData.getDefaultUserDictionary()) &&
-														includeElementAfterRunningScripts(
-																NaxConstants.ITEM_ELEMENT, naaccrData, patient, tumor, tumorItem, tumorItem
-																		.getItemElement(),
-																naxConfig, naxResult.getInputFileInfo().getName()))
-												{
-													//Keep Item
-													incrementCount(NaxConstants.ITEM_ELEMENT, elementCounts);
-													incrementCount(tumorItem.getNaaccrId(), naaccrIdCounts);
-
-													replaceItemValue(naxConfig
-																			 .getReplacementMap(), naxConfig
-																			 .getConstantValueMap(), tumorItem);
-
-													handleNaaccrIdValueCounts(
-															naxResult.getInputFileInfo().getName(),
-															naaccrData,
-															patient,
-															tumor,
-															tumorItem.getItemElement(),
-															tumorItem.getNaaccrId(),
-															tumorItem.getItemValue(),
-															naxResult.getNaxConfig(),
-															naxResult.getNaxMetrics().getValueCounts());
-												}
-												else
-												{
-													incrementCount(NaxConstants.ITEM_ELEMENT, excludedElementCounts);
-													incrementCount(tumorItem.getNaaccrId(), excludedNaaccrIdCounts);
-
-													Node trailingWhitespaceNode = tumorItem.getItemElement()
-															.getNextSibling();
-
-													if (trailingWhitespaceNode != null && trailingWhitespaceNode
-															.getNodeType() == Node.TEXT_NODE)
-													{
-														trailingWhitespaceNode.setTextContent("");
-													}
-
-													tumor.getElement().removeChild(tumorItem.getItemElement());
-												}
-											}
-
-											Element[] tumorExtraElements = tumor.getExtraElements()
-													.toArray(new Element[]{});
-
-											for (int j = 0; j < tumorExtraElements.length; j++)
-											{
-												Element tumorExtraElement = tumorExtraElements[j];
-
-												includeOtherNamespaceElement(tumorExtraElement, naaccrData, naxResult);
-											}
-
-										}
-										else
-										{
-											incrementCount(NaxConstants.TUMOR_ELEMENT, excludedElementCounts);
-
-											Item[] tumorItems = tumor.getItems().values().toArray(new Item[]{});
-
-											for (int j = 0; j < tumorItems.length; j++)
-											{
-												Item tumorItem = tumorItems[j];
-												incrementCount(NaxConstants.ITEM_ELEMENT, excludedElementCounts);
-												incrementCount(tumorItem.getNaaccrId(), excludedNaaccrIdCounts);
-											}
-
-											Node trailingWhitespaceNode = tumor.getElement().getNextSibling();
-
-											if (trailingWhitespaceNode != null && trailingWhitespaceNode
-													.getNodeType() == Node.TEXT_NODE)
-											{
-												trailingWhitespaceNode.setTextContent("");
-											}
-
-											patient.getElement().removeChild(tumor.getElement());
-											patient.getTumors().remove(tumor);
-										}
-									}
+								if (passThroughPatients)
+								{
+									capturingInputStream.discardBefore(endOffset);
+								}
 
-									if (patient.getTumors().size() == 0 && naxConfig.isRemoveEmptyPatients())
-									{
-										incrementCount(elementName, naxResult.getNaxMetrics()
-												.getExcludedElementCounts());
-
-										//If we remove the patient due to no Tumors, we need to exclude all of the elements and naaccrIds, not just the ones excluded above
-										incrementCounts(excludedElementCounts, naxResult.getNaxMetrics()
-												.getExcludedElementCounts());
-										incrementCounts(elementCounts, naxResult.getNaxMetrics()
-												.getExcludedElementCounts());
-										incrementCounts(excludedNaaccrIdCounts, naxResult.getNaxMetrics()
-												.getExcludedNaaccrIdCounts());
-										incrementCounts(naaccrIdCounts, naxResult.getNaxMetrics()
-												.getExcludedNaaccrIdCounts());
-									}
-									else
+								break;
+							}
+
+							default:
+							{
+								if (foundNaaccrDataElement)
+								{
+									Document document = domConverter
+											.buildDocument(xmlStreamReader, documentBuilder);
+									Element extraElement = document.getDocumentElement();
+
+									if (includeOtherNamespaceElement(extraElement, naaccrData, naxResult.getInputFileInfo()
+											.getName(), naxResult.getNaxMetrics()))
 									{
-										incrementCount(elementName, naxResult.getNaxMetrics().getElementCounts());
-
-										incrementCounts(elementCounts, naxResult.getNaxMetrics()
-												.getElementCounts());
-										incrementCounts(excludedElementCounts, naxResult.getNaxMetrics()
-												.getExcludedElementCounts());
-										incrementCounts(naaccrIdCounts, naxResult.getNaxMetrics()
-												.getNaaccrIdCounts());
-										incrementCounts(excludedNaaccrIdCounts, naxResult.getNaxMetrics()
-												.getExcludedNaaccrIdCounts());
-
-										domConverter.writeFragment(patient.getElement(), xmlWriter);
-
-										String patientCountKey = String.format("%d Tumors", patient.getTumors()
-												.size());
-
-										if (patient.getTumors().size() == 1)
-										{
-											patientCountKey = "1 Tumor";
-										}
-
-										Integer patientCount = naxResult.getNaxMetrics()
-												.getPatientCountsPerTumorCount()
-												.getOrDefault(
-														patientCountKey, Integer.valueOf(0));
-										naxResult.getNaxMetrics().getPatientCountsPerTumorCount().put(
-												patientCountKey, Integer.valueOf(patientCount.intValue() + 1));
+										domConverter.writeFragment(extraElement, xmlWriter);
 									}
 								}
 								else
 								{
-									incrementCount(elementName, naxResult.getNaxMetrics()
-											.getExcludedElementCounts());
+									throw new Exception("Root NaaccrData element not found, XML does not look like NAACCR XML.");
 								}
 
+								break;
+							}
+						}
+
+						break;
+					}
+
+					default:
+					{
+						break;
+					}
+				}
+
+				if (inputFileInfo.getTotalLength() > -1)
+				{
+					double percentRead = Math.floor(((float) inputFileInfo
+							.getTotalRead() / (float) inputFileInfo.getTotalLength()) * 100f);
+
+					if ((percentRead != lastPercent) && (percentRead % 5 == 0))
+					{
+						lastPercent = (int) percentRead;
+						logger.info(String.format("Read %d%% (%d / %d bytes) of input file...",
+												  lastPercent,
+												  inputFileInfo.getTotalRead(),
+												  inputFileInfo.getTotalLength()));
+					}
+				}
+
+			}
+
+			if (patientPipeline != null)
+			{
+				for (NaxMetrics workerMetrics : patientPipeline.finish())
+				{
+					mergeNaxMetrics(workerMetrics, naxResult.getNaxMetrics());
+				}
+			}
+
+			naxResult.getNaxMetrics().setScriptProfiles(naaccrData.getScriptProfiles());
+			naxResult.getNaxMetrics().setAdaptiveScriptOrders(naaccrData.getAdaptiveScriptOrders());
+
+			if (naaccrData.getItemActionTable() != null)
+			{
+				naxResult.getNaxMetrics().setScriptResultCaches(naaccrData.getItemActionTable().getScriptResultCaches());
+			}
+
+			xmlWriter.flush();
+			xmlWriter.close();
+			outputStream.flush();
+
+			if (gzipOutputStream != null)
+			{
+				//The last blocks are only compressed when the stream is closed, so errors there have to fail the run
+				outputStream.close();
+
+				naxResult.getNaxMetrics().markGzipCompression(gzipOutputStream.getThreads(), gzipOutputStream
+						.getUncompressedBytes(), gzipOutputStream.getCompressedBytes(), gzipOutputStream.getCompressionMillis());
+			}
+
+			naxResult.setParsingSuccess(true);
+		}
+		catch (Exception exception)
+		{
+			naxResult.setParsingSuccess(false);
+			naxResult.setParsingErrorMessage(exception.getMessage());
+			naxResult.setParsingErrorMessageDetails(ExceptionUtils.getStackTrace(exception));
+		}
+		finally
+		{
+			if (patientPipeline != null)
+			{
+				patientPipeline.close();
+			}
+
+			if (readAheadBuffers != null)
+			{
+				readAheadBuffers.close();
+			}
+
+			IOUtils.closeQuietly(outputStream);
+		}
+
+		//The input's hash may still be catching up on its own thread
+		if (inputDigest != null)
+		{
+			inputDigest.finish();
+		}
+
+		if (readAheadBuffers != null)
+		{
+			naxResult.getNaxMetrics().markReadAhead(readAheadBuffers.getInputStallMillis(), readAheadBuffers
+					.getParsingStallMillis());
+		}
+
+		if (outputDigestStream != null)
+		{
+			NaxOutputFileInfo outputFileInfo = new NaxOutputFileInfo(outputFile != null ? outputFile
+					.getName() : null, outputDigestStream);
+
+			outputFileInfo.setUncompressedSize(uncompressedCountingStream != null ? uncompressedCountingStream
+					.getByteCount() : outputDigestStream.getByteCount());
+
+			naxResult.setOutputFileInfo(outputFileInfo);
+		}
+
+		naxResult.getNaxMetrics().markEndTime();
+
+		logger.info(String.format("Done reading %s.", naxResult.getInputFileInfo().getName()));
+
+		boolean hasOutput = entryOutputStream != null || (outputFile != null && outputFile.isFile());
+
+		if (hasOutput && shouldCleanupOutputFiles(getNaxConfig().getDeleteOutputFiles(), naxResult))
+		{
+			if (outputFile != null)
+			{
+				outputFile.delete();
+			}
+
+			naxResult.setOutputFileDeleted(true);
+			naxResult.setOutputFileInfo(null);
+		}
+
+		return naxResult;
+	}
+
+	/**
+	 * Create the hash for an input file, computed on its own thread unless hashing is turned off.
+	 */
+	private ContentDigest createInputDigest()
+			throws NoSuchAlgorithmException
+	{
+		return createBackgroundDigest(naxConfig.getDigestAlgorithm());
+	}
+
+	/**
+	 * Create the hash for an output file or zip entry, computed on its own thread unless hashing is turned off.
+	 */
+	private ContentDigest createOutputDigest()
+			throws NoSuchAlgorithmException
+	{
+		return createBackgroundDigest(naxConfig.getOutputDigestAlgorithm());
+	}
+
+	private static ContentDigest createBackgroundDigest(String algorithm)
+			throws NoSuchAlgorithmException
+	{
+		ContentDigest contentDigest = ContentDigest.newInstance(algorithm);
+
+		if (contentDigest.isNone() == false)
+		{
+			contentDigest = new BackgroundDigest(contentDigest);
+		}
+
+		return contentDigest;
+	}
+
+	private static GZIPOutputStream createGZIPOutputStream(OutputStream outputStream,
+														   int level)
+			throws IOException
+	{
+		return new GZIPOutputStream(outputStream, GZIP_BUFFER)
+		{
+			{
+				def.setLevel(level);
+			}
+		};
+	}
+
+	/**
+	 * Wrap an OutputStream so that flushing an XMLStreamWriter only empties the writer's own buffer into it.
+	 */
+	private static OutputStream createFlushShieldOutputStream(OutputStream outputStream)
+	{
+		return new ProxyOutputStream(outputStream)
+		{
+			@Override
+			public void flush()
+			{
+
+			}
+		};
+	}
+
+	/**
+	 * Copy the original bytes of an element from input.
+	 *
+	 * @return the bytes, or null if the offsets don't line up with the element's markup or the bytes are no longer
+	 * captured, in which case the element should be serialized normally
+	 */
+	private static byte[] copyOriginalBytes(
+			CapturingInputStream capturingInputStream,
+			long startOffset,
+			long endOffset)
+	{
+		byte[] originalBytes = capturingInputStream.copyOfRange(startOffset, endOffset);
+
+		if (originalBytes != null && (originalBytes.length < 2 || originalBytes[0] != '<' || originalBytes[originalBytes.length - 1] != '>'))
+		{
+			originalBytes = null;
+		}
+
+		return originalBytes;
+	}
+
+	/**
+	 * Write a Patient that was kept after processing, straight from its original bytes when it wasn't changed.
+	 */
+	private void writePatient(
+			Patient patient,
+			byte[] originalBytes,
+			XMLStreamWriter xmlWriter,
+			DOMConverter domConverter,
+			OutputStream outputStream,
+			NaxMetrics naxMetrics)
+			throws XMLStreamException, IOException
+	{
+		if (originalBytes != null && patient.getPatientRecord().isModified() == false)
+		{
+			//Close any open start tag and empty the writer's buffer so the copied bytes land in the right place
+			((XMLStreamWriter2) xmlWriter).writeRaw(StringUtils.EMPTY);
+			xmlWriter.flush();
+
+			outputStream.write(originalBytes);
+
+			naxMetrics.setPassThroughPatientCount(naxMetrics.getPassThroughPatientCount() + 1);
+		}
+		else if (patient.getPatientRecord() != null)
+		{
+			patient.getPatientRecord().write(xmlWriter, domConverter);
+		}
+		else
+		{
+			domConverter.writeFragment(patient.getElement(), xmlWriter);
+		}
+	}
+
+	/**
+	 * Add the counts from one NaxMetrics to another, used to combine the metrics from each worker thread. Value counts
+	 * aren't merged, workers hand them to the writer thread to count in input order.
+	 */
+	private void mergeNaxMetrics(
+			NaxMetrics source,
+			NaxMetrics target)
+	{
+		incrementCounts(source.getElementCounts(), target.getElementCounts());
+		incrementCounts(source.getExcludedElementCounts(), target.getExcludedElementCounts());
+		incrementCounts(source.getNaaccrIdCounts(), target.getNaaccrIdCounts());
+		incrementCounts(source.getExcludedNaaccrIdCounts(), target.getExcludedNaaccrIdCounts());
+		incrementCounts(source.getPatientCountsPerTumorCount(), target.getPatientCountsPerTumorCount());
+
+		for (String prefix : source.getOtherElementCounts().keySet())
+		{
+			incrementCounts(source.getOtherElementCounts().get(prefix), target.getOtherElementCounts()
+					.computeIfAbsent(prefix, key -> new HashMap<>()));
+		}
+
+		for (String prefix : source.getExcludedOtherElementCounts().keySet())
+		{
+			incrementCounts(source.getExcludedOtherElementCounts().get(prefix), target.getExcludedOtherElementCounts()
+					.computeIfAbsent(prefix, key -> new HashMap<>()));
+		}
+	}
+
+	/**
+	 * Run scripts and Item filtering against a Patient and all of its Tumors, removing anything excluded and updating metrics.
+	 * Works the same whether the Patient is backed by a DOM Element or a {@link PatientRecord}.
+	 *
+	 * @param valueCounter counts each value, in the order the Patient's Items are read
+	 * @return true if the Patient should be written to output
+	 */
+	private boolean handlePatient(
+			Patient patient,
+			NaaccrData naaccrData,
+			String inputFilename,
+			NaxMetrics naxMetrics,
+			BiConsumer<String, String> valueCounter)
+	{
+		boolean includePatient = false;
+
+		if (includeElementAfterRunningScripts(NaxConstants.PATIENT_ELEMENT, naaccrData, patient, null, null, patient
+				.getElement(), naxConfig, inputFilename))
+		{
+			Item[] patientItems = patient.getItems().values().toArray(new Item[]{});
+
+			Map<String, Integer> elementCounts = new HashMap<>();
+			Map<String, Integer> excludedElementCounts = new HashMap<>();
+			Map<String, Integer> naaccrIdCounts = new HashMap<>();
+			Map<String, Integer> excludedNaaccrIdCounts = new HashMap<>();
+
+			for (int i = 0; i < patientItems.length; i++)
+			{
+				Item patientItem = patientItems[i];
+				ItemActionTable.ItemAction itemAction = naaccrData.getItemActionTable().get(patientItem.getNaaccrId());
+
+				if (includeItemAfterRunningScripts(
+						itemAction,
+						naaccrData,
+						patient,
+						null,
+						patientItem,
+						patientItem.getItemElement(),
+						inputFilename))
+				{
+					//Keep Item
+					incrementCount(NaxConstants.ITEM_ELEMENT, elementCounts);
+					incrementCount(patientItem.getNaaccrId(), naaccrIdCounts);
+					replaceItemValue(itemAction, patientItem);
+
+					handleNaaccrIdValueCounts(
+							inputFilename,
+							naaccrData,
+							patient,
+							null,
+							patientItem.getItemElement(),
+							patientItem.getNaaccrId(),
+							patientItem.getItemValue(),
+							itemAction,
+							valueCounter);
+				}
+				else
+				{
+					incrementCount(NaxConstants.ITEM_ELEMENT, excludedElementCounts);
+					incrementCount(patientItem.getNaaccrId(), excludedNaaccrIdCounts);
+
+					patient.removeItem(patientItem);
+				}
+			}
+
+			Element[] extraElements = patient.getExtraElements().toArray(new Element[]{});
+
+			for (int i = 0; i < extraElements.length; i++)
+			{
+				Element extraElement = extraElements[i];
+
+				includeOtherNamespaceElement(extraElement, naaccrData, inputFilename, naxMetrics);
+			}
+
+			Tumor[] tumors = patient.getTumors().toArray(new Tumor[]{});
+
+			for (int i = 0; i < tumors.length; i++)
+			{
+				Tumor tumor = tumors[i];
 
-								break;
-							}
+				if (includeElementAfterRunningScripts(NaxConstants.TUMOR_ELEMENT, naaccrData, patient, tumor, null, tumor
+						.getElement(), naxConfig, inputFilename))
+				{
+					incrementCount(NaxConstants.TUMOR_ELEMENT, elementCounts);
 
-							default:
-							{
-								if (foundNaaccrDataElement)
-								{
-									Document document = domConverter
-											.buildDocument(xmlStreamReader, documentBuilder);
-									Element extraElement = document.getDocumentElement();
+					//Keep Tumor
+					Item[] tumorItems = tumor.getItems().values().toArray(new Item[]{});
 
-									if (includeOtherNamespaceElement(extraElement, naaccrData, naxResult))
-									{
-										domConverter.writeFragment(extraElement, xmlWriter);
-									}
-								}
-								else
-								{
-									throw new Exception("Root NaaccrData element not found, XML does not look like NAACCR XML.");
-								}
+					for (int j = 0; j < tumorItems.length; j++)
+					{
+						Item tumorItem = tumorItems[j];
+						ItemActionTable.ItemAction itemAction = naaccrData.getItemActionTable().get(tumorItem.getNaaccrId());
 
-								break;
-							}
+						if (includeItemAfterRunningScripts(
+								itemAction, naaccrData, patient, tumor, tumorItem, tumorItem.getItemElement(), inputFilename))
+						{
+							//Keep Item
+							incrementCount(NaxConstants.ITEM_ELEMENT, elementCounts);
+							incrementCount(tumorItem.getNaaccrId(), naaccrIdCounts);
+
+							replaceItemValue(itemAction, tumorItem);
+
+							handleNaaccrIdValueCounts(
+									inputFilename,
+									naaccrData,
+									patient,
+									tumor,
+									tumorItem.getItemElement(),
+									tumorItem.getNaaccrId(),
+									tumorItem.getItemValue(),
+									itemAction,
+									valueCounter);
 						}
+						else
+						{
+							incrementCount(NaxConstants.ITEM_ELEMENT, excludedElementCounts);
+							incrementCount(tumorItem.getNaaccrId(), excludedNaaccrIdCounts);
 
-						break;
+							tumor.removeItem(tumorItem);
+						}
 					}
 
-					default:
+					Element[] tumorExtraElements = tumor.getExtraElements()
+							.toArray(new Element[]{});
+
+					for (int j = 0; j < tumorExtraElements.length; j++)
 					{
-						break;
+						Element tumorExtraElement = tumorExtraElements[j];
+
+						includeOtherNamespaceElement(tumorExtraElement, naaccrData, inputFilename, naxMetrics);
 					}
-				}
 
-				if (progressTrackingDigestInputStream.getTotalLength() > -1)
+				}
+				else
 				{
-					double percentRead = Math.floor(((float) progressTrackingDigestInputStream
-							.getTotalRead() / (float) progressTrackingDigestInputStream.getTotalLength()) * 100f);
+					incrementCount(NaxConstants.TUMOR_ELEMENT, excludedElementCounts);
 
-					if ((percentRead != lastPercent) && (percentRead % 5 == 0))
+					Item[] tumorItems = tumor.getItems().values().toArray(new Item[]{});
+
+					for (int j = 0; j < tumorItems.length; j++)
 					{
-						lastPercent = (int) percentRead;
-						logger.info(String.format("Read %d%% (%d / %d bytes) of input file...",
-												  lastPercent,
-												  progressTrackingDigestInputStream.getTotalRead(),
-												  progressTrackingDigestInputStream.getTotalLength()));
+						Item tumorItem = tumorItems[j];
+						incrementCount(NaxConstants.ITEM_ELEMENT, excludedElementCounts);
+						incrementCount(tumorItem.getNaaccrId(), excludedNaaccrIdCounts);
 					}
+
+					patient.removeTumor(tumor);
 				}
+			}
 
+			if (patient.getTumors().size() == 0 && naxConfig.isRemoveEmptyPatients())
+			{
+				incrementCount(NaxConstants.PATIENT_ELEMENT, naxMetrics
+						.getExcludedElementCounts());
+
+				//If we remove the patient due to no Tumors, we need to exclude all of the elements and naaccrIds, not just the ones excluded above
+				incrementCounts(excludedElementCounts, naxMetrics
+						.getExcludedElementCounts());
+				incrementCounts(elementCounts, naxMetrics
+						.getExcludedElementCounts());
+				incrementCounts(excludedNaaccrIdCounts, naxMetrics
+						.getExcludedNaaccrIdCounts());
+				incrementCounts(naaccrIdCounts, naxMetrics
+						.getExcludedNaaccrIdCounts());
 			}
+			else
+			{
+				incrementCount(NaxConstants.PATIENT_ELEMENT, naxMetrics.getElementCounts());
 
-			xmlWriter.flush();
-			xmlWriter.close();
+				incrementCounts(elementCounts, naxMetrics
+						.getElementCounts());
+				incrementCounts(excludedElementCounts, naxMetrics
+						.getExcludedElementCounts());
+				incrementCounts(naaccrIdCounts, naxMetrics
+						.getNaaccrIdCounts());
+				incrementCounts(excludedNaaccrIdCounts, naxMetrics
+						.getExcludedNaaccrIdCounts());
 
-			naxResult.setParsingSuccess(true);
-		}
-		catch (Exception exception)
-		{
-			naxResult.setParsingSuccess(false);
-			naxResult.setParsingErrorMessage(exception.getMessage());
-			naxResult.setParsingErrorMessageDetails(ExceptionUtils.getStackTrace(exception));
-		}
-		finally
-		{
-			IOUtils.closeQuietly(outputStream);
-		}
+				includePatient = true;
 
-		naxResult.getNaxMetrics().markEndTime();
+				String patientCountKey = String.format("%d Tumors", patient.getTumors()
+						.size());
 
-		logger.info(String.format("Done reading %s.", naxResult.getInputFileInfo().getName()));
+				if (patient.getTumors().size() == 1)
+				{
+					patientCountKey = "1 Tumor";
+				}
 
-		if (shouldCleanupOutputFiles(getNaxConfig().getDeleteOutputFiles(), naxResult))
+				Integer patientCount = naxMetrics
+						.getPatientCountsPerTumorCount()
+						.getOrDefault(
+								patientCountKey, Integer.valueOf(0));
+				naxMetrics.getPatientCountsPerTumorCount().put(
+						patientCountKey, Integer.valueOf(patientCount.intValue() + 1));
+			}
+		}
+		else
 		{
-			outputFile.delete();
-			naxResult.setOutputFileDeleted(true);
+			incrementCount(NaxConstants.PATIENT_ELEMENT, naxMetrics
+					.getExcludedElementCounts());
 		}
 
-		return naxResult;
+		return includePatient;
 	}
 
 	private static boolean shouldCleanupOutputFiles(int deleteOutputFiles,
@@ -693,27 +1450,24 @@ public class Nax
 	{
 		boolean shouldDeleteOutput = false;
 
-		if (naxResult.getOutputFile() != null && naxResult.getOutputFile().isFile())
+		if (deleteOutputFiles == 1)
 		{
-			if (deleteOutputFiles == 1)
-			{
-				Integer patientCount = naxResult.getNaxMetrics().getElementCounts().get(NaxConstants.PATIENT_ELEMENT);
+			Integer patientCount = naxResult.getNaxMetrics().getElementCounts().get(NaxConstants.PATIENT_ELEMENT);
 
-				if (patientCount == null || patientCount.intValue() == 0)
-				{
-					logger.info(String.format("Deleting output because patient count was 0."));
-					shouldDeleteOutput = true;
-				}
-			}
-			else if (deleteOutputFiles == 2)
+			if (patientCount == null || patientCount.intValue() == 0)
 			{
-				Integer tumorCount = naxResult.getNaxMetrics().getElementCounts().get(NaxConstants.TUMOR_ELEMENT);
+				logger.info(String.format("Deleting output because patient count was 0."));
+				shouldDeleteOutput = true;
+			}
+		}
+		else if (deleteOutputFiles == 2)
+		{
+			Integer tumorCount = naxResult.getNaxMetrics().getElementCounts().get(NaxConstants.TUMOR_ELEMENT);
 
-				if (tumorCount == null || tumorCount.intValue() == 0)
-				{
-					logger.info(String.format("Deleting output because tumor count was 0."));
-					shouldDeleteOutput = true;
-				}
+			if (tumorCount == null || tumorCount.intValue() == 0)
+			{
+				logger.info(String.format("Deleting output because tumor count was 0."));
+				shouldDeleteOutput = true;
 			}
 		}
 
@@ -730,7 +1484,7 @@ public class Nax
 		}
 	}
 
-	private void handleNaaccrIdValueCounts(
+	void handleNaaccrIdValueCounts(
 			String inputFilename,
 			NaaccrData naaccrData,
 			Patient patient,
@@ -738,58 +1492,58 @@ public class Nax
 			Element xmlElement,
 			String naaccrId,
 			String itemValue,
-			NaxConfig naxConfig,
-			Map<String, Map<String, Integer>> valueCountsMap)
+			ItemActionTable.ItemAction itemAction,
+			BiConsumer<String, String> valueCounter)
 	{
-		if (naxConfig.getValueCountsSimple().contains(naaccrId))
+		if (itemAction.isSimpleValueCount())
 		{
-			incrementCountOrOther(naaccrId, itemValue, valueCountsMap);
+			valueCounter.accept(naaccrId, itemValue);
 		}
-		else if (naxConfig.getValueCountsScripts().containsKey(naaccrId))
+		else if (itemAction.getValueCountsScripts() != null)
 		{
-			Map<String, Script> compiledScriptMap = naxConfig.getValueCountsScripts().get(naaccrId);
+			Map<String, Script> compiledScriptMap = itemAction.getValueCountsScripts();
 
 			for (String name : compiledScriptMap.keySet())
 			{
 				Script compiledScript = compiledScriptMap.get(name);
+				Object returnValue = null;
 
-				compiledScript.getBinding().setVariable("inputFilename", inputFilename);
-				compiledScript.getBinding().setVariable("elementName", NaxConstants.ITEM_ELEMENT);
-				compiledScript.getBinding().setVariable("naaccrData", naaccrData);
-				compiledScript.getBinding().setVariable("patient", patient);
-				compiledScript.getBinding().setVariable("tumor", tumor);
-				compiledScript.getBinding().setVariable("element", xmlElement);
-				compiledScript.getBinding().setVariable(NaxConstants.NAACCR_ID, StringUtils
-						.defaultString(naaccrId, StringUtils.EMPTY));
-				compiledScript.getBinding().setVariable(NaxConstants.ITEM_VALUE, StringUtils
-						.defaultString(itemValue, StringUtils.EMPTY));
-
-				if (naaccrId != null)
-				{
-					compiledScript.getBinding().setVariable(naaccrId, StringUtils
-							.defaultString(itemValue, StringUtils.EMPTY));
-				}
+				//Every thread runs its own instance of the script, with its own Binding
+				Script threadScript = naxConfig.getThreadScript(compiledScript);
 
 				logger.finer(String.format("Run script on %s[naaccrId=%s] due to %s", NaxConstants.ITEM_ELEMENT, naaccrId, compiledScript
 						.getProperty("name")));
 
-				Object returnValue = compiledScript.run();
+				ScriptProfile scriptProfile = naaccrData.getScriptProfile(compiledScript);
+				long startNanos = (scriptProfile == null) ? 0 : System.nanoTime();
+
+				ScriptResultCache scriptResultCache = naaccrData.getItemActionTable().getScriptResultCache(compiledScript);
+
+				if (scriptResultCache == null)
+				{
+					returnValue = runValueCountsScript(threadScript, inputFilename, naaccrData, patient, tumor, xmlElement, naaccrId, itemValue);
+				}
+				else
+				{
+					returnValue = scriptResultCache.getResult(itemValue, () -> runValueCountsScript(threadScript, inputFilename, naaccrData,
+																								   patient, tumor, xmlElement, naaccrId, itemValue));
+				}
 
-				if (naaccrId != null)
+				if (scriptProfile != null)
 				{
-					compiledScript.getBinding().setVariable(naaccrId, StringUtils.EMPTY);
+					scriptProfile.record(System.nanoTime() - startNanos, false);
 				}
 
 				String newItemValue = Objects.toString(returnValue, itemValue);
 
-				incrementCountOrOther(name, newItemValue, valueCountsMap);
+				valueCounter.accept(name, newItemValue);
 			}
 		}
 	}
 
-	private void incrementCountOrOther(String key,
-									   String value,
-									   Map<String, Map<String, Integer>> valueCountsMap)
+	void incrementCountOrOther(String key,
+							   String value,
+							   Map<String, Map<String, Integer>> valueCountsMap)
 	{
 		Map<String, Integer> valueCountsForKey = valueCountsMap.getOrDefault(key, new TreeMap<>());
 
@@ -809,35 +1563,27 @@ public class Nax
 	private boolean handleStartItemElementChildOfNaaccrData(
 			Element itemElement,
 			NaaccrData naaccrData,
-			NaxResult naxResult)
+			NaxResult naxResult,
+			BiConsumer<String, String> valueCounter)
 	{
 		boolean includeItemElement = false;
 
 		Item item = new Item(itemElement);
+		ItemActionTable.ItemAction itemAction = naaccrData.getItemActionTable().get(item.getNaaccrId());
 
-		if (includeItem(
-				naxConfig.getIncludedItems(),
-				naxConfig.getExcludedItems(),
-				item.getNaaccrId(),
-				naaccrData.getNaaccrDictionary(),
-				naxConfig.getUserDictionaries(),
-				naaccrData.getDefaultUserDictionary()) &&
-				includeElementAfterRunningScripts(
-						NaxConstants.ITEM_ELEMENT,
-						naaccrData,
-						null,
-						null,
-						item,
-						itemElement,
-						naxConfig,
-						naxResult.getInputFileInfo().getName()))
+		if (includeItemAfterRunningScripts(
+				itemAction,
+				naaccrData,
+				null,
+				null,
+				item,
+				itemElement,
+				naxResult.getInputFileInfo().getName()))
 		{
 			incrementCount(NaxConstants.ITEM_ELEMENT, naxResult.getNaxMetrics().getElementCounts());
 			incrementCount(item.getNaaccrId(), naxResult.getNaxMetrics().getNaaccrIdCounts());
 
-			replaceItemValue(naxConfig
-									 .getReplacementMap(), naxConfig
-									 .getConstantValueMap(), item);
+			replaceItemValue(itemAction, item);
 
 
 			handleNaaccrIdValueCounts(
@@ -848,8 +1594,8 @@ public class Nax
 					itemElement,
 					item.getNaaccrId(),
 					item.getItemValue(),
-					naxResult.getNaxConfig(),
-					naxResult.getNaxMetrics().getValueCounts());
+					itemAction,
+					valueCounter);
 
 			includeItemElement = true;
 		}
@@ -890,6 +1636,19 @@ public class Nax
 		naaccrData.setNaaccrDictionary(NaaccrDictionary.createBaseDictionary(naaccrData.getNaaccrVersion()));
 		naaccrData.setDefaultUserDictionary(NaaccrDictionary
 													.createDefaultUserDictionary(naaccrData.getNaaccrVersion()));
+		naaccrData.setItemActionTable(ItemActionTable.compile(naxResult.getNaxConfig(), naaccrData
+				.getNaaccrDictionary(), naxResult.getNaxConfig().getUserDictionaries(), naaccrData.getDefaultUserDictionary()));
+
+		if (naxResult.getNaxConfig().getMetricsLogging() >= 2)
+		{
+			naaccrData.enableScriptProfiles();
+		}
+
+		if (naxResult.getNaxConfig().isAdaptiveScriptOrder())
+		{
+			naaccrData.enableAdaptiveScriptOrders((elementName, compiledScripts) -> new AdaptiveScriptOrder(elementName, compiledScripts, naxResult
+					.getNaxConfig()));
+		}
 
 		naxResult.setNaaccrVersion(naaccrData.getNaaccrVersion());
 
@@ -904,27 +1663,11 @@ public class Nax
 		}
 	}
 
-	private void replaceItemValue(
-			Map<String, Map<String, String>> replacementMap,
-			Map<String, String> constantValues,
+	void replaceItemValue(
+			ItemActionTable.ItemAction itemAction,
 			Item item)
 	{
-		String newValue = null;
-
-		if (replacementMap != null)
-		{
-			Map<String, String> valueMap = replacementMap.get(item.getNaaccrId());
-
-			if (valueMap != null)
-			{
-				newValue = valueMap.get(item.getItemValue());
-			}
-		}
-
-		if (newValue == null && constantValues != null)
-		{
-			newValue = constantValues.get(item.getNaaccrId());
-		}
+		String newValue = itemAction.getReplacementValue(item.getItemValue());
 
 		if (newValue != null)
 		{
@@ -965,38 +1708,6 @@ public class Nax
 		countMap.put(localName, Integer.valueOf(count.intValue() + 1));
 	}
 
-	private boolean includeItem(
-			List<String> includedItems,
-			List<String> excludedItems,
-			String naaccrId,
-			NaaccrDictionary baseDictionary,
-			List<NaaccrDictionary> userDictionaries,
-			NaaccrDictionary defaultUserDictionary)
-
-	{
-		boolean includeItem = true;
-		Integer naaccrNum = NaaccrDictionary
-				.lookupNaaccrNum(naaccrId, baseDictionary, userDictionaries, defaultUserDictionary);
-
-		if (naaccrNum == null)
-		{
-			logger.warning(String.format("Could not find naaccrNum for %s, User Dictionary may be missing", naaccrId));
-		}
-
-		if ((includedItems != null) && includedItems.size() > 0)
-		{
-			includeItem = (includedItems.contains(naaccrId) || ((naaccrNum != null) && includedItems.contains(naaccrNum
-																													  .toString())));
-		}
-		else if ((excludedItems != null) && (excludedItems.size() > 0))
-		{
-			includeItem = (excludedItems.contains(naaccrId) == false && ((naaccrNum != null) && excludedItems
-					.contains(naaccrNum.toString()) == false));
-		}
-
-		return includeItem;
-	}
-
 	private String getPrefixedElementName(Element element)
 	{
 		String elementName = element.getLocalName();
@@ -1012,19 +1723,18 @@ public class Nax
 	private boolean includeOtherNamespaceElement(
 			Element element,
 			NaaccrData naaccrData,
-			NaxResult naxResult)
+			String inputFilename,
+			NaxMetrics naxMetrics)
 	{
 		boolean include = false;
 
 		String elementName = getPrefixedElementName(element);
 
-		if (naxResult.getNaxConfig()
-				.isIncludeNamespaces() &&
+		if (naxConfig.isIncludeNamespaces() &&
 				includeElementAfterRunningScripts(
-						elementName, naaccrData, null, null, null, element, naxResult.getNaxConfig(), naxResult
-								.getInputFileInfo().getName()))
+						elementName, naaccrData, null, null, null, element, naxConfig, inputFilename))
 		{
-			incrementOtherCount(element.getPrefix(), element.getLocalName(), naxResult.getNaxMetrics()
+			incrementOtherCount(element.getPrefix(), element.getLocalName(), naxMetrics
 					.getOtherElementCounts());
 
 			NodeList nodeList = element.getChildNodes();
@@ -1040,15 +1750,14 @@ public class Nax
 					if (includeOtherNamespaceElement(
 							childElement,
 							naaccrData,
-							naxResult))
+							inputFilename,
+							naxMetrics))
 					{
-						incrementOtherCount(childElement.getPrefix(), childElement.getLocalName(), naxResult
-								.getNaxMetrics().getOtherElementCounts());
+						incrementOtherCount(childElement.getPrefix(), childElement.getLocalName(), naxMetrics.getOtherElementCounts());
 					}
 					else
 					{
-						incrementOtherCount(childElement.getPrefix(), childElement.getLocalName(), naxResult
-								.getNaxMetrics().getExcludedOtherElementCounts());
+						incrementOtherCount(childElement.getPrefix(), childElement.getLocalName(), naxMetrics.getExcludedOtherElementCounts());
 					}
 				}
 			}
@@ -1057,7 +1766,7 @@ public class Nax
 		}
 		else
 		{
-			incrementOtherCount(element.getPrefix(), element.getLocalName(), naxResult.getNaxMetrics()
+			incrementOtherCount(element.getPrefix(), element.getLocalName(), naxMetrics
 					.getExcludedOtherElementCounts());
 
 			logger.fine(String.format("Remove %s", elementName));
@@ -1090,7 +1799,14 @@ public class Nax
 
 		if (elementName.equals(NaxConstants.PATIENT_ELEMENT))
 		{
-			includeElement = includeElementAfterRunningCompiledScripts(
+			includeElement = includeElementAfterFilterExpressions(
+					elementName,
+					patient,
+					tumor,
+					item,
+					naxConfig.getPatientFilterExpressions());
+
+			includeElement = includeElement && includeElementAfterRunningCompiledScripts(
 					elementName,
 					naaccrData,
 					patient,
@@ -1102,7 +1818,14 @@ public class Nax
 		}
 		else if (elementName.equals(NaxConstants.TUMOR_ELEMENT))
 		{
-			includeElement = includeElementAfterRunningCompiledScripts(
+			includeElement = includeElementAfterFilterExpressions(
+					elementName,
+					patient,
+					tumor,
+					item,
+					naxConfig.getTumorFilterExpressions());
+
+			includeElement = includeElement && includeElementAfterRunningCompiledScripts(
 					elementName,
 					naaccrData,
 					patient,
@@ -1112,34 +1835,98 @@ public class Nax
 					naxConfig.getCompiledTumorScripts(),
 					inputFilename);
 		}
-		else if (elementName.equals(NaxConstants.ITEM_ELEMENT) && naxConfig.getCompiledItemScripts()
-				.containsKey(item.getNaaccrId()))
+
+		includeElement = includeElement && includeElementAfterRunningCompiledScripts(
+				elementName,
+				naaccrData,
+				patient,
+				tumor,
+				item,
+				xmlElement,
+				naxConfig.getCompiledScripts(),
+				inputFilename);
+
+		return includeElement;
+	}
+
+	/**
+	 * Item version of {@link #includeElementAfterRunningScripts}, using the compiled rules for the Item's naaccrId.
+	 */
+	private boolean includeItemAfterRunningScripts(
+			ItemActionTable.ItemAction itemAction,
+			NaaccrData naaccrData,
+			Patient patient,
+			Tumor tumor,
+			Item item,
+			Element xmlElement,
+			String inputFilename)
+	{
+		boolean includeElement = itemAction.isIncluded();
+
+		if (includeElement && itemAction.getItemFilterExpressions() != null)
+		{
+			includeElement = includeElementAfterFilterExpressions(
+					NaxConstants.ITEM_ELEMENT,
+					patient,
+					tumor,
+					item,
+					itemAction.getItemFilterExpressions());
+		}
+
+		if (includeElement && itemAction.getItemScripts() != null)
 		{
 			includeElement = includeElementAfterRunningCompiledScripts(
-					elementName,
+					NaxConstants.ITEM_ELEMENT,
 					naaccrData,
 					patient,
 					tumor,
 					item,
 					xmlElement,
-					naxConfig.getCompiledItemScripts().get(item.getNaaccrId()),
+					itemAction.getItemScripts(),
 					inputFilename);
 		}
 
 		includeElement = includeElement && includeElementAfterRunningCompiledScripts(
-				elementName,
+				NaxConstants.ITEM_ELEMENT,
 				naaccrData,
 				patient,
 				tumor,
 				item,
 				xmlElement,
-				naxConfig.getCompiledScripts(),
+				itemAction.getScripts(),
 				inputFilename);
 
 		return includeElement;
 	}
 
-	private boolean includeElementAfterRunningCompiledScripts(
+	/**
+	 * Filter expressions are compiled to Java, so they run before any scripts and skip them when an element is filtered out
+	 */
+	private boolean includeElementAfterFilterExpressions(
+			String elementName,
+			Patient patient,
+			Tumor tumor,
+			Item item,
+			List<FilterExpression> filterExpressions)
+	{
+		boolean includeElement = true;
+
+		for (FilterExpression filterExpression : filterExpressions)
+		{
+			if (filterExpression.matches(patient, tumor, item) == false)
+			{
+				logger.fine(String.format("Filter out %s[naaccrId=%s] due to %s", elementName, (item == null) ? StringUtils.EMPTY : item
+						.getNaaccrId(), filterExpression));
+
+				includeElement = false;
+				break;
+			}
+		}
+
+		return includeElement;
+	}
+
+	boolean includeElementAfterRunningCompiledScripts(
 			String elementName,
 			NaaccrData naaccrData,
 			Patient patient,
@@ -1162,34 +1949,37 @@ public class Nax
 
 		if ((compiledScripts != null) && (compiledScripts.size() > 0))
 		{
-			for (Script compiledScript : compiledScripts)
+			AdaptiveScriptOrder adaptiveScriptOrder = naaccrData.getAdaptiveScriptOrder(elementName, compiledScripts);
+
+			for (Script compiledScript : (adaptiveScriptOrder == null) ? compiledScripts : adaptiveScriptOrder.getScripts())
 			{
-				compiledScript.getBinding().setVariable("inputFilename", inputFilename);
-				compiledScript.getBinding().setVariable("elementName", elementName);
-				compiledScript.getBinding().setVariable("naaccrData", naaccrData);
-				compiledScript.getBinding().setVariable("patient", patient);
-				compiledScript.getBinding().setVariable("tumor", tumor);
-				compiledScript.getBinding().setVariable("item", item);
-				compiledScript.getBinding().setVariable("element", xmlElement);
-				compiledScript.getBinding().setVariable(NaxConstants.NAACCR_ID, StringUtils
-						.defaultString(naaccrId, StringUtils.EMPTY));
-				compiledScript.getBinding().setVariable(NaxConstants.ITEM_VALUE, StringUtils
-						.defaultString(itemValue, StringUtils.EMPTY));
+				Object returnValue = null;
 
-				if (naaccrId != null)
-				{
-					compiledScript.getBinding().setVariable(naaccrId, StringUtils
-							.defaultString(itemValue, StringUtils.EMPTY));
-				}
+				//Every thread runs its own instance of the script, with its own Binding
+				Script threadScript = naxConfig.getThreadScript(compiledScript);
 
 				logger.finer(String.format("Run script on %s[naaccrId=%s] due to %s", elementName, naaccrId, compiledScript
 						.getProperty("name")));
 
-				Object returnValue = compiledScript.run();
+				ScriptProfile scriptProfile = naaccrData.getScriptProfile(compiledScript);
+				long startNanos = ((scriptProfile == null) && (adaptiveScriptOrder == null)) ? 0 : System.nanoTime();
 
-				if (naaccrId != null)
+				ScriptResultCache scriptResultCache = (item == null) ? null : naaccrData.getItemActionTable()
+						.getScriptResultCache(compiledScript);
+
+				if (scriptResultCache == null)
+				{
+					returnValue = runScript(threadScript, inputFilename, elementName, naaccrData, patient, tumor, item, xmlElement, naaccrId,
+											itemValue);
+				}
+				else
 				{
-					compiledScript.getBinding().removeVariable(naaccrId);
+					String cachedNaaccrId = naaccrId;
+					String cachedItemValue = itemValue;
+
+					returnValue = scriptResultCache.getResult(cachedItemValue, () -> runScript(threadScript, inputFilename, elementName,
+																							   naaccrData, patient, tumor, item, xmlElement,
+																							   cachedNaaccrId, cachedItemValue));
 				}
 
 				if (returnValue == null)
@@ -1199,17 +1989,147 @@ public class Nax
 				else
 				{
 					includeElement = (Boolean) returnValue;
+				}
+
+				if ((scriptProfile != null) || (adaptiveScriptOrder != null))
+				{
+					long nanos = System.nanoTime() - startNanos;
 
-					if (includeElement == false)
+					if (scriptProfile != null)
 					{
-						logger.fine(String.format("Filter out %s[naaccrId=%s] due to %s", elementName, naaccrId, compiledScript
-								.getProperty("name")));
-						break;
+						scriptProfile.record(nanos, includeElement == false);
+					}
+
+					if (adaptiveScriptOrder != null)
+					{
+						adaptiveScriptOrder.record(compiledScript, nanos, includeElement == false);
 					}
 				}
+
+				if (includeElement == false)
+				{
+					logger.fine(String.format("Filter out %s[naaccrId=%s] due to %s", elementName, naaccrId, compiledScript
+							.getProperty("name")));
+					break;
+				}
+			}
+
+			if (adaptiveScriptOrder != null)
+			{
+				adaptiveScriptOrder.finishElement();
 			}
 		}
 
 		return includeElement;
 	}
+
+	/**
+	 * @return the value count for an Item, or null to count the Item's own value
+	 */
+	private Object runValueCountsScript(
+			Script threadScript,
+			String inputFilename,
+			NaaccrData naaccrData,
+			Patient patient,
+			Tumor tumor,
+			Element xmlElement,
+			String naaccrId,
+			String itemValue)
+	{
+		Object returnValue = null;
+
+		if (threadScript instanceof NaxScript)
+		{
+			//Static scripts read their variables from typed fields instead of the Binding
+			((NaxScript) threadScript).setContext(inputFilename, NaxConstants.ITEM_ELEMENT, naaccrData, patient, tumor, null, xmlElement,
+												  StringUtils.defaultString(naaccrId, StringUtils.EMPTY),
+												  StringUtils.defaultString(itemValue, StringUtils.EMPTY));
+
+			returnValue = threadScript.run();
+		}
+		else
+		{
+			threadScript.getBinding().setVariable("inputFilename", inputFilename);
+			threadScript.getBinding().setVariable("elementName", NaxConstants.ITEM_ELEMENT);
+			threadScript.getBinding().setVariable("naaccrData", naaccrData);
+			threadScript.getBinding().setVariable("patient", patient);
+			threadScript.getBinding().setVariable("tumor", tumor);
+			threadScript.getBinding().setVariable("element", xmlElement);
+			threadScript.getBinding().setVariable(NaxConstants.NAACCR_ID, StringUtils
+					.defaultString(naaccrId, StringUtils.EMPTY));
+			threadScript.getBinding().setVariable(NaxConstants.ITEM_VALUE, StringUtils
+					.defaultString(itemValue, StringUtils.EMPTY));
+
+			if (naaccrId != null)
+			{
+				threadScript.getBinding().setVariable(naaccrId, StringUtils
+						.defaultString(itemValue, StringUtils.EMPTY));
+			}
+
+			returnValue = threadScript.run();
+
+			if (naaccrId != null)
+			{
+				threadScript.getBinding().setVariable(naaccrId, StringUtils.EMPTY);
+			}
+		}
+
+		return returnValue;
+	}
+
+	/**
+	 * @return false to filter out the element, true or null to keep it
+	 */
+	private Object runScript(
+			Script threadScript,
+			String inputFilename,
+			String elementName,
+			NaaccrData naaccrData,
+			Patient patient,
+			Tumor tumor,
+			Item item,
+			Element xmlElement,
+			String naaccrId,
+			String itemValue)
+	{
+		Object returnValue = null;
+
+		if (threadScript instanceof NaxScript)
+		{
+			//Static scripts read their variables from typed fields instead of the Binding
+			((NaxScript) threadScript).setContext(inputFilename, elementName, naaccrData, patient, tumor, item, xmlElement,
+												  naaccrId, itemValue);
+
+			returnValue = threadScript.run();
+		}
+		else
+		{
+			threadScript.getBinding().setVariable("inputFilename", inputFilename);
+			threadScript.getBinding().setVariable("elementName", elementName);
+			threadScript.getBinding().setVariable("naaccrData", naaccrData);
+			threadScript.getBinding().setVariable("patient", patient);
+			threadScript.getBinding().setVariable("tumor", tumor);
+			threadScript.getBinding().setVariable("item", item);
+			threadScript.getBinding().setVariable("element", xmlElement);
+			threadScript.getBinding().setVariable(NaxConstants.NAACCR_ID, StringUtils
+					.defaultString(naaccrId, StringUtils.EMPTY));
+			threadScript.getBinding().setVariable(NaxConstants.ITEM_VALUE, StringUtils
+					.defaultString(itemValue, StringUtils.EMPTY));
+
+			if (naaccrId != null)
+			{
+				threadScript.getBinding().setVariable(naaccrId, StringUtils
+						.defaultString(itemValue, StringUtils.EMPTY));
+			}
+
+			returnValue = threadScript.run();
+
+			if (naaccrId != null)
+			{
+				threadScript.getBinding().removeVariable(naaccrId);
+			}
+		}
+
+		return returnValue;
+	}
 }
@@ -44,6 +44,7 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DateFormatUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.mail.Email;
 import org.apache.commons.mail.EmailException;
 import org.apache.commons.mail.SimpleEmail;
@@ -54,6 +55,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -75,6 +77,8 @@ public class NaxCommandLineApp
 	private String outputFilePrefix = StringUtils.EMPTY;
 	private File outputFileOrDirectory = null;
 	private File inputFile = null;
+	//Script options in the order they were given, see compileScriptOptions
+	private final List<Pair<String, String[]>> scriptOptions = new ArrayList<>();
 
 	public NaxCommandLineApp()
 	{
@@ -135,6 +139,8 @@ public class NaxCommandLineApp
 		NaxCommandLineApp naxCommandLineApp = new NaxCommandLineApp();
 
 		CliParser cliParser = new CliParser("nax [OPTIONS] <Input File (.xml, .gz, or .zip)>")
+				.withOption(OPT_SCRIPTCACHEDIRECTORY, "scriptCacheDirectory", true,
+							"Directory to keep compiled groovy scripts in, so scripts are only compiled the first time nax sees them.")
 				.withOption(OPT_FILTERPATIENT,
 							"filterPatient",
 							true,
@@ -143,6 +149,12 @@ public class NaxCommandLineApp
 							"File or inline groovy script called on every Tumor element that evaluates to false to exclude the tumor from output.")
 				.withOption(OPT_FILTERITEM, "filterItem", true,
 							"File or inline groovy script called on Items specified by a naaccrId using the format: <naaccrId>=<inline script or file> If the script evaluates to false, the item will be excluded from output.")
+				.withOption(OPT_FILTERPATIENTEXPRESSION, "filterPatientExpression", true,
+							"Filter expression called on every Patient element that evaluates to false to exclude the patient from output, for example: dateOfDiagnosis >= '2015' and sex in ['1', '2']. " + "Expressions compare naaccrId values as Strings with ==, !=, <, <=, >, >=, in [...], .startsWith(...), and between ... and ..., combined with and, or, not, and parentheses. " + "They run much faster than the same groovy script, anything else is run as a groovy script instead. This parameter can be specified more than once.")
+				.withOption(OPT_FILTERTUMOREXPRESSION, "filterTumorExpression", true,
+							"Filter expression called on every Tumor element that evaluates to false to exclude the tumor from output, naaccrIds are looked up on the Tumor and then its Patient. This parameter can be specified more than once.")
+				.withOption(OPT_FILTERITEMEXPRESSION, "filterItemExpression", true,
+							"Filter expression called on Items specified by a naaccrId using the format: <naaccrId>=<expression> If the expression evaluates to false, the item will be excluded from output. This parameter can be specified more than once.")
 				.withOption(OPT_SCRIPT, "script", true,
 							"File or inline groovy script to filter out elements or make changes to any Patients/Tumors/Item. " + "This script will be called for all Patient, Tumor, Item, and other namespace elements, if the script returns false then the element is excluded from output. " + "If the script returns true or does not have a return value, the element will be included in output. This parameter can be specified more than once.")
 				.withOption(OPT_OUTPUTFILE, "outputfile", true, "Output file or directory")
@@ -160,6 +172,8 @@ public class NaxCommandLineApp
 							"When the output file is a directory, prefix to append to output file names, empty by default")
 				.withOption(OPT_REPLACE, "replace", true,
 							"CSV file with replacement values for Items, must have a header with: naaccrId, itemValue, newItemValue")
+				.withOption(OPT_LOOKUPTABLE, "lookupTable", true,
+							"CSV file with a header row to load as a lookup table for scripts, using the format: <name>=<CSV file>. Scripts get the second column of the row with a key in the first column with lookup('<name>', key), or another column with lookup('<name>', key, '<column>'). This parameter can be specified more than once.")
 				.withOption(OPT_CONSTANT, "constant", true,
 							"Constant value to set for an Item, using the format: <naaccrId>=<value>. Any values from a CSV replacement file (rpl) take precedence over constant values. This parameter can be specified more than once.")
 				.withOption(OPT_METRICS, "metrics", true,
@@ -172,6 +186,36 @@ public class NaxCommandLineApp
 							"When a Patient has no Tumor records, boolean value to remove the empty Patient record, defaults to 'false'")
 				.withOption(OPT_VALUECOUNTS, "valueCounts", true,
 							"A comma-separated list of naaccrIds to get a count of all values in a file. For continuous values that require data binning before counts, specify a single naaccrId and a Groovy script to 'bin' the data: <naaccrId>=<Groovy script>. (For example, to get counts of all diagnosis years: -vc dateOfDiagnosis=\"left(dateOfDiagnosis, 4)\". This parameter can be specified more than once.")
+				.withOption(OPT_STREAMINGRECORDS, "streamingRecords", true,
+							"Boolean value to process Patient elements as compact streaming records instead of DOM, defaults to 'false'. " + "DOM is still used when a script references the element, patient.element, tumor.element, or item.itemElement variables.")
+				.withOption(OPT_PASSTHROUGHPATIENTS, "passThroughPatients", true,
+							"Boolean value to copy Patient elements that are not changed by any filter, replacement, or script straight from the input file, keeping their original formatting, defaults to 'false'. " + "Implies streamingRecords.")
+				.withOption(OPT_THREADS, "threads", true,
+							"Number of worker threads used to process Patient elements, defaults to 1. Output is always written in the same order as the input file.")
+				.withOption(OPT_FILETHREADS, "fileThreads", true,
+							"Number of files in an input directory, or entries in an input zip file, to process at the same time, defaults to 1. The largest files are processed first, results are always listed in file path or zip entry order.")
+				.withOption(OPT_GZIPTHREADS, "gzipThreads", true,
+							"Number of threads compressing a .gz output file, defaults to 1. More than 1 compresses blocks of output at the same time, which gzip and other tools read as a normal .gz file.")
+				.withOption(OPT_GZIPLEVEL, "gzipLevel", true,
+							"Compression level of a .gz output file, from 0 (none) to 9 (best), defaults to -1 for the standard gzip level.")
+				.withOption(OPT_GZIPBLOCKSIZE, "gzipBlockSize", true,
+							"Number of bytes compressed at a time by each gzip thread when gzipThreads is more than 1, defaults to 1048576.")
+				.withOption(OPT_STATICSCRIPTS, "staticScripts", true,
+							"Boolean value to compile scripts with @CompileStatic against typed variables, defaults to 'false'. " + "Static scripts run faster, but can only use the inputFilename, elementName, naaccrData, patient, tumor, item, element, naaccrId, and itemValue variables, not Item values by naaccrId.")
+				.withOption(OPT_PURESCRIPTCACHESIZE, "pureScriptCacheSize", true,
+							"Number of Item values to cache results for in each value count and Item script that only reads the value of its Item, defaults to 0 (no caching). " + "Scripts that read anything else, like patient or tumor, always run.")
+				.withOption(OPT_ADAPTIVESCRIPTORDER, "adaptiveScriptOrder", true,
+							"Boolean value to run cheap filter scripts that filter out the most elements first, based on measurements while nax runs, defaults to 'false'. " + "Only scripts that just return a comparison are moved, and the order used is listed in the results.")
+				.withOption(OPT_MAPPEDINPUT, "mappedInput", true,
+							"Boolean value to read input files through memory mapped files instead of buffered streams, defaults to 'false'. " + "Zip files are always read as streams.")
+				.withOption(OPT_DIGESTALGORITHM, "digestAlgorithm", true,
+							"Algorithm to hash input files with while they're read, defaults to 'MD5'. " + "Use 'none' to skip hashing, 'CRC32C' for a fast checksum, or a Java MessageDigest algorithm like 'SHA-256'.")
+				.withOption(OPT_OUTPUTDIGESTALGORITHM, "outputDigestAlgorithm", true,
+							"Algorithm to hash output files and zip entries with while they're written, defaults to 'none'. " + "Takes the same values as digestAlgorithm (dig).")
+				.withOption(OPT_ASYNCPARSING, "asyncParsing", true,
+							"Boolean value to read and decompress input on a separate thread that feeds a non-blocking parser, defaults to 'false'. " + "Unchanged Patient elements can't be passed through (pt) with async parsing, and input must be UTF-8, ISO-8859-1, or US-ASCII.")
+				.withOption(OPT_READAHEAD, "readAhead", true,
+							"Boolean value to read and decompress input on a separate thread while it's parsed, defaults to 'false'. " + "Reports the time parsing waited on input and input waited on parsing in the metrics.")
 				.withOption(OPT_EMAILSUBJECT, "emailSubject", true, "Email Subject line")
 				.withOption(OPT_EMAILSMTPHOST,
 							"emailSmtpHost",
@@ -200,6 +244,8 @@ public class NaxCommandLineApp
 
 		if (cliParser.parse(args))
 		{
+			naxCommandLineApp.compileScriptOptions(cliParser);
+
 			List<NaxResult> naxResultList = new ArrayList<>();
 			Nax nax = Nax.newInstance(naxCommandLineApp.getNaxConfig());
 
@@ -214,7 +260,13 @@ public class NaxCommandLineApp
 				}
 				else
 				{
-					for (File currentInputFile : inputFiles)
+					List<File> sortedInputFiles = new ArrayList<>(inputFiles);
+					List<File> outputFiles = new ArrayList<>();
+
+					//Results come back in this order, so keep it stable from run to run
+					sortedInputFiles.sort(Comparator.comparing(File::getPath));
+
+					for (File currentInputFile : sortedInputFiles)
 					{
 						String outputFilename = String.format("%s%s%s.%s", naxCommandLineApp.getOutputFilePrefix(),
 															  FilenameUtils.getBaseName(currentInputFile.getName()),
@@ -230,8 +282,10 @@ public class NaxCommandLineApp
 															   .getOutputFileOrDirectory(), outputFilename);
 						}
 
-						naxResultList.addAll(nax.process(currentInputFile, outputFileInDir));
+						outputFiles.add(outputFileInDir);
 					}
+
+					naxResultList.addAll(nax.process(sortedInputFiles, outputFiles));
 				}
 			}
 			else
@@ -430,45 +484,16 @@ public class NaxCommandLineApp
 				}
 
 				case OPT_VALUECOUNTS:
+				case OPT_SCRIPT:
+				case OPT_FILTERTUMOR:
+				case OPT_FILTERPATIENT:
+				case OPT_FILTERPATIENTEXPRESSION:
+				case OPT_FILTERTUMOREXPRESSION:
+				case OPT_FILTERITEMEXPRESSION:
+				case OPT_FILTERITEM:
 				{
-					for (String valueCountsString : parsedValues)
-					{
-						int indexOfFirstEquals = valueCountsString.indexOf('=');
-
-						if (indexOfFirstEquals > -1)
-						{
-							String[] naaccrIdAndName = StringUtils.split(
-									valueCountsString.substring(0, indexOfFirstEquals), '/');
-							String naaccrId = naaccrIdAndName[0];
-							String name = naaccrIdAndName[0];
-
-							if (naaccrIdAndName.length > 1)
-							{
-								name = naaccrIdAndName[1];
-							}
-
-							String scriptString = valueCountsString.substring(indexOfFirstEquals + 1);
-							File potentialFile = new File(scriptString);
-
-							if (potentialFile.exists())
-							{
-								getNaxConfig().withValueCountsScriptFile(naaccrId, name, potentialFile);
-							}
-							else
-							{
-								getNaxConfig().withValueCountsScriptString(naaccrId, name, scriptString);
-							}
-						}
-						else
-						{
-							String[] valueCountArray = StringUtils.split(valueCountsString, ',');
-
-							for (int j = 0; j < valueCountArray.length; j++)
-							{
-								getNaxConfig().withValueCounts(valueCountArray[j]);
-							}
-						}
-					}
+					//Compiled once every option is parsed, see compileScriptOptions
+					this.scriptOptions.add(Pair.of(opt, parsedValues));
 
 					break;
 				}
@@ -492,6 +517,19 @@ public class NaxCommandLineApp
 					break;
 				}
 
+				case OPT_LOOKUPTABLE:
+				{
+					for (String parsedValue : parsedValues)
+					{
+						String name = StringUtils.substringBefore(parsedValue, "=");
+						File csvFile = CliUtils.convertParsedValue(File.class, StringUtils.substringAfter(parsedValue, "="));
+
+						getNaxConfig().withLookupTable(name, csvFile);
+					}
+
+					break;
+				}
+
 				case OPT_REPLACE:
 				{
 					File replacementValuesFile = CliUtils.convertParsedValue(File.class, parsedValues[0]);
@@ -512,85 +550,105 @@ public class NaxCommandLineApp
 					break;
 				}
 
-				case OPT_SCRIPT:
-				case OPT_FILTERTUMOR:
-				case OPT_FILTERPATIENT:
+				case OPT_REMOVEEMPTYPATIENTS:
 				{
-					for (String parsedValue : parsedValues)
-					{
-						File potentialFile = CliUtils.convertParsedValue(File.class, parsedValue);
+					getNaxConfig().withRemoveEmptyPatients(Boolean.parseBoolean(parsedValues[0]));
+					break;
+				}
 
-						if (potentialFile.exists())
-						{
-							switch (opt)
-							{
-								case OPT_SCRIPT:
-								{
-									getNaxConfig().withScriptFile(potentialFile);
-									break;
-								}
-								case OPT_FILTERTUMOR:
-								{
-									getNaxConfig().withTumorScriptFile(potentialFile);
-									break;
-								}
-								case OPT_FILTERPATIENT:
-								{
-									getNaxConfig().withPatientScriptFile(potentialFile);
-									break;
-								}
-							}
-						}
-						else
-						{
-							switch (opt)
-							{
-								case OPT_SCRIPT:
-								{
-									getNaxConfig().withScriptString(parsedValue);
-									break;
-								}
-								case OPT_FILTERTUMOR:
-								{
-									getNaxConfig().withTumorScriptString(parsedValue);
-									break;
-								}
-								case OPT_FILTERPATIENT:
-								{
-									getNaxConfig().withPatientScriptString(parsedValue);
-									break;
-								}
-							}
-						}
-					}
+				case OPT_STREAMINGRECORDS:
+				{
+					getNaxConfig().withStreamingRecords(Boolean.parseBoolean(parsedValues[0]));
+					break;
+				}
 
+				case OPT_PASSTHROUGHPATIENTS:
+				{
+					getNaxConfig().withPassThroughPatients(Boolean.parseBoolean(parsedValues[0]));
 					break;
 				}
 
-				case OPT_REMOVEEMPTYPATIENTS:
+				case OPT_THREADS:
 				{
-					getNaxConfig().withRemoveEmptyPatients(Boolean.parseBoolean(parsedValues[0]));
+					getNaxConfig().withThreads(Integer.parseInt(parsedValues[0]));
 					break;
 				}
 
-				case OPT_FILTERITEM:
+				case OPT_FILETHREADS:
 				{
-					for (String parsedValue : parsedValues)
-					{
-						String[] itemScriptArgumentArray = StringUtils.split(parsedValue, '=');
-						String naaccrId = itemScriptArgumentArray[0];
-						File potentialFile = new File(itemScriptArgumentArray[1]);
+					getNaxConfig().withFileThreads(Integer.parseInt(parsedValues[0]));
+					break;
+				}
 
-						if (potentialFile.exists())
-						{
-							getNaxConfig().withItemScriptFile(naaccrId, potentialFile);
-						}
-						else
-						{
-							getNaxConfig().withItemScriptString(naaccrId, itemScriptArgumentArray[1]);
-						}
-					}
+				case OPT_GZIPTHREADS:
+				{
+					getNaxConfig().withGzipThreads(Integer.parseInt(parsedValues[0]));
+					break;
+				}
+
+				case OPT_GZIPLEVEL:
+				{
+					getNaxConfig().withGzipLevel(Integer.parseInt(parsedValues[0]));
+					break;
+				}
 
+				case OPT_GZIPBLOCKSIZE:
+				{
+					getNaxConfig().withGzipBlockSize(Integer.parseInt(parsedValues[0]));
+					break;
+				}
+
+				case OPT_SCRIPTCACHEDIRECTORY:
+				{
+					getNaxConfig().withScriptCacheDirectory(CliUtils.convertParsedValue(File.class, parsedValues[0]));
+					break;
+				}
+
+				case OPT_ADAPTIVESCRIPTORDER:
+				{
+					getNaxConfig().withAdaptiveScriptOrder(Boolean.parseBoolean(parsedValues[0]));
+					break;
+				}
+
+				case OPT_DIGESTALGORITHM:
+				{
+					getNaxConfig().withDigestAlgorithm(parsedValues[0]);
+					break;
+				}
+
+				case OPT_OUTPUTDIGESTALGORITHM:
+				{
+					getNaxConfig().withOutputDigestAlgorithm(parsedValues[0]);
+					break;
+				}
+
+				case OPT_ASYNCPARSING:
+				{
+					getNaxConfig().withAsyncParsing(Boolean.parseBoolean(parsedValues[0]));
+					break;
+				}
+
+				case OPT_READAHEAD:
+				{
+					getNaxConfig().withReadAhead(Boolean.parseBoolean(parsedValues[0]));
+					break;
+				}
+
+				case OPT_MAPPEDINPUT:
+				{
+					getNaxConfig().withMappedInput(Boolean.parseBoolean(parsedValues[0]));
+					break;
+				}
+
+				case OPT_PURESCRIPTCACHESIZE:
+				{
+					getNaxConfig().withPureScriptCacheSize(Integer.parseInt(parsedValues[0]));
+					break;
+				}
+
+				case OPT_STATICSCRIPTS:
+				{
+					getNaxConfig().withStaticScripts(Boolean.parseBoolean(parsedValues[0]));
 					break;
 				}
 
@@ -622,6 +680,193 @@ public class NaxCommandLineApp
 
 	}
 
+	/**
+	 * Add the scripts, filter expressions, and value counts from the command line to the config. These are applied after
+	 * every other option, so options that change how scripts are compiled, like the script cache directory and static
+	 * scripts, apply to every script no matter where they are on the command line.
+	 */
+	public void compileScriptOptions(CliParser cliParser)
+			throws ParseException
+	{
+		for (Pair<String, String[]> scriptOption : this.scriptOptions)
+		{
+			try
+			{
+				handleScriptOption(scriptOption.getKey(), scriptOption.getValue());
+			}
+			catch (Exception exception)
+			{
+				throw new ParseException(String.format("Could not parse option %s: %s ",
+													   cliParser.getOption(scriptOption.getKey()).getLongOpt(),
+													   exception.getMessage()));
+			}
+		}
+
+		this.scriptOptions.clear();
+	}
+
+	private void handleScriptOption(String opt,
+									String[] parsedValues)
+			throws Exception
+	{
+		switch (opt)
+		{
+			case OPT_VALUECOUNTS:
+			{
+				for (String valueCountsString : parsedValues)
+				{
+					int indexOfFirstEquals = valueCountsString.indexOf('=');
+
+					if (indexOfFirstEquals > -1)
+					{
+						String[] naaccrIdAndName = StringUtils.split(
+								valueCountsString.substring(0, indexOfFirstEquals), '/');
+						String naaccrId = naaccrIdAndName[0];
+						String name = naaccrIdAndName[0];
+
+						if (naaccrIdAndName.length > 1)
+						{
+							name = naaccrIdAndName[1];
+						}
+
+						String scriptString = valueCountsString.substring(indexOfFirstEquals + 1);
+						File potentialFile = new File(scriptString);
+
+						if (potentialFile.exists())
+						{
+							getNaxConfig().withValueCountsScriptFile(naaccrId, name, potentialFile);
+						}
+						else
+						{
+							getNaxConfig().withValueCountsScriptString(naaccrId, name, scriptString);
+						}
+					}
+					else
+					{
+						String[] valueCountArray = StringUtils.split(valueCountsString, ',');
+
+						for (int j = 0; j < valueCountArray.length; j++)
+						{
+							getNaxConfig().withValueCounts(valueCountArray[j]);
+						}
+					}
+				}
+
+				break;
+			}
+
+			case OPT_SCRIPT:
+			case OPT_FILTERTUMOR:
+			case OPT_FILTERPATIENT:
+			{
+				for (String parsedValue : parsedValues)
+				{
+					File potentialFile = CliUtils.convertParsedValue(File.class, parsedValue);
+
+					if (potentialFile.exists())
+					{
+						switch (opt)
+						{
+							case OPT_SCRIPT:
+							{
+								getNaxConfig().withScriptFile(potentialFile);
+								break;
+							}
+							case OPT_FILTERTUMOR:
+							{
+								getNaxConfig().withTumorScriptFile(potentialFile);
+								break;
+							}
+							case OPT_FILTERPATIENT:
+							{
+								getNaxConfig().withPatientScriptFile(potentialFile);
+								break;
+							}
+						}
+					}
+					else
+					{
+						switch (opt)
+						{
+							case OPT_SCRIPT:
+							{
+								getNaxConfig().withScriptString(parsedValue);
+								break;
+							}
+							case OPT_FILTERTUMOR:
+							{
+								getNaxConfig().withTumorScriptString(parsedValue);
+								break;
+							}
+							case OPT_FILTERPATIENT:
+							{
+								getNaxConfig().withPatientScriptString(parsedValue);
+								break;
+							}
+						}
+					}
+				}
+
+				break;
+			}
+
+			case OPT_FILTERPATIENTEXPRESSION:
+			{
+				for (String parsedValue : parsedValues)
+				{
+					getNaxConfig().withPatientFilterExpression(parsedValue);
+				}
+
+				break;
+			}
+
+			case OPT_FILTERTUMOREXPRESSION:
+			{
+				for (String parsedValue : parsedValues)
+				{
+					getNaxConfig().withTumorFilterExpression(parsedValue);
+				}
+
+				break;
+			}
+
+			case OPT_FILTERITEMEXPRESSION:
+			{
+				for (String parsedValue : parsedValues)
+				{
+					//Expressions have their own '=' characters, so only split on the first one
+					String naaccrId = StringUtils.substringBefore(parsedValue, "=");
+					String expressionString = StringUtils.substringAfter(parsedValue, "=");
+
+					getNaxConfig().withItemFilterExpression(naaccrId, expressionString);
+				}
+
+				break;
+			}
+
+			case OPT_FILTERITEM:
+			{
+				for (String parsedValue : parsedValues)
+				{
+					String[] itemScriptArgumentArray = StringUtils.split(parsedValue, '=');
+					String naaccrId = itemScriptArgumentArray[0];
+					File potentialFile = new File(itemScriptArgumentArray[1]);
+
+					if (potentialFile.exists())
+					{
+						getNaxConfig().withItemScriptFile(naaccrId, potentialFile);
+					}
+					else
+					{
+						getNaxConfig().withItemScriptString(naaccrId, itemScriptArgumentArray[1]);
+					}
+				}
+
+				break;
+			}
+		}
+	}
+
 	@Override
 	public void handleNoArguments(CliParser cliParser)
 			throws ParseException
@@ -739,6 +984,7 @@ public class NaxCommandLineApp
 				naxResult.getNaxMetrics().setExcludedOtherElementCounts(null);
 				naxResult.getNaxMetrics().setNaaccrIdCounts(null);
 				naxResult.getNaxMetrics().setExcludedNaaccrIdCounts(null);
+				naxResult.getNaxMetrics().setScriptProfiles(null);
 			}
 		}
 
@@ -32,32 +32,41 @@
 package edu.uky.kcr.nax;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.imsweb.algorithms.iccc.IcccRecodeUtils;
-import com.imsweb.algorithms.seersiterecode.SeerSiteRecodeUtils;
 import edu.uky.kcr.nax.model.NaaccrDictionary;
 import groovy.lang.Binding;
 import groovy.lang.GroovyShell;
+import groovy.lang.GroovySystem;
 import groovy.lang.Script;
+import groovy.transform.CompileStatic;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
 import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 /**
  * Configuration parameters for a Nax processing run, with the ability to compile Groovy scripts from a File or String
@@ -65,6 +74,16 @@ import java.util.Map;
  */
 public class NaxConfig
 {
+	private static final Logger logger = Logger.getLogger(NaxConfig.class.getName());
+
+	private static final String[] SCRIPT_STATIC_STAR_IMPORTS = {
+			StringUtils.class.getCanonicalName()};
+	//Class names instead of class literals, so the algorithms classes aren't loaded until a script is compiled
+	private static final String[] SCRIPT_IMPORTS = {
+			"com.imsweb.algorithms.seersiterecode.SeerSiteRecodeUtils",
+			"com.imsweb.algorithms.iccc.IcccRecodeUtils"};
+	private static String classpathKey = null;
+
 	@JsonIgnore
 	private List<Script> compiledScripts = null;
 	@JsonIgnore
@@ -74,6 +93,12 @@ public class NaxConfig
 	@JsonIgnore
 	private Map<String, List<Script>> compiledItemScripts = null;
 	@JsonIgnore
+	private List<FilterExpression> patientFilterExpressions = null;
+	@JsonIgnore
+	private List<FilterExpression> tumorFilterExpressions = null;
+	@JsonIgnore
+	private Map<String, List<FilterExpression>> itemFilterExpressions = null;
+	@JsonIgnore
 	private Map<String, Map<String, String>> replacementMap = null;
 	@JsonIgnore
 	private GroovyShell groovyShell = null;
@@ -81,6 +106,8 @@ public class NaxConfig
 	private List<NaaccrDictionary> userDictionaries = null;
 
 	private NaxFileInfo replacementFileInfo = null;
+	@JsonIgnore
+	private final LookupTables scriptLookupTables = new LookupTables();
 	private List<NaxFileInfo> scriptFiles = null;
 	private List<String> includedItems = null;
 
@@ -124,27 +151,273 @@ public class NaxConfig
 
 	private boolean includeNamespaces = true;
 	private boolean removeEmptyPatients = false;
+	private boolean streamingRecords = false;
+	private boolean passThroughPatients = false;
+	private int threads = 1;
+	private int fileThreads = 1;
+	private int gzipThreads = 1;
+	private int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+	private int gzipBlockSize = ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE;
+	@JsonIgnore
+	private boolean domRequired = false;
+	private boolean staticScripts = false;
+	private int pureScriptCacheSize = 0;
+	private boolean adaptiveScriptOrder = false;
+	private boolean mappedInput = false;
+	private boolean asyncParsing = false;
+	private boolean readAhead = false;
+	private String digestAlgorithm = ContentDigest.MD5;
+	private String outputDigestAlgorithm = ContentDigest.NONE;
+	@JsonIgnore
+	private ScriptCache scriptCache = null;
+	@JsonIgnore
+	private final Map<Script, String> scriptSources = new IdentityHashMap<>();
+	@JsonIgnore
+	private final Map<Script, ScriptDependencies> compiledScriptDependencies = new IdentityHashMap<>();
+	@JsonIgnore
+	private final Map<Script, ScriptCache.CachedScript> cachedScripts = new IdentityHashMap<>();
+	private List<ScriptDependencies> scriptDependencies = null;
+	@JsonIgnore
+	private final ThreadLocal<Map<Script, Script>> threadScripts = ThreadLocal.withInitial(IdentityHashMap::new);
 	private List<String> excludedItems = null;
 	private Map<String, String> constantValueMap = null;
 	private List<NaxFileInfo> userDictionaryFiles = null;
 
 	public NaxConfig()
 	{
-		initialize();
 	}
 
-	private void initialize()
+	private static GroovyShell createGroovyShell(boolean staticScripts)
+	{
+		return new GroovyShell(NaxConfig.class.getClassLoader(), createCompilerConfiguration(staticScripts));
+	}
+
+	/**
+	 * Scripts extend {@link LookupScript} for the lookup methods. Static scripts extend {@link NaxScript} and are
+	 * compiled with {@code @CompileStatic}, so every variable is a typed field of the script instead of a Binding lookup
+	 */
+	private static CompilerConfiguration createCompilerConfiguration(boolean staticScripts)
 	{
 		ImportCustomizer importCustomizer = new ImportCustomizer();
-		importCustomizer.addStaticStars(StringUtils.class.getCanonicalName());
-		importCustomizer.addImports(
-				SeerSiteRecodeUtils.class.getCanonicalName(),
-				IcccRecodeUtils.class.getCanonicalName());
+		importCustomizer.addStaticStars(SCRIPT_STATIC_STAR_IMPORTS);
+		importCustomizer.addImports(SCRIPT_IMPORTS);
 
 		CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
 		compilerConfiguration.addCompilationCustomizers(importCustomizer);
+		compilerConfiguration.setScriptBaseClass(LookupScript.class.getName());
+
+		if (staticScripts)
+		{
+			compilerConfiguration.setScriptBaseClass(NaxScript.class.getName());
+			compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(CompileStatic.class));
+		}
+
+		return compilerConfiguration;
+	}
+
+	/**
+	 * Everything besides the script itself that changes the classes it compiles to, for {@link ScriptCache}
+	 */
+	private String getCompilerKey()
+	{
+		return String.join("\n",
+						   GroovySystem.getVersion(),
+						   System.getProperty("java.specification.version"),
+						   Objects.toString(NaxConfig.class.getPackage().getImplementationVersion(), StringUtils.EMPTY),
+						   Boolean.toString(isStaticScripts()),
+						   String.join(",", SCRIPT_STATIC_STAR_IMPORTS),
+						   String.join(",", SCRIPT_IMPORTS),
+						   getClasspathKey());
+	}
+
+	/**
+	 * Development builds have no implementation version, and scripts can use classes from jars added to the classpath,
+	 * like the user-jars directory, so the key also covers the bytes of the script base classes and the name, size, and
+	 * modification time of every classpath entry
+	 */
+	private static synchronized String getClasspathKey()
+	{
+		if (classpathKey == null)
+		{
+			StringBuilder keyBuilder = new StringBuilder();
+
+			for (Class<?> scriptBaseClass : new Class<?>[]{LookupScript.class, NaxScript.class})
+			{
+				try (InputStream scriptClassStream = scriptBaseClass.getResourceAsStream(scriptBaseClass.getSimpleName() + ".class"))
+				{
+					keyBuilder.append((scriptClassStream == null) ? StringUtils.EMPTY : DigestUtils.md5Hex(scriptClassStream));
+				}
+				catch (IOException ioException)
+				{
+					throw new UncheckedIOException(ioException);
+				}
+			}
+
+			for (String classpathEntry : StringUtils.split(System.getProperty("java.class.path", StringUtils.EMPTY), File.pathSeparatorChar))
+			{
+				File classpathFile = new File(classpathEntry);
+
+				keyBuilder.append(String.format("\n%s:%d:%d", classpathFile.getAbsolutePath(), classpathFile.length(), classpathFile.lastModified()));
+			}
+
+			classpathKey = DigestUtils.md5Hex(keyBuilder.toString());
+		}
+
+		return classpathKey;
+	}
+
+	/**
+	 * Keep compiled scripts in a directory, so the same scripts are loaded from it instead of being compiled every time
+	 * Nax runs. Scripts that were already added to this config are compiled again, which adds them to the cache.
+	 */
+	public NaxConfig withScriptCacheDirectory(File scriptCacheDirectory)
+	{
+		setScriptCache(new ScriptCache(scriptCacheDirectory));
+		recompileScripts();
+
+		return this;
+	}
+
+	/**
+	 * Cache the results of value count and Item scripts that only read the value of the Item they run against, keeping
+	 * up to this many Item values for each script on each thread. Scripts that read anything else, like patient or
+	 * tumor, always run. 0 turns caching off.
+	 */
+	public NaxConfig withPureScriptCacheSize(int pureScriptCacheSize)
+	{
+		setPureScriptCacheSize(pureScriptCacheSize);
+
+		return this;
+	}
+
+	/**
+	 * Measure how long each Patient, Tumor, and Item filter script takes and how often it filters out an element, and
+	 * run cheap scripts that filter out the most elements first. Only scripts that just read values are moved, so this is
+	 * off by default in case a script depends on an earlier one to skip the elements it can't handle.
+	 */
+	public NaxConfig withAdaptiveScriptOrder(boolean adaptiveScriptOrder)
+	{
+		setAdaptiveScriptOrder(adaptiveScriptOrder);
+
+		return this;
+	}
+
+	/**
+	 * Read local input files, other than zip files, through memory mapped windows of the file instead of a chain of
+	 * buffered streams. Uncompressed files are parsed straight from the mapped file.
+	 */
+	public NaxConfig withMappedInput(boolean mappedInput)
+	{
+		setMappedInput(mappedInput);
+
+		return this;
+	}
+
+	/**
+	 * Parse input with Aalto's non-blocking parser, fed by a separate thread that reads and decompresses the input, so
+	 * reading overlaps with parsing. The async parser can't report where elements start and end in input, so unchanged
+	 * Patients aren't passed through when this is on, and it only reads UTF-8, ISO-8859-1, and US-ASCII input.
+	 */
+	public NaxConfig withAsyncParsing(boolean asyncParsing)
+	{
+		setAsyncParsing(asyncParsing);
+
+		return this;
+	}
+
+	/**
+	 * Read and inflate input on a separate thread, into a bounded pool of buffers that the parser reads from, so
+	 * decompressing .gz and .zip input runs at the same time as parsing. Output is the same with or without read ahead.
+	 * Async parsing always reads this way, so this only changes blocking parsing.
+	 */
+	public NaxConfig withReadAhead(boolean readAhead)
+	{
+		setReadAhead(readAhead);
+
+		return this;
+	}
+
+	/**
+	 * Hash input files with this algorithm while they're read, on a separate thread from parsing. Use
+	 * {@link ContentDigest#NONE} to skip hashing, {@link ContentDigest#CRC32C} for a fast checksum, or the name of any
+	 * MessageDigest algorithm, such as {@link ContentDigest#SHA_256}. Defaults to {@link ContentDigest#MD5}.
+	 */
+	public NaxConfig withDigestAlgorithm(String digestAlgorithm)
+			throws NoSuchAlgorithmException
+	{
+		setDigestAlgorithm(ContentDigest.newInstance(digestAlgorithm).getAlgorithm());
+
+		return this;
+	}
+
+	/**
+	 * Hash output files with this algorithm while they're written, on a separate thread from parsing, so the hash and
+	 * size of every output file and zip entry are in the results without reading the output again. Takes the same
+	 * algorithms as {@link #withDigestAlgorithm(String)}, and defaults to {@link ContentDigest#NONE}, so sizes are still
+	 * reported but nothing is hashed unless asked for.
+	 */
+	public NaxConfig withOutputDigestAlgorithm(String outputDigestAlgorithm)
+			throws NoSuchAlgorithmException
+	{
+		setOutputDigestAlgorithm(ContentDigest.newInstance(outputDigestAlgorithm).getAlgorithm());
+
+		return this;
+	}
+
+	/**
+	 * Compile scripts with {@code @CompileStatic} against the typed variables of {@link NaxScript}. Scripts that were
+	 * already added to this config are compiled again, so this can be set before or after adding scripts.
+	 * Static scripts can't use Item values as variables named by their naaccrId, and fail to compile if they do.
+	 */
+	public NaxConfig withStaticScripts(boolean staticScripts)
+	{
+		if (staticScripts != isStaticScripts())
+		{
+			setStaticScripts(staticScripts);
+			setGroovyShell(null);
+			recompileScripts();
+		}
+
+		return this;
+	}
+
+	private void recompileScripts()
+	{
+		if (this.compiledScripts != null)
+		{
+			this.compiledScripts.replaceAll(this::recompileScript);
+		}
+		if (this.compiledPatientScripts != null)
+		{
+			this.compiledPatientScripts.replaceAll(this::recompileScript);
+		}
+		if (this.compiledTumorScripts != null)
+		{
+			this.compiledTumorScripts.replaceAll(this::recompileScript);
+		}
+		if (this.compiledItemScripts != null)
+		{
+			for (List<Script> scripts : this.compiledItemScripts.values())
+			{
+				scripts.replaceAll(this::recompileScript);
+			}
+		}
+		if (this.valueCountsScripts != null)
+		{
+			for (Map<String, Script> scriptMap : this.valueCountsScripts.values())
+			{
+				scriptMap.replaceAll((name, script) -> recompileScript(script));
+			}
+		}
+	}
 
-		setGroovyShell(new GroovyShell(compilerConfiguration));
+	private Script recompileScript(Script compiledScript)
+	{
+		String scriptString = this.scriptSources.remove(compiledScript);
+		getScriptDependencies().remove(this.compiledScriptDependencies.remove(compiledScript));
+		this.cachedScripts.remove(compiledScript);
+
+		return compileScript(scriptString, (String) compiledScript.getProperty("name"));
 	}
 
 	public NaxConfig withEmailSmtpHost(String emailSmtpHost)
@@ -258,7 +531,7 @@ public class NaxConfig
 	{
 		Map<String, Script> scriptMap = getValueCountsScripts().getOrDefault(naaccrId, new LinkedHashMap<>());
 
-		scriptMap.put(name, compileScriptString(getGroovyShell(), scriptString));
+		scriptMap.put(name, compileScript(scriptString));
 		getValueCountsScripts().put(naaccrId, scriptMap);
 
 		getValueCounts().add(String.format("%s/%s", naaccrId, name));
@@ -288,6 +561,55 @@ public class NaxConfig
 		return this;
 	}
 
+	public NaxConfig withStreamingRecords(boolean streamingRecords)
+	{
+		setStreamingRecords(streamingRecords);
+
+		return this;
+	}
+
+	public NaxConfig withPassThroughPatients(boolean passThroughPatients)
+	{
+		setPassThroughPatients(passThroughPatients);
+
+		return this;
+	}
+
+	public NaxConfig withThreads(int threads)
+	{
+		setThreads(threads);
+
+		return this;
+	}
+
+	public NaxConfig withFileThreads(int fileThreads)
+	{
+		setFileThreads(fileThreads);
+
+		return this;
+	}
+
+	public NaxConfig withGzipThreads(int gzipThreads)
+	{
+		setGzipThreads(gzipThreads);
+
+		return this;
+	}
+
+	public NaxConfig withGzipLevel(int gzipLevel)
+	{
+		setGzipLevel(gzipLevel);
+
+		return this;
+	}
+
+	public NaxConfig withGzipBlockSize(int gzipBlockSize)
+	{
+		setGzipBlockSize(gzipBlockSize);
+
+		return this;
+	}
+
 	public NaxConfig withUserDictionary(File userDictionaryFile)
 			throws IOException, NoSuchAlgorithmException, ParserConfigurationException, SAXException
 	{
@@ -314,7 +636,7 @@ public class NaxConfig
 	{
 		try (ProgressTrackingDigestInputStream inputStream = ProgressTrackingDigestInputStream.newInstance(scriptFile))
 		{
-			getCompiledScripts().add(compileScriptFile(getGroovyShell(), inputStream));
+			getCompiledScripts().add(compileScriptFile(inputStream));
 			getScriptFiles().add(inputStream);
 		}
 
@@ -326,7 +648,7 @@ public class NaxConfig
 	{
 		try (ProgressTrackingDigestInputStream inputStream = ProgressTrackingDigestInputStream.newInstance(scriptFile))
 		{
-			getCompiledPatientScripts().add(compileScriptFile(getGroovyShell(), inputStream));
+			getCompiledPatientScripts().add(compileScriptFile(inputStream));
 			getScriptFiles().add(inputStream);
 		}
 
@@ -338,7 +660,7 @@ public class NaxConfig
 	{
 		try (ProgressTrackingDigestInputStream inputStream = ProgressTrackingDigestInputStream.newInstance(scriptFile))
 		{
-			getCompiledTumorScripts().add(compileScriptFile(getGroovyShell(), inputStream));
+			getCompiledTumorScripts().add(compileScriptFile(inputStream));
 			getScriptFiles().add(inputStream);
 		}
 
@@ -351,7 +673,7 @@ public class NaxConfig
 		try (ProgressTrackingDigestInputStream inputStream = ProgressTrackingDigestInputStream.newInstance(scriptFile))
 		{
 			List<Script> scripts = getCompiledItemScripts().getOrDefault(naaccrId, new ArrayList<>());
-			scripts.add(compileScriptFile(getGroovyShell(), inputStream));
+			scripts.add(compileScriptFile(inputStream));
 			getCompiledItemScripts().put(naaccrId, scripts);
 		}
 
@@ -365,7 +687,7 @@ public class NaxConfig
 
 		try (ProgressTrackingDigestInputStream inputStream = ProgressTrackingDigestInputStream.newInstance(scriptFile))
 		{
-			scriptMap.put(name, compileScriptFile(getGroovyShell(), inputStream));
+			scriptMap.put(name, compileScriptFile(inputStream));
 			getValueCountsScripts().put(naaccrId, scriptMap);
 		}
 
@@ -376,21 +698,21 @@ public class NaxConfig
 
 	public NaxConfig withScriptString(String scriptString)
 	{
-		getCompiledScripts().add(compileScriptString(getGroovyShell(), scriptString));
+		getCompiledScripts().add(compileScript(scriptString));
 
 		return this;
 	}
 
 	public NaxConfig withPatientScriptString(String scriptString)
 	{
-		getCompiledPatientScripts().add(compileScriptString(getGroovyShell(), scriptString));
+		getCompiledPatientScripts().add(compileScript(scriptString));
 
 		return this;
 	}
 
 	public NaxConfig withTumorScriptString(String scriptString)
 	{
-		getCompiledTumorScripts().add(compileScriptString(getGroovyShell(), scriptString));
+		getCompiledTumorScripts().add(compileScript(scriptString));
 
 		return this;
 	}
@@ -398,12 +720,106 @@ public class NaxConfig
 	public NaxConfig withItemScriptString(String naaccrId, String scriptString)
 	{
 		List<Script> scripts = getCompiledItemScripts().getOrDefault(naaccrId, new ArrayList<>());
-		scripts.add(compileScriptString(getGroovyShell(), scriptString));
+		scripts.add(compileScript(scriptString));
 		getCompiledItemScripts().put(naaccrId, scripts);
 
 		return this;
 	}
 
+	/**
+	 * Filter Patients with a {@link FilterExpression}, or with a Groovy script when the expression language can't express it
+	 */
+	public NaxConfig withPatientFilterExpression(String expressionString)
+	{
+		FilterExpression filterExpression = compileFilterExpression(expressionString);
+
+		if (filterExpression == null)
+		{
+			withPatientScriptString(expressionString);
+		}
+		else
+		{
+			getPatientFilterExpressions().add(filterExpression);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Filter Tumors with a {@link FilterExpression}, or with a Groovy script when the expression language can't express it
+	 */
+	public NaxConfig withTumorFilterExpression(String expressionString)
+	{
+		FilterExpression filterExpression = compileFilterExpression(expressionString);
+
+		if (filterExpression == null)
+		{
+			withTumorScriptString(expressionString);
+		}
+		else
+		{
+			getTumorFilterExpressions().add(filterExpression);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Filter Items with a naaccrId using a {@link FilterExpression}, or with a Groovy script when the expression language
+	 * can't express it
+	 */
+	public NaxConfig withItemFilterExpression(String naaccrId, String expressionString)
+	{
+		FilterExpression filterExpression = compileFilterExpression(expressionString);
+
+		if (filterExpression == null)
+		{
+			withItemScriptString(naaccrId, expressionString);
+		}
+		else
+		{
+			List<FilterExpression> filterExpressions = getItemFilterExpressions().getOrDefault(naaccrId, new ArrayList<>());
+			filterExpressions.add(filterExpression);
+			getItemFilterExpressions().put(naaccrId, filterExpressions);
+		}
+
+		return this;
+	}
+
+	/**
+	 * @return the compiled expression, or null if it has to be run as a Groovy script instead
+	 */
+	private static FilterExpression compileFilterExpression(String expressionString)
+	{
+		FilterExpression filterExpression = null;
+
+		try
+		{
+			filterExpression = FilterExpression.compile(expressionString);
+		}
+		catch (IllegalArgumentException illegalArgumentException)
+		{
+			logger.info(String.format("%s, compiling it as a Groovy script instead", illegalArgumentException.getMessage()));
+		}
+
+		return filterExpression;
+	}
+
+	/**
+	 * Register a CSV file with a header row as a lookup table, so every script in this config can use lookup(name, key)
+	 * to get the second column of the row with that key in its first column, or lookup(name, key, columnName) for any
+	 * other column. Registering a name again replaces its table. A file is only loaded once while it's unchanged, even
+	 * when several configs register it.
+	 */
+	public NaxConfig withLookupTable(String name,
+									 File csvFile)
+			throws IOException, NoSuchAlgorithmException
+	{
+		this.scriptLookupTables.put(LookupTables.load(name, csvFile));
+
+		return this;
+	}
+
 	public NaxConfig withReplacementMapFile(File replacementMapFile)
 			throws IOException, NoSuchAlgorithmException
 	{
@@ -472,18 +888,84 @@ public class NaxConfig
 		return returnValue;
 	}
 
-	protected static Script compileScriptFile(
-			GroovyShell groovyShell,
-			ProgressTrackingDigestInputStream scriptInputStream)
+	private Script compileScriptFile(ProgressTrackingDigestInputStream scriptInputStream)
 			throws IOException
 	{
 		String scriptString = IOUtils.toString(scriptInputStream);
 
-		Script compiledScript = compileScriptString(groovyShell, scriptString, scriptInputStream.getName());
+		Script compiledScript = compileScript(scriptString, scriptInputStream.getName());
 
 		return compiledScript;
 	}
 
+	private Script compileScript(String scriptString)
+	{
+		return compileScript(scriptString, String.format("%s...%s", StringUtils.left(scriptString, 5), StringUtils.right(scriptString, 5)));
+	}
+
+	/**
+	 * All scripts in this config are compiled here, so we can keep track of what each of them reads, and whether any of
+	 * them need DOM Elements
+	 */
+	private Script compileScript(String scriptString,
+								 String scriptName)
+	{
+		Script compiledScript = null;
+		ScriptDependencies dependencies = null;
+
+		if (getScriptCache() == null)
+		{
+			compiledScript = compileScriptString(getGroovyShell(), scriptString, scriptName);
+			dependencies = ScriptDependencies.analyze(scriptString, scriptName, createCompilerConfiguration(isStaticScripts()));
+		}
+		else
+		{
+			ScriptCache.CachedScript cachedScript = getScriptCache().getOrCompile(
+					scriptString,
+					scriptName,
+					getCompilerKey(),
+					createCompilerConfiguration(isStaticScripts()),
+					getGroovyShell().getClassLoader());
+
+			compiledScript = InvokerHelper.createScript(cachedScript.getScriptClass(), new Binding());
+			compiledScript.setProperty("name", scriptName);
+			dependencies = cachedScript.getScriptDependencies();
+			this.cachedScripts.put(compiledScript, cachedScript);
+		}
+
+		if (compiledScript instanceof LookupScript)
+		{
+			((LookupScript) compiledScript).setLookupTables(this.scriptLookupTables);
+		}
+
+		this.scriptSources.put(compiledScript, scriptString);
+		this.compiledScriptDependencies.put(compiledScript, dependencies);
+		getScriptDependencies().add(dependencies);
+
+		if (dependencies.isDomRequired())
+		{
+			setDomRequired(true);
+		}
+
+		return compiledScript;
+	}
+
+	/**
+	 * @return what a script compiled by this config reads, or null for a script compiled somewhere else
+	 */
+	ScriptDependencies getScriptDependencies(Script compiledScript)
+	{
+		return this.compiledScriptDependencies.get(compiledScript);
+	}
+
+	/**
+	 * @return how a script was loaded from the {@link ScriptCache}, or null if this config has no cache directory
+	 */
+	public ScriptCache.CachedScript getCachedScript(Script compiledScript)
+	{
+		return this.cachedScripts.get(compiledScript);
+	}
+
 	protected static Script compileScriptString(
 			GroovyShell groovyShell,
 			String scriptString,
@@ -520,8 +1002,39 @@ public class NaxConfig
 		return compiledScripts;
 	}
 
+	/**
+	 * Get this thread's own instance of a compiled script. Scripts keep their variables in a Binding that is changed for
+	 * every element, so each thread runs a separate instance of the compiled class, with its own copy of the Binding.
+	 * A thread always gets the same instance back, so a script that keeps state in its Binding still sees it on that thread.
+	 */
+	Script getThreadScript(Script compiledScript)
+	{
+		return this.threadScripts.get().computeIfAbsent(compiledScript, this::createScriptInstance);
+	}
+
+	private Script createScriptInstance(Script compiledScript)
+	{
+		Binding binding = new Binding(new HashMap<>(compiledScript.getBinding().getVariables()));
+		Script script = InvokerHelper.createScript(compiledScript.getClass(), binding);
+
+		if (script instanceof LookupScript)
+		{
+			((LookupScript) script).setLookupTables(this.scriptLookupTables);
+		}
+
+		return script;
+	}
+
+	/**
+	 * The GroovyShell is only created when the first script is compiled, so runs without scripts never start Groovy
+	 */
 	public GroovyShell getGroovyShell()
 	{
+		if (this.groovyShell == null)
+		{
+			setGroovyShell(createGroovyShell(isStaticScripts()));
+		}
+
 		return groovyShell;
 	}
 
@@ -530,6 +1043,15 @@ public class NaxConfig
 		this.groovyShell = groovyShell;
 	}
 
+	/**
+	 * @return true once {@link #getGroovyShell()} has created the GroovyShell
+	 */
+	@JsonIgnore
+	public boolean isGroovyShellCreated()
+	{
+		return groovyShell != null;
+	}
+
 	private void setCompiledScripts(List<Script> compiledScripts)
 	{
 		this.compiledScripts = compiledScripts;
@@ -591,6 +1113,49 @@ public class NaxConfig
 	}
 
 
+	/**
+	 * @return what every script in this config reads, in the order they were compiled
+	 */
+	public List<ScriptDependencies> getScriptDependencies()
+	{
+		if (this.scriptDependencies == null)
+		{
+			this.scriptDependencies = new ArrayList<>();
+		}
+
+		return scriptDependencies;
+	}
+
+	public List<FilterExpression> getPatientFilterExpressions()
+	{
+		if (this.patientFilterExpressions == null)
+		{
+			this.patientFilterExpressions = new ArrayList<>();
+		}
+
+		return patientFilterExpressions;
+	}
+
+	public List<FilterExpression> getTumorFilterExpressions()
+	{
+		if (this.tumorFilterExpressions == null)
+		{
+			this.tumorFilterExpressions = new ArrayList<>();
+		}
+
+		return tumorFilterExpressions;
+	}
+
+	public Map<String, List<FilterExpression>> getItemFilterExpressions()
+	{
+		if (this.itemFilterExpressions == null)
+		{
+			this.itemFilterExpressions = new HashMap<>();
+		}
+
+		return itemFilterExpressions;
+	}
+
 	public List<String> getIncludedItems()
 	{
 		if (this.includedItems == null)
@@ -655,6 +1220,221 @@ public class NaxConfig
 		this.removeEmptyPatients = removeEmptyPatients;
 	}
 
+	public boolean isStreamingRecords()
+	{
+		return streamingRecords;
+	}
+
+	private void setStreamingRecords(boolean streamingRecords)
+	{
+		this.streamingRecords = streamingRecords;
+	}
+
+	/**
+	 * @return true if Patients that come out of processing unchanged should be copied to output straight from their input
+	 * bytes, keeping their original formatting. Patients are read as streaming records when this is enabled.
+	 */
+	public boolean isPassThroughPatients()
+	{
+		return passThroughPatients;
+	}
+
+	private void setPassThroughPatients(boolean passThroughPatients)
+	{
+		this.passThroughPatients = passThroughPatients;
+	}
+
+	/**
+	 * @return number of worker threads used to process Patient elements, output is always written in input order
+	 */
+	public int getThreads()
+	{
+		return threads;
+	}
+
+	private void setThreads(int threads)
+	{
+		this.threads = Math.max(threads, 1);
+	}
+
+	/**
+	 * @return number of input files in a directory, or entries in a zip file, processed at the same time
+	 */
+	public int getFileThreads()
+	{
+		return fileThreads;
+	}
+
+	private void setFileThreads(int fileThreads)
+	{
+		this.fileThreads = Math.max(fileThreads, 1);
+	}
+
+	/**
+	 * @return number of threads compressing .gz output files, more than 1 writes the output as independently compressed blocks
+	 */
+	public int getGzipThreads()
+	{
+		return gzipThreads;
+	}
+
+	private void setGzipThreads(int gzipThreads)
+	{
+		this.gzipThreads = Math.max(gzipThreads, 1);
+	}
+
+	/**
+	 * @return compression level of .gz output files, from 0 to 9, or -1 for the default level
+	 */
+	public int getGzipLevel()
+	{
+		return gzipLevel;
+	}
+
+	private void setGzipLevel(int gzipLevel)
+	{
+		this.gzipLevel = Math.min(Math.max(gzipLevel, Deflater.DEFAULT_COMPRESSION), Deflater.BEST_COMPRESSION);
+	}
+
+	/**
+	 * @return number of uncompressed bytes in each block when .gz output is compressed on more than one thread
+	 */
+	public int getGzipBlockSize()
+	{
+		return gzipBlockSize;
+	}
+
+	private void setGzipBlockSize(int gzipBlockSize)
+	{
+		this.gzipBlockSize = Math.max(gzipBlockSize, ParallelGzipOutputStream.MINIMUM_BLOCK_SIZE);
+	}
+
+	/**
+	 * Create every lazily created list and map that processing reads, so worker threads sharing this
+	 * NaxConfig never race to create them.
+	 */
+	void initializeForWorkerThreads()
+	{
+		getCompiledScripts();
+		getCompiledPatientScripts();
+		getCompiledTumorScripts();
+		getCompiledItemScripts();
+		getPatientFilterExpressions();
+		getTumorFilterExpressions();
+		getItemFilterExpressions();
+		getIncludedItems();
+		getExcludedItems();
+		getValueCountsScripts();
+		getValueCountsSimple();
+		getReplacementMap();
+		getConstantValueMap();
+		getUserDictionaries();
+	}
+
+	/**
+	 * @return true if any compiled script might use the DOM Element of a Patient, Tumor, or Item, which means Patients
+	 * can't be processed as streaming records
+	 */
+	public boolean isDomRequired()
+	{
+		return domRequired;
+	}
+
+	private void setDomRequired(boolean domRequired)
+	{
+		this.domRequired = domRequired;
+	}
+
+	public ScriptCache getScriptCache()
+	{
+		return scriptCache;
+	}
+
+	private void setScriptCache(ScriptCache scriptCache)
+	{
+		this.scriptCache = scriptCache;
+	}
+
+	public boolean isAdaptiveScriptOrder()
+	{
+		return adaptiveScriptOrder;
+	}
+
+	private void setAdaptiveScriptOrder(boolean adaptiveScriptOrder)
+	{
+		this.adaptiveScriptOrder = adaptiveScriptOrder;
+	}
+
+	public boolean isMappedInput()
+	{
+		return mappedInput;
+	}
+
+	private void setMappedInput(boolean mappedInput)
+	{
+		this.mappedInput = mappedInput;
+	}
+
+	public String getDigestAlgorithm()
+	{
+		return digestAlgorithm;
+	}
+
+	private void setDigestAlgorithm(String digestAlgorithm)
+	{
+		this.digestAlgorithm = digestAlgorithm;
+	}
+
+	public String getOutputDigestAlgorithm()
+	{
+		return outputDigestAlgorithm;
+	}
+
+	private void setOutputDigestAlgorithm(String outputDigestAlgorithm)
+	{
+		this.outputDigestAlgorithm = outputDigestAlgorithm;
+	}
+
+	public boolean isAsyncParsing()
+	{
+		return asyncParsing;
+	}
+
+	private void setAsyncParsing(boolean asyncParsing)
+	{
+		this.asyncParsing = asyncParsing;
+	}
+
+	public boolean isReadAhead()
+	{
+		return readAhead;
+	}
+
+	private void setReadAhead(boolean readAhead)
+	{
+		this.readAhead = readAhead;
+	}
+
+	public int getPureScriptCacheSize()
+	{
+		return pureScriptCacheSize;
+	}
+
+	private void setPureScriptCacheSize(int pureScriptCacheSize)
+	{
+		this.pureScriptCacheSize = pureScriptCacheSize;
+	}
+
+	public boolean isStaticScripts()
+	{
+		return staticScripts;
+	}
+
+	private void setStaticScripts(boolean staticScripts)
+	{
+		this.staticScripts = staticScripts;
+	}
+
 	public List<String> getExcludedItems()
 	{
 		if (this.excludedItems == null)
@@ -707,6 +1487,11 @@ public class NaxConfig
 		this.replacementFileInfo = naxInfoInputStream;
 	}
 
+	public List<LookupTable> getLookupTables()
+	{
+		return this.scriptLookupTables.getLookupTables();
+	}
+
 	public List<NaxFileInfo> getScriptFiles()
 	{
 		if (this.scriptFiles == null)
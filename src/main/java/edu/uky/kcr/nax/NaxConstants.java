@@ -36,6 +36,7 @@ public class NaxConstants
 	//NAACCR XML Constants
 	public static final String NAACCR_ID = "naaccrId";
 	public static final String BASE_DICTIONARY_URI = "baseDictionaryUri";
+	public static final String DICTIONARY_URI = "dictionaryUri";
 	public static final String ITEM_DEF = "ItemDef";
 	public static final String NAACCR_NUM = "naaccrNum";
 	public static final String ITEM_VALUE = "itemValue";
@@ -49,6 +50,9 @@ public class NaxConstants
 	public static final String OPT_FILTERPATIENT = "fp";
 	public static final String OPT_FILTERTUMOR = "ft";
 	public static final String OPT_FILTERITEM = "fi";
+	public static final String OPT_FILTERPATIENTEXPRESSION = "fpx";
+	public static final String OPT_FILTERTUMOREXPRESSION = "ftx";
+	public static final String OPT_FILTERITEMEXPRESSION = "fix";
 	public static final String OPT_SCRIPT = "s";
 	public static final String OPT_OUTPUTFILE = "o";
 	public static final String OPT_NAMESPACES = "ns";
@@ -57,12 +61,29 @@ public class NaxConstants
 	public static final String OPT_TIMESTAMP = "ts";
 	public static final String OPT_FILEPREFIX = "pre";
 	public static final String OPT_REPLACE = "rpl";
+	public static final String OPT_LOOKUPTABLE = "lt";
 	public static final String OPT_CONSTANT = "con";
 	public static final String OPT_METRICS = "met";
 	public static final String OPT_USERDICTIONARY = "usr";
 	public static final String OPT_DELETEOUTPUTFILES = "del";
 	public static final String OPT_REMOVEEMPTYPATIENTS = "rep";
 	public static final String OPT_VALUECOUNTS = "vc";
+	public static final String OPT_STREAMINGRECORDS = "sr";
+	public static final String OPT_PASSTHROUGHPATIENTS = "pt";
+	public static final String OPT_THREADS = "th";
+	public static final String OPT_FILETHREADS = "fth";
+	public static final String OPT_GZIPTHREADS = "gzth";
+	public static final String OPT_GZIPLEVEL = "gzlvl";
+	public static final String OPT_GZIPBLOCKSIZE = "gzblk";
+	public static final String OPT_STATICSCRIPTS = "ss";
+	public static final String OPT_SCRIPTCACHEDIRECTORY = "sc";
+	public static final String OPT_PURESCRIPTCACHESIZE = "ps";
+	public static final String OPT_ADAPTIVESCRIPTORDER = "aso";
+	public static final String OPT_MAPPEDINPUT = "mi";
+	public static final String OPT_ASYNCPARSING = "ap";
+	public static final String OPT_READAHEAD = "ra";
+	public static final String OPT_DIGESTALGORITHM = "dig";
+	public static final String OPT_OUTPUTDIGESTALGORITHM = "odig";
 	public static final String OPT_EMAILSUBJECT = "emsub";
 	public static final String OPT_EMAILFROM = "emfrom";
 	public static final String OPT_EMAILTO = "emto";
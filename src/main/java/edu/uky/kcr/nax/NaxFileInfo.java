@@ -34,6 +34,8 @@ package edu.uky.kcr.nax;
 public interface NaxFileInfo
 {
 	public String getMd5();
+	public String getDigestAlgorithm();
+	public String getDigest();
 	public String getName();
 	public long getTotalLength();
 	public long getTotalRead();
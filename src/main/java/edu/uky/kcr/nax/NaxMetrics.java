@@ -35,6 +35,7 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.apache.commons.lang3.time.DateFormatUtils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -74,6 +75,23 @@ public class NaxMetrics
 
 	private Map<String, Integer> excludedNaaccrIdCounts = new TreeMap<>();
 
+	private Integer passThroughPatientCount = null;
+	private Integer streamingRecordPatientCount = null;
+	private Integer patientThreads = null;
+
+	private Integer gzipThreads = null;
+	private Long gzipUncompressedBytes = null;
+	private Long gzipCompressedBytes = null;
+	private Long gzipCompressionMillis = null;
+	private String gzipThroughput = null;
+
+	private Long readAheadInputStallMillis = null;
+	private Long readAheadParsingStallMillis = null;
+
+	private List<ScriptProfile> scriptProfiles = null;
+	private List<ScriptResultCache> scriptResultCaches = null;
+	private List<AdaptiveScriptOrder> adaptiveScriptOrders = null;
+
 	public Map<String, Integer> getElementCounts()
 	{
 		return elementCounts;
@@ -134,6 +152,189 @@ public class NaxMetrics
 		return excludedNaaccrIdCounts;
 	}
 
+	/**
+	 * @return number of Patients copied to output straight from their input bytes, or null when pass-through is not enabled
+	 */
+	public Integer getPassThroughPatientCount()
+	{
+		return passThroughPatientCount;
+	}
+
+	public void setPassThroughPatientCount(Integer passThroughPatientCount)
+	{
+		this.passThroughPatientCount = passThroughPatientCount;
+	}
+
+	/**
+	 * @return number of Patients read as streaming records instead of DOM Elements, or null when streaming records are not used
+	 */
+	public Integer getStreamingRecordPatientCount()
+	{
+		return streamingRecordPatientCount;
+	}
+
+	public void setStreamingRecordPatientCount(Integer streamingRecordPatientCount)
+	{
+		this.streamingRecordPatientCount = streamingRecordPatientCount;
+	}
+
+	/**
+	 * @return number of worker threads handling Patients, or null when Patients were handled on the reading thread
+	 */
+	public Integer getPatientThreads()
+	{
+		return patientThreads;
+	}
+
+	public void setPatientThreads(Integer patientThreads)
+	{
+		this.patientThreads = patientThreads;
+	}
+
+	/**
+	 * Record how much output a {@link ParallelGzipOutputStream} compressed and how long it took.
+	 *
+	 * @param compressionMillis time spent compressing, added up across all of the compression threads
+	 */
+	public void markGzipCompression(int threads,
+									long uncompressedBytes,
+									long compressedBytes,
+									long compressionMillis)
+	{
+		setGzipThreads(threads);
+		setGzipUncompressedBytes(uncompressedBytes);
+		setGzipCompressedBytes(compressedBytes);
+		setGzipCompressionMillis(compressionMillis);
+
+		setGzipThroughput(String.format("%.1f MB/s per thread", (uncompressedBytes / (1024d * 1024d)) / (Math
+				.max(compressionMillis, 1L) / 1000d)));
+	}
+
+	/**
+	 * @return number of threads compressing .gz output, or null when output was not compressed on multiple threads
+	 */
+	public Integer getGzipThreads()
+	{
+		return gzipThreads;
+	}
+
+	public void setGzipThreads(Integer gzipThreads)
+	{
+		this.gzipThreads = gzipThreads;
+	}
+
+	public Long getGzipUncompressedBytes()
+	{
+		return gzipUncompressedBytes;
+	}
+
+	public void setGzipUncompressedBytes(Long gzipUncompressedBytes)
+	{
+		this.gzipUncompressedBytes = gzipUncompressedBytes;
+	}
+
+	public Long getGzipCompressedBytes()
+	{
+		return gzipCompressedBytes;
+	}
+
+	public void setGzipCompressedBytes(Long gzipCompressedBytes)
+	{
+		this.gzipCompressedBytes = gzipCompressedBytes;
+	}
+
+	public Long getGzipCompressionMillis()
+	{
+		return gzipCompressionMillis;
+	}
+
+	public void setGzipCompressionMillis(Long gzipCompressionMillis)
+	{
+		this.gzipCompressionMillis = gzipCompressionMillis;
+	}
+
+	public String getGzipThroughput()
+	{
+		return gzipThroughput;
+	}
+
+	public void setGzipThroughput(String gzipThroughput)
+	{
+		this.gzipThroughput = gzipThroughput;
+	}
+
+	/**
+	 * Record how long parsing waited for input read on another thread, and how long reading waited for parsing to catch up.
+	 * When most of the wait is on input, reading or inflating is the slower side, and when most is on parsing, scripts
+	 * and output are.
+	 */
+	public void markReadAhead(long inputStallMillis,
+							  long parsingStallMillis)
+	{
+		setReadAheadInputStallMillis(inputStallMillis);
+		setReadAheadParsingStallMillis(parsingStallMillis);
+	}
+
+	public Long getReadAheadInputStallMillis()
+	{
+		return readAheadInputStallMillis;
+	}
+
+	public void setReadAheadInputStallMillis(Long readAheadInputStallMillis)
+	{
+		this.readAheadInputStallMillis = readAheadInputStallMillis;
+	}
+
+	public Long getReadAheadParsingStallMillis()
+	{
+		return readAheadParsingStallMillis;
+	}
+
+	public void setReadAheadParsingStallMillis(Long readAheadParsingStallMillis)
+	{
+		this.readAheadParsingStallMillis = readAheadParsingStallMillis;
+	}
+
+	/**
+	 * @return time spent in each script and how many elements it filtered out, slowest first, only recorded with
+	 * extended metrics logging
+	 */
+	public List<ScriptProfile> getScriptProfiles()
+	{
+		return scriptProfiles;
+	}
+
+	public void setScriptProfiles(List<ScriptProfile> scriptProfiles)
+	{
+		this.scriptProfiles = scriptProfiles;
+	}
+
+	/**
+	 * @return hits and misses for the results of each pure value count or Item script, or null if none were cached
+	 */
+	public List<ScriptResultCache> getScriptResultCaches()
+	{
+		return scriptResultCaches;
+	}
+
+	public void setScriptResultCaches(List<ScriptResultCache> scriptResultCaches)
+	{
+		this.scriptResultCaches = scriptResultCaches;
+	}
+
+	/**
+	 * @return the configured and adapted order of each list of filter scripts, or null if adaptive script order is off
+	 */
+	public List<AdaptiveScriptOrder> getAdaptiveScriptOrders()
+	{
+		return adaptiveScriptOrders;
+	}
+
+	public void setAdaptiveScriptOrders(List<AdaptiveScriptOrder> adaptiveScriptOrders)
+	{
+		this.adaptiveScriptOrders = adaptiveScriptOrders;
+	}
+
 	public NaxMetrics()
 	{
 		setStartTimeMillis(System.currentTimeMillis());
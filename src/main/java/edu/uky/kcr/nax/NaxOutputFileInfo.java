@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+/**
+ * Size and hash of an output file, or of one entry in an output zip file, recorded while it was written.
+ * <br/>
+ * For a gzip file, size is the number of compressed bytes in the file and uncompressedSize is the number of XML bytes.
+ * For a zip entry, size is the compressed size of the entry and the hash is of the entry's uncompressed XML bytes. For
+ * a whole zip file, uncompressedSize isn't known and is -1.
+ */
+public class NaxOutputFileInfo
+{
+	private String name = null;
+	private long size = -1;
+	private long uncompressedSize = -1;
+	private String digestAlgorithm = null;
+	private String digest = null;
+
+	public NaxOutputFileInfo()
+	{
+
+	}
+
+	public NaxOutputFileInfo(String name,
+							 CountingDigestOutputStream countingDigestOutputStream)
+	{
+		setName(name);
+		setSize(countingDigestOutputStream.getByteCount());
+		setDigestAlgorithm(countingDigestOutputStream.getDigestAlgorithm());
+		setDigest(countingDigestOutputStream.getDigest());
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public void setName(String name)
+	{
+		this.name = name;
+	}
+
+	public long getSize()
+	{
+		return size;
+	}
+
+	public void setSize(long size)
+	{
+		this.size = size;
+	}
+
+	public long getUncompressedSize()
+	{
+		return uncompressedSize;
+	}
+
+	public void setUncompressedSize(long uncompressedSize)
+	{
+		this.uncompressedSize = uncompressedSize;
+	}
+
+	public String getDigestAlgorithm()
+	{
+		return digestAlgorithm;
+	}
+
+	public void setDigestAlgorithm(String digestAlgorithm)
+	{
+		this.digestAlgorithm = digestAlgorithm;
+	}
+
+	public String getDigest()
+	{
+		return digest;
+	}
+
+	public void setDigest(String digest)
+	{
+		this.digest = digest;
+	}
+}
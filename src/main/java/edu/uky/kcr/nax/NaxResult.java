@@ -50,6 +50,8 @@ public class NaxResult
 	private String naaccrVersion = null;
 
 	private NaxFileInfo inputFileInfo = null;
+	private NaxOutputFileInfo outputFileInfo = null;
+	private NaxOutputFileInfo outputZipFileInfo = null;
 
 	private boolean parsingSuccess = false;
 	private boolean outputFileDeleted = false;
@@ -113,6 +115,34 @@ public class NaxResult
 		this.inputFileInfo = inputFileInfo;
 	}
 
+	/**
+	 * Size and hash of the output file, or of this result's entry when the output is a zip file.
+	 */
+	@JsonProperty("outputFile")
+	public NaxOutputFileInfo getOutputFileInfo()
+	{
+		return outputFileInfo;
+	}
+
+	public void setOutputFileInfo(NaxOutputFileInfo outputFileInfo)
+	{
+		this.outputFileInfo = outputFileInfo;
+	}
+
+	/**
+	 * Size and hash of the whole output zip file that this result's entry was written to.
+	 */
+	@JsonProperty("outputZipFile")
+	public NaxOutputFileInfo getOutputZipFileInfo()
+	{
+		return outputZipFileInfo;
+	}
+
+	public void setOutputZipFileInfo(NaxOutputFileInfo outputZipFileInfo)
+	{
+		this.outputZipFileInfo = outputZipFileInfo;
+	}
+
 	public String getOutputFilename()
 	{
 		if (this.outputFilename == null && getOutputFile() != null)
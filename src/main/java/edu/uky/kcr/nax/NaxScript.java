@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+import edu.uky.kcr.nax.model.Item;
+import edu.uky.kcr.nax.model.NaaccrData;
+import edu.uky.kcr.nax.model.Patient;
+import edu.uky.kcr.nax.model.Tumor;
+import org.w3c.dom.Element;
+
+/**
+ * Base class of scripts compiled with {@link NaxConfig#withStaticScripts(boolean)}. Scripts are compiled with
+ * {@code @CompileStatic} against the typed fields of this class, instead of looking up every variable in a Binding.
+ * <br/>
+ * The variables available to a static script are: inputFilename, elementName, naaccrData, patient, tumor, item, element,
+ * naaccrId, and itemValue. Item values are not available as variables named by their naaccrId, use itemValue,
+ * item.getItemValue(), or patient.getItemValue(naaccrId) instead.
+ */
+public abstract class NaxScript
+		extends LookupScript
+{
+	private String inputFilename = null;
+	private String elementName = null;
+	private NaaccrData naaccrData = null;
+	private Patient patient = null;
+	private Tumor tumor = null;
+	private Item item = null;
+	private Element element = null;
+	private String naaccrId = null;
+	private String itemValue = null;
+
+	/**
+	 * Set every variable of this script before it is run on an element
+	 */
+	void setContext(String inputFilename,
+					String elementName,
+					NaaccrData naaccrData,
+					Patient patient,
+					Tumor tumor,
+					Item item,
+					Element element,
+					String naaccrId,
+					String itemValue)
+	{
+		this.inputFilename = inputFilename;
+		this.elementName = elementName;
+		this.naaccrData = naaccrData;
+		this.patient = patient;
+		this.tumor = tumor;
+		this.item = item;
+		this.element = element;
+		this.naaccrId = naaccrId;
+		this.itemValue = itemValue;
+	}
+
+	public String getInputFilename()
+	{
+		return inputFilename;
+	}
+
+	public String getElementName()
+	{
+		return elementName;
+	}
+
+	public NaaccrData getNaaccrData()
+	{
+		return naaccrData;
+	}
+
+	public Patient getPatient()
+	{
+		return patient;
+	}
+
+	public Tumor getTumor()
+	{
+		return tumor;
+	}
+
+	public Item getItem()
+	{
+		return item;
+	}
+
+	public Element getElement()
+	{
+		return element;
+	}
+
+	public String getNaaccrId()
+	{
+		return naaccrId;
+	}
+
+	public String getItemValue()
+	{
+		return itemValue;
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes gzip output by compressing fixed size blocks of input on a pool of threads.
+ * <br/>
+ * Each block is written as its own complete gzip member, in the same order the bytes were written to this stream.
+ * A series of gzip members is a standard gzip file, which gunzip, {@link java.util.zip.GZIPInputStream}, and other
+ * normal tools read back as one stream. The number of compressed blocks waiting to be written is bounded, so writers
+ * block instead of buffering the whole output in memory.
+ */
+public class ParallelGzipOutputStream
+		extends OutputStream
+{
+	private static final Logger logger = Logger.getLogger(ParallelGzipOutputStream.class.getName());
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+	public static final int MINIMUM_BLOCK_SIZE = 64 * 1024;
+
+	private static final int PENDING_BLOCKS_PER_THREAD = 2;
+	private static final int DEFLATE_BUFFER = 64 * 1024;
+
+	//Magic number, deflate compression method, no flags, no modification time, no extra flags, unknown OS
+	private static final byte[] GZIP_HEADER = new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+	private final OutputStream outputStream;
+	private final int threads;
+	private final int blockSize;
+	private final int level;
+	private final ExecutorService executorService;
+	private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+	private final List<Deflater> deflaters = Collections.synchronizedList(new ArrayList<>());
+	private final ThreadLocal<Deflater> threadDeflater = ThreadLocal.withInitial(this::createDeflater);
+	private final AtomicLong compressionNanos = new AtomicLong(0);
+
+	private byte[] block = null;
+	private int blockLength = 0;
+	private long blockCount = 0;
+	private long uncompressedBytes = 0;
+	private long compressedBytes = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param level a {@link Deflater} compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+	 */
+	public ParallelGzipOutputStream(OutputStream outputStream,
+									int threads,
+									int blockSize,
+									int level)
+	{
+		this.outputStream = outputStream;
+		this.threads = Math.max(threads, 1);
+		this.blockSize = Math.max(blockSize, MINIMUM_BLOCK_SIZE);
+		this.level = level;
+		this.block = new byte[this.blockSize];
+		this.executorService = Executors.newFixedThreadPool(this.threads, PatientPipeline.createThreadFactory("nax-gzip"));
+
+		logger.info(String.format("Compressing output in %d byte blocks with %d threads...", this.blockSize, this.threads));
+	}
+
+	private Deflater createDeflater()
+	{
+		Deflater deflater = new Deflater(this.level, true);
+		this.deflaters.add(deflater);
+
+		return deflater;
+	}
+
+	@Override
+	public void write(int b)
+			throws IOException
+	{
+		if (this.blockLength == this.blockSize)
+		{
+			submitBlock();
+		}
+
+		this.block[this.blockLength++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] bytes,
+					  int offset,
+					  int length)
+			throws IOException
+	{
+		while (length > 0)
+		{
+			if (this.blockLength == this.blockSize)
+			{
+				submitBlock();
+			}
+
+			int copyLength = Math.min(length, this.blockSize - this.blockLength);
+			System.arraycopy(bytes, offset, this.block, this.blockLength, copyLength);
+
+			this.blockLength += copyLength;
+			offset += copyLength;
+			length -= copyLength;
+		}
+	}
+
+	/**
+	 * Write any blocks that have already been compressed. The block still being filled is not cut short, so flushing
+	 * often doesn't hurt compression.
+	 */
+	@Override
+	public void flush()
+			throws IOException
+	{
+		while (this.pendingBlocks.isEmpty() == false && this.pendingBlocks.peekFirst().isDone())
+		{
+			writeBlock(this.pendingBlocks.removeFirst());
+		}
+
+		this.outputStream.flush();
+	}
+
+	@Override
+	public void close()
+			throws IOException
+	{
+		if (this.closed == false)
+		{
+			this.closed = true;
+
+			try
+			{
+				submitBlock();
+
+				while (this.pendingBlocks.isEmpty() == false)
+				{
+					writeBlock(this.pendingBlocks.removeFirst());
+				}
+
+				//An empty gzip file still needs one member to be valid
+				if (this.blockCount == 0)
+				{
+					byte[] compressedBlock = compressBlock(new byte[0], 0);
+					this.outputStream.write(compressedBlock);
+					this.compressedBytes += compressedBlock.length;
+				}
+
+				this.outputStream.close();
+			}
+			finally
+			{
+				this.executorService.shutdownNow();
+
+				synchronized (this.deflaters)
+				{
+					for (Deflater deflater : this.deflaters)
+					{
+						deflater.end();
+					}
+				}
+			}
+		}
+	}
+
+	private void submitBlock()
+			throws IOException
+	{
+		if (this.blockLength > 0)
+		{
+			byte[] uncompressedBlock = this.block;
+			int uncompressedLength = this.blockLength;
+
+			this.pendingBlocks.addLast(this.executorService.submit(() -> compressBlock(uncompressedBlock, uncompressedLength)));
+			this.uncompressedBytes += uncompressedLength;
+			this.blockCount++;
+
+			this.block = new byte[this.blockSize];
+			this.blockLength = 0;
+
+			while (this.pendingBlocks.size() > this.threads * PENDING_BLOCKS_PER_THREAD)
+			{
+				writeBlock(this.pendingBlocks.removeFirst());
+			}
+		}
+	}
+
+	private void writeBlock(Future<byte[]> pendingBlock)
+			throws IOException
+	{
+		byte[] compressedBlock = null;
+
+		try
+		{
+			compressedBlock = pendingBlock.get();
+		}
+		catch (InterruptedException interruptedException)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing output", interruptedException);
+		}
+		catch (ExecutionException executionException)
+		{
+			throw new IOException("Error compressing output", executionException.getCause());
+		}
+
+		this.outputStream.write(compressedBlock);
+		this.compressedBytes += compressedBlock.length;
+	}
+
+	/**
+	 * Compress a block as a complete gzip member: header, raw deflate data, then the CRC-32 and length of the block.
+	 */
+	private byte[] compressBlock(byte[] uncompressedBlock,
+								 int uncompressedLength)
+	{
+		long startNanos = System.nanoTime();
+
+		Deflater deflater = this.threadDeflater.get();
+		deflater.reset();
+		deflater.setInput(uncompressedBlock, 0, uncompressedLength);
+		deflater.finish();
+
+		CRC32 crc32 = new CRC32();
+		crc32.update(uncompressedBlock, 0, uncompressedLength);
+
+		ByteArrayOutputStream compressedOutputStream = new ByteArrayOutputStream(uncompressedLength / 4 + GZIP_HEADER.length + 8);
+		compressedOutputStream.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+
+		byte[] deflateBuffer = new byte[DEFLATE_BUFFER];
+
+		while (deflater.finished() == false)
+		{
+			int deflatedLength = deflater.deflate(deflateBuffer);
+			compressedOutputStream.write(deflateBuffer, 0, deflatedLength);
+		}
+
+		writeIntLittleEndian(compressedOutputStream, (int) crc32.getValue());
+		writeIntLittleEndian(compressedOutputStream, uncompressedLength);
+
+		this.compressionNanos.addAndGet(System.nanoTime() - startNanos);
+
+		return compressedOutputStream.toByteArray();
+	}
+
+	private static void writeIntLittleEndian(ByteArrayOutputStream outputStream,
+											 int value)
+	{
+		outputStream.write(value & 0xff);
+		outputStream.write((value >> 8) & 0xff);
+		outputStream.write((value >> 16) & 0xff);
+		outputStream.write((value >> 24) & 0xff);
+	}
+
+	/**
+	 * @return number of bytes written to this stream so far
+	 */
+	public long getUncompressedBytes()
+	{
+		return this.uncompressedBytes + this.blockLength;
+	}
+
+	/**
+	 * @return number of compressed bytes written to the underlying stream so far
+	 */
+	public long getCompressedBytes()
+	{
+		return this.compressedBytes;
+	}
+
+	/**
+	 * @return time spent compressing blocks, added up across all of the compression threads
+	 */
+	public long getCompressionMillis()
+	{
+		return this.compressionNanos.get() / 1_000_000L;
+	}
+
+	public int getThreads()
+	{
+		return this.threads;
+	}
+}
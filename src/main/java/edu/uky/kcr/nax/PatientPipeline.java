@@ -0,0 +1,313 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package edu.uky.kcr.nax;
+
+import edu.uky.kcr.nax.model.Patient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Runs Patient processing on a pool of worker threads while a single writer thread puts the results back in input order.
+ * <br/>
+ * The reading thread submits each Patient as soon as it has been read, along with the text between Patients, and the
+ * writer thread waits on each one in turn, so output is the same as processing every Patient on one thread.
+ * The number of entries waiting to be written is bounded, so the reader blocks instead of reading ahead of the workers.
+ * <br/>
+ * Each worker thread has its own {@link NaxMetrics}, which should be merged into the result once the pipeline is finished.
+ * Value counts are the exception: workers only collect each Patient's values, and the writer thread counts them in
+ * input order, so the values kept under {@link Nax#MAX_VALUE_COUNT} are the same as on one thread.
+ */
+public class PatientPipeline
+		implements AutoCloseable
+{
+	private static final Logger logger = Logger.getLogger(PatientPipeline.class.getName());
+
+	private static final int QUEUE_ENTRIES_PER_THREAD = 16;
+
+	/**
+	 * Filters a Patient on a worker thread, updating the worker's metrics and passing every value to count to the
+	 * valueCounter, returns true if the Patient should be written.
+	 */
+	public interface PatientHandler
+	{
+		boolean handle(Patient patient,
+					   NaxMetrics naxMetrics,
+					   BiConsumer<String, String> valueCounter)
+				throws Exception;
+	}
+
+	/**
+	 * Writes Patients and the text between them on the writer thread.
+	 */
+	public interface PatientWriter
+	{
+		/**
+		 * Count a value collected by the {@link PatientHandler}, called for every Patient whether it's written or not.
+		 */
+		void countValue(String name,
+						String value)
+				throws Exception;
+
+		void writePatient(Patient patient,
+						  byte[] originalBytes)
+				throws Exception;
+
+		void writeText(String text)
+				throws Exception;
+	}
+
+	private static class Entry
+	{
+		private Patient patient = null;
+		private byte[] originalBytes = null;
+		private Future<Boolean> includePatient = null;
+		private List<String[]> valueCounts = null;
+		private String text = null;
+		private CountDownLatch barrier = null;
+		private boolean last = false;
+	}
+
+	private final PatientHandler patientHandler;
+	private final PatientWriter patientWriter;
+	private final ExecutorService workerExecutorService;
+	private final BlockingQueue<Entry> entries;
+	private final Thread writerThread;
+	private final List<NaxMetrics> workerMetrics = Collections.synchronizedList(new ArrayList<>());
+	private final ThreadLocal<NaxMetrics> threadMetrics = ThreadLocal.withInitial(this::createWorkerMetrics);
+
+	private volatile Exception failure = null;
+
+	public PatientPipeline(int threads,
+						   PatientHandler patientHandler,
+						   PatientWriter patientWriter)
+	{
+		this.patientHandler = patientHandler;
+		this.patientWriter = patientWriter;
+		this.entries = new ArrayBlockingQueue<>(threads * QUEUE_ENTRIES_PER_THREAD);
+		this.workerExecutorService = Executors.newFixedThreadPool(threads, createThreadFactory("nax-worker"));
+		this.writerThread = createThreadFactory("nax-writer").newThread(this::runWriter);
+		this.writerThread.start();
+
+		logger.info(String.format("Processing Patient elements with %d worker threads...", threads));
+	}
+
+	static ThreadFactory createThreadFactory(String namePrefix)
+	{
+		AtomicInteger threadCount = new AtomicInteger(0);
+
+		return runnable -> {
+			Thread thread = new Thread(runnable, String.format("%s-%d", namePrefix, threadCount.incrementAndGet()));
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private NaxMetrics createWorkerMetrics()
+	{
+		NaxMetrics naxMetrics = new NaxMetrics();
+		this.workerMetrics.add(naxMetrics);
+
+		return naxMetrics;
+	}
+
+	/**
+	 * Start processing a Patient on a worker thread, blocks while too many entries are waiting to be written.
+	 *
+	 * @param originalBytes the Patient's bytes from input, to write instead of the Patient if it comes out unchanged, or null
+	 */
+	public void submitPatient(Patient patient,
+							  byte[] originalBytes)
+			throws Exception
+	{
+		Entry entry = new Entry();
+
+		entry.patient = patient;
+		entry.originalBytes = originalBytes;
+		entry.valueCounts = new ArrayList<>();
+		entry.includePatient = this.workerExecutorService
+				.submit(() -> this.patientHandler.handle(patient, this.threadMetrics.get(), (name, value) -> entry.valueCounts
+						.add(new String[]{name, value})));
+
+		put(entry);
+	}
+
+	/**
+	 * Queue text to be written in order between Patients.
+	 */
+	public void submitText(String text)
+			throws Exception
+	{
+		Entry entry = new Entry();
+		entry.text = text;
+
+		put(entry);
+	}
+
+	/**
+	 * Wait until everything submitted so far has been written, so the caller can safely write to the output itself.
+	 */
+	public void drain()
+			throws Exception
+	{
+		Entry entry = new Entry();
+		entry.barrier = new CountDownLatch(1);
+
+		put(entry);
+
+		entry.barrier.await();
+
+		throwFailure();
+	}
+
+	/**
+	 * Write everything that was submitted and stop all threads.
+	 *
+	 * @return the metrics from each worker thread
+	 */
+	public List<NaxMetrics> finish()
+			throws Exception
+	{
+		Entry entry = new Entry();
+		entry.last = true;
+
+		put(entry);
+
+		this.writerThread.join();
+		this.workerExecutorService.shutdown();
+		this.workerExecutorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+		throwFailure();
+
+		return new ArrayList<>(this.workerMetrics);
+	}
+
+	/**
+	 * Stop all threads without waiting for anything left to be written, safe to call after {@link #finish()}.
+	 */
+	@Override
+	public void close()
+	{
+		this.workerExecutorService.shutdownNow();
+		this.writerThread.interrupt();
+	}
+
+	private void put(Entry entry)
+			throws Exception
+	{
+		throwFailure();
+
+		this.entries.put(entry);
+	}
+
+	private void throwFailure()
+			throws Exception
+	{
+		if (this.failure != null)
+		{
+			throw this.failure;
+		}
+	}
+
+	/**
+	 * Write entries in the order they were submitted. After a failure, entries are still taken from the queue
+	 * (without writing anything) so a reader waiting in {@link #drain()} or {@link #finish()} is never left blocked.
+	 */
+	private void runWriter()
+	{
+		boolean done = false;
+
+		while (done == false)
+		{
+			try
+			{
+				Entry entry = this.entries.take();
+
+				if (entry.last)
+				{
+					done = true;
+				}
+				else if (entry.barrier != null)
+				{
+					entry.barrier.countDown();
+				}
+				else if (this.failure == null)
+				{
+					if (entry.text != null)
+					{
+						this.patientWriter.writeText(entry.text);
+					}
+					else
+					{
+						boolean includePatient = entry.includePatient.get();
+
+						for (String[] valueCount : entry.valueCounts)
+						{
+							this.patientWriter.countValue(valueCount[0], valueCount[1]);
+						}
+
+						if (includePatient)
+						{
+							this.patientWriter.writePatient(entry.patient, entry.originalBytes);
+						}
+					}
+				}
+			}
+			catch (InterruptedException interruptedException)
+			{
+				done = true;
+			}
+			catch (ExecutionException executionException)
+			{
+				this.failure = executionException.getCause() instanceof Exception ? (Exception) executionException
+						.getCause() : executionException;
+			}
+			catch (Exception exception)
+			{
+				this.failure = exception;
+			}
+		}
+	}
+}
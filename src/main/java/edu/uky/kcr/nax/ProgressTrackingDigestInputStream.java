@@ -32,39 +32,42 @@
 package edu.uky.kcr.nax;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import org.apache.commons.codec.binary.Hex;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 
 /**
- * A subclass of {@link DigestInputStream} that keeps track of how many bytes have been read,
- * how many total should be read, and the name of the input.
+ * A {@link FilterInputStream} that hashes every byte read with a {@link ContentDigest}, keeps track of how many bytes
+ * have been read, how many total should be read, and the name of the input.
  * Useful for showing progress to a user when reading a very large file and outputting the file hash without reading it twice.
  */
 public class ProgressTrackingDigestInputStream
-		extends DigestInputStream
+		extends FilterInputStream
 		implements NaxFileInfo
 {
-	private static final String DEFAULT_MESSAGE_DIGEST_ALGORITHM = "MD5";
-
 	@JsonIgnore
 	private long totalRead = -1;
 	private long totalLength = -1;
 	private String name = null;
-	private String md5 = null;
 
 	@JsonIgnore
-	private ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+	private final ContentDigest contentDigest;
+	@JsonIgnore
+	private final byte[] singleByte = new byte[1];
+
 	@JsonIgnore
 	private static int MAX_READ_BUFFER = 1024;
+	//The first bytes read, kept to find the line separator
+	@JsonIgnore
+	private final byte[] firstBlock = new byte[MAX_READ_BUFFER];
+	@JsonIgnore
+	private int firstBlockLength = 0;
 
 	@JsonIgnore
 	private String lineSeparator = null;
@@ -81,7 +84,17 @@ public class ProgressTrackingDigestInputStream
 											 long totalLength)
 			throws NoSuchAlgorithmException
 	{
-		super(inputStream, MessageDigest.getInstance(DEFAULT_MESSAGE_DIGEST_ALGORITHM));
+		this(inputStream, name, totalLength, ContentDigest.newInstance(ContentDigest.MD5));
+	}
+
+	public ProgressTrackingDigestInputStream(InputStream inputStream,
+											 String name,
+											 long totalLength,
+											 ContentDigest contentDigest)
+	{
+		super(inputStream);
+
+		this.contentDigest = contentDigest;
 
 		setTotalRead(0);
 		setName(name);
@@ -89,27 +102,28 @@ public class ProgressTrackingDigestInputStream
 	}
 
 	@Override
-	@JsonIgnore
-	public MessageDigest getMessageDigest()
+	public String getDigestAlgorithm()
 	{
-		return super.getMessageDigest();
+		return this.contentDigest.getAlgorithm();
 	}
 
-	public String getMd5()
+	@Override
+	public String getDigest()
 	{
-		if (this.md5 == null)
-		{
-			this.md5 = Hex.encodeHexString(getMessageDigest().digest());
-		}
+		return this.contentDigest.getValue();
+	}
 
-		return this.md5;
+	@Override
+	public String getMd5()
+	{
+		return ContentDigest.MD5.equalsIgnoreCase(getDigestAlgorithm()) ? getDigest() : null;
 	}
 
-	private String determineLineSeparator(byte[] readBuffer)
+	private String determineLineSeparator()
 	{
 		String lineSeparator = null;
 
-		String text = new String(getByteArrayOutputStream().toByteArray());
+		String text = new String(this.firstBlock, 0, this.firstBlockLength, StandardCharsets.ISO_8859_1);
 		int firstIndex = text.indexOf('\n');
 
 		if (firstIndex > 0)
@@ -132,15 +146,16 @@ public class ProgressTrackingDigestInputStream
 	{
 		if (this.lineSeparator == null)
 		{
-			if (getByteArrayOutputStream().size() > 0)
+			if (this.firstBlockLength > 0)
 			{
-				this.lineSeparator = determineLineSeparator(getByteArrayOutputStream().toByteArray());
+				this.lineSeparator = determineLineSeparator();
 			}
 		}
 
 		return this.lineSeparator;
 	}
 
+	@Override
 	public long getTotalRead()
 	{
 		return totalRead;
@@ -151,6 +166,7 @@ public class ProgressTrackingDigestInputStream
 		this.totalRead = totalRead;
 	}
 
+	@Override
 	public long getTotalLength()
 	{
 		return totalLength;
@@ -161,18 +177,13 @@ public class ProgressTrackingDigestInputStream
 		this.totalLength = totalLength;
 	}
 
+	@Override
 	public String getName()
 	{
 		return name;
 
 	}
 
-	@JsonIgnore
-	public ByteArrayOutputStream getByteArrayOutputStream()
-	{
-		return byteArrayOutputStream;
-	}
-
 	public void setName(String name)
 	{
 		this.name = name;
@@ -182,34 +193,38 @@ public class ProgressTrackingDigestInputStream
 	public int read()
 			throws IOException
 	{
-		setTotalRead(getTotalRead() + 1);
-
-		int nextRead = super.read();
-
-		if (nextRead > 0)
-		{
-			if (getByteArrayOutputStream().size() < MAX_READ_BUFFER)
-			{
-				getByteArrayOutputStream().write(nextRead);
-			}
-		}
+		int nextRead = read(this.singleByte, 0, 1);
 
-		return nextRead;
+		return (nextRead > 0) ? (this.singleByte[0] & 0xFF) : -1;
 	}
 
 	@Override
 	public int read(byte[] bytes)
 			throws IOException
 	{
-		int nextRead = super.read(bytes);
+		return read(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public int read(byte[] bytes,
+					int off,
+					int len)
+			throws IOException
+	{
+		int nextRead = super.read(bytes, off, len);
 
 		if (nextRead > 0)
 		{
 			setTotalRead(getTotalRead() + nextRead);
 
-			if (getByteArrayOutputStream().size() < MAX_READ_BUFFER)
+			this.contentDigest.update(bytes, off, nextRead);
+
+			if (this.firstBlockLength < this.firstBlock.length)
 			{
-				getByteArrayOutputStream().write(bytes);
+				int captureLength = Math.min(nextRead, this.firstBlock.length - this.firstBlockLength);
+
+				System.arraycopy(bytes, off, this.firstBlock, this.firstBlockLength, captureLength);
+				this.firstBlockLength += captureLength;
 			}
 		}
 
@@ -217,23 +232,31 @@ public class ProgressTrackingDigestInputStream
 	}
 
 	@Override
-	public int read(byte[] bytes,
-					int off,
-					int len)
+	public long skip(long n)
 			throws IOException
 	{
-		int nextRead = super.read(bytes, off, len);
+		byte[] skipped = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+		long totalSkipped = 0;
 
-		if (nextRead > 0)
+		//Skipped bytes still go into the hash
+		while (totalSkipped < n)
 		{
-			setTotalRead(getTotalRead() + nextRead);
+			int nextRead = read(skipped, 0, (int) Math.min(skipped.length, n - totalSkipped));
 
-			if (getByteArrayOutputStream().size() < MAX_READ_BUFFER)
+			if (nextRead < 0)
 			{
-				getByteArrayOutputStream().write(bytes, off, nextRead);
+				break;
 			}
+
+			totalSkipped += nextRead;
 		}
 
-		return nextRead;
+		return totalSkipped;
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		return false;
 	}
 }
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package edu.uky.kcr.nax;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Reads an InputStream on its own thread into a bounded pool of buffers, so reading the input, and inflating it when
+ * it's compressed, runs at the same time as parsing.
+ * <br/>
+ * Filled buffers are taken in input order and must be released once their bytes have been used. The reader thread
+ * blocks when every buffer is waiting to be used, so it never reads more than the pool holds ahead of the parser.
+ * <br/>
+ * Time spent waiting on each side is kept, so a run shows whether parsing waited on reading or reading waited on parsing.
+ */
+public class ReadAheadBuffers
+		implements AutoCloseable
+{
+	private static final Logger logger = Logger.getLogger(ReadAheadBuffers.class.getName());
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	public static final int DEFAULT_BUFFER_COUNT = 16;
+	public static final long CLOSE_TIMEOUT_MILLIS = 10000;
+	//How often the reader thread checks whether it was closed while it waits for a free buffer
+	private static final long CLOSED_CHECK_MILLIS = 100;
+
+	public static class Buffer
+	{
+		private final byte[] bytes;
+		private int length = 0;
+
+		private Buffer(byte[] bytes)
+		{
+			this.bytes = bytes;
+		}
+
+		public byte[] getBytes()
+		{
+			return bytes;
+		}
+
+		public int getLength()
+		{
+			return length;
+		}
+	}
+
+	//Queued after the last filled buffer, and put back every time it's taken
+	private static final Buffer END_OF_INPUT = new Buffer(new byte[0]);
+
+	private final InputStream inputStream;
+	private final BlockingQueue<Buffer> freeBuffers;
+	private final BlockingQueue<Buffer> filledBuffers;
+	private final Thread readerThread;
+
+	private volatile IOException failure = null;
+	private volatile boolean closed = false;
+	//Time the parser waited for filled buffers, and time the reader thread waited for free ones
+	private long inputStallNanos = 0;
+	private volatile long parsingStallNanos = 0;
+
+	public ReadAheadBuffers(InputStream inputStream)
+	{
+		this(inputStream, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+	}
+
+	public ReadAheadBuffers(InputStream inputStream,
+							int bufferSize,
+							int bufferCount)
+	{
+		this.inputStream = inputStream;
+		this.freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+		this.filledBuffers = new ArrayBlockingQueue<>(bufferCount + 1);
+
+		for (int i = 0; i < bufferCount; i++)
+		{
+			this.freeBuffers.add(new Buffer(new byte[bufferSize]));
+		}
+
+		this.readerThread = PatientPipeline.createThreadFactory("nax-reader").newThread(this::runReader);
+		this.readerThread.start();
+	}
+
+	/**
+	 * Wait for the next filled buffer.
+	 *
+	 * @return the buffer, or null at the end of the input
+	 * @throws IOException if reading the input failed
+	 */
+	public Buffer take()
+			throws IOException
+	{
+		Buffer buffer = this.filledBuffers.poll();
+
+		try
+		{
+			if (buffer == null)
+			{
+				long startNanos = System.nanoTime();
+				buffer = this.filledBuffers.take();
+				this.inputStallNanos += System.nanoTime() - startNanos;
+			}
+		}
+		catch (InterruptedException interruptedException)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for input");
+		}
+
+		if (buffer == END_OF_INPUT)
+		{
+			this.filledBuffers.add(END_OF_INPUT);
+
+			if (this.failure != null)
+			{
+				throw this.failure;
+			}
+
+			buffer = null;
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer taken with {@link #take()} back to the reader thread to fill again.
+	 */
+	public void release(Buffer buffer)
+	{
+		this.freeBuffers.add(buffer);
+	}
+
+	/**
+	 * Milliseconds spent in {@link #take()} waiting for the reader thread to read and inflate more input.
+	 */
+	public long getInputStallMillis()
+	{
+		return this.inputStallNanos / 1000000L;
+	}
+
+	/**
+	 * Milliseconds the reader thread spent waiting for buffers to be released, because the parser was behind.
+	 */
+	public long getParsingStallMillis()
+	{
+		return this.parsingStallNanos / 1000000L;
+	}
+
+	/**
+	 * Stop the reader thread after the read it's in, and wait up to {@link #CLOSE_TIMEOUT_MILLIS} for it to end. The
+	 * reader thread is never interrupted, since that would close an interruptible channel underneath the InputStream,
+	 * and the InputStream is left open. A read that blocks longer than the timeout can't be stopped, so the thread is
+	 * left to end on its own, and the InputStream shouldn't be used again until it does.
+	 */
+	@Override
+	public void close()
+	{
+		this.closed = true;
+
+		//Filled buffers are never going to be used, giving them back wakes the reader thread if it's waiting for one
+		Buffer buffer = this.filledBuffers.poll();
+
+		while (buffer != null)
+		{
+			if (buffer != END_OF_INPUT)
+			{
+				this.freeBuffers.add(buffer);
+			}
+
+			buffer = this.filledBuffers.poll();
+		}
+
+		try
+		{
+			this.readerThread.join(CLOSE_TIMEOUT_MILLIS);
+		}
+		catch (InterruptedException interruptedException)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		if (this.readerThread.isAlive())
+		{
+			logger.warning(String.format("Read ahead thread %s is still reading after %d ms, leaving it to finish on its own",
+										 this.readerThread.getName(), CLOSE_TIMEOUT_MILLIS));
+		}
+	}
+
+	private void runReader()
+	{
+		try
+		{
+			boolean done = false;
+
+			while (done == false)
+			{
+				Buffer buffer = this.freeBuffers.poll();
+
+				if (buffer == null)
+				{
+					long startNanos = System.nanoTime();
+
+					while ((buffer == null) && (this.closed == false))
+					{
+						buffer = this.freeBuffers.poll(CLOSED_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+					}
+
+					this.parsingStallNanos += System.nanoTime() - startNanos;
+				}
+
+				if (this.closed)
+				{
+					break;
+				}
+
+				buffer.length = IOUtils.read(this.inputStream, buffer.bytes);
+
+				if (buffer.length > 0)
+				{
+					this.filledBuffers.put(buffer);
+				}
+
+				//A short read only happens at the end of the input
+				done = buffer.length < buffer.bytes.length;
+			}
+		}
+		catch (InterruptedException interruptedException)
+		{
+			//Nothing in nax interrupts this thread, but if something else does the parser still sees the input end early
+			this.failure = new InterruptedIOException("Read ahead thread was interrupted");
+		}
+		catch (IOException exception)
+		{
+			this.failure = exception;
+		}
+
+		this.filledBuffers.add(END_OF_INPUT);
+	}
+}
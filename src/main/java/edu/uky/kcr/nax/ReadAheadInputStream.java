@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream over the buffers of a {@link ReadAheadBuffers}, so a blocking parser reads bytes that another thread
+ * has already read and inflated. Reading happens on the other thread up to the size of the buffer pool ahead of this
+ * stream.
+ * <br/>
+ * Closing this stream stops the reader thread, but doesn't close the InputStream it reads from.
+ */
+public class ReadAheadInputStream
+		extends InputStream
+{
+	private final ReadAheadBuffers readAheadBuffers;
+	private ReadAheadBuffers.Buffer buffer = null;
+	private int position = 0;
+	private boolean endOfInput = false;
+
+	public ReadAheadInputStream(InputStream inputStream)
+	{
+		this(new ReadAheadBuffers(inputStream));
+	}
+
+	public ReadAheadInputStream(ReadAheadBuffers readAheadBuffers)
+	{
+		this.readAheadBuffers = readAheadBuffers;
+	}
+
+	public ReadAheadBuffers getReadAheadBuffers()
+	{
+		return readAheadBuffers;
+	}
+
+	/**
+	 * Make sure there are unread bytes in the current buffer, taking the next one when needed.
+	 *
+	 * @return false at the end of the input
+	 */
+	private boolean fillBuffer()
+			throws IOException
+	{
+		if ((this.buffer != null) && (this.position >= this.buffer.getLength()))
+		{
+			this.readAheadBuffers.release(this.buffer);
+			this.buffer = null;
+		}
+
+		if ((this.buffer == null) && (this.endOfInput == false))
+		{
+			this.buffer = this.readAheadBuffers.take();
+			this.position = 0;
+			this.endOfInput = (this.buffer == null);
+		}
+
+		return (this.buffer != null);
+	}
+
+	@Override
+	public int read()
+			throws IOException
+	{
+		int nextByte = -1;
+
+		if (fillBuffer())
+		{
+			nextByte = this.buffer.getBytes()[this.position++] & 0xFF;
+		}
+
+		return nextByte;
+	}
+
+	@Override
+	public int read(byte[] bytes,
+					int offset,
+					int length)
+			throws IOException
+	{
+		int readCount = -1;
+
+		if (length == 0)
+		{
+			readCount = 0;
+		}
+		else if (fillBuffer())
+		{
+			readCount = Math.min(length, this.buffer.getLength() - this.position);
+			System.arraycopy(this.buffer.getBytes(), this.position, bytes, offset, readCount);
+			this.position += readCount;
+		}
+
+		return readCount;
+	}
+
+	@Override
+	public int available()
+	{
+		return (this.buffer != null) ? (this.buffer.getLength() - this.position) : 0;
+	}
+
+	@Override
+	public void close()
+	{
+		this.readAheadBuffers.close();
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.tools.GroovyClass;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A directory of compiled Groovy scripts, so Nax only runs the Groovy compiler the first time it sees a script.
+ * <br/>
+ * Every script is stored in its own file, named by the MD5 of the script and a key for everything else that changes
+ * the compiled classes, like the Groovy version, imports, whether scripts are static, and the classpath. The file holds
+ * the bytes of every class compiled from the script along with its {@link ScriptDependencies}. Files are written to a
+ * temporary name and moved into place, so several Nax processes can share a cache directory.
+ */
+public class ScriptCache
+{
+	private static final Logger logger = Logger.getLogger(ScriptCache.class.getName());
+
+	private static final int CACHE_MAGIC = 0x4e415853; //NAXS
+	private static final int CACHE_FORMAT = 3;
+	private static final String CACHE_FILE_EXTENSION = ".naxscript";
+
+	private final File directory;
+
+	public ScriptCache(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * A script class loaded from the cache, or compiled and then added to it
+	 */
+	public static class CachedScript
+	{
+		private final Class<? extends Script> scriptClass;
+		private final ScriptDependencies scriptDependencies;
+		private final boolean cacheHit;
+
+		private CachedScript(Class<? extends Script> scriptClass,
+							 ScriptDependencies scriptDependencies,
+							 boolean cacheHit)
+		{
+			this.scriptClass = scriptClass;
+			this.scriptDependencies = scriptDependencies;
+			this.cacheHit = cacheHit;
+		}
+
+		public Class<? extends Script> getScriptClass()
+		{
+			return scriptClass;
+		}
+
+		public ScriptDependencies getScriptDependencies()
+		{
+			return scriptDependencies;
+		}
+
+		/**
+		 * @return true if the script was loaded from the cache without compiling it
+		 */
+		public boolean isCacheHit()
+		{
+			return cacheHit;
+		}
+	}
+
+	/**
+	 * Defines the classes of a single cached script when they are first used
+	 */
+	private static class CachedScriptClassLoader
+			extends ClassLoader
+	{
+		private final Map<String, byte[]> classBytes;
+
+		private CachedScriptClassLoader(ClassLoader parent,
+										Map<String, byte[]> classBytes)
+		{
+			super(parent);
+			this.classBytes = classBytes;
+		}
+
+		@Override
+		protected Class<?> findClass(String name)
+				throws ClassNotFoundException
+		{
+			byte[] bytes = this.classBytes.get(name);
+
+			if (bytes == null)
+			{
+				throw new ClassNotFoundException(name);
+			}
+
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * @param compilerKey     everything besides the script that changes how it compiles
+	 * @param parentClassLoader loads the classes that scripts use
+	 */
+	public CachedScript getOrCompile(String scriptString,
+									 String scriptName,
+									 String compilerKey,
+									 CompilerConfiguration compilerConfiguration,
+									 ClassLoader parentClassLoader)
+	{
+		String cacheKey = DigestUtils.md5Hex(String.format("%d\n%s\n%s", CACHE_FORMAT, compilerKey, scriptString));
+		String className = String.format("NaxCachedScript_%s", cacheKey);
+		File cacheFile = new File(this.directory, cacheKey + CACHE_FILE_EXTENSION);
+		CachedScript cachedScript = null;
+
+		if (cacheFile.isFile())
+		{
+			try
+			{
+				cachedScript = readCacheFile(cacheFile, className, scriptName, parentClassLoader);
+			}
+			catch (IOException | LinkageError exception)
+			{
+				logger.warning(String.format("Could not read cached script %s, compiling it again: %s", cacheFile
+						.getAbsolutePath(), exception.getMessage()));
+			}
+		}
+
+		if (cachedScript == null)
+		{
+			Map<String, byte[]> classBytes = compile(scriptString, className, compilerConfiguration, parentClassLoader);
+			ScriptDependencies scriptDependencies = ScriptDependencies.analyze(scriptString, scriptName, compilerConfiguration);
+
+			writeCacheFile(cacheFile, classBytes, scriptDependencies);
+
+			try
+			{
+				cachedScript = new CachedScript(loadScriptClass(className, classBytes, parentClassLoader), scriptDependencies, false);
+			}
+			catch (IOException ioException)
+			{
+				throw new UncheckedIOException(ioException);
+			}
+		}
+
+		return cachedScript;
+	}
+
+	private static Map<String, byte[]> compile(String scriptString,
+											   String className,
+											   CompilerConfiguration compilerConfiguration,
+											   ClassLoader parentClassLoader)
+	{
+		CompilationUnit compilationUnit = new CompilationUnit(compilerConfiguration, null, new GroovyClassLoader(
+				parentClassLoader, compilerConfiguration));
+
+		//The script class is named after its source
+		compilationUnit.addSource(className + ".groovy", scriptString);
+		compilationUnit.compile(Phases.CLASS_GENERATION);
+
+		Map<String, byte[]> classBytes = new LinkedHashMap<>();
+
+		for (GroovyClass groovyClass : compilationUnit.getClasses())
+		{
+			classBytes.put(groovyClass.getName(), groovyClass.getBytes());
+		}
+
+		return classBytes;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends Script> loadScriptClass(String className,
+														   Map<String, byte[]> classBytes,
+														   ClassLoader parentClassLoader)
+			throws IOException
+	{
+		try
+		{
+			return (Class<? extends Script>) Class.forName(className, true, new CachedScriptClassLoader(parentClassLoader, classBytes));
+		}
+		catch (ClassNotFoundException classNotFoundException)
+		{
+			throw new IOException(String.format("Compiled script is missing class %s", className), classNotFoundException);
+		}
+	}
+
+	private static CachedScript readCacheFile(File cacheFile,
+											  String className,
+											  String scriptName,
+											  ClassLoader parentClassLoader)
+			throws IOException
+	{
+		try (DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile))))
+		{
+			if (dataInputStream.readInt() != CACHE_MAGIC || dataInputStream.readInt() != CACHE_FORMAT)
+			{
+				throw new IOException("Not a cached script, or it was written by a different version of Nax");
+			}
+
+			ScriptDependencies scriptDependencies = ScriptDependencies.read(dataInputStream, scriptName);
+			int classCount = dataInputStream.readInt();
+			Map<String, byte[]> classBytes = new LinkedHashMap<>();
+
+			for (int i = 0; i < classCount; i++)
+			{
+				String name = dataInputStream.readUTF();
+				byte[] bytes = new byte[dataInputStream.readInt()];
+				dataInputStream.readFully(bytes);
+				classBytes.put(name, bytes);
+			}
+
+			logger.fine(String.format("Loaded compiled script %s from %s", scriptName, cacheFile.getAbsolutePath()));
+
+			return new CachedScript(loadScriptClass(className, classBytes, parentClassLoader), scriptDependencies, true);
+		}
+	}
+
+	/**
+	 * A script that can't be written to the cache still runs, it just has to be compiled again next time
+	 */
+	private void writeCacheFile(File cacheFile,
+								Map<String, byte[]> classBytes,
+								ScriptDependencies scriptDependencies)
+	{
+		File temporaryFile = null;
+
+		try
+		{
+			Files.createDirectories(this.directory.toPath());
+			temporaryFile = File.createTempFile(cacheFile.getName(), ".tmp", this.directory);
+
+			try (DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile))))
+			{
+				dataOutputStream.writeInt(CACHE_MAGIC);
+				dataOutputStream.writeInt(CACHE_FORMAT);
+				scriptDependencies.write(dataOutputStream);
+				dataOutputStream.writeInt(classBytes.size());
+
+				for (Map.Entry<String, byte[]> classEntry : classBytes.entrySet())
+				{
+					dataOutputStream.writeUTF(classEntry.getKey());
+					dataOutputStream.writeInt(classEntry.getValue().length);
+					dataOutputStream.write(classEntry.getValue());
+				}
+			}
+
+			try
+			{
+				Files.move(temporaryFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException atomicMoveNotSupportedException)
+			{
+				Files.move(temporaryFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (IOException ioException)
+		{
+			logger.warning(String.format("Could not write compiled script to %s: %s", cacheFile.getAbsolutePath(), ioException
+					.getMessage()));
+
+			if (temporaryFile != null)
+			{
+				temporaryFile.delete();
+			}
+		}
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+}
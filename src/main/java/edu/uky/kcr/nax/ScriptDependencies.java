@@ -0,0 +1,780 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.codehaus.groovy.ast.ClassCodeVisitorSupport;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.ImportNode;
+import org.codehaus.groovy.ast.MethodNode;
+import org.codehaus.groovy.ast.ModuleNode;
+import org.codehaus.groovy.ast.Parameter;
+import org.codehaus.groovy.ast.expr.BinaryExpression;
+import org.codehaus.groovy.ast.expr.BooleanExpression;
+import org.codehaus.groovy.ast.expr.ClosureExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.DeclarationExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.ListExpression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.expr.PropertyExpression;
+import org.codehaus.groovy.ast.expr.TupleExpression;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.ast.stmt.CatchStatement;
+import org.codehaus.groovy.ast.stmt.EmptyStatement;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.ForStatement;
+import org.codehaus.groovy.ast.stmt.IfStatement;
+import org.codehaus.groovy.ast.stmt.ReturnStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.ResolveVisitor;
+import org.codehaus.groovy.control.SourceUnit;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * What a script reads, found by walking its AST when it is compiled, so Nax only builds the data that scripts need
+ * and only runs scripts on the Items they can act on. Included in the NaxConfig of every NaxResult.
+ * <br/>
+ * A script needs DOM Elements when it uses the element variable, or the element/itemElement of a Patient, Tumor, or Item.
+ * <br/>
+ * A script that is only a list of if statements without an else, like
+ * <pre>
+ *     if (elementName == 'Item' &amp;&amp; naaccrId == 'nameLast') item.setItemValue('X')
+ *     true
+ * </pre>
+ * does nothing to elements that fail every condition, so it is skipped for Items when none of its conditions can match
+ * their naaccrId. This only applies when every part of every condition is a plain comparison that can't change anything.
+ */
+public class ScriptDependencies
+{
+	private static final Set<String> NAX_VARIABLES = new HashSet<>(Arrays.asList(
+			"inputFilename", "elementName", "naaccrData", "patient", "tumor", "item", "element",
+			NaxConstants.NAACCR_ID, NaxConstants.ITEM_VALUE));
+
+	//Script variables that are neither nax variables nor naaccrIds
+	private static final Set<String> OTHER_VARIABLES = new HashSet<>(Arrays.asList("this", "super", "it", "args", "name"));
+
+	/**
+	 * Operators that only read values, so using them in an if condition can't change anything
+	 */
+	private static final Set<String> PURE_OPERATORS = new HashSet<>(Arrays.asList(
+			"==", "!=", "<", "<=", ">", ">=", "&&", "||", "in", "+", "=~", "==~"));
+
+	private static final Set<String> ITEM_VALUE_METHODS = new HashSet<>(Arrays.asList("getItemValue", "getItemInt"));
+
+	private static final Set<String> DOM_METHODS = new HashSet<>(Arrays.asList("getElement", "getItemElement"));
+
+	private static final Set<String> DOM_PROPERTIES = new HashSet<>(Arrays.asList("element", "itemElement"));
+
+	/**
+	 * Methods that only read values, so calling them in an if condition can't change anything
+	 */
+	private static final Set<String> PURE_METHODS = new HashSet<>(Arrays.asList(
+			"equals", "startsWith", "endsWith", "contains", "isEmpty", "length", "size", "trim", "get",
+			"getItemValue", "getItemInt", "getItems", "getNaaccrId", "left", "right", "substring", "isBlank",
+			"isNotBlank", "isNotEmpty", "matches", "lookup"));
+
+	private String scriptName = null;
+	private final Set<String> variables = new TreeSet<>();
+	private final Set<String> naaccrIds = new TreeSet<>();
+	private boolean domRequired = false;
+	private boolean readOnly = true;
+	//null when the script can change any element, or any Item
+	private Set<String> elementNames = new TreeSet<>();
+	private Set<String> itemNaaccrIds = new TreeSet<>();
+
+	private ScriptDependencies()
+	{
+	}
+
+	/**
+	 * Parse a script that has already compiled, only as far as needed to walk its AST
+	 */
+	public static ScriptDependencies analyze(String scriptString,
+											 String scriptName)
+	{
+		return analyze(scriptString, scriptName, new CompilerConfiguration());
+	}
+
+	/**
+	 * @param compilerConfiguration the configuration the script was compiled with, so the imports it adds are known
+	 */
+	public static ScriptDependencies analyze(String scriptString,
+											 String scriptName,
+											 CompilerConfiguration compilerConfiguration)
+	{
+		ScriptDependencies scriptDependencies = new ScriptDependencies();
+		scriptDependencies.scriptName = scriptName;
+
+		CompilationUnit compilationUnit = new CompilationUnit(compilerConfiguration);
+		SourceUnit sourceUnit = compilationUnit.addSource("NaxScriptDependencies.groovy", scriptString);
+		compilationUnit.compile(Phases.CONVERSION);
+
+		ReferenceVisitor referenceVisitor = new ReferenceVisitor(sourceUnit);
+
+		for (ClassNode classNode : sourceUnit.getAST().getClasses())
+		{
+			referenceVisitor.visitClass(classNode);
+		}
+
+		for (String variableName : referenceVisitor.variableNames)
+		{
+			if (NAX_VARIABLES.contains(variableName))
+			{
+				scriptDependencies.variables.add(variableName);
+			}
+			else if ((OTHER_VARIABLES.contains(variableName) || referenceVisitor.declaredNames.contains(variableName) ||
+					isImportedName(variableName, sourceUnit.getAST())) == false)
+			{
+				//Any other variable can only come from the Binding, as the value of the Item with that naaccrId
+				scriptDependencies.naaccrIds.add(variableName);
+			}
+		}
+
+		scriptDependencies.naaccrIds.addAll(referenceVisitor.naaccrIds);
+		scriptDependencies.domRequired = referenceVisitor.domRequired || scriptDependencies.variables.contains("element");
+
+		for (Statement statement : sourceUnit.getAST().getStatementBlock().getStatements())
+		{
+			scriptDependencies.addStatementGuard(statement);
+			scriptDependencies.readOnly = scriptDependencies.readOnly && isReadOnlyStatement(statement);
+		}
+
+		if (sourceUnit.getAST().getMethods().isEmpty() == false)
+		{
+			//Methods declared by the script could be called from anywhere, including conditions
+			scriptDependencies.elementNames = null;
+			scriptDependencies.itemNaaccrIds = null;
+			scriptDependencies.readOnly = false;
+		}
+
+		return scriptDependencies;
+	}
+
+	/**
+	 * Class names, like Math or StringUtils, and static imports parse as variables before classes are resolved, so they
+	 * are resolved here the same way the compiler would: explicit imports, then the script's and Groovy's default star
+	 * imports.
+	 */
+	private static boolean isImportedName(String name,
+										  ModuleNode moduleNode)
+	{
+		boolean importedName = (moduleNode.getImport(name) != null) || moduleNode.getStaticImports().containsKey(name);
+		List<String> packageNames = new ArrayList<>(Arrays.asList(ResolveVisitor.DEFAULT_IMPORTS));
+
+		packageNames.add("java.math.");
+
+		for (ImportNode importNode : moduleNode.getStarImports())
+		{
+			packageNames.add(importNode.getPackageName());
+		}
+
+		for (int i = 0; (importedName == false) && (i < packageNames.size()); i++)
+		{
+			importedName = isClassName(packageNames.get(i) + name);
+		}
+
+		for (ImportNode importNode : moduleNode.getStaticStarImports().values())
+		{
+			if (importedName == false)
+			{
+				try
+				{
+					Class.forName(importNode.getClassName(), false, ScriptDependencies.class.getClassLoader()).getField(name);
+					importedName = true;
+				}
+				catch (ClassNotFoundException | LinkageError | NoSuchFieldException exception)
+				{
+					//Not a static field of this class, the class itself is checked when the script compiles
+				}
+			}
+		}
+
+		return importedName;
+	}
+
+	private static boolean isClassName(String className)
+	{
+		boolean classFound = false;
+
+		try
+		{
+			Class.forName(className, false, ScriptDependencies.class.getClassLoader());
+			classFound = true;
+		}
+		catch (ClassNotFoundException | LinkageError exception)
+		{
+			//Most names aren't classes, they're naaccrIds
+		}
+
+		return classFound;
+	}
+
+	/**
+	 * Write everything but the script name, to be read back by {@link #read(DataInput, String)} from a {@link ScriptCache}
+	 */
+	void write(DataOutput dataOutput)
+			throws IOException
+	{
+		writeSet(dataOutput, this.variables);
+		writeSet(dataOutput, this.naaccrIds);
+		dataOutput.writeBoolean(this.domRequired);
+		dataOutput.writeBoolean(this.readOnly);
+		writeSet(dataOutput, this.elementNames);
+		writeSet(dataOutput, this.itemNaaccrIds);
+	}
+
+	static ScriptDependencies read(DataInput dataInput,
+								   String scriptName)
+			throws IOException
+	{
+		ScriptDependencies scriptDependencies = new ScriptDependencies();
+		scriptDependencies.scriptName = scriptName;
+		scriptDependencies.variables.addAll(readSet(dataInput));
+		scriptDependencies.naaccrIds.addAll(readSet(dataInput));
+		scriptDependencies.domRequired = dataInput.readBoolean();
+		scriptDependencies.readOnly = dataInput.readBoolean();
+		scriptDependencies.elementNames = readSet(dataInput);
+		scriptDependencies.itemNaaccrIds = readSet(dataInput);
+
+		return scriptDependencies;
+	}
+
+	private static void writeSet(DataOutput dataOutput,
+								 Set<String> values)
+			throws IOException
+	{
+		dataOutput.writeInt((values == null) ? -1 : values.size());
+
+		if (values != null)
+		{
+			for (String value : values)
+			{
+				dataOutput.writeUTF(value);
+			}
+		}
+	}
+
+	/**
+	 * @return the Set written by {@link #writeSet(DataOutput, Set)}, which may be null
+	 */
+	private static Set<String> readSet(DataInput dataInput)
+			throws IOException
+	{
+		int size = dataInput.readInt();
+		Set<String> values = null;
+
+		if (size >= 0)
+		{
+			values = new TreeSet<>();
+
+			for (int i = 0; i < size; i++)
+			{
+				values.add(dataInput.readUTF());
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * Add the elements and Items that a single top-level statement of the script can act on
+	 */
+	private void addStatementGuard(Statement statement)
+	{
+		if (isTrueStatement(statement) == false)
+		{
+			Set<String> statementElementNames = null;
+			Set<String> statementNaaccrIds = null;
+			boolean guarded = false;
+
+			if ((statement instanceof IfStatement) && (((IfStatement) statement).getElseBlock() instanceof EmptyStatement))
+			{
+				Expression condition = ((IfStatement) statement).getBooleanExpression().getExpression();
+				guarded = isPure(condition);
+
+				if (guarded)
+				{
+					for (Expression conjunct : getConjuncts(condition))
+					{
+						Set<String> guardElementNames = getEqualsConstants(conjunct, "elementName");
+						Set<String> guardNaaccrIds = getEqualsConstants(conjunct, NaxConstants.NAACCR_ID);
+
+						if (guardNaaccrIds != null)
+						{
+							//naaccrId is empty for everything but Items
+							guardElementNames = Collections.singleton(NaxConstants.ITEM_ELEMENT);
+							statementNaaccrIds = intersect(statementNaaccrIds, guardNaaccrIds);
+						}
+
+						statementElementNames = intersect(statementElementNames, guardElementNames);
+					}
+				}
+			}
+
+			if ((guarded == false) || (statementElementNames == null))
+			{
+				this.elementNames = null;
+			}
+			else if (this.elementNames != null)
+			{
+				this.elementNames.addAll(statementElementNames);
+			}
+
+			if ((guarded == false) || (statementElementNames == null) || statementElementNames.contains(NaxConstants.ITEM_ELEMENT))
+			{
+				if ((guarded == false) || (statementNaaccrIds == null))
+				{
+					this.itemNaaccrIds = null;
+				}
+				else if (this.itemNaaccrIds != null)
+				{
+					this.itemNaaccrIds.addAll(statementNaaccrIds);
+				}
+			}
+		}
+	}
+
+	private static Set<String> intersect(Set<String> first,
+										 Set<String> second)
+	{
+		Set<String> intersection = second;
+
+		if ((first != null) && (second != null))
+		{
+			intersection = new TreeSet<>(first);
+			intersection.retainAll(second);
+		}
+		else if (first != null)
+		{
+			intersection = first;
+		}
+
+		return intersection;
+	}
+
+	/**
+	 * A statement that only returns true, like the last line of a script that keeps every element
+	 */
+	private static boolean isTrueStatement(Statement statement)
+	{
+		Expression expression = null;
+
+		if (statement instanceof ExpressionStatement)
+		{
+			expression = ((ExpressionStatement) statement).getExpression();
+		}
+		else if (statement instanceof ReturnStatement)
+		{
+			expression = ((ReturnStatement) statement).getExpression();
+		}
+
+		return (expression instanceof ConstantExpression) && Boolean.TRUE.equals(((ConstantExpression) expression)
+				.getValue());
+	}
+
+	/**
+	 * A statement that only evaluates an expression that reads values, like a filter that returns a comparison
+	 */
+	private static boolean isReadOnlyStatement(Statement statement)
+	{
+		boolean readOnly = false;
+
+		if (statement instanceof ExpressionStatement)
+		{
+			readOnly = isPure(((ExpressionStatement) statement).getExpression());
+		}
+		else if (statement instanceof ReturnStatement)
+		{
+			readOnly = isPure(((ReturnStatement) statement).getExpression());
+		}
+
+		return readOnly;
+	}
+
+	private static List<Expression> getConjuncts(Expression condition)
+	{
+		List<Expression> conjuncts = null;
+
+		if ((condition instanceof BinaryExpression) && ((BinaryExpression) condition).getOperation().getText().equals("&&"))
+		{
+			conjuncts = getConjuncts(((BinaryExpression) condition).getLeftExpression());
+			conjuncts.addAll(getConjuncts(((BinaryExpression) condition).getRightExpression()));
+		}
+		else
+		{
+			conjuncts = new ArrayList<>(Collections.singletonList(condition));
+		}
+
+		return conjuncts;
+	}
+
+	/**
+	 * @return the Strings a variable must equal for this comparison to be true, or null if it isn't a comparison of that
+	 * variable to Strings, like: naaccrId == 'x', 'x' == naaccrId, naaccrId.equals('x'), or naaccrId in ['x', 'y']
+	 */
+	private static Set<String> getEqualsConstants(Expression expression,
+												  String variableName)
+	{
+		Set<String> constants = null;
+		Expression variable = null;
+		Expression value = null;
+
+		if (expression instanceof BinaryExpression)
+		{
+			BinaryExpression binaryExpression = (BinaryExpression) expression;
+			String operation = binaryExpression.getOperation().getText();
+
+			if (operation.equals("==") && isVariable(binaryExpression.getRightExpression(), variableName))
+			{
+				variable = binaryExpression.getRightExpression();
+				value = binaryExpression.getLeftExpression();
+			}
+			else if (operation.equals("==") || operation.equals("in"))
+			{
+				variable = binaryExpression.getLeftExpression();
+				value = binaryExpression.getRightExpression();
+			}
+		}
+		else if ((expression instanceof MethodCallExpression) && ((MethodCallExpression) expression).getMethodAsString()
+				.equals("equals"))
+		{
+			variable = ((MethodCallExpression) expression).getObjectExpression();
+			value = getFirstArgument((MethodCallExpression) expression);
+		}
+
+		if (isVariable(variable, variableName))
+		{
+			List<Expression> valueExpressions = (value instanceof ListExpression) ? ((ListExpression) value)
+					.getExpressions() : Collections.singletonList(value);
+
+			constants = new TreeSet<>();
+
+			for (Expression valueExpression : valueExpressions)
+			{
+				if ((valueExpression instanceof ConstantExpression) && (((ConstantExpression) valueExpression)
+						.getValue() instanceof String))
+				{
+					constants.add((String) ((ConstantExpression) valueExpression).getValue());
+				}
+				else
+				{
+					constants = null;
+					break;
+				}
+			}
+		}
+
+		return constants;
+	}
+
+	private static boolean isVariable(Expression expression,
+									  String variableName)
+	{
+		return (expression instanceof VariableExpression) && ((VariableExpression) expression).getName()
+				.equals(variableName);
+	}
+
+	private static Expression getFirstArgument(MethodCallExpression methodCallExpression)
+	{
+		Expression firstArgument = null;
+
+		if ((methodCallExpression.getArguments() instanceof TupleExpression) && (((TupleExpression) methodCallExpression
+				.getArguments()).getExpressions().isEmpty() == false))
+		{
+			firstArgument = ((TupleExpression) methodCallExpression.getArguments()).getExpression(0);
+		}
+
+		return firstArgument;
+	}
+
+	/**
+	 * @return true if evaluating an expression only reads values
+	 */
+	private static boolean isPure(Expression expression)
+	{
+		boolean pure = false;
+
+		if ((expression instanceof VariableExpression) || (expression instanceof ConstantExpression))
+		{
+			pure = true;
+		}
+		else if (expression instanceof BinaryExpression)
+		{
+			BinaryExpression binaryExpression = (BinaryExpression) expression;
+
+			pure = PURE_OPERATORS.contains(binaryExpression.getOperation().getText()) &&
+					isPure(binaryExpression.getLeftExpression()) && isPure(binaryExpression.getRightExpression());
+		}
+		else if (expression instanceof BooleanExpression)
+		{
+			//Includes NotExpression
+			pure = isPure(((BooleanExpression) expression).getExpression());
+		}
+		else if (expression instanceof ListExpression)
+		{
+			pure = ((ListExpression) expression).getExpressions().stream().allMatch(ScriptDependencies::isPure);
+		}
+		else if (expression instanceof PropertyExpression)
+		{
+			pure = isPure(((PropertyExpression) expression).getObjectExpression());
+		}
+		else if (expression instanceof MethodCallExpression)
+		{
+			MethodCallExpression methodCallExpression = (MethodCallExpression) expression;
+
+			pure = PURE_METHODS.contains(methodCallExpression.getMethodAsString()) && isPure(methodCallExpression
+					.getObjectExpression()) && (methodCallExpression.getArguments() instanceof TupleExpression) &&
+					((TupleExpression) methodCallExpression.getArguments()).getExpressions().stream()
+							.allMatch(ScriptDependencies::isPure);
+		}
+
+		return pure;
+	}
+
+	/**
+	 * @return true if this script has to run on Items with this naaccrId
+	 */
+	@JsonIgnore
+	public boolean isRunOnItem(String naaccrId)
+	{
+		return ((this.elementNames == null) || this.elementNames.contains(NaxConstants.ITEM_ELEMENT)) &&
+				((this.itemNaaccrIds == null) || this.itemNaaccrIds.contains(naaccrId));
+	}
+
+	public String getScriptName()
+	{
+		return scriptName;
+	}
+
+	/**
+	 * @return the nax variables this script reads, like patient, item, or itemValue
+	 */
+	public Set<String> getVariables()
+	{
+		return variables;
+	}
+
+	/**
+	 * @return naaccrIds this script reads by name, through a variable or getItemValue('naaccrId')
+	 */
+	public Set<String> getNaaccrIds()
+	{
+		return naaccrIds;
+	}
+
+	/**
+	 * @return true if this script needs DOM Elements, which makes Nax build a DOM for every Patient
+	 */
+	public boolean isDomRequired()
+	{
+		return domRequired;
+	}
+
+	/**
+	 * @return true if this script only reads values and returns whether to keep an element, so it can run in any order
+	 * with other read-only scripts
+	 */
+	public boolean isReadOnly()
+	{
+		return readOnly;
+	}
+
+	/**
+	 * @return true if this script runs on every Item, false if it only runs on {@link #getItemNaaccrIds()}
+	 */
+	public boolean isRunOnAllItems()
+	{
+		return ((this.elementNames == null) || this.elementNames.contains(NaxConstants.ITEM_ELEMENT)) &&
+				(this.itemNaaccrIds == null);
+	}
+
+	/**
+	 * @return elements this script can change or filter out, or null for all of them
+	 */
+	public Set<String> getElementNames()
+	{
+		return elementNames;
+	}
+
+	/**
+	 * @return naaccrIds of the Items this script can change or filter out, or null for all of them
+	 */
+	public Set<String> getItemNaaccrIds()
+	{
+		return itemNaaccrIds;
+	}
+
+	/**
+	 * Collects every variable, naaccrId, and DOM reference in a script, along with the names it declares itself
+	 */
+	private static class ReferenceVisitor
+			extends ClassCodeVisitorSupport
+	{
+		private final SourceUnit sourceUnit;
+		private final Set<String> variableNames = new HashSet<>();
+		private final Set<String> declaredNames = new HashSet<>();
+		private final Set<String> naaccrIds = new HashSet<>();
+		private boolean domRequired = false;
+
+		private ReferenceVisitor(SourceUnit sourceUnit)
+		{
+			this.sourceUnit = sourceUnit;
+		}
+
+		@Override
+		protected SourceUnit getSourceUnit()
+		{
+			return sourceUnit;
+		}
+
+		@Override
+		public void visitVariableExpression(VariableExpression expression)
+		{
+			this.variableNames.add(expression.getName());
+
+			super.visitVariableExpression(expression);
+		}
+
+		@Override
+		public void visitDeclarationExpression(DeclarationExpression expression)
+		{
+			if (expression.isMultipleAssignmentDeclaration())
+			{
+				for (Expression variableExpression : expression.getTupleExpression().getExpressions())
+				{
+					this.declaredNames.add(((VariableExpression) variableExpression).getName());
+				}
+			}
+			else
+			{
+				this.declaredNames.add(expression.getVariableExpression().getName());
+			}
+
+			super.visitDeclarationExpression(expression);
+		}
+
+		@Override
+		public void visitClosureExpression(ClosureExpression expression)
+		{
+			addDeclaredNames(expression.getParameters());
+
+			super.visitClosureExpression(expression);
+		}
+
+		@Override
+		protected void visitConstructorOrMethod(MethodNode node,
+												boolean isConstructor)
+		{
+			addDeclaredNames(node.getParameters());
+
+			super.visitConstructorOrMethod(node, isConstructor);
+		}
+
+		@Override
+		public void visitForLoop(ForStatement forLoop)
+		{
+			this.declaredNames.add(forLoop.getVariable().getName());
+
+			super.visitForLoop(forLoop);
+		}
+
+		@Override
+		public void visitCatchStatement(CatchStatement statement)
+		{
+			this.declaredNames.add(statement.getVariable().getName());
+
+			super.visitCatchStatement(statement);
+		}
+
+		@Override
+		public void visitMethodCallExpression(MethodCallExpression call)
+		{
+			String methodName = call.getMethodAsString();
+
+			if (DOM_METHODS.contains(methodName))
+			{
+				this.domRequired = true;
+			}
+			else if (ITEM_VALUE_METHODS.contains(methodName) || (methodName != null && methodName.equals("get") && call
+					.getObjectExpression() instanceof MethodCallExpression && "getItems".equals(((MethodCallExpression) call
+					.getObjectExpression()).getMethodAsString())))
+			{
+				Expression firstArgument = getFirstArgument(call);
+
+				if ((firstArgument instanceof ConstantExpression) && (((ConstantExpression) firstArgument)
+						.getValue() instanceof String))
+				{
+					this.naaccrIds.add((String) ((ConstantExpression) firstArgument).getValue());
+				}
+			}
+
+			super.visitMethodCallExpression(call);
+		}
+
+		@Override
+		public void visitPropertyExpression(PropertyExpression expression)
+		{
+			if (DOM_PROPERTIES.contains(expression.getPropertyAsString()))
+			{
+				this.domRequired = true;
+			}
+
+			super.visitPropertyExpression(expression);
+		}
+
+		private void addDeclaredNames(Parameter[] parameters)
+		{
+			if (parameters != null)
+			{
+				for (Parameter parameter : parameters)
+				{
+					this.declaredNames.add(parameter.getName());
+				}
+			}
+		}
+	}
+}
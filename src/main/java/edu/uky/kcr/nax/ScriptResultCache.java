@@ -0,0 +1,149 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+
+package edu.uky.kcr.nax;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Results of a value count or Item script that only reads the value of the Item it runs against, so running it again
+ * on the same value would return the same result.
+ * <br/>
+ * Each thread keeps its own least recently used map of Item values to results, so lookups never wait on another
+ * thread. Low-cardinality Items like dates binned by year end up running the script once per distinct value.
+ */
+public class ScriptResultCache
+{
+	/**
+	 * Variables a script can read and still return the same result for the same Item value, since the rest of them
+	 * don't change while an input file is being processed.
+	 */
+	private static final Set<String> PURE_VARIABLES = new HashSet<>(Arrays.asList(
+			"inputFilename", "elementName", NaxConstants.NAACCR_ID, NaxConstants.ITEM_VALUE));
+
+	private static final Object NOT_CACHED = new Object();
+
+	private final String scriptName;
+	private final ThreadLocal<Map<String, Object>> threadResults;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public ScriptResultCache(String scriptName,
+							 int maxSize)
+	{
+		this.scriptName = scriptName;
+		this.threadResults = ThreadLocal.withInitial(() -> new LinkedHashMap<String, Object>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Object> eldest)
+			{
+				return size() > maxSize;
+			}
+		});
+	}
+
+	/**
+	 * @return true if a script only reads the value of Items with this naaccrId
+	 */
+	static boolean isPure(ScriptDependencies scriptDependencies,
+						  String naaccrId)
+	{
+		boolean pure = (scriptDependencies != null) && (scriptDependencies.isDomRequired() == false);
+
+		if (pure)
+		{
+			for (String variable : scriptDependencies.getVariables())
+			{
+				pure = pure && PURE_VARIABLES.contains(variable);
+			}
+
+			for (String referencedNaaccrId : scriptDependencies.getNaaccrIds())
+			{
+				pure = pure && referencedNaaccrId.equals(naaccrId);
+			}
+		}
+
+		return pure;
+	}
+
+	/**
+	 * @return the result for this Item value, running the script only if it isn't cached on this thread
+	 */
+	public Object getResult(String itemValue,
+							Supplier<Object> runScript)
+	{
+		Map<String, Object> results = this.threadResults.get();
+		Object result = results.getOrDefault(itemValue, NOT_CACHED);
+
+		if (result == NOT_CACHED)
+		{
+			this.misses.increment();
+			result = runScript.get();
+			results.put(itemValue, result);
+		}
+		else
+		{
+			this.hits.increment();
+		}
+
+		return result;
+	}
+
+	public String getScriptName()
+	{
+		return scriptName;
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	public String getHitRate()
+	{
+		long lookups = getHits() + getMisses();
+
+		return String.format("%.1f%%", (lookups == 0) ? 0d : (getHits() * 100d) / lookups);
+	}
+}
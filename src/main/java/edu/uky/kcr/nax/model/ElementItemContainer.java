@@ -49,6 +49,9 @@ import java.util.logging.Logger;
  * <br/>
  * Provides easy access to the underlying DOM Element, a HashMap of child Items where the keys are naaccrIds,
  * and any "extra" DOM element children that are extensions to the NAACCR XML standard with their own namespace.
+ * <br/>
+ * A container can instead be initialized from a range of slots in a {@link PatientRecord}, in which case there is no
+ * underlying DOM Element and changes are made to the record.
  */
 public abstract class ElementItemContainer
 {
@@ -58,6 +61,10 @@ public abstract class ElementItemContainer
 	private Map<String, Item> items = null;
 	private List<Element> extraElements = null;
 
+	private PatientRecord patientRecord = null;
+	private int startSlot = -1;
+	private int endSlot = -1;
+
 	public ElementItemContainer()
 	{
 
@@ -96,6 +103,53 @@ public abstract class ElementItemContainer
 		}
 	}
 
+	/**
+	 * Initialize from the slots between (exclusive) startSlot and endSlot of a PatientRecord
+	 */
+	public void initialize(PatientRecord patientRecord,
+						   int startSlot,
+						   int endSlot)
+	{
+		this.patientRecord = patientRecord;
+		this.startSlot = startSlot;
+		this.endSlot = endSlot;
+
+		for (int slot = startSlot + 1; slot < endSlot; slot++)
+		{
+			switch (patientRecord.getKind(slot))
+			{
+				case PatientRecord.ITEM:
+				case PatientRecord.ITEM_CDATA:
+				{
+					getItems().put(patientRecord.getName(slot), new Item(patientRecord, slot));
+					break;
+				}
+
+				case PatientRecord.TUMOR_START:
+				{
+					int tumorEndSlot = patientRecord.getTumorEndSlot(slot);
+					initializeTumorSlots(patientRecord, slot, tumorEndSlot);
+					slot = tumorEndSlot;
+
+					break;
+				}
+
+				case PatientRecord.EXTRA_ELEMENT:
+				{
+					initializeExtraElement(patientRecord.getElement(slot));
+					break;
+				}
+			}
+		}
+	}
+
+	public void initializeTumorSlots(PatientRecord patientRecord,
+									 int tumorStartSlot,
+									 int tumorEndSlot)
+	{
+
+	}
+
 	public void initializeExtraElement(Element childElement)
 	{
 		getExtraElements().add(childElement);
@@ -111,6 +165,21 @@ public abstract class ElementItemContainer
 		return element;
 	}
 
+	public PatientRecord getPatientRecord()
+	{
+		return patientRecord;
+	}
+
+	public int getStartSlot()
+	{
+		return startSlot;
+	}
+
+	public int getEndSlot()
+	{
+		return endSlot;
+	}
+
 	public Map<String, Item> getItems()
 	{
 		if (this.items == null)
@@ -173,6 +242,36 @@ public abstract class ElementItemContainer
 		getElement().appendChild(newItemElement);
 	}
 
+	/**
+	 * The slot that new Items are written before when this container is backed by a PatientRecord
+	 */
+	public int getNewItemAnchorSlot()
+	{
+		return getEndSlot();
+	}
+
+	/**
+	 * Remove a child Item from output, along with the whitespace that follows it
+	 */
+	public void removeItem(Item item)
+	{
+		if (getPatientRecord() != null)
+		{
+			getPatientRecord().remove(item.getSlot());
+		}
+		else
+		{
+			Node trailingWhitespaceNode = item.getItemElement().getNextSibling();
+
+			if (trailingWhitespaceNode != null && trailingWhitespaceNode.getNodeType() == Node.TEXT_NODE)
+			{
+				trailingWhitespaceNode.setTextContent("");
+			}
+
+			item.getItemElement().getParentNode().removeChild(item.getItemElement());
+		}
+	}
+
 	public void addItem(String naaccrId,
 						Integer naaccrNum,
 						String itemValue)
@@ -180,7 +279,18 @@ public abstract class ElementItemContainer
 	{
 		logger.finer(String.format("add Item: %s(%s)=%s", naaccrId, naaccrNum, itemValue));
 
-		if (getElement() != null)
+		if (getPatientRecord() != null)
+		{
+			if (getItems().get(naaccrId) != null)
+			{
+				throw new XMLStreamException("Item already exists: " + naaccrId);
+			}
+
+			int slot = getPatientRecord().addItem(naaccrId, naaccrNum, itemValue, getNewItemAnchorSlot());
+
+			getItems().put(naaccrId, new Item(getPatientRecord(), slot));
+		}
+		else if (getElement() != null)
 		{
 			if (getItems().get(naaccrId) != null)
 			{
@@ -34,30 +34,68 @@ package edu.uky.kcr.nax.model;
 import org.w3c.dom.Element;
 
 /**
- * Container for a NAACCR Item XML Element with accessors for the naaccrId, text content, and underlying DOM Element
+ * Container for a NAACCR Item XML Element with accessors for the naaccrId, text content, and underlying DOM Element.
+ * <br/>
+ * An Item can also be backed by a slot in a {@link PatientRecord}, in which case there is no DOM Element.
  */
 public class Item
 {
 	private Element itemElement = null;
+	private PatientRecord patientRecord = null;
+	private int slot = -1;
 
 	public Item(Element itemElement)
 	{
 		this.itemElement = itemElement;
 	}
 
+	public Item(PatientRecord patientRecord,
+				int slot)
+	{
+		this.patientRecord = patientRecord;
+		this.slot = slot;
+	}
+
 	public String getNaaccrId()
 	{
+		if (this.patientRecord != null)
+		{
+			return this.patientRecord.getName(this.slot);
+		}
+
 		return itemElement.getAttributes().getNamedItem("naaccrId").getNodeValue();
 	}
 
 	public String getItemValue()
 	{
+		if (this.patientRecord != null)
+		{
+			return this.patientRecord.getValue(this.slot);
+		}
+
 		return this.itemElement.getTextContent();
 	}
 
 	public void setItemValue(String itemValue)
 	{
-		this.itemElement.setTextContent(itemValue);
+		if (this.patientRecord != null)
+		{
+			this.patientRecord.setValue(this.slot, itemValue);
+		}
+		else
+		{
+			this.itemElement.setTextContent(itemValue);
+		}
+	}
+
+	PatientRecord getPatientRecord()
+	{
+		return patientRecord;
+	}
+
+	int getSlot()
+	{
+		return slot;
 	}
 
 	public Element getItemElement()
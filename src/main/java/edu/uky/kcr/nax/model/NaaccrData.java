@@ -31,11 +31,22 @@
 
 package edu.uky.kcr.nax.model;
 
+import edu.uky.kcr.nax.ItemActionTable;
+import edu.uky.kcr.nax.AdaptiveScriptOrder;
 import edu.uky.kcr.nax.NaxConstants;
+import edu.uky.kcr.nax.ScriptProfile;
+import groovy.lang.Script;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 import java.util.logging.Logger;
 
 /**
@@ -52,6 +63,12 @@ public class NaaccrData
 	private Map<String, String> attributes = new LinkedHashMap<>();
 	private NaaccrDictionary naaccrDictionary = null;
 	private NaaccrDictionary defaultUserDictionary = null;
+	private ItemActionTable itemActionTable = null;
+	private Map<Script, ScriptProfile> scriptProfiles = null;
+	//Keyed by element name, then by the identity of the script list, the inner maps are replaced instead of changed
+	private Map<String, Map<List<Script>, AdaptiveScriptOrder>> adaptiveScriptOrders = null;
+	private BiFunction<String, List<Script>, AdaptiveScriptOrder> adaptiveScriptOrderFactory = null;
+	private final Object adaptiveScriptOrdersLock = new Object();
 
 	public NaaccrData()
 	{
@@ -97,4 +114,130 @@ public class NaaccrData
 	{
 		this.defaultUserDictionary = defaultUserDictionary;
 	}
+
+	/**
+	 * @return what to do with each Item in this NaaccrData, compiled once its dictionaries are known
+	 */
+	public ItemActionTable getItemActionTable()
+	{
+		return itemActionTable;
+	}
+
+	public void setItemActionTable(ItemActionTable itemActionTable)
+	{
+		this.itemActionTable = itemActionTable;
+	}
+
+	/**
+	 * Start recording a {@link ScriptProfile} for every script run against this NaaccrData
+	 */
+	public void enableScriptProfiles()
+	{
+		this.scriptProfiles = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * @return the profile of a compiled script, or null if script profiles aren't enabled
+	 */
+	public ScriptProfile getScriptProfile(Script compiledScript)
+	{
+		ScriptProfile scriptProfile = null;
+
+		if (this.scriptProfiles != null)
+		{
+			scriptProfile = this.scriptProfiles.computeIfAbsent(compiledScript, script -> new ScriptProfile((String) script
+					.getProperty("name")));
+		}
+
+		return scriptProfile;
+	}
+
+	/**
+	 * Start running lists of filter scripts in an {@link AdaptiveScriptOrder} instead of their configured order
+	 */
+	public void enableAdaptiveScriptOrders(BiFunction<String, List<Script>, AdaptiveScriptOrder> adaptiveScriptOrderFactory)
+	{
+		this.adaptiveScriptOrders = new ConcurrentHashMap<>();
+		this.adaptiveScriptOrderFactory = adaptiveScriptOrderFactory;
+	}
+
+	/**
+	 * @return the adaptive order of a list of scripts running against elements with this name, or null if it has less
+	 * than 2 scripts or adaptive orders aren't enabled
+	 */
+	public AdaptiveScriptOrder getAdaptiveScriptOrder(String elementName,
+													  List<Script> compiledScripts)
+	{
+		AdaptiveScriptOrder adaptiveScriptOrder = null;
+
+		if ((this.adaptiveScriptOrders != null) && (compiledScripts.size() > 1))
+		{
+			Map<List<Script>, AdaptiveScriptOrder> elementScriptOrders = this.adaptiveScriptOrders.get(elementName);
+
+			adaptiveScriptOrder = (elementScriptOrders == null) ? null : elementScriptOrders.get(compiledScripts);
+
+			if (adaptiveScriptOrder == null)
+			{
+				adaptiveScriptOrder = addAdaptiveScriptOrder(elementName, compiledScripts);
+			}
+		}
+
+		return adaptiveScriptOrder;
+	}
+
+	private AdaptiveScriptOrder addAdaptiveScriptOrder(String elementName,
+													   List<Script> compiledScripts)
+	{
+		synchronized (this.adaptiveScriptOrdersLock)
+		{
+			Map<List<Script>, AdaptiveScriptOrder> elementScriptOrders = new IdentityHashMap<>(this.adaptiveScriptOrders
+					.getOrDefault(elementName, Collections.emptyMap()));
+			AdaptiveScriptOrder adaptiveScriptOrder = elementScriptOrders.get(compiledScripts);
+
+			if (adaptiveScriptOrder == null)
+			{
+				adaptiveScriptOrder = this.adaptiveScriptOrderFactory.apply(elementName, compiledScripts);
+				elementScriptOrders.put(compiledScripts, adaptiveScriptOrder);
+				this.adaptiveScriptOrders.put(elementName, elementScriptOrders);
+			}
+
+			return adaptiveScriptOrder;
+		}
+	}
+
+	/**
+	 * @return every adaptive script order, or null if adaptive orders aren't enabled
+	 */
+	public List<AdaptiveScriptOrder> getAdaptiveScriptOrders()
+	{
+		List<AdaptiveScriptOrder> adaptiveScriptOrderList = null;
+
+		if (this.adaptiveScriptOrders != null)
+		{
+			adaptiveScriptOrderList = new ArrayList<>();
+
+			for (Map<List<Script>, AdaptiveScriptOrder> elementScriptOrders : this.adaptiveScriptOrders.values())
+			{
+				adaptiveScriptOrderList.addAll(elementScriptOrders.values());
+			}
+		}
+
+		return adaptiveScriptOrderList;
+	}
+
+	/**
+	 * @return every recorded script profile with the slowest first, or null if script profiles aren't enabled
+	 */
+	public List<ScriptProfile> getScriptProfiles()
+	{
+		List<ScriptProfile> profiles = null;
+
+		if (this.scriptProfiles != null)
+		{
+			profiles = new ArrayList<>(this.scriptProfiles.values());
+			profiles.sort(Comparator.comparingLong(ScriptProfile::getTotalMillis).reversed());
+		}
+
+		return profiles;
+	}
 }
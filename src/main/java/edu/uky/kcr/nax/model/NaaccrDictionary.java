@@ -32,6 +32,9 @@
 package edu.uky.kcr.nax.model;
 
 import edu.uky.kcr.nax.NaxConstants;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -41,18 +44,33 @@ import org.xml.sax.SAXException;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A lightweight container for a NaaccrDictionary, built from a classpath resource File.
  * Provides easy access to a naaccrId to naaccrNum HashMap and a naaccrNum to naaccrId HashMap for going between the two IDs.
+ * <br/>
+ * Dictionaries are cached for the life of the process, so every input file and zip entry shares the same parsed
+ * dictionaries instead of reading them again. Cached dictionaries are shared, so their maps are unmodifiable.
+ * The base and default user dictionaries are read from compact snapshots (see {@link #writeSnapshot(OutputStream)})
+ * created by the build when they are on the classpath, and from their XML otherwise.
  */
 public class NaaccrDictionary
 {
+	private static final int SNAPSHOT_MAGIC = 0x4e415844; //NAXD
+	private static final int SNAPSHOT_FORMAT = 1;
+
+	private static final Map<String, NaaccrDictionary> dictionaryCache = new ConcurrentHashMap<>();
 
 	private String naaccrVersion = null;
 	private String dictionaryUri = null;
@@ -97,31 +115,137 @@ public class NaaccrDictionary
 	public static NaaccrDictionary createBaseDictionary(String naaccrVersion)
 			throws ParserConfigurationException, IOException, SAXException
 	{
-		NaaccrDictionary naaccrDictionary = new NaaccrDictionary();
+		return getResourceDictionary(String.format("base-dictionary-%s", naaccrVersion), naaccrVersion);
+	}
+
+	public static NaaccrDictionary createDefaultUserDictionary(String naaccrVersion)
+			throws ParserConfigurationException, IOException, SAXException
+	{
+		return getResourceDictionary(String.format("default-user-dictionary-%s", naaccrVersion), naaccrVersion);
+	}
+
+	/**
+	 * User dictionaries are cached by the MD5 of their contents rather than their dictionaryUri, because different
+	 * versions of a user dictionary file often keep the same dictionaryUri.
+	 */
+	public static NaaccrDictionary createUserDictionary(InputStream userDictionaryInputStream)
+			throws IOException, ParserConfigurationException, SAXException
+	{
+		byte[] userDictionaryBytes = IOUtils.toByteArray(userDictionaryInputStream);
+		String cacheKey = String.format("user:%s", DigestUtils.md5Hex(userDictionaryBytes));
+
+		NaaccrDictionary naaccrDictionary = dictionaryCache.get(cacheKey);
+
+		if (naaccrDictionary == null)
+		{
+			naaccrDictionary = new NaaccrDictionary();
+			naaccrDictionary.initialize(new ByteArrayInputStream(userDictionaryBytes));
 
-		naaccrDictionary.setNaaccrVersion(naaccrVersion);
-		naaccrDictionary.initialize(NaaccrDictionary.class.getResourceAsStream(String.format("/base-dictionary-%s.xml", naaccrVersion)));
+			naaccrDictionary = cacheDictionary(cacheKey, naaccrDictionary);
+		}
 
 		return naaccrDictionary;
 	}
 
-	public static NaaccrDictionary createDefaultUserDictionary(String naaccrVersion)
+	/**
+	 * Read a dictionary that ships with Nax, from its snapshot if there is one, otherwise from its XML.
+	 *
+	 * @param resourceName name of the classpath resource without its extension, such as base-dictionary-180
+	 */
+	private static NaaccrDictionary getResourceDictionary(String resourceName,
+														  String naaccrVersion)
 			throws ParserConfigurationException, IOException, SAXException
 	{
-		NaaccrDictionary naaccrDictionary = new NaaccrDictionary();
+		NaaccrDictionary naaccrDictionary = dictionaryCache.get(resourceName);
+
+		if (naaccrDictionary == null)
+		{
+			try (InputStream snapshotInputStream = NaaccrDictionary.class.getResourceAsStream(String
+					.format("/%s.bin", resourceName)))
+			{
+				if (snapshotInputStream != null)
+				{
+					naaccrDictionary = readSnapshot(snapshotInputStream);
+				}
+			}
+
+			if (naaccrDictionary == null)
+			{
+				naaccrDictionary = new NaaccrDictionary();
+				naaccrDictionary.setNaaccrVersion(naaccrVersion);
+
+				try (InputStream xmlInputStream = NaaccrDictionary.class.getResourceAsStream(String
+						.format("/%s.xml", resourceName)))
+				{
+					naaccrDictionary.initialize(xmlInputStream);
+				}
+			}
 
-		naaccrDictionary.setNaaccrVersion(naaccrVersion);
-		naaccrDictionary.initialize(NaaccrDictionary.class.getResourceAsStream(String.format("/default-user-dictionary-%s.xml", naaccrVersion)));
+			naaccrDictionary = cacheDictionary(resourceName, naaccrDictionary);
+		}
 
 		return naaccrDictionary;
 	}
 
-	public static NaaccrDictionary createUserDictionary(InputStream userDictionaryInputStream)
-			throws IOException, ParserConfigurationException, SAXException
+	private static NaaccrDictionary cacheDictionary(String cacheKey,
+													NaaccrDictionary naaccrDictionary)
+	{
+		naaccrDictionary.naaccrNumMap = Collections.unmodifiableMap(naaccrDictionary.naaccrNumMap);
+		naaccrDictionary.naaccrIdMap = Collections.unmodifiableMap(naaccrDictionary.naaccrIdMap);
+
+		NaaccrDictionary cachedDictionary = dictionaryCache.putIfAbsent(cacheKey, naaccrDictionary);
+
+		return cachedDictionary == null ? naaccrDictionary : cachedDictionary;
+	}
+
+	/**
+	 * Write this dictionary in the compact form read by {@link #readSnapshot(InputStream)}.
+	 */
+	public void writeSnapshot(OutputStream outputStream)
+			throws IOException
+	{
+		DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+
+		dataOutputStream.writeInt(SNAPSHOT_MAGIC);
+		dataOutputStream.writeInt(SNAPSHOT_FORMAT);
+		dataOutputStream.writeUTF(StringUtils.defaultString(getNaaccrVersion()));
+		dataOutputStream.writeUTF(StringUtils.defaultString(getDictionaryUri()));
+		dataOutputStream.writeInt(getNaaccrNumMap().size());
+
+		for (Map.Entry<String, Integer> entry : getNaaccrNumMap().entrySet())
+		{
+			dataOutputStream.writeUTF(entry.getKey());
+			dataOutputStream.writeInt(entry.getValue());
+		}
+
+		dataOutputStream.flush();
+	}
+
+	public static NaaccrDictionary readSnapshot(InputStream inputStream)
+			throws IOException
 	{
+		DataInputStream dataInputStream = new DataInputStream(inputStream);
+
+		if (dataInputStream.readInt() != SNAPSHOT_MAGIC || dataInputStream.readInt() != SNAPSHOT_FORMAT)
+		{
+			throw new IOException("Not a NaaccrDictionary snapshot, or it was written by a different version of Nax");
+		}
+
 		NaaccrDictionary naaccrDictionary = new NaaccrDictionary();
 
-		naaccrDictionary.initialize(userDictionaryInputStream);
+		naaccrDictionary.setNaaccrVersion(StringUtils.defaultIfEmpty(dataInputStream.readUTF(), null));
+		naaccrDictionary.setDictionaryUri(StringUtils.defaultIfEmpty(dataInputStream.readUTF(), null));
+
+		int itemCount = dataInputStream.readInt();
+
+		for (int i = 0; i < itemCount; i++)
+		{
+			String naaccrId = dataInputStream.readUTF();
+			Integer naaccrNum = Integer.valueOf(dataInputStream.readInt());
+
+			naaccrDictionary.getNaaccrNumMap().put(naaccrId, naaccrNum);
+			naaccrDictionary.getNaaccrIdMap().put(naaccrNum, naaccrId);
+		}
 
 		return naaccrDictionary;
 	}
@@ -133,6 +257,8 @@ public class NaaccrDictionary
 		DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
 		Document document = documentBuilder.parse(new InputSource(inputStream));
 
+		setDictionaryUri(StringUtils.defaultIfEmpty(document.getDocumentElement().getAttribute(NaxConstants.DICTIONARY_URI), null));
+
 		NodeList itemDefNodes = document.getElementsByTagName(NaxConstants.ITEM_DEF);
 		for (int i = 0; i < itemDefNodes.getLength(); i++)
 		{
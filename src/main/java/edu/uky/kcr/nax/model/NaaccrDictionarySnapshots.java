@@ -0,0 +1,95 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package edu.uky.kcr.nax.model;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Build step that writes a snapshot next to every base and default user dictionary XML file in a directory, so
+ * {@link NaaccrDictionary} can load them without parsing XML. Run by Maven in the process-classes phase against the
+ * compiled classes directory by the dictionary-snapshots profile, which every build runs unless
+ * -DskipDictionarySnapshots is set.
+ */
+public class NaaccrDictionarySnapshots
+{
+	private static final Logger logger = Logger.getLogger(NaaccrDictionarySnapshots.class.getName());
+
+	private static final Pattern DICTIONARY_FILENAME_PATTERN = Pattern
+			.compile("^((?:base|default-user)-dictionary-(\\d+))\\.xml$");
+
+	public static void main(String[] args)
+			throws Exception
+	{
+		File directory = new File(args[0]);
+		File[] files = directory.listFiles();
+
+		if (files == null)
+		{
+			throw new IllegalArgumentException(String.format("%s is not a directory", directory.getAbsolutePath()));
+		}
+
+		for (File file : files)
+		{
+			Matcher matcher = DICTIONARY_FILENAME_PATTERN.matcher(file.getName());
+
+			if (matcher.matches())
+			{
+				NaaccrDictionary naaccrDictionary = new NaaccrDictionary();
+				naaccrDictionary.setNaaccrVersion(matcher.group(2));
+
+				try (InputStream inputStream = new FileInputStream(file))
+				{
+					naaccrDictionary.initialize(inputStream);
+				}
+
+				File snapshotFile = new File(directory, String.format("%s.bin", matcher.group(1)));
+
+				try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(snapshotFile)))
+				{
+					naaccrDictionary.writeSnapshot(outputStream);
+				}
+
+				logger.info(String.format("Wrote %d Items from %s to %s", naaccrDictionary.getNaaccrNumMap()
+						.size(), file.getName(), snapshotFile.getName()));
+			}
+		}
+	}
+}
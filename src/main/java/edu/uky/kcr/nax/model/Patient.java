@@ -32,6 +32,7 @@
 package edu.uky.kcr.nax.model;
 
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -64,6 +65,24 @@ public class Patient
 		}
 	}
 
+	public void initialize(PatientRecord patientRecord)
+	{
+		initialize(patientRecord, -1, patientRecord.getOriginalSize());
+	}
+
+	/**
+	 * Every Tumor slot range in a PatientRecord is added to the Tumor List
+	 */
+	@Override
+	public void initializeTumorSlots(PatientRecord patientRecord,
+									 int tumorStartSlot,
+									 int tumorEndSlot)
+	{
+		Tumor tumor = new Tumor();
+		tumor.initialize(patientRecord, tumorStartSlot, tumorEndSlot);
+		getTumors().add(tumor);
+	}
+
 	/**
 	 * When adding new Item elements to a Patient, do it before the first Tumor
 	 * @param newItemElement
@@ -81,6 +100,46 @@ public class Patient
 		}
 	}
 
+	/**
+	 * When adding new Items to a PatientRecord, write them before the first Tumor
+	 */
+	@Override
+	public int getNewItemAnchorSlot()
+	{
+		int anchorSlot = getEndSlot();
+
+		if (getTumors().size() > 0)
+		{
+			anchorSlot = getTumors().get(0).getStartSlot();
+		}
+
+		return anchorSlot;
+	}
+
+	/**
+	 * Remove a Tumor from output, along with the whitespace that follows it
+	 */
+	public void removeTumor(Tumor tumor)
+	{
+		if (getPatientRecord() != null)
+		{
+			getPatientRecord().remove(tumor.getStartSlot());
+		}
+		else
+		{
+			Node trailingWhitespaceNode = tumor.getElement().getNextSibling();
+
+			if (trailingWhitespaceNode != null && trailingWhitespaceNode.getNodeType() == Node.TEXT_NODE)
+			{
+				trailingWhitespaceNode.setTextContent("");
+			}
+
+			getElement().removeChild(tumor.getElement());
+		}
+
+		getTumors().remove(tumor);
+	}
+
 	public List<Tumor> getTumors()
 	{
 		if (this.tumors == null)
@@ -0,0 +1,758 @@
+/*
+ * Copyright 2020 University of Kentucky
+ * Kentucky Cancer Registry
+ * University of Kentucky Markey Cancer Control Program
+ * Markey Cancer Research Informatics Shared Resource Facility
+ *
+ * Permission is hereby granted, free of charge, to use a copy of this software
+ * and associated documentation files (the “Software”) for any non-profit or
+ * educational use, including without limitation the right to use, copy, modify,
+ * merge, publish, and distribute copies of the Software, and to permit persons
+ * to whom the Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * For any for-profit or other commercial use, potential users should contact:
+ * Kentucky Cancer Registry
+ * ATTN: Associate Director of Informatics
+ * 2365 Harrodsburg Road, Suite A230
+ * Lexington, KY 40504-3381
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package edu.uky.kcr.nax.model;
+
+import edu.uky.kcr.nax.NaxConstants;
+import org.apache.commons.lang3.StringUtils;
+import org.codehaus.staxmate.dom.DOMConverter;
+import org.w3c.dom.Element;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.util.Arrays;
+
+/**
+ * Compact, DOM-free representation of a NAACCR XML Patient element, built straight from an {@link XMLStreamReader}.
+ * <br/>
+ * The children of the Patient are kept in document order as parallel arrays of "slots": Items (naaccrId and value),
+ * Tumor start and end boundaries, text, comments, and any other child elements. Other namespace elements are small,
+ * so they are kept as DOM fragments that can still be filtered like the DOM engine does.
+ * <br/>
+ * Writing a record produces the same XML events as writing the equivalent DOM Patient element with a {@link DOMConverter}.
+ * <br/>
+ * Every change made through the record is tracked, so a Patient that comes out of processing unchanged can be copied
+ * to output straight from its input bytes instead (see {@link #isModified()}).
+ */
+public class PatientRecord
+{
+	public static final byte ITEM = 1;
+	public static final byte ITEM_CDATA = 2;
+	public static final byte TUMOR_START = 3;
+	public static final byte TUMOR_END = 4;
+	public static final byte TEXT = 5;
+	public static final byte CDATA = 6;
+	public static final byte COMMENT = 7;
+	public static final byte PROCESSING_INSTRUCTION = 8;
+	public static final byte EXTRA_ELEMENT = 9;
+	public static final byte OTHER_ELEMENT = 10;
+
+	private static final int INITIAL_CAPACITY = 256;
+	private static final int ATTRIBUTE_FIELDS = 4;
+
+	private String prefix = null;
+	private String localName = null;
+	private String namespaceUri = null;
+	private String[] attributes = null;
+
+	private int size = 0;
+	private int originalSize = 0;
+	private int addedCount = 0;
+	private boolean modified = false;
+
+	private byte[] kinds = new byte[INITIAL_CAPACITY];
+	private String[] names = new String[INITIAL_CAPACITY];
+	private String[] values = new String[INITIAL_CAPACITY];
+	private String[] namespaceUris = new String[INITIAL_CAPACITY];
+	private Object[] extras = new Object[INITIAL_CAPACITY];
+	private int[] links = new int[INITIAL_CAPACITY];
+	private boolean[] removed = new boolean[INITIAL_CAPACITY];
+
+	private PatientRecord()
+	{
+
+	}
+
+	/**
+	 * Read a Patient element into a new record, the reader must be positioned on the START_ELEMENT of the Patient and will
+	 * be left on its END_ELEMENT, the same as {@link DOMConverter#buildDocument(XMLStreamReader, DocumentBuilder)}.
+	 */
+	public static PatientRecord read(
+			XMLStreamReader xmlStreamReader,
+			DOMConverter domConverter,
+			DocumentBuilder documentBuilder)
+			throws XMLStreamException
+	{
+		PatientRecord patientRecord = new PatientRecord();
+
+		patientRecord.prefix = StringUtils.defaultString(xmlStreamReader.getPrefix());
+		patientRecord.localName = xmlStreamReader.getLocalName();
+		patientRecord.namespaceUri = StringUtils.defaultString(xmlStreamReader.getNamespaceURI());
+		patientRecord.attributes = readAttributes(xmlStreamReader);
+
+		int tumorStartSlot = -1;
+		boolean done = false;
+
+		while (done == false)
+		{
+			int xmlEventType = xmlStreamReader.next();
+
+			switch (xmlEventType)
+			{
+				case XMLStreamConstants.START_ELEMENT:
+				{
+					String childLocalName = xmlStreamReader.getLocalName();
+
+					if (StringUtils.isNotEmpty(xmlStreamReader.getPrefix()))
+					{
+						Element extraElement = domConverter.buildDocument(xmlStreamReader, documentBuilder)
+								.getDocumentElement();
+						int extraSlot = patientRecord.addSlot(EXTRA_ELEMENT, childLocalName, null, null, extraElement);
+
+						//Nested other namespace elements can be removed from the DOM fragment, so keep a count to detect changes
+						patientRecord.links[extraSlot] = countDescendantElements(extraElement);
+					}
+					else if (childLocalName.equals(NaxConstants.ITEM_ELEMENT))
+					{
+						patientRecord.readItem(xmlStreamReader);
+					}
+					else if (childLocalName.equals(NaxConstants.TUMOR_ELEMENT) && tumorStartSlot == -1)
+					{
+						tumorStartSlot = patientRecord.addSlot(TUMOR_START, childLocalName, null, StringUtils
+								.defaultString(xmlStreamReader.getNamespaceURI()), readAttributes(xmlStreamReader));
+					}
+					else
+					{
+						Element otherElement = domConverter.buildDocument(xmlStreamReader, documentBuilder)
+								.getDocumentElement();
+						patientRecord.addSlot(OTHER_ELEMENT, childLocalName, null, null, otherElement);
+					}
+
+					break;
+				}
+
+				case XMLStreamConstants.END_ELEMENT:
+				{
+					if (tumorStartSlot > -1)
+					{
+						int tumorEndSlot = patientRecord.addSlot(TUMOR_END, null, null, null, null);
+						patientRecord.links[tumorStartSlot] = tumorEndSlot;
+						tumorStartSlot = -1;
+					}
+					else
+					{
+						done = true;
+					}
+
+					break;
+				}
+
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+				{
+					patientRecord.addSlot(TEXT, xmlStreamReader.getText(), null, null, null);
+					break;
+				}
+
+				case XMLStreamConstants.CDATA:
+				{
+					patientRecord.addSlot(CDATA, xmlStreamReader.getText(), null, null, null);
+					break;
+				}
+
+				case XMLStreamConstants.COMMENT:
+				{
+					patientRecord.addSlot(COMMENT, xmlStreamReader.getText(), null, null, null);
+					break;
+				}
+
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				{
+					patientRecord.addSlot(PROCESSING_INSTRUCTION, xmlStreamReader.getPITarget(), xmlStreamReader
+							.getPIData(), null, null);
+					break;
+				}
+
+				case XMLStreamConstants.END_DOCUMENT:
+				{
+					throw new XMLStreamException("Unexpected end of document inside Patient element", xmlStreamReader
+							.getLocation());
+				}
+
+				default:
+				{
+					break;
+				}
+			}
+		}
+
+		patientRecord.originalSize = patientRecord.size;
+
+		return patientRecord;
+	}
+
+	private static int countDescendantElements(Element element)
+	{
+		return element.getElementsByTagNameNS("*", "*").getLength();
+	}
+
+	/**
+	 * Items only hold text, so any nested markup is flattened to its text content the same way {@link Item#getItemValue()} would.
+	 */
+	private void readItem(XMLStreamReader xmlStreamReader)
+			throws XMLStreamException
+	{
+		String naaccrId = xmlStreamReader.getAttributeValue(null, NaxConstants.NAACCR_ID);
+
+		if (naaccrId == null)
+		{
+			throw new XMLStreamException("Item element is missing the naaccrId attribute", xmlStreamReader
+					.getLocation());
+		}
+
+		String itemNamespaceUri = StringUtils.defaultString(xmlStreamReader.getNamespaceURI());
+		String[] itemAttributes = null;
+
+		if (xmlStreamReader.getAttributeCount() > 1 || xmlStreamReader.getNamespaceCount() > 0 || StringUtils
+				.isNotEmpty(xmlStreamReader.getAttributePrefix(0)))
+		{
+			itemAttributes = readAttributes(xmlStreamReader);
+		}
+
+		String text = null;
+		StringBuilder textBuilder = null;
+		boolean foundText = false;
+		boolean foundCData = false;
+		int depth = 0;
+
+		while (depth > -1)
+		{
+			int xmlEventType = xmlStreamReader.next();
+
+			switch (xmlEventType)
+			{
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+				case XMLStreamConstants.CDATA:
+				{
+					if (xmlEventType == XMLStreamConstants.CDATA)
+					{
+						foundCData = true;
+					}
+					else
+					{
+						foundText = true;
+					}
+
+					if (text == null)
+					{
+						text = xmlStreamReader.getText();
+					}
+					else
+					{
+						if (textBuilder == null)
+						{
+							textBuilder = new StringBuilder(text);
+						}
+
+						textBuilder.append(xmlStreamReader.getTextCharacters(), xmlStreamReader
+								.getTextStart(), xmlStreamReader.getTextLength());
+					}
+
+					break;
+				}
+
+				case XMLStreamConstants.START_ELEMENT:
+				{
+					depth++;
+					break;
+				}
+
+				case XMLStreamConstants.END_ELEMENT:
+				{
+					depth--;
+					break;
+				}
+
+				case XMLStreamConstants.END_DOCUMENT:
+				{
+					throw new XMLStreamException("Unexpected end of document inside Item element", xmlStreamReader
+							.getLocation());
+				}
+
+				default:
+				{
+					break;
+				}
+			}
+		}
+
+		if (textBuilder != null)
+		{
+			text = textBuilder.toString();
+		}
+
+		addSlot(foundCData && foundText == false ? ITEM_CDATA : ITEM, naaccrId, StringUtils
+				.defaultString(text), itemNamespaceUri, itemAttributes);
+	}
+
+	/**
+	 * Read namespace declarations and attributes as (prefix, namespaceUri, localName, value) groups, sorted by qualified name
+	 * the same way a DOM Element sorts its attributes, or null when there are none.
+	 */
+	private static String[] readAttributes(XMLStreamReader xmlStreamReader)
+	{
+		int namespaceCount = xmlStreamReader.getNamespaceCount();
+		int attributeCount = xmlStreamReader.getAttributeCount();
+		String[] readAttributes = null;
+
+		if (namespaceCount + attributeCount > 0)
+		{
+			readAttributes = new String[(namespaceCount + attributeCount) * ATTRIBUTE_FIELDS];
+			int index = 0;
+
+			for (int i = 0; i < namespaceCount; i++)
+			{
+				String namespacePrefix = xmlStreamReader.getNamespacePrefix(i);
+
+				if (StringUtils.isEmpty(namespacePrefix))
+				{
+					index = setAttribute(readAttributes, index, StringUtils.EMPTY, XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+										 XMLConstants.XMLNS_ATTRIBUTE, xmlStreamReader.getNamespaceURI(i));
+				}
+				else
+				{
+					index = setAttribute(readAttributes, index, XMLConstants.XMLNS_ATTRIBUTE, XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+										 namespacePrefix, xmlStreamReader.getNamespaceURI(i));
+				}
+			}
+
+			for (int i = 0; i < attributeCount; i++)
+			{
+				index = setAttribute(readAttributes, index, StringUtils.defaultString(xmlStreamReader
+																							 .getAttributePrefix(i)),
+									 StringUtils.defaultString(xmlStreamReader.getAttributeNamespace(i)),
+									 xmlStreamReader.getAttributeLocalName(i), xmlStreamReader.getAttributeValue(i));
+			}
+
+			sortAttributes(readAttributes);
+		}
+
+		return readAttributes;
+	}
+
+	private static int setAttribute(
+			String[] attributes,
+			int index,
+			String attributePrefix,
+			String attributeNamespaceUri,
+			String attributeLocalName,
+			String attributeValue)
+	{
+		attributes[index] = attributePrefix;
+		attributes[index + 1] = attributeNamespaceUri;
+		attributes[index + 2] = attributeLocalName;
+		attributes[index + 3] = attributeValue;
+
+		return index + ATTRIBUTE_FIELDS;
+	}
+
+	private static String qualifiedAttributeName(
+			String[] attributes,
+			int index)
+	{
+		String qualifiedName = attributes[index + 2];
+
+		if (attributes[index].isEmpty() == false)
+		{
+			qualifiedName = attributes[index] + ":" + attributes[index + 2];
+		}
+
+		return qualifiedName;
+	}
+
+	private static void sortAttributes(String[] attributes)
+	{
+		String[] swap = new String[ATTRIBUTE_FIELDS];
+
+		for (int i = ATTRIBUTE_FIELDS; i < attributes.length; i += ATTRIBUTE_FIELDS)
+		{
+			int j = i;
+
+			while (j > 0 && qualifiedAttributeName(attributes, j - ATTRIBUTE_FIELDS)
+					.compareTo(qualifiedAttributeName(attributes, j)) > 0)
+			{
+				System.arraycopy(attributes, j, swap, 0, ATTRIBUTE_FIELDS);
+				System.arraycopy(attributes, j - ATTRIBUTE_FIELDS, attributes, j, ATTRIBUTE_FIELDS);
+				System.arraycopy(swap, 0, attributes, j - ATTRIBUTE_FIELDS, ATTRIBUTE_FIELDS);
+				j -= ATTRIBUTE_FIELDS;
+			}
+		}
+	}
+
+	private int addSlot(
+			byte kind,
+			String name,
+			String value,
+			String slotNamespaceUri,
+			Object extra)
+	{
+		if (this.size == this.kinds.length)
+		{
+			int capacity = this.kinds.length * 2;
+
+			this.kinds = Arrays.copyOf(this.kinds, capacity);
+			this.names = Arrays.copyOf(this.names, capacity);
+			this.values = Arrays.copyOf(this.values, capacity);
+			this.namespaceUris = Arrays.copyOf(this.namespaceUris, capacity);
+			this.extras = Arrays.copyOf(this.extras, capacity);
+			this.links = Arrays.copyOf(this.links, capacity);
+			this.removed = Arrays.copyOf(this.removed, capacity);
+		}
+
+		int slot = this.size;
+
+		this.kinds[slot] = kind;
+		this.names[slot] = name;
+		this.values[slot] = value;
+		this.namespaceUris[slot] = slotNamespaceUri;
+		this.extras[slot] = extra;
+		this.links[slot] = -1;
+		this.removed[slot] = false;
+
+		this.size++;
+
+		return slot;
+	}
+
+	/**
+	 * Add a new Item that will be written just before the slot given as the anchor, or at the end of the Patient when
+	 * the anchor is {@link #getOriginalSize()}.
+	 *
+	 * @return the slot of the new Item
+	 */
+	public int addItem(
+			String naaccrId,
+			Integer naaccrNum,
+			String itemValue,
+			int anchorSlot)
+	{
+		String[] itemAttributes = new String[ATTRIBUTE_FIELDS * 2];
+
+		setAttribute(itemAttributes, 0, StringUtils.EMPTY, StringUtils.EMPTY, NaxConstants.NAACCR_ID, naaccrId);
+		setAttribute(itemAttributes, ATTRIBUTE_FIELDS, StringUtils.EMPTY, StringUtils.EMPTY, NaxConstants.NAACCR_NUM,
+					 naaccrNum.toString());
+
+		int slot = addSlot(ITEM, naaccrId, StringUtils.defaultString(itemValue), StringUtils.EMPTY, itemAttributes);
+		this.links[slot] = anchorSlot;
+		this.addedCount++;
+		this.modified = true;
+
+		return slot;
+	}
+
+	public void remove(int slot)
+	{
+		this.removed[slot] = true;
+		this.modified = true;
+	}
+
+	/**
+	 * @return true if anything was added, removed, or changed since the record was read, including other namespace
+	 * elements that were removed or had nested elements removed from their DOM fragments
+	 */
+	public boolean isModified()
+	{
+		boolean isModified = this.modified;
+
+		for (int slot = 0; slot < this.originalSize && isModified == false; slot++)
+		{
+			if (this.kinds[slot] == EXTRA_ELEMENT)
+			{
+				isModified = isRemoved(slot) || countDescendantElements((Element) this.extras[slot]) != this.links[slot];
+			}
+		}
+
+		return isModified;
+	}
+
+	public boolean isRemoved(int slot)
+	{
+		boolean isRemoved = this.removed[slot];
+
+		//Other namespace elements are removed by detaching them from their DOM Document
+		if (this.kinds[slot] == EXTRA_ELEMENT)
+		{
+			isRemoved = ((Element) this.extras[slot]).getParentNode() == null;
+		}
+
+		return isRemoved;
+	}
+
+	public int getSize()
+	{
+		return this.size;
+	}
+
+	public int getOriginalSize()
+	{
+		return this.originalSize;
+	}
+
+	public byte getKind(int slot)
+	{
+		return this.kinds[slot];
+	}
+
+	public String getName(int slot)
+	{
+		return this.names[slot];
+	}
+
+	public String getValue(int slot)
+	{
+		return this.values[slot];
+	}
+
+	public void setValue(int slot,
+						 String value)
+	{
+		String newValue = StringUtils.defaultString(value);
+
+		if (newValue.equals(this.values[slot]) == false)
+		{
+			this.modified = true;
+		}
+
+		this.values[slot] = newValue;
+
+		if (this.kinds[slot] == ITEM_CDATA)
+		{
+			this.kinds[slot] = ITEM;
+		}
+	}
+
+	public Element getElement(int slot)
+	{
+		return (Element) this.extras[slot];
+	}
+
+	public int getTumorEndSlot(int tumorStartSlot)
+	{
+		return this.links[tumorStartSlot];
+	}
+
+	public String getLocalName()
+	{
+		return this.localName;
+	}
+
+	/**
+	 * Write the record as XML events, skipping removed slots along with the whitespace text right after them
+	 * the same way the DOM engine clears the trailing whitespace of removed elements.
+	 */
+	public void write(XMLStreamWriter xmlWriter,
+					  DOMConverter domConverter)
+			throws XMLStreamException
+	{
+		xmlWriter.writeStartElement(this.prefix, this.localName, this.namespaceUri);
+		writeAttributes(xmlWriter, this.attributes);
+
+		boolean skipTrailingText = false;
+
+		for (int slot = 0; slot < this.originalSize; slot++)
+		{
+			writeAddedItems(xmlWriter, slot);
+
+			if (isRemoved(slot))
+			{
+				if (this.kinds[slot] == TUMOR_START)
+				{
+					slot = this.links[slot];
+				}
+
+				skipTrailingText = true;
+			}
+			else if (skipTrailingText && this.kinds[slot] == TEXT)
+			{
+				skipTrailingText = false;
+			}
+			else
+			{
+				skipTrailingText = false;
+
+				writeSlot(xmlWriter, domConverter, slot);
+			}
+		}
+
+		writeAddedItems(xmlWriter, this.originalSize);
+
+		xmlWriter.writeEndElement();
+	}
+
+	private void writeAddedItems(XMLStreamWriter xmlWriter,
+								 int anchorSlot)
+			throws XMLStreamException
+	{
+		if (this.addedCount > 0)
+		{
+			for (int slot = this.originalSize; slot < this.size; slot++)
+			{
+				if (this.links[slot] == anchorSlot && this.removed[slot] == false)
+				{
+					writeSlot(xmlWriter, null, slot);
+				}
+			}
+		}
+	}
+
+	private void writeSlot(XMLStreamWriter xmlWriter,
+						   DOMConverter domConverter,
+						   int slot)
+			throws XMLStreamException
+	{
+		switch (this.kinds[slot])
+		{
+			case ITEM:
+			case ITEM_CDATA:
+			{
+				xmlWriter.writeStartElement(StringUtils.EMPTY, NaxConstants.ITEM_ELEMENT, this.namespaceUris[slot]);
+
+				if (this.extras[slot] == null)
+				{
+					xmlWriter.writeAttribute(NaxConstants.NAACCR_ID, this.names[slot]);
+				}
+				else
+				{
+					writeAttributes(xmlWriter, (String[]) this.extras[slot]);
+				}
+
+				if (this.values[slot].isEmpty() == false)
+				{
+					if (this.kinds[slot] == ITEM_CDATA)
+					{
+						xmlWriter.writeCData(this.values[slot]);
+					}
+					else
+					{
+						xmlWriter.writeCharacters(this.values[slot]);
+					}
+				}
+
+				xmlWriter.writeEndElement();
+
+				break;
+			}
+
+			case TUMOR_START:
+			{
+				xmlWriter.writeStartElement(StringUtils.EMPTY, this.names[slot], this.namespaceUris[slot]);
+				writeAttributes(xmlWriter, (String[]) this.extras[slot]);
+
+				break;
+			}
+
+			case TUMOR_END:
+			{
+				xmlWriter.writeEndElement();
+				break;
+			}
+
+			case TEXT:
+			{
+				xmlWriter.writeCharacters(this.names[slot]);
+				break;
+			}
+
+			case CDATA:
+			{
+				xmlWriter.writeCData(this.names[slot]);
+				break;
+			}
+
+			case COMMENT:
+			{
+				xmlWriter.writeComment(this.names[slot]);
+				break;
+			}
+
+			case PROCESSING_INSTRUCTION:
+			{
+				if (StringUtils.isEmpty(this.values[slot]))
+				{
+					xmlWriter.writeProcessingInstruction(this.names[slot]);
+				}
+				else
+				{
+					xmlWriter.writeProcessingInstruction(this.names[slot], this.values[slot]);
+				}
+
+				break;
+			}
+
+			case EXTRA_ELEMENT:
+			case OTHER_ELEMENT:
+			{
+				domConverter.writeFragment((Element) this.extras[slot], xmlWriter);
+				break;
+			}
+		}
+	}
+
+	private static void writeAttributes(XMLStreamWriter xmlWriter,
+										String[] attributes)
+			throws XMLStreamException
+	{
+		if (attributes != null)
+		{
+			for (int i = 0; i < attributes.length; i += ATTRIBUTE_FIELDS)
+			{
+				String attributePrefix = attributes[i];
+				String attributeLocalName = attributes[i + 2];
+				String attributeValue = attributes[i + 3];
+
+				if (attributePrefix.isEmpty())
+				{
+					if (XMLConstants.XMLNS_ATTRIBUTE.equals(attributeLocalName))
+					{
+						xmlWriter.writeDefaultNamespace(attributeValue);
+					}
+					else
+					{
+						xmlWriter.writeAttribute(attributeLocalName, attributeValue);
+					}
+				}
+				else if (XMLConstants.XMLNS_ATTRIBUTE.equals(attributePrefix))
+				{
+					xmlWriter.writeNamespace(attributeLocalName, attributeValue);
+				}
+				else
+				{
+					xmlWriter.writeAttribute(attributePrefix, attributes[i + 1], attributeLocalName, attributeValue);
+				}
+			}
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package edu.uky.kcr.nax.tests;
 
+import com.fasterxml.aalto.stax.InputFactoryImpl;
 import com.imsweb.naaccrxml.NaaccrOptions;
 import com.imsweb.naaccrxml.NaaccrXmlDictionaryUtils;
 import com.imsweb.naaccrxml.PatientXmlReader;
@@ -8,10 +9,25 @@ import com.imsweb.naaccrxml.entity.NaaccrData;
 import com.imsweb.naaccrxml.entity.Patient;
 import com.imsweb.naaccrxml.entity.Tumor;
 import com.imsweb.naaccrxml.runtime.NaaccrStreamConfiguration;
+import edu.uky.kcr.nax.AdaptiveScriptOrder;
+import edu.uky.kcr.nax.AsyncFeedStreamReader;
+import edu.uky.kcr.nax.ContentDigest;
+import edu.uky.kcr.nax.FilterExpression;
+import edu.uky.kcr.nax.LookupTables;
+import edu.uky.kcr.nax.MappedFileInputStream;
 import edu.uky.kcr.nax.Nax;
 import edu.uky.kcr.nax.NaxConfig;
+import edu.uky.kcr.nax.NaxConstants;
+import edu.uky.kcr.nax.NaxMetrics;
+import edu.uky.kcr.nax.NaxOutputFileInfo;
 import edu.uky.kcr.nax.NaxResult;
+import edu.uky.kcr.nax.ParallelGzipOutputStream;
 import edu.uky.kcr.nax.ProgressTrackingDigestInputStream;
+import edu.uky.kcr.nax.ReadAheadBuffers;
+import edu.uky.kcr.nax.ReadAheadInputStream;
+import edu.uky.kcr.nax.ScriptDependencies;
+import edu.uky.kcr.nax.ScriptProfile;
+import edu.uky.kcr.nax.ScriptResultCache;
 import edu.uky.kcr.nax.model.NaaccrDictionary;
 import edu.uky.kcr.nax.tests.xmlns.Author;
 import edu.uky.kcr.nax.tests.xmlns.Contact;
@@ -20,33 +36,54 @@ import edu.uky.kcr.nax.tests.xmlns.Email;
 import edu.uky.kcr.nax.tests.xmlns.FullName;
 import edu.uky.kcr.nax.tests.xmlns.InternalId;
 import edu.uky.kcr.nax.tests.xmlns.NaaccrFile;
+import groovy.lang.Script;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.codehaus.groovy.control.CompilationFailedException;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 import org.xml.sax.SAXException;
 
+import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 
 public class NaxTest
@@ -670,6 +707,1170 @@ public class NaxTest
 		}
 	}
 
+	@Test(dataProvider = "alltestfiles")
+	public void testStreamingRecordsMatchDom(String filename,
+											 long filesize,
+											 NaaccrStreamConfiguration configuration,
+											 List<String[]> userDictionaryFiles)
+			throws Exception
+	{
+		List<NaxResult> naxResults = assertOutputUnchanged(filename, filesize, "Streaming record output did not match DOM output", (naxConfig, streamingRecords) -> {
+			naxConfig.withIncludeNamespaces(true);
+			naxConfig.withExcludedItems(EXCLUDED_ITEMS);
+			naxConfig.withStreamingRecords(streamingRecords);
+			initializeUserDictionariesFromFiles(userDictionaryFiles, null, naxConfig);
+		});
+
+		//Matching output proves nothing if every Patient was read as a DOM Element
+		Assert.assertNull(naxResults.get(0).getNaxMetrics().getStreamingRecordPatientCount());
+		Assert.assertTrue(naxResults.get(1).getNaxMetrics().getStreamingRecordPatientCount() > 0, "No Patients were read as streaming records");
+	}
+
+	@Test(dataProvider = "alltestfiles")
+	public void testPassThroughPatientsMatchDom(String filename,
+												long filesize,
+												NaaccrStreamConfiguration configuration,
+												List<String[]> userDictionaryFiles)
+			throws Exception
+	{
+		List<NaxResult> naxResults = assertOutputUnchanged(filename, filesize, "Pass-through output did not match DOM output", (naxConfig, passThroughPatients) -> {
+			naxConfig.withIncludeNamespaces(true);
+			naxConfig.withPassThroughPatients(passThroughPatients);
+			initializeUserDictionariesFromFiles(userDictionaryFiles, null, naxConfig);
+		});
+
+		//Matching output proves nothing if every Patient fell back to the DOM
+		Assert.assertNull(naxResults.get(0).getNaxMetrics().getPassThroughPatientCount());
+		Assert.assertTrue(naxResults.get(1).getNaxMetrics().getPassThroughPatientCount() > 0, "No Patients were passed through");
+	}
+
+	@Test(dataProvider = "alltestfiles")
+	public void testAsyncParsingMatchesBlockingParsing(String filename,
+													   long filesize,
+													   NaaccrStreamConfiguration configuration,
+													   List<String[]> userDictionaryFiles)
+			throws Exception
+	{
+		assertOutputUnchanged(filename, filesize, "Async parsing output did not match blocking parsing output", (naxConfig, asyncParsing) -> {
+			naxConfig.withIncludeNamespaces(true);
+			naxConfig.withExcludedItems(EXCLUDED_ITEMS);
+			naxConfig.withAsyncParsing(asyncParsing);
+			initializeUserDictionariesFromFiles(userDictionaryFiles, null, naxConfig);
+		});
+	}
+
+	@Test
+	public void testAsyncFeedStreamReaderMatchesBlockingEvents()
+			throws Exception
+	{
+		String longText = StringUtils.repeat('x', 100000);
+		byte[] xmlBytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<a x=\"1\">text &amp; more &#x41;<![CDATA[cdata <section> " + longText + "]]><![CDATA[next]]>" + longText + "<!-- comment --><?pi data?>\n  <b>v&lt;w</b>\n  <c><![CDATA[ ]]></c></a>")
+				.getBytes(StandardCharsets.UTF_8);
+		List<String> blockingEvents = readXmlEvents(new InputFactoryImpl().createXMLStreamReader(new ByteArrayInputStream(xmlBytes)));
+
+		//Tiny buffers split text, entities, and CDATA sections across feeds
+		for (int bufferSize : new int[]{1, 2, 7, 4096})
+		{
+			try (ReadAheadBuffers readAheadBuffers = new ReadAheadBuffers(new ByteArrayInputStream(xmlBytes), bufferSize, 2))
+			{
+				Assert.assertEquals(readXmlEvents(new AsyncFeedStreamReader(new InputFactoryImpl()
+																					.createAsyncForByteArray(), readAheadBuffers)), blockingEvents, "Buffer size " + bufferSize);
+			}
+		}
+
+		//Only XML white space is skipped by nextTag, other Unicode spaces are text
+		byte[] ideographicSpaceBytes = "<a>\n\u3000<b/></a>".getBytes(StandardCharsets.UTF_8);
+		XMLStreamReader blockingReader = new InputFactoryImpl().createXMLStreamReader(new ByteArrayInputStream(ideographicSpaceBytes));
+
+		blockingReader.nextTag();
+		Assert.assertThrows(XMLStreamException.class, blockingReader::nextTag);
+
+		try (ReadAheadBuffers readAheadBuffers = new ReadAheadBuffers(new ByteArrayInputStream(ideographicSpaceBytes), 1, 2))
+		{
+			XMLStreamReader asyncReader = new AsyncFeedStreamReader(new InputFactoryImpl().createAsyncForByteArray(), readAheadBuffers);
+
+			asyncReader.nextTag();
+			Assert.assertThrows(XMLStreamException.class, asyncReader::nextTag);
+		}
+
+		try (ReadAheadBuffers readAheadBuffers = new ReadAheadBuffers(new ByteArrayInputStream("<a>\n \t\r\n<b>v&lt;w</b></a>"
+																								   .getBytes(StandardCharsets.UTF_8)), 1, 2))
+		{
+			XMLStreamReader asyncReader = new AsyncFeedStreamReader(new InputFactoryImpl().createAsyncForByteArray(), readAheadBuffers);
+
+			asyncReader.nextTag();
+			Assert.assertEquals(asyncReader.nextTag(), XMLStreamConstants.START_ELEMENT);
+			Assert.assertEquals(asyncReader.getElementText(), "v<w");
+		}
+	}
+
+	@Test(dataProvider = "alltestfiles")
+	public void testReadAheadMatchesDirectReads(String filename,
+												long filesize,
+												NaaccrStreamConfiguration configuration,
+												List<String[]> userDictionaryFiles)
+			throws Exception
+	{
+		List<NaxResult> naxResults = assertOutputUnchanged(filename, filesize, "Read ahead output did not match direct read output", (naxConfig, readAhead) -> {
+			naxConfig.withPassThroughPatients(true);
+			naxConfig.withExcludedItems(EXCLUDED_ITEMS);
+			naxConfig.withReadAhead(readAhead);
+			initializeUserDictionariesFromFiles(userDictionaryFiles, null, naxConfig);
+		});
+
+		Assert.assertNotNull(naxResults.get(1).getNaxMetrics().getReadAheadInputStallMillis());
+		Assert.assertNotNull(naxResults.get(1).getNaxMetrics().getReadAheadParsingStallMillis());
+
+		//Small buffers, so reads cross buffer boundaries
+		byte[] inputBytes = null;
+
+		try (InputStream inputStream = getTestResourceInputStream(filename))
+		{
+			inputBytes = IOUtils.toByteArray(inputStream);
+		}
+
+		try (ReadAheadInputStream readAheadInputStream = new ReadAheadInputStream(new ReadAheadBuffers(new ByteArrayInputStream(inputBytes), 1000, 3)))
+		{
+			Assert.assertEquals(IOUtils.toByteArray(readAheadInputStream), inputBytes);
+			Assert.assertEquals(readAheadInputStream.read(), -1);
+		}
+
+		//Closing early stops the reader thread without closing an interruptible channel underneath it
+		try (InputStream channelInputStream = Channels.newInputStream(Channels.newChannel(new ByteArrayInputStream(inputBytes))))
+		{
+			ReadAheadInputStream readAheadInputStream = new ReadAheadInputStream(new ReadAheadBuffers(channelInputStream, 1000, 1));
+
+			Assert.assertEquals(readAheadInputStream.read(), inputBytes[0] & 0xFF);
+
+			readAheadInputStream.close();
+
+			Assert.assertTrue(channelInputStream.read() >= 0, "Input should still be open after closing read ahead");
+		}
+	}
+
+	@Test
+	public void testValueCountsCappedInInputOrder()
+			throws Exception
+	{
+		//More distinct values than are kept, the first 1000 of them appear again after the cap is reached
+		StringBuilder patientsBuilder = new StringBuilder();
+
+		for (int i = 0; i < 7000; i++)
+		{
+			patientsBuilder.append(String.format("<Patient><Item naaccrId=\"patientIdNumber\">%08d</Item><Tumor><Item naaccrId=\"primarySite\">C509</Item></Tumor></Patient>\n", i % 6000));
+		}
+
+		byte[] xmlBytes = createNaaccrXml(patientsBuilder.toString()).getBytes(StandardCharsets.UTF_8);
+		List<Map<String, Integer>> valueCounts = new ArrayList<>();
+
+		for (int threads : new int[]{1, 4})
+		{
+			NaxResult naxResult = Nax.newInstance(new NaxConfig().withValueCounts("patientIdNumber").withThreads(threads))
+					.process(new ByteArrayInputStream(xmlBytes), "tempNaxTest.xml", xmlBytes.length).get(0);
+
+			Assert.assertTrue(naxResult.isParsingSuccess());
+			valueCounts.add(naxResult.getNaxMetrics().getValueCounts().get("patientIdNumber"));
+		}
+
+		Assert.assertEquals(valueCounts.get(1), valueCounts.get(0), "Threads changed which values were kept");
+		Assert.assertEquals(valueCounts.get(0).size(), Nax.MAX_VALUE_COUNT);
+		Assert.assertEquals(valueCounts.get(0).get("00000999"), Integer.valueOf(1));
+		Assert.assertEquals(valueCounts.get(0).get("00004999"), Integer.valueOf(1));
+		Assert.assertNull(valueCounts.get(0).get("00005000"));
+		Assert.assertEquals(valueCounts.get(0).get("Other"), Integer.valueOf(2000));
+	}
+
+	@Test(dataProvider = "alltestfiles")
+	public void testThreadsMatchSingleThread(String filename,
+											 long filesize,
+											 NaaccrStreamConfiguration configuration,
+											 List<String[]> userDictionaryFiles)
+			throws Exception
+	{
+		List<NaxResult> naxResults = assertOutputUnchanged(filename, filesize, "Multi-threaded output did not match single-threaded output", (naxConfig, multipleThreads) -> {
+			naxConfig.withExcludedItems(EXCLUDED_ITEMS);
+			naxConfig.withValueCounts(SHARED_INCLUDE_EXCLUDE_ITEM);
+			naxConfig.withThreads(multipleThreads ? 4 : 1);
+			initializeUserDictionariesFromFiles(userDictionaryFiles, null, naxConfig);
+		});
+
+		Assert.assertNull(naxResults.get(0).getNaxMetrics().getPatientThreads());
+		Assert.assertEquals(naxResults.get(1).getNaxMetrics().getPatientThreads(), Integer.valueOf(4), "Patients were not handled on worker threads");
+		Assert.assertEquals(naxResults.get(1).getNaxMetrics().getElementCounts(), naxResults.get(0).getNaxMetrics()
+				.getElementCounts());
+		Assert.assertEquals(naxResults.get(1).getNaxMetrics().getNaaccrIdCounts(), naxResults.get(0).getNaxMetrics()
+				.getNaaccrIdCounts());
+		Assert.assertEquals(naxResults.get(1).getNaxMetrics().getValueCounts(), naxResults.get(0).getNaxMetrics()
+				.getValueCounts());
+	}
+
+	@Test
+	public void testScriptsOnThreadsMatchSingleThread()
+			throws Exception
+	{
+		List<NaxResult> naxResults = assertOutputUnchanged(TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE, "Scripts run on several threads changed the output", (naxConfig, multipleThreads) -> {
+			naxConfig.withThreads(multipleThreads ? 4 : 1);
+			naxConfig.withScriptString("if (naaccrId.startsWith('dateOf')) item.setItemValue(left(itemValue, 4)); true");
+			naxConfig.withTumorScriptString("tumor.getItemValue('primarySite').startsWith('C50') == false");
+			naxConfig.withItemScriptString("nameLast", "itemValue.length() > 5");
+			naxConfig.withValueCountsScriptString("dateOfDiagnosis", "yearOfDiagnosis", "left(dateOfDiagnosis, 4)");
+		});
+
+		Assert.assertEquals(naxResults.get(1).getNaxMetrics().getElementCounts(), naxResults.get(0).getNaxMetrics()
+				.getElementCounts());
+		Assert.assertEquals(naxResults.get(1).getNaxMetrics().getValueCounts(), naxResults.get(0).getNaxMetrics()
+				.getValueCounts());
+	}
+
+	@Test
+	public void testStaticScriptsMatchDynamicScripts()
+			throws Exception
+	{
+		List<NaxResult> naxResults = assertOutputUnchanged(TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE, "Static scripts changed the output", (naxConfig, staticScripts) -> {
+			naxConfig.withScriptString("if (naaccrId.startsWith('dateOf')) item.setItemValue(left(itemValue, 4)); true");
+			naxConfig.withTumorScriptString("tumor.getItemValue('primarySite').startsWith('C50') == false");
+			naxConfig.withItemScriptString("nameLast", "itemValue.length() > 5");
+			naxConfig.withValueCountsScriptString("dateOfDiagnosis", "yearOfDiagnosis", "left(itemValue, 4)");
+			//Scripts added before this are compiled again
+			naxConfig.withStaticScripts(staticScripts);
+		});
+
+		Assert.assertEquals(naxResults.get(1).getNaxMetrics().getElementCounts(), naxResults.get(0).getNaxMetrics()
+				.getElementCounts());
+		Assert.assertEquals(naxResults.get(1).getNaxMetrics().getValueCounts(), naxResults.get(0).getNaxMetrics()
+				.getValueCounts());
+		Assert.assertThrows(CompilationFailedException.class, () -> new NaxConfig().withStaticScripts(true)
+				.withScriptString("dateOfDiagnosis != null"));
+	}
+
+	@Test
+	public void testFilterExpressionsMatchScripts()
+			throws Exception
+	{
+		assertOutputUnchanged(TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE, "Filter expressions did not match the same Groovy scripts", (naxConfig, filterExpressions) -> {
+			if (filterExpressions)
+			{
+				naxConfig.withPatientFilterExpression("sex in ['2', '9']")
+						.withTumorFilterExpression("not primarySite.startsWith('C50') and dateOfDiagnosis >= '2005'")
+						.withItemFilterExpression("nameLast", "nameLast != 'LN'");
+
+				//Matching output proves nothing if the expressions fell back to Groovy scripts
+				Assert.assertEquals(naxConfig.getPatientFilterExpressions().size(), 1);
+				Assert.assertEquals(naxConfig.getTumorFilterExpressions().size(), 1);
+				Assert.assertEquals(naxConfig.getItemFilterExpressions().get("nameLast").size(), 1);
+				Assert.assertTrue(naxConfig.getCompiledPatientScripts().isEmpty());
+				Assert.assertTrue(naxConfig.getCompiledTumorScripts().isEmpty());
+				Assert.assertTrue(naxConfig.getCompiledItemScripts().isEmpty());
+			}
+			else
+			{
+				naxConfig.withPatientScriptString("patient.getItemValue('sex') in ['2', '9']")
+						.withTumorScriptString("tumor.getItemValue('primarySite').startsWith('C50') == false && tumor.getItemValue('dateOfDiagnosis') >= '2005'")
+						.withItemScriptString("nameLast", "nameLast != 'LN'");
+			}
+		});
+
+		NaxConfig fallbackConfig = new NaxConfig().withTumorFilterExpression("tumor.getItemValue('primarySite').startsWith('C50') == false");
+
+		Assert.assertTrue(fallbackConfig.getTumorFilterExpressions().isEmpty());
+		Assert.assertEquals(fallbackConfig.getCompiledTumorScripts().size(), 1, "Expression should have been compiled as a Groovy script");
+	}
+
+	@Test
+	public void testGroovyShellCreatedOnFirstScript()
+			throws Exception
+	{
+		NaxConfig naxConfig = new NaxConfig()
+				.withExcludedItems(EXCLUDED_ITEMS)
+				.withValueCounts(SHARED_INCLUDE_EXCLUDE_ITEM)
+				.withPatientFilterExpression("sex in ['2', '9']");
+
+		processToString(naxConfig, TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE);
+
+		Assert.assertFalse(naxConfig.isGroovyShellCreated(), "A run without scripts should never start Groovy");
+
+		naxConfig.withTumorScriptString("tumor.getItemValue('primarySite').startsWith('C50') == false");
+
+		Assert.assertTrue(naxConfig.isGroovyShellCreated(), "Compiling the first script should create the GroovyShell");
+		Assert.assertEquals(naxConfig.getCompiledTumorScripts().size(), 1);
+	}
+
+	@Test
+	public void testFilterExpressionSyntax()
+			throws Exception
+	{
+		edu.uky.kcr.nax.model.Tumor tumor = createTumor("<Item naaccrId=\"primarySite\">C509</Item>" +
+																"<Item naaccrId=\"sex\">1</Item>" +
+																"<Item naaccrId=\"dateOfDiagnosis\">20150101</Item>" +
+																"<Item naaccrId=\"nameLast\">a &amp;&amp; b</Item>");
+
+		//&& binds tighter than ||, and ! binds to the single comparison that follows it
+		Assert.assertTrue(matchesFilterExpression("primarySite == 'C509' || sex == '1' && sex == '2'", tumor));
+		Assert.assertFalse(matchesFilterExpression("(primarySite == 'C509' || sex == '1') && sex == '2'", tumor));
+		Assert.assertFalse(matchesFilterExpression("!sex == '1'", tumor));
+		Assert.assertFalse(matchesFilterExpression("!(sex == '1' || sex == '2')", tumor));
+		Assert.assertTrue(matchesFilterExpression("not sex == '2' and not (sex == '1' and primarySite == 'X')", tumor));
+
+		Assert.assertTrue(matchesFilterExpression("dateOfDiagnosis between '20150101' and '20191231'", tumor));
+		Assert.assertFalse(matchesFilterExpression("dateOfDiagnosis between '20100101' and '20141231'", tumor));
+		Assert.assertTrue(matchesFilterExpression("sex in ['1', '2']", tumor));
+		Assert.assertFalse(matchesFilterExpression("sex in ['2', '9']", tumor));
+		Assert.assertTrue(matchesFilterExpression("primarySite.startsWith('C50')", tumor));
+		Assert.assertFalse(matchesFilterExpression("primarySite.startsWith('C51')", tumor));
+		Assert.assertTrue(matchesFilterExpression("missingItem == ''", tumor));
+
+		//Operators inside quoted values are part of the value
+		Assert.assertTrue(matchesFilterExpression("nameLast == 'a && b'", tumor));
+		Assert.assertTrue(matchesFilterExpression("nameLast == \"a && b\"", tumor));
+		Assert.assertThrows(IllegalArgumentException.class, () -> FilterExpression.compile("nameLast == 'a && b"));
+
+		//Operators written without spaces between them are still separate tokens
+		Assert.assertTrue(matchesFilterExpression("sex == '1'&&!primarySite.startsWith('C51')", tumor));
+		Assert.assertTrue(matchesFilterExpression("sex=='2'||!(sex=='2')", tumor));
+
+		String unsupportedExpression = "dateOfDiagnosis.substring(0, 4) == '2015'";
+		Assert.assertThrows(IllegalArgumentException.class, () -> FilterExpression.compile(unsupportedExpression));
+		Assert.assertThrows(IllegalArgumentException.class, () -> FilterExpression.compile("sex = '1'"));
+
+		NaxConfig fallbackConfig = new NaxConfig().withTumorFilterExpression(unsupportedExpression);
+
+		Assert.assertTrue(fallbackConfig.getTumorFilterExpressions().isEmpty());
+		Assert.assertEquals(fallbackConfig.getCompiledTumorScripts().size(), 1, "Unsupported syntax should have been compiled as a Groovy script");
+	}
+
+	private static boolean matchesFilterExpression(String expressionString,
+												   edu.uky.kcr.nax.model.Tumor tumor)
+	{
+		return FilterExpression.compile(expressionString).matches(null, tumor, null);
+	}
+
+	private static edu.uky.kcr.nax.model.Tumor createTumor(String itemsXml)
+			throws ParserConfigurationException, IOException, SAXException
+	{
+		DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+		documentBuilderFactory.setNamespaceAware(true);
+
+		edu.uky.kcr.nax.model.Tumor tumor = new edu.uky.kcr.nax.model.Tumor();
+		tumor.initialize(documentBuilderFactory.newDocumentBuilder()
+								 .parse(new ByteArrayInputStream(("<Tumor>" + itemsXml + "</Tumor>").getBytes(StandardCharsets.UTF_8)))
+								 .getDocumentElement());
+
+		return tumor;
+	}
+
+	@Test
+	public void testScriptDependencies()
+			throws Exception
+	{
+		NaxConfig naxConfig = new NaxConfig()
+				.withScriptString("if (elementName == 'Item' && naaccrId == 'nameLast') item.setItemValue('X'); true")
+				.withTumorScriptString("tumor.getItemValue('primarySite').startsWith('C50') && dateOfDiagnosis != null");
+
+		ScriptDependencies itemDependencies = naxConfig.getScriptDependencies().get(0);
+		ScriptDependencies tumorDependencies = naxConfig.getScriptDependencies().get(1);
+
+		Assert.assertFalse(naxConfig.isDomRequired());
+		Assert.assertFalse(itemDependencies.isRunOnAllItems());
+		Assert.assertTrue(itemDependencies.isRunOnItem("nameLast"));
+		Assert.assertFalse(itemDependencies.isRunOnItem("nameFirst"));
+		Assert.assertTrue(tumorDependencies.isRunOnAllItems());
+		Assert.assertEquals(tumorDependencies.getNaaccrIds(), new TreeSet<>(Arrays.asList("dateOfDiagnosis", "primarySite")));
+
+		//Class names and imports aren't Items
+		NaxConfig importsConfig = new NaxConfig()
+				.withTumorScriptString("Math.max(1, 2) > 0 && SeerSiteRecodeUtils != null && BigDecimal.ONE != null && primarySite != null")
+				.withTumorScriptString("import org.apache.commons.lang3.StringUtils\nimport static java.lang.Math.PI\nStringUtils.isBlank(nameLast) && PI > 3 && EMPTY != sex");
+
+		Assert.assertEquals(importsConfig.getScriptDependencies().get(0).getNaaccrIds(), Collections.singleton("primarySite"));
+		Assert.assertEquals(importsConfig.getScriptDependencies().get(1).getNaaccrIds(), new TreeSet<>(Arrays.asList("nameLast", "sex")));
+
+		Assert.assertTrue(new NaxConfig().withPatientScriptString("patient.element.hasAttributes()").isDomRequired());
+		Assert.assertFalse(new NaxConfig().withPatientScriptString("patient.getItemValue('elements') == 'element'").isDomRequired());
+	}
+
+	@Test
+	public void testPureScriptResultsMatchScripts()
+			throws Exception
+	{
+		List<NaxResult> naxResults = assertOutputUnchanged(TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE, "Cached script results changed the output", (naxConfig, pureScriptCache) -> {
+			naxConfig.withThreads(pureScriptCache ? 4 : 1);
+			naxConfig.withPureScriptCacheSize(pureScriptCache ? 100 : 0);
+			naxConfig.withItemScriptString("nameLast", "itemValue.length() > 5");
+			naxConfig.withValueCountsScriptString("dateOfDiagnosis", "yearOfDiagnosis", "left(dateOfDiagnosis, 4)");
+			naxConfig.withValueCountsScriptString("primarySite", "primarySiteBySex", "primarySite + patient.getItemValue('sex')");
+		});
+
+		Assert.assertEquals(naxResults.get(1).getNaxMetrics().getValueCounts(), naxResults.get(0).getNaxMetrics()
+				.getValueCounts());
+		Assert.assertNull(naxResults.get(0).getNaxMetrics().getScriptResultCaches());
+
+		List<ScriptResultCache> scriptResultCaches = naxResults.get(1).getNaxMetrics().getScriptResultCaches();
+
+		Assert.assertEquals(scriptResultCaches.size(), 2, "Only scripts that read nothing but their Item value are cached");
+		Assert.assertEquals(scriptResultCaches.get(1).getHits() + scriptResultCaches.get(1).getMisses(), TEST_FILE_1000_GZ_TUMOR_COUNT,
+							"Check dateOfDiagnosis lookups");
+		Assert.assertTrue(scriptResultCaches.get(1).getHits() > 0, "Repeated dates should be cached");
+	}
+
+	@Test
+	public void testAdaptiveScriptOrderMatchesConfiguredOrder()
+			throws Exception
+	{
+		List<NaxResult> naxResults = assertOutputUnchanged(TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE, "Adaptive script order changed the output", (naxConfig, adaptiveScriptOrder) -> {
+			naxConfig.withAdaptiveScriptOrder(adaptiveScriptOrder);
+			naxConfig.withTumorScriptString("tumor.getItemValue('primarySite') != 'X'");
+			naxConfig.withTumorScriptString("tumor.getItemValue('dateOfDiagnosis') >= '2017'");
+		});
+
+		Assert.assertNull(naxResults.get(0).getNaxMetrics().getAdaptiveScriptOrders());
+
+		AdaptiveScriptOrder adaptiveScriptOrder = naxResults.get(1).getNaxMetrics().getAdaptiveScriptOrders().get(0);
+
+		Assert.assertEquals(adaptiveScriptOrder.getElementName(), NaxConstants.TUMOR_ELEMENT);
+
+		Assert.assertEquals(adaptiveScriptOrder.getAdaptedScriptNames().get(0), adaptiveScriptOrder.getConfiguredScriptNames().get(1),
+							"The script that filters out Tumors should run first");
+		Assert.assertTrue(ScriptDependencies.analyze("tumor.getItemValue('primarySite') ==~ /C50.*/", "regex").isReadOnly());
+		Assert.assertFalse(ScriptDependencies.analyze("item.setItemValue('X'); true", "change").isReadOnly());
+	}
+
+	@Test
+	public void testLookupTables()
+			throws Exception
+	{
+		File lookupTableFile = File.createTempFile("tempNaxTest", ".csv");
+
+		try
+		{
+			FileUtils.writeStringToFile(lookupTableFile, "sex,sexName,sexCode\n1,Male,M\n2,Female,F\n9,\"Unknown, not stated\",U\n",
+										StandardCharsets.UTF_8);
+
+			NaxConfig naxConfig = new NaxConfig()
+					.withLookupTable("sexes", lookupTableFile)
+					.withLookupTable("sexes", lookupTableFile)
+					.withValueCountsScriptString("sex", "sexName", "lookup('sexes', sex)")
+					.withValueCountsScriptString("sex", "sexCode", "lookup('sexes', itemValue, 'sexCode')");
+
+			Assert.assertEquals(naxConfig.getLookupTables().size(), 1);
+			Assert.assertSame(naxConfig.getLookupTables().get(0), new NaxConfig().withLookupTable("sexes", lookupTableFile)
+					.getLookupTables().get(0), "Lookup tables should only be loaded once");
+			Assert.assertEquals(naxConfig.getLookupTables().get(0).get("9"), "Unknown, not stated");
+			Assert.assertNull(naxConfig.getLookupTables().get(0).get("3"));
+			Assert.assertThrows(IllegalArgumentException.class, () -> new LookupTables().lookup("missing", "1"));
+
+			File otherLookupTableFile = File.createTempFile("tempNaxTest", ".csv");
+			NaxConfig otherNaxConfig = null;
+
+			try
+			{
+				FileUtils.writeStringToFile(otherLookupTableFile, "sex,sexName\n1,M\n2,F\n", StandardCharsets.UTF_8);
+
+				//Names belong to each config, so another config can use the same name for another file
+				otherNaxConfig = new NaxConfig()
+						.withLookupTable("sexes", lookupTableFile)
+						.withLookupTable("sexes", otherLookupTableFile)
+						.withStaticScripts(true)
+						.withValueCountsScriptString("sex", "sexName", "lookup('sexes', itemValue)");
+
+				Assert.assertEquals(otherNaxConfig.getLookupTables().size(), 1);
+				Assert.assertEquals(otherNaxConfig.getLookupTables().get(0).get("1"), "M");
+				Assert.assertEquals(naxConfig.getLookupTables().get(0).get("1"), "Male", "Another config should not replace this config's table");
+
+				//A file that changed is loaded again
+				FileUtils.writeStringToFile(otherLookupTableFile, "sex,sexName\n1,Man\n2,Woman\n", StandardCharsets.UTF_8);
+				Assert.assertEquals(new NaxConfig().withLookupTable("sexes", otherLookupTableFile).getLookupTables().get(0).get("1"), "Man");
+			}
+			finally
+			{
+				FileUtils.deleteQuietly(otherLookupTableFile);
+			}
+
+			try (InputStream inputStream = getTestResourceInputStream(TEST_FILE_1000_GZ_NAME))
+			{
+				NaxResult naxResult = Nax.newInstance(otherNaxConfig).process(inputStream, TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE)
+						.get(0);
+
+				Assert.assertEquals(naxResult.getNaxMetrics().getValueCounts().get("sexName").keySet(), new HashSet<>(Arrays.asList("M", "F")));
+			}
+
+			try (InputStream inputStream = getTestResourceInputStream(TEST_FILE_1000_GZ_NAME))
+			{
+				NaxResult naxResult = Nax.newInstance(naxConfig).process(inputStream, TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE)
+						.get(0);
+
+				Map<String, Map<String, Integer>> valueCounts = naxResult.getNaxMetrics().getValueCounts();
+
+				Assert.assertEquals(valueCounts.get("sexName").keySet(), new HashSet<>(Arrays.asList("Male", "Female")));
+				Assert.assertEquals(valueCounts.get("sexCode").get("M"), valueCounts.get("sexName").get("Male"));
+			}
+		}
+		finally
+		{
+			lookupTableFile.delete();
+		}
+	}
+
+	@Test
+	public void testScriptProfiles()
+			throws Exception
+	{
+		NaxConfig naxConfig = new NaxConfig()
+				.withMetricsLogging(2)
+				.withTumorScriptString("tumor.getItemValue('primarySite').startsWith('C50') == false");
+
+		try (InputStream inputStream = getTestResourceInputStream(TEST_FILE_1000_GZ_NAME))
+		{
+			NaxResult naxResult = Nax.newInstance(naxConfig).process(inputStream, TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE)
+					.get(0);
+
+			List<ScriptProfile> scriptProfiles = naxResult.getNaxMetrics().getScriptProfiles();
+
+			Assert.assertEquals(scriptProfiles.size(), 1);
+			Assert.assertEquals(scriptProfiles.get(0).getInvocations(), TEST_FILE_1000_GZ_TUMOR_COUNT, "Check Tumor script invocations");
+			Assert.assertEquals(scriptProfiles.get(0).getFilteredOut(), naxResult.getNaxMetrics().getExcludedElementCounts()
+					.get("Tumor").longValue(), "Check Tumors filtered out by script");
+		}
+
+		try (InputStream inputStream = getTestResourceInputStream(TEST_FILE_1000_GZ_NAME))
+		{
+			NaxResult naxResult = Nax.newInstance(naxConfig.withMetricsLogging(1))
+					.process(inputStream, TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE)
+					.get(0);
+
+			Assert.assertNull(naxResult.getNaxMetrics().getScriptProfiles(), "Script profiles are only recorded for extended metrics");
+		}
+	}
+
+	@Test
+	public void testScriptCacheMatchesCompiledScripts()
+			throws Exception
+	{
+		File scriptCacheDirectory = Files.createTempDirectory("nax-script-cache").toFile();
+		List<String> outputs = new ArrayList<>();
+
+		try
+		{
+			for (File directory : new File[]{null, scriptCacheDirectory, scriptCacheDirectory})
+			{
+				NaxConfig naxConfig = new NaxConfig();
+
+				if (directory != null)
+				{
+					naxConfig.withScriptCacheDirectory(directory);
+				}
+
+				naxConfig.withScriptString("if (naaccrId.startsWith('dateOf')) item.setItemValue(left(itemValue, 4)); true");
+				naxConfig.withTumorScriptString("tumor.getItemValue('primarySite').startsWith('C50') == false");
+
+				if (directory != null)
+				{
+					//The first run with the cache compiles both scripts, the second loads them
+					boolean expectedCacheHit = outputs.size() == 2;
+					List<Script> compiledScripts = new ArrayList<>(naxConfig.getCompiledScripts());
+					compiledScripts.addAll(naxConfig.getCompiledTumorScripts());
+
+					for (Script compiledScript : compiledScripts)
+					{
+						Assert.assertEquals(naxConfig.getCachedScript(compiledScript).isCacheHit(), expectedCacheHit);
+					}
+				}
+
+				outputs.add(processToString(naxConfig, TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE));
+			}
+
+			Assert.assertEquals(scriptCacheDirectory.listFiles().length, 2, "Every script should have been written to the cache");
+			Assert.assertEquals(outputs.get(1), outputs.get(0), "Scripts compiled for the cache changed the output");
+			Assert.assertEquals(outputs.get(2), outputs.get(0), "Scripts loaded from the cache changed the output");
+		}
+		finally
+		{
+			FileUtils.deleteDirectory(scriptCacheDirectory);
+		}
+	}
+
+	@Test
+	public void testGzipThreadsMatchSingleThread()
+			throws Exception
+	{
+		List<NaxResult> naxResults = assertOutputUnchanged(TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE, "Output compressed on multiple threads did not match single-threaded output", (naxConfig, gzipThreads) -> {
+			if (gzipThreads)
+			{
+				withTestGzipThreads(naxConfig);
+			}
+		});
+
+		Assert.assertNull(naxResults.get(0).getNaxMetrics().getGzipThreads(), "Single-threaded gzip should not report gzip threads");
+		Assert.assertTrue(naxResults.get(1).getNaxMetrics().getGzipThreads() > 1, "Output was not compressed on multiple threads");
+
+		File tempFile = File.createTempFile("tempNaxTest", ".gz");
+
+		try (InputStream inputStream = getTestResourceInputStream(TEST_FILE_1000_GZ_NAME))
+		{
+			NaxMetrics naxMetrics = Nax.newInstance(withTestGzipThreads(new NaxConfig()))
+					.process(inputStream, TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE, tempFile).get(0).getNaxMetrics();
+
+			byte[] compressedBytes = FileUtils.readFileToByteArray(tempFile);
+			byte[] uncompressedBytes;
+
+			try (InputStream gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(compressedBytes)))
+			{
+				uncompressedBytes = IOUtils.toByteArray(gzipInputStream);
+			}
+
+			Assert.assertTrue(countGzipMembers(compressedBytes) > 1, "Output should be written as several gzip members");
+			Assert.assertEquals(naxMetrics.getGzipUncompressedBytes().longValue(), uncompressedBytes.length);
+			Assert.assertEquals(naxMetrics.getGzipCompressedBytes().longValue(), compressedBytes.length);
+		}
+		finally
+		{
+			tempFile.delete();
+		}
+
+		//Nothing written still has to be a gzip file that decompresses to nothing
+		ByteArrayOutputStream emptyOutputStream = new ByteArrayOutputStream();
+		new ParallelGzipOutputStream(emptyOutputStream, 3, ParallelGzipOutputStream.MINIMUM_BLOCK_SIZE, 1).close();
+
+		try (InputStream gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(emptyOutputStream.toByteArray())))
+		{
+			Assert.assertEquals(gzipInputStream.read(), -1, "Empty output should decompress to nothing");
+		}
+
+		Assert.assertEquals(countGzipMembers(emptyOutputStream.toByteArray()), 1);
+	}
+
+	private static NaxConfig withTestGzipThreads(NaxConfig naxConfig)
+	{
+		naxConfig.withGzipThreads(3);
+		naxConfig.withGzipBlockSize(ParallelGzipOutputStream.MINIMUM_BLOCK_SIZE);
+		naxConfig.withGzipLevel(1);
+
+		return naxConfig;
+	}
+
+	/**
+	 * Count the gzip members written by a {@link ParallelGzipOutputStream}, which never sets header flags, so every
+	 * member is a 10 byte header, deflated data, and an 8 byte trailer
+	 */
+	private static int countGzipMembers(byte[] gzipBytes)
+			throws DataFormatException
+	{
+		int memberCount = 0;
+		int offset = 0;
+		byte[] buffer = new byte[64 * 1024];
+
+		while (offset < gzipBytes.length)
+		{
+			Assert.assertEquals(gzipBytes[offset], (byte) 0x1f, "Missing gzip header at " + offset);
+			Assert.assertEquals(gzipBytes[offset + 1], (byte) 0x8b, "Missing gzip header at " + offset);
+
+			Inflater inflater = new Inflater(true);
+
+			try
+			{
+				inflater.setInput(gzipBytes, offset + 10, gzipBytes.length - offset - 10);
+
+				while (inflater.finished() == false)
+				{
+					if (inflater.inflate(buffer) == 0 && inflater.needsInput())
+					{
+						throw new DataFormatException("Truncated gzip member at " + offset);
+					}
+				}
+
+				offset = gzipBytes.length - inflater.getRemaining() + 8;
+			}
+			finally
+			{
+				inflater.end();
+			}
+
+			memberCount++;
+		}
+
+		return memberCount;
+	}
+
+	@Test
+	public void testDictionarySnapshotsMatchXml()
+			throws Exception
+	{
+		for (String naaccrVersion : new String[]{"160", "180", "210"})
+		{
+			NaaccrDictionary naaccrDictionary = NaaccrDictionary.createBaseDictionary(naaccrVersion);
+
+			Assert.assertSame(NaaccrDictionary.createBaseDictionary(naaccrVersion), naaccrDictionary,
+							  "Base dictionaries should be cached");
+			Assert.assertThrows(UnsupportedOperationException.class, () -> naaccrDictionary.getNaaccrNumMap().put("x", 1));
+			Assert.assertThrows(UnsupportedOperationException.class, () -> naaccrDictionary.getNaaccrIdMap().clear());
+
+			try (InputStream inputStream = getTestResourceInputStream(String.format("base-dictionary-%s.xml", naaccrVersion)))
+			{
+				NaaccrDictionary xmlDictionary = NaaccrDictionary.createUserDictionary(inputStream);
+
+				ByteArrayOutputStream snapshotOutputStream = new ByteArrayOutputStream();
+				xmlDictionary.writeSnapshot(snapshotOutputStream);
+
+				NaaccrDictionary snapshotDictionary = NaaccrDictionary
+						.readSnapshot(new ByteArrayInputStream(snapshotOutputStream.toByteArray()));
+
+				Assert.assertEquals(snapshotDictionary.getNaaccrNumMap(), xmlDictionary.getNaaccrNumMap());
+				Assert.assertEquals(snapshotDictionary.getNaaccrIdMap(), xmlDictionary.getNaaccrIdMap());
+				Assert.assertEquals(snapshotDictionary.getDictionaryUri(), xmlDictionary.getDictionaryUri());
+				Assert.assertEquals(naaccrDictionary.getNaaccrNumMap(), xmlDictionary.getNaaccrNumMap());
+			}
+		}
+	}
+
+	@Test
+	public void testFileThreadsKeepInputOrder()
+			throws Exception
+	{
+		List<File> inputFiles = new ArrayList<>();
+
+		for (Object[] testFile : createData())
+		{
+			inputFiles.add(new File(this.getClass().getResource("/" + testFile[0]).toURI()));
+		}
+
+		NaxConfig naxConfig = new NaxConfig();
+		naxConfig.withFileThreads(3);
+
+		List<NaxResult> naxResults = Nax.newInstance(naxConfig).process(inputFiles, null);
+
+		Assert.assertEquals(naxResults.size(), inputFiles.size());
+
+		for (int i = 0; i < inputFiles.size(); i++)
+		{
+			Assert.assertTrue(naxResults.get(i).isParsingSuccess());
+			Assert.assertTrue(naxResults.get(i).getInputFileInfo().getName().startsWith(inputFiles.get(i).getName()),
+							  "Results should be in the same order as the input files");
+		}
+	}
+
+	@Test
+	public void testDigestAlgorithms()
+			throws Exception
+	{
+		byte[] inputBytes = null;
+
+		try (InputStream inputStream = getTestResourceInputStream(TEST_FILE_1000_GZ_NAME))
+		{
+			inputBytes = IOUtils.toByteArray(inputStream);
+		}
+
+		CRC32C crc32c = new CRC32C();
+		crc32c.update(inputBytes);
+
+		Map<String, String> expectedDigests = new HashMap<>();
+		expectedDigests.put(ContentDigest.MD5, TEST_FILE_1000_GZ_ITEM_MD5);
+		expectedDigests.put(ContentDigest.SHA_256, Hex.encodeHexString(MessageDigest.getInstance(ContentDigest.SHA_256)
+																			   .digest(inputBytes)));
+		expectedDigests.put(ContentDigest.CRC32C, String.format("%08x", crc32c.getValue()));
+		expectedDigests.put(ContentDigest.NONE, null);
+
+		for (Map.Entry<String, String> expectedDigest : expectedDigests.entrySet())
+		{
+			NaxConfig naxConfig = new NaxConfig().withDigestAlgorithm(expectedDigest.getKey());
+
+			try (InputStream inputStream = getTestResourceInputStream(TEST_FILE_1000_GZ_NAME))
+			{
+				NaxResult naxResult = Nax.newInstance(naxConfig).process(inputStream, TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE)
+						.get(0);
+
+				Assert.assertTrue(naxResult.isParsingSuccess());
+				Assert.assertEquals(naxResult.getInputFileInfo().getDigestAlgorithm(), expectedDigest.getKey());
+				Assert.assertEquals(naxResult.getInputFileInfo().getDigest(), expectedDigest.getValue(), expectedDigest
+						.getKey());
+				Assert.assertEquals(naxResult.getInputFileInfo().getMd5(), ContentDigest.MD5.equals(expectedDigest
+																										  .getKey()) ? TEST_FILE_1000_GZ_ITEM_MD5 : null);
+			}
+		}
+
+		//Reads of a whole array count each byte once
+		try (ProgressTrackingDigestInputStream progressTrackingDigestInputStream = new ProgressTrackingDigestInputStream(
+				getTestResourceInputStream(TEST_FILE_1000_GZ_NAME), TEST_FILE_1000_GZ_NAME, TEST_FILE_1000_GZ_SIZE))
+		{
+			byte[] bytes = new byte[1000];
+
+			while (progressTrackingDigestInputStream.read(bytes) > -1)
+			{
+
+			}
+
+			Assert.assertEquals(progressTrackingDigestInputStream.getTotalRead(), inputBytes.length);
+			Assert.assertEquals(progressTrackingDigestInputStream.getMd5(), TEST_FILE_1000_GZ_ITEM_MD5);
+		}
+	}
+
+	@Test
+	public void testMappedInputMatchesStreamInput()
+			throws Exception
+	{
+		for (Object[] testFile : createData())
+		{
+			String filename = (String) testFile[0];
+			File inputFile = new File(this.getClass().getResource("/" + filename).toURI());
+			File streamOutputFile = File.createTempFile("tempNaxTest", "." + FilenameUtils.getExtension(filename));
+			File mappedOutputFile = File.createTempFile("tempNaxTest", "." + FilenameUtils.getExtension(filename));
+
+			try
+			{
+				List<NaxResult> streamResults = Nax.newInstance(new NaxConfig()).process(inputFile, streamOutputFile);
+				List<NaxResult> mappedResults = Nax.newInstance(new NaxConfig().withMappedInput(true))
+						.process(inputFile, mappedOutputFile);
+
+				Assert.assertEquals(mappedResults.size(), streamResults.size());
+
+				for (int i = 0; i < streamResults.size(); i++)
+				{
+					Assert.assertTrue(mappedResults.get(i).isParsingSuccess());
+					Assert.assertEquals(mappedResults.get(i).getInputFileInfo().getMd5(), streamResults.get(i)
+							.getInputFileInfo().getMd5());
+				}
+
+				try (InputStream streamInputStream = createInputStream(streamOutputFile);
+					 InputStream mappedInputStream = createInputStream(mappedOutputFile))
+				{
+					Assert.assertEquals(IOUtils.toString(mappedInputStream), IOUtils.toString(streamInputStream),
+										"Mapped input output did not match stream input output");
+				}
+			}
+			finally
+			{
+				FileUtils.deleteQuietly(streamOutputFile);
+				FileUtils.deleteQuietly(mappedOutputFile);
+			}
+
+			//Windows smaller than the parser's reads, so every read crosses into a new window
+			try (MappedFileInputStream mappedFileInputStream = new MappedFileInputStream(inputFile, ContentDigest
+					.newInstance(ContentDigest.MD5), 1000);
+				 ProgressTrackingDigestInputStream progressTrackingDigestInputStream = ProgressTrackingDigestInputStream
+						 .newInstance(inputFile))
+			{
+				Assert.assertEquals(IOUtils.toByteArray(mappedFileInputStream), IOUtils.toByteArray(progressTrackingDigestInputStream));
+				Assert.assertEquals(mappedFileInputStream.getTotalRead(), inputFile.length());
+				Assert.assertEquals(mappedFileInputStream.getMd5(), progressTrackingDigestInputStream.getMd5());
+			}
+
+			//Single byte reads, and the position survives close() after the window is released
+			MappedFileInputStream singleByteInputStream = new MappedFileInputStream(inputFile, ContentDigest
+					.newInstance(ContentDigest.MD5), 1000);
+			ByteArrayOutputStream singleByteOutputStream = new ByteArrayOutputStream();
+
+			for (int nextByte = singleByteInputStream.read(); nextByte >= 0; nextByte = singleByteInputStream.read())
+			{
+				singleByteOutputStream.write(nextByte);
+			}
+
+			singleByteInputStream.close();
+
+			Assert.assertEquals(singleByteOutputStream.toByteArray(), FileUtils.readFileToByteArray(inputFile));
+			Assert.assertEquals(singleByteInputStream.getTotalRead(), inputFile.length());
+			Assert.assertEquals(singleByteInputStream.getMd5(), Hex.encodeHexString(MessageDigest.getInstance(ContentDigest.MD5)
+																							 .digest(singleByteOutputStream.toByteArray())));
+		}
+	}
+
+	@Test
+	public void testFileThreadsZipEntriesMatchSingleThread()
+			throws Exception
+	{
+		File inputFile = new File(this.getClass().getResource("/" + TEST_FILE_1000_ZIP_NAME).toURI());
+		File singleThreadOutputFile = File.createTempFile("tempNaxTest", ".zip");
+		File fileThreadsOutputFile = File.createTempFile("tempNaxTest", ".zip");
+
+		try
+		{
+			List<NaxResult> singleThreadResults = Nax.newInstance(new NaxConfig()).process(inputFile, singleThreadOutputFile);
+			List<NaxResult> fileThreadsResults = Nax.newInstance(new NaxConfig().withFileThreads(3))
+					.process(inputFile, fileThreadsOutputFile);
+
+			Assert.assertEquals(fileThreadsResults.size(), singleThreadResults.size());
+
+			for (int i = 0; i < singleThreadResults.size(); i++)
+			{
+				Assert.assertTrue(fileThreadsResults.get(i).isParsingSuccess());
+				Assert.assertEquals(fileThreadsResults.get(i).getInputFileInfo().getName(), singleThreadResults.get(i)
+						.getInputFileInfo().getName());
+				Assert.assertEquals(fileThreadsResults.get(i).getNaxMetrics().getElementCounts(), singleThreadResults.get(i)
+						.getNaxMetrics().getElementCounts());
+			}
+
+			try (InputStream singleThreadInputStream = createInputStream(singleThreadOutputFile);
+				 InputStream fileThreadsInputStream = createInputStream(fileThreadsOutputFile))
+			{
+				Assert.assertEquals(IOUtils.toString(fileThreadsInputStream), IOUtils.toString(singleThreadInputStream));
+			}
+		}
+		finally
+		{
+			FileUtils.deleteQuietly(singleThreadOutputFile);
+			FileUtils.deleteQuietly(fileThreadsOutputFile);
+		}
+	}
+
+	@Test
+	public void testZipEntryOutputDeletedWhenEmpty()
+			throws Exception
+	{
+		File directory = Files.createTempDirectory("tempNaxTest").toFile();
+		File inputFile = new File(directory, "input.zip");
+		File outputFile = new File(directory, "output.zip");
+
+		try
+		{
+			//Every Patient in empty.xml is filtered out, none of the ones in keep.xml are
+			try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(inputFile)))
+			{
+				for (String[] entryNameAndSex : new String[][]{{"keep.xml", "1"}, {"empty.xml", "2"}})
+				{
+					zipOutputStream.putNextEntry(new ZipEntry(entryNameAndSex[0]));
+					zipOutputStream.write(createNaaccrXml(String.format(
+							"<Patient><Item naaccrId=\"sex\">%1$s</Item><Tumor><Item naaccrId=\"primarySite\">C509</Item></Tumor></Patient>\n" +
+									"<Patient><Item naaccrId=\"sex\">%1$s</Item><Tumor><Item naaccrId=\"primarySite\">C619</Item></Tumor></Patient>\n",
+							entryNameAndSex[1])).getBytes(StandardCharsets.UTF_8));
+					zipOutputStream.closeEntry();
+				}
+			}
+
+			//Output is streamed straight into the zip when it's never deleted, and held back until it's known otherwise
+			for (int deleteOutputFiles : new int[]{0, 1})
+			{
+				for (int fileThreads : new int[]{1, 2})
+				{
+					List<NaxResult> naxResults = Nax.newInstance(new NaxConfig()
+																		 .withPatientScriptString("patient.getItemValue('sex') == '1'")
+																		 .withDeleteOutputFiles(deleteOutputFiles)
+																		 .withFileThreads(fileThreads))
+							.process(inputFile, outputFile);
+
+					Assert.assertEquals(naxResults.size(), 2);
+					Assert.assertTrue(naxResults.get(0).isParsingSuccess());
+					Assert.assertTrue(naxResults.get(1).isParsingSuccess());
+					Assert.assertFalse(naxResults.get(0).isOutputFileDeleted());
+					Assert.assertEquals(naxResults.get(0).getOutputFileInfo().getName(), "keep.xml");
+					Assert.assertEquals(naxResults.get(1).isOutputFileDeleted(), deleteOutputFiles == 1);
+
+					try (ZipFile zipFile = new ZipFile(outputFile))
+					{
+						Assert.assertEquals(StringUtils.countMatches(IOUtils.toString(zipFile.getInputStream(zipFile
+								.getEntry("keep.xml")), StandardCharsets.UTF_8), "<Patient"), 2);
+
+						if (deleteOutputFiles == 1)
+						{
+							Assert.assertEquals(zipFile.size(), 1);
+							Assert.assertNull(zipFile.getEntry("empty.xml"));
+							Assert.assertNull(naxResults.get(1).getOutputFileInfo());
+						}
+						else
+						{
+							Assert.assertEquals(zipFile.size(), 2);
+							Assert.assertEquals(StringUtils.countMatches(IOUtils.toString(zipFile.getInputStream(zipFile
+									.getEntry("empty.xml")), StandardCharsets.UTF_8), "<Patient"), 0);
+						}
+					}
+
+					//Entry output held in temporary files next to the output is cleaned up
+					Assert.assertEquals(directory.list().length, 2);
+					FileUtils.deleteQuietly(outputFile);
+				}
+			}
+		}
+		finally
+		{
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testOutputDigestMatchesWrittenFiles()
+			throws Exception
+	{
+		File gzipOutputFile = File.createTempFile("tempNaxTest", ".xml.gz");
+
+		try
+		{
+			NaxResult naxResult = Nax.newInstance(new NaxConfig().withOutputDigestAlgorithm(ContentDigest.SHA_256))
+					.process(new File(this.getClass().getResource("/" + TEST_FILE_1000_GZ_NAME).toURI()), gzipOutputFile)
+					.get(0);
+			NaxOutputFileInfo outputFileInfo = naxResult.getOutputFileInfo();
+
+			Assert.assertTrue(naxResult.isParsingSuccess());
+			Assert.assertEquals(outputFileInfo.getName(), gzipOutputFile.getName());
+			Assert.assertEquals(outputFileInfo.getDigestAlgorithm(), ContentDigest.SHA_256);
+			Assert.assertEquals(outputFileInfo.getSize(), gzipOutputFile.length());
+			Assert.assertEquals(outputFileInfo.getDigest(), Hex.encodeHexString(MessageDigest.getInstance(ContentDigest.SHA_256)
+																						  .digest(FileUtils.readFileToByteArray(gzipOutputFile))));
+
+			try (InputStream inputStream = createInputStream(gzipOutputFile))
+			{
+				Assert.assertEquals(outputFileInfo.getUncompressedSize(), IOUtils.toByteArray(inputStream).length);
+			}
+
+			//Output is only hashed when an algorithm is picked, but the sizes are always there
+			NaxOutputFileInfo defaultOutputFileInfo = Nax.newInstance(new NaxConfig())
+					.process(new File(this.getClass().getResource("/" + TEST_FILE_1000_GZ_NAME).toURI()), gzipOutputFile)
+					.get(0).getOutputFileInfo();
+
+			Assert.assertEquals(defaultOutputFileInfo.getDigestAlgorithm(), ContentDigest.NONE);
+			Assert.assertNull(defaultOutputFileInfo.getDigest());
+			Assert.assertEquals(defaultOutputFileInfo.getSize(), gzipOutputFile.length());
+		}
+		finally
+		{
+			FileUtils.deleteQuietly(gzipOutputFile);
+		}
+
+		File inputFile = new File(this.getClass().getResource("/" + TEST_FILE_1000_ZIP_NAME).toURI());
+
+		for (int fileThreads : new int[]{1, 3})
+		{
+			File zipOutputFile = File.createTempFile("tempNaxTest", ".zip");
+
+			try
+			{
+				List<NaxResult> naxResults = Nax.newInstance(new NaxConfig().withFileThreads(fileThreads)
+																	 .withOutputDigestAlgorithm(ContentDigest.MD5))
+						.process(inputFile, zipOutputFile);
+
+				try (ZipFile zipFile = new ZipFile(zipOutputFile))
+				{
+					for (NaxResult naxResult : naxResults)
+					{
+						NaxOutputFileInfo outputFileInfo = naxResult.getOutputFileInfo();
+						ZipEntry zipEntry = zipFile.getEntry(outputFileInfo.getName());
+
+						Assert.assertTrue(naxResult.isParsingSuccess());
+						Assert.assertNotNull(zipEntry);
+						Assert.assertEquals(outputFileInfo.getSize(), zipEntry.getCompressedSize());
+						Assert.assertEquals(outputFileInfo.getUncompressedSize(), zipEntry.getSize());
+
+						try (InputStream inputStream = zipFile.getInputStream(zipEntry))
+						{
+							Assert.assertEquals(outputFileInfo.getDigest(), Hex.encodeHexString(MessageDigest.getInstance(ContentDigest.MD5)
+																										  .digest(IOUtils.toByteArray(inputStream))));
+						}
+
+						Assert.assertEquals(naxResult.getOutputZipFileInfo().getSize(), zipOutputFile.length());
+						Assert.assertEquals(naxResult.getOutputZipFileInfo().getDigest(), Hex.encodeHexString(MessageDigest
+								.getInstance(ContentDigest.MD5).digest(FileUtils.readFileToByteArray(zipOutputFile))));
+					}
+				}
+			}
+			finally
+			{
+				FileUtils.deleteQuietly(zipOutputFile);
+			}
+		}
+	}
+
+	/**
+	 * A NAACCR XML abstract file holding the given Patient elements
+	 */
+	private static String createNaaccrXml(String patientsXml)
+	{
+		return "<?xml version=\"1.0\"?>\n<NaaccrData baseDictionaryUri=\"http://naaccr.org/naaccrxml/naaccr-dictionary-180.xml\" " +
+				"recordType=\"A\" specificationVersion=\"1.4\" xmlns=\"http://naaccr.org/naaccrxml\">\n" + patientsXml + "</NaaccrData>\n";
+	}
+
+	/**
+	 * Every event from a reader as its type followed by its text or name
+	 */
+	private static List<String> readXmlEvents(XMLStreamReader xmlStreamReader)
+			throws XMLStreamException
+	{
+		List<String> xmlEvents = new ArrayList<>();
+
+		while (xmlStreamReader.hasNext())
+		{
+			int xmlEventType = xmlStreamReader.next();
+
+			xmlEvents.add(String.format("%d:%s", xmlEventType, xmlStreamReader.hasText() ? xmlStreamReader
+					.getText() : xmlStreamReader.hasName() ? xmlStreamReader.getLocalName() : StringUtils.EMPTY));
+		}
+
+		return xmlEvents;
+	}
+
+	private String processToString(NaxConfig naxConfig,
+								   String filename,
+								   long filesize)
+			throws Exception
+	{
+		List<String> outputs = new ArrayList<>();
+
+		processToOutputs(naxConfig, filename, filesize, outputs);
+
+		return outputs.get(0);
+	}
+
+	/**
+	 * Process a test file, adding what was written to outputs
+	 */
+	private NaxResult processToOutputs(NaxConfig naxConfig,
+									   String filename,
+									   long filesize,
+									   List<String> outputs)
+			throws Exception
+	{
+		File tempFile = File.createTempFile("tempNaxTest", "." + FilenameUtils.getExtension(filename));
+
+		try (InputStream inputStream = getTestResourceInputStream(filename))
+		{
+			List<NaxResult> naxResults = Nax.newInstance(naxConfig).process(inputStream, filename, filesize, tempFile);
+
+			Assert.assertEquals(naxResults.size(), 1);
+
+			try (InputStream tempFileInputStream = createInputStream(tempFile))
+			{
+				outputs.add(IOUtils.toString(tempFileInputStream));
+			}
+
+			return naxResults.get(0);
+		}
+		finally
+		{
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Sets up a NaxConfig for one side of {@link #assertOutputUnchanged(String, long, String, ConfigCustomizer)}
+	 */
+	private interface ConfigCustomizer
+	{
+		void customize(NaxConfig naxConfig,
+					   boolean featureOn)
+				throws Exception;
+	}
+
+	/**
+	 * Process a test file with a feature off and then on, and assert that turning it on didn't change the output
+	 *
+	 * @return the result of each run, with the feature off first
+	 */
+	private List<NaxResult> assertOutputUnchanged(String filename,
+												  long filesize,
+												  String message,
+												  ConfigCustomizer configCustomizer)
+			throws Exception
+	{
+		List<NaxResult> naxResults = new ArrayList<>();
+		List<String> outputs = new ArrayList<>();
+
+		for (boolean featureOn : new boolean[]{false, true})
+		{
+			NaxConfig naxConfig = new NaxConfig();
+			configCustomizer.customize(naxConfig, featureOn);
+
+			naxResults.add(processToOutputs(naxConfig, filename, filesize, outputs));
+		}
+
+		Assert.assertEquals(outputs.get(1), outputs.get(0), message);
+
+		return naxResults;
+	}
+
 	private void checkExcludedItems(List<Item> items,
 									List<String> excludedItems,
 									NaaccrDictionary naaccrDictionary,